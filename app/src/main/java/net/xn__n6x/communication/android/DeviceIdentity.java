@@ -2,9 +2,12 @@ package net.xn__n6x.communication.android;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Base64;
 import net.xn__n6x.communication.identity.Id;
+import net.xn__n6x.communication.identity.Keys;
 import net.xn__n6x.communication.identity.Profile;
 
+import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
 import java.util.Optional;
 import java.util.function.Function;
@@ -15,6 +18,7 @@ public class DeviceIdentity {
     protected static final String SHARED_PREFERENCES = "DeviceIdentity";
     protected static final String KEY_ID   = "Id";
     protected static final String KEY_NAME = "Name";
+    protected static final String KEY_PRIVATE_KEY = "PrivateKey";
 
     /** The shared preferences object storing the identity data. */
     protected SharedPreferences preferences;
@@ -37,6 +41,9 @@ public class DeviceIdentity {
         long missing = 0;
         if(!getIdStatic(preferences).isPresent()) ++missing;
         if(!getNameStatic(preferences).isPresent()) ++missing;
+        /* Identities from before messages were sealed have no keys, and
+         * can't be used anymore. */
+        if(!getKeysStatic(preferences).isPresent()) ++missing;
 
         if(missing > 0)
             /* We're missing keys. */
@@ -46,8 +53,8 @@ public class DeviceIdentity {
         return Optional.of(identity);
     }
 
-    /** Creates a new device identity with the given profile and a randomly
-     * generated {@link Id}.
+    /** Creates a new device identity with the given profile and a newly
+     * generated pair of {@link Keys}, and with them, a new {@link Id}.
      * @param c The {@link Context} that will be used for retrieval and storage.
      * @param p The {@link Profile} that will be used for creation.
      * @return A {@link DeviceIdentity} interface for this device.
@@ -58,7 +65,7 @@ public class DeviceIdentity {
             Context.MODE_PRIVATE);
         DeviceIdentity identity = new DeviceIdentity(preferences);
 
-        identity.setId(Id.random());
+        identity.setKeys(Keys.generate());
         identity.setName(p.getName());
 
         return identity;
@@ -69,6 +76,12 @@ public class DeviceIdentity {
             .orElseThrow(() -> new RuntimeException("Called getId() on invalid Id"));
     }
 
+    /** Our keys, which our {@link Id} is the public half of. */
+    public Keys getKeys() {
+        return getKeysStatic(preferences)
+            .orElseThrow(() -> new RuntimeException("Called getKeys() on missing keys"));
+    }
+
     public String getName() {
         return getNameStatic(preferences)
             .orElseThrow(() -> new RuntimeException("Called getName() on missing name"));
@@ -80,6 +93,13 @@ public class DeviceIdentity {
             .apply();
     }
 
+    public void setKeys(Keys keys) {
+        this.preferences.edit()
+            .putString(KEY_ID, keys.getId().toString())
+            .putString(KEY_PRIVATE_KEY, Base64.encodeToString(keys.encodePrivateKey(), Base64.NO_WRAP))
+            .apply();
+    }
+
     public void setName(String name) {
         this.preferences.edit()
             .putString(KEY_NAME, name)
@@ -97,6 +117,21 @@ public class DeviceIdentity {
         }
     }
 
+    /** Statically try to find our keys in the given preferences. */
+    protected static Optional<Keys> getKeysStatic(SharedPreferences prefs) {
+        Optional<Id> id = getIdStatic(prefs);
+        String key = prefs.getString(KEY_PRIVATE_KEY, null);
+        if(!id.isPresent() || key == null)
+            return Optional.empty();
+
+        try {
+            return Optional.of(Keys.fromEncoded(id.get(), Base64.decode(key, Base64.NO_WRAP)));
+        } catch(IllegalArgumentException | InvalidKeySpecException ex) {
+            ex.printStackTrace();
+            return Optional.empty();
+        }
+    }
+
     /** Statically try to find a name in the given preferences. */
     protected static Optional<String> getNameStatic(SharedPreferences prefs) {
         return Optional.ofNullable(prefs.getString(KEY_NAME, null));
@@ -113,7 +113,10 @@ public class MessagingActivity extends AppCompatActivity {
         this.input.setText("");
 
         /* Send it out. */
-        this.watchdog.send(data, this.target);
+        this.watchdog.send(data, this.target).exceptionally(error -> {
+            Log.e("MessagingActivity", "Could not send message", error);
+            return null;
+        });
     }
 
     /** When messages from our peer become available. */
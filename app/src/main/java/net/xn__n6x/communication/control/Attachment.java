@@ -0,0 +1,53 @@
+package net.xn__n6x.communication.control;
+
+import java.io.File;
+import java.util.Objects;
+
+/** A file riding along with a {@link Packet}, such as a photo.
+ *
+ * Attachments never make it into the Java heap. They stay on disk for as
+ * long as they are queued up, and go straight from the file to the socket
+ * when sent, and from the socket to a file when received, so a device may
+ * carry attachments much larger than the memory it has to spare. */
+public final class Attachment {
+    /** The file holding the data. */
+    protected final File file;
+    /** How many bytes of the file make up the attachment. */
+    protected final long length;
+
+    /** Attaches the whole of the given file, as long as it is right now.
+     * @param file The file to be attached. */
+    public Attachment(File file) {
+        this(file, file.length());
+    }
+
+    public Attachment(File file, long length) {
+        if(length < 0)
+            throw new IllegalArgumentException("Attachment with negative length: " + length);
+
+        this.file = file;
+        this.length = length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Attachment that = (Attachment) o;
+        return length == that.length &&
+            Objects.equals(file, that.file);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(file, length);
+    }
+}
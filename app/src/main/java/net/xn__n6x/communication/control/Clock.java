@@ -0,0 +1,13 @@
+package net.xn__n6x.communication.control;
+
+import android.os.SystemClock;
+
+/** Where a {@link Router} gets the time from, to tell when its packets
+ * expire. The device has its uptime clock, simulations bring their own. */
+public interface Clock {
+    /** The uptime clock of the device, which doesn't count deep sleep. */
+    Clock UPTIME = SystemClock::uptimeMillis;
+
+    /** What time it is, in milliseconds, on a monotonic clock. */
+    long millis();
+}
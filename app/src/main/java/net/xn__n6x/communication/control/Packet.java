@@ -6,6 +6,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -17,14 +18,57 @@ public class Packet {
     protected final Id[] route;
     /* The ID of the device this packet is intended for. */
     protected final Id target;
+    /** Delivery class of this packet. */
+    protected final Priority priority;
     /** Payload data carried by this packet. */
     protected final byte[] payload;
+    /** File carried along with the payload, if any. Not part of the buffer
+     * encoding, it's up to whoever sends the packet to send it too. */
+    protected final Attachment attachment;
+
+    /** Delivery classes a packet may belong to. Routers always serve every
+     * packet in a higher class before they serve any packet in a lower one,
+     * so the classes are declared here from the most to the least urgent. */
+    public enum Priority {
+        /** Protocol control traffic. */
+        CONTROL,
+        /** Emergency traffic, such as SOS messages. */
+        URGENT,
+        /** Regular user messages. */
+        NORMAL,
+        /** Bulk data, relayed whenever there is nothing better to send. */
+        BULK;
+
+        /* Cached, since values() clones the array on every call. */
+        protected static final Priority[] VALUES = Priority.values();
+
+        /** Gets the priority class with the given wire value.
+         * @param value The ordinal of the priority class.
+         * @return The matching {@link Priority}.
+         * @throws IllegalArgumentException When there is no such class.
+         */
+        public static Priority fromOrdinal(int value) {
+            if(value < 0 || value >= VALUES.length)
+                throw new IllegalArgumentException("Invalid priority class: " + value);
+            return VALUES[value];
+        }
+    }
 
     public Packet(Id source, Id[] route, Id target, byte[] payload) {
+        this(source, route, target, Priority.NORMAL, payload);
+    }
+
+    public Packet(Id source, Id[] route, Id target, Priority priority, byte[] payload) {
+        this(source, route, target, priority, payload, null);
+    }
+
+    public Packet(Id source, Id[] route, Id target, Priority priority, byte[] payload, Attachment attachment) {
         this.source = source;
         this.route = route;
         this.target = target;
+        this.priority = priority;
         this.payload = payload;
+        this.attachment = attachment;
     }
 
     /** Read the first packet from the given byte buffer.
@@ -34,10 +78,14 @@ public class Packet {
     public static Packet fromBuffer(ByteBuffer data) {
         Id source = Id.fromBuffer(data);
         Id target = Id.fromBuffer(data);
+        Priority priority = Priority.fromOrdinal(data.get());
 
         int routeLength = data.getInt();
         if(routeLength < 0)
             throw new IllegalArgumentException("Given buffer has packet with negative route length.");
+        /* Whatever the length says, the Ids have to be in there. */
+        if(routeLength > data.remaining() / Id.ID_LENGTH)
+            throw new IllegalArgumentException("Given buffer has packet with route longer than itself.");
 
         Id[] route = new Id[routeLength];
         for(int i = 0; i < routeLength; ++i)
@@ -46,11 +94,13 @@ public class Packet {
         int payloadLength = data.getInt();
         if(payloadLength < 0)
             throw new IllegalArgumentException("Given buffer has packet with negative payload length.");
+        if(payloadLength > data.remaining())
+            throw new IllegalArgumentException("Given buffer has packet with payload longer than itself.");
 
         byte[] payload = new byte[payloadLength];
         data.get(payload);
 
-        return new Packet(source, route, target, payload);
+        return new Packet(source, route, target, priority, payload);
     }
 
     /** Returns a new {@link Packet} with the given {@link Id} tagged to the
@@ -61,24 +111,44 @@ public class Packet {
             .collect(Collectors.toCollection(ArrayList::new));
 
         /* please just lemme finish this */
-        return new Packet(this.source, route.toArray(new Id[] {}), this.target, this.payload);
+        return new Packet(this.source, route.toArray(new Id[] {}), this.target, this.priority, this.payload, this.attachment);
+    }
+
+    /** Returns a new {@link Packet} just like this one, but carrying the given
+     * attachment. Use this once the file of a packet read from a buffer has
+     * been received. */
+    public Packet attach(Attachment attachment) {
+        return new Packet(this.source, this.route, this.target, this.priority, this.payload, attachment);
     }
 
     public void intoBuffer(ByteBuffer data) {
+        this.headerIntoBuffer(data);
+        data.put(this.payload);
+    }
+
+    public int intoBufferLength() {
+        return this.headerLength() + this.payload.length;
+    }
+
+    /** Writes everything {@link #intoBuffer(ByteBuffer)} would, up to but not
+     * including the payload itself. Whoever calls this is on the hook for
+     * getting the payload written right after it, which lets it go out
+     * straight from the array it's in. */
+    public void headerIntoBuffer(ByteBuffer data) {
         this.source.intoBuffer(data);
         this.target.intoBuffer(data);
+        data.put((byte) this.priority.ordinal());
 
         data.putInt(this.route.length);
         for(Id id : this.route) id.intoBuffer(data);
 
         data.putInt(this.payload.length);
-        data.put(this.payload);
     }
 
-    public int intoBufferLength() {
+    public int headerLength() {
         return (2 + this.route.length) * Id.ID_LENGTH   /* 2 plus route Ids.    */
-            + 2 * 4                                     /* Two length values.   */
-            + this.payload.length;                      /* And the payload.     */
+            + 1                                         /* Priority class.      */
+            + 2 * 4;                                    /* Two length values.   */
     }
 
     public Id getSource() {
@@ -89,6 +159,10 @@ public class Packet {
         return target;
     }
 
+    public Priority getPriority() {
+        return priority;
+    }
+
     public byte[] getPayload() {
         return payload;
     }
@@ -97,6 +171,10 @@ public class Packet {
         return route;
     }
 
+    public Optional<Attachment> getAttachment() {
+        return Optional.ofNullable(attachment);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -105,12 +183,14 @@ public class Packet {
         return Objects.equals(source, packet.source) &&
             Arrays.equals(route, packet.route) &&
             Objects.equals(target, packet.target) &&
-            Arrays.equals(payload, packet.payload);
+            priority == packet.priority &&
+            Arrays.equals(payload, packet.payload) &&
+            Objects.equals(attachment, packet.attachment);
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(source, target);
+        int result = Objects.hash(source, target, priority, attachment);
         result = 31 * result + Arrays.hashCode(route);
         result = 31 * result + Arrays.hashCode(payload);
         return result;
@@ -1,10 +1,13 @@
 package net.xn__n6x.communication.control;
 
-import android.os.SystemClock;
 import android.util.Log;
 import net.xn__n6x.communication.identity.Id;
+import net.xn__n6x.communication.metrics.Counter;
+import net.xn__n6x.communication.metrics.Histogram;
+import net.xn__n6x.communication.metrics.Metrics;
 
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class Router {
@@ -18,17 +21,76 @@ public class Router {
 
     /** Holds the set of the peers we are currently connected to. */
     protected final HashSet<Id> reachablePeers;
+    /** Holds the sequence number of the last packet each peer has delivered
+     * to us, so that we can tell when they send us something again. */
+    protected final HashMap<Id, Long> inboundSequences;
+
+    /** How many queues hold each packet we relay or that carries an
+     * attachment, be it waiting, leased out or due to be sent again. */
+    protected final HashMap<Packet, Integer> holders;
+    /** How many payload bytes the packets we relay add up to, counting every
+     * packet once, however many queues hold it. */
+    protected long relayedBytes;
+    /** Gets told about every packet with an attachment that has left every
+     * queue it was in, so that whatever holds its file can let go of it. */
+    protected Consumer<Packet> onReleased;
 
     /** The Id of this device. */
     protected final Id id;
+    /** Where we get the time from, to tell when packets expire. */
+    protected final Clock clock;
 
-    /** Create a new, blank router.
+    /** Counts the copies of packets that have been queued up for a peer. */
+    protected Counter forwarded;
+    /** Counts the packets that have been handed out for delivery. */
+    protected Counter taken;
+    /** Counts the packets that have been acknowledged by their peer. */
+    protected Counter acknowledged;
+    /** Counts the packets that expired before they could be delivered. */
+    protected Counter expired;
+    /** How long packets wait in their queue before being leased out. */
+    protected Histogram waited;
+
+    /** Create a new, blank router, going by the uptime clock of the device.
      * @param id The {@link Id} of the current device. */
     public Router(Id id) {
+        this(id, Clock.UPTIME);
+    }
+
+    /** Create a new, blank router.
+     * @param id The {@link Id} of the current device.
+     * @param clock Where to get the time from. */
+    public Router(Id id, Clock clock) {
         this.id = id;
+        this.clock = clock;
         this.packetQueueSet = new HashMap<>();
         this.reachablePeers = new HashSet<>();
         this.packetCache = new ArrayDeque<>();
+        this.inboundSequences = new HashMap<>();
+        this.holders = new HashMap<>();
+        this.relayedBytes = 0;
+        this.onReleased = p -> {};
+        this.measure(Metrics.NONE);
+    }
+
+    /** Starts keeping track of how many packets go through the router, and
+     * how long they wait in it, in the given registry.
+     * @param metrics Where to keep it all, or {@link Metrics#NONE}. */
+    public void measure(Metrics metrics) {
+        this.forwarded = metrics.counter("router.forwarded");
+        this.taken = metrics.counter("router.taken");
+        this.acknowledged = metrics.counter("router.acknowledged");
+        this.expired = metrics.counter("router.expired");
+        this.waited = metrics.histogram("router.waited");
+    }
+
+    /** Sets what to do with the packets carrying attachments once no queue
+     * holds them anymore, be it because every peer they were queued up for
+     * has acknowledged them, or because they expired first. A packet queued
+     * up for several peers is only let go of once, after the last of them.
+     * @param listener What to do with the packets. */
+    public void onReleased(Consumer<Packet> listener) {
+        this.onReleased = listener;
     }
 
     /** Queries the first {@link Packet} queued up for the peer with the given {@link Id} that has
@@ -41,7 +103,187 @@ public class Router {
         PacketQueue queue = this.packetQueueSet.get(peer);
         if (queue == null)
             return Optional.empty();
-        return queue.take();
+
+        long expired = queue.expired;
+        Optional<Packet> packet = queue.take();
+        this.expired.add(queue.expired - expired);
+        this.releaseDropped(queue);
+        if(packet.isPresent()) {
+            this.taken.increment();
+            this.release(packet.get());
+        }
+        return packet;
+    }
+
+    /** Leases the first {@link Packet} queued up for the peer with the given
+     * {@link Id} that has not yet expired. Unlike
+     * {@link #getNextMessageForPeer(Id)}, the packet is not removed from the
+     * queue until {@link #acknowledge(Id, long)} is called with its sequence
+     * number, or a later one. If {@link #release(Id)} is called before that,
+     * it is handed out again, under the same sequence number.
+     * @param peer The peer whose queue is to be queried.
+     * @return The {@link Lease} on the packet next in line, if any.
+     */
+    public Optional<Lease> lease(Id peer) {
+        PacketQueue queue = this.packetQueueSet.get(peer);
+        if (queue == null)
+            return Optional.empty();
+
+        long expired = queue.expired;
+        Optional<Lease> lease = queue.lease();
+        this.expired.add(queue.expired - expired);
+        this.releaseDropped(queue);
+        if(lease.isPresent()) {
+            this.taken.increment();
+            this.waited.record(this.clock.millis() - lease.get().queued.postTime);
+        }
+        return lease;
+    }
+
+    /** Lets go of every leased packet up to and including the given sequence
+     * number, since the peer has already got them. Packets leased out from
+     * then on are numbered past it, as the peer may remember us from before
+     * we restarted and started numbering them over, and would take any
+     * packet numbered at or below it for one it already has.
+     * @param peer The peer that has acknowledged the packets.
+     * @param sequence The cumulative sequence number being acknowledged.
+     * @return The packets that were let go of.
+     */
+    public ArrayList<Packet> acknowledge(Id peer, long sequence) {
+        ArrayList<Packet> acknowledged = new ArrayList<>();
+
+        PacketQueue queue = this.packetQueueSet.get(peer);
+        if(queue == null && sequence > 0) {
+            queue = new PacketQueue(this.clock);
+            this.packetQueueSet.put(peer, queue);
+        }
+        if (queue != null)
+            queue.acknowledge(sequence, acknowledged);
+        this.acknowledged.add(acknowledged.size());
+        for(Packet p : acknowledged)
+            this.release(p);
+        return acknowledged;
+    }
+
+    /** Takes note of one more queue holding the given packet, should it be
+     * one we relay or one that carries an attachment. */
+    protected void hold(Packet p) {
+        boolean relayed = !p.source.equals(this.id);
+        if(!relayed && p.attachment == null)
+            return;
+
+        if(this.holders.merge(p, 1, Integer::sum) == 1 && relayed)
+            this.relayedBytes += p.payload.length;
+    }
+
+    /** Lets go of a packet that has left one of the queues holding it, and
+     * of whatever it takes up once it has left the last one. */
+    protected void release(Packet p) {
+        Integer held = this.holders.get(p);
+        if(held == null)
+            return;
+
+        if(held > 1) {
+            this.holders.put(p, held - 1);
+            return;
+        }
+        this.holders.remove(p);
+        this.settle(p);
+    }
+
+    /** Lets go of whatever a packet no queue holds anymore takes up. */
+    protected void settle(Packet p) {
+        if(!p.source.equals(this.id))
+            this.relayedBytes -= p.payload.length;
+        if(p.attachment != null)
+            this.onReleased.accept(p);
+    }
+
+    /** Lets go of every packet the given queue has dropped for having
+     * expired. */
+    protected void releaseDropped(PacketQueue queue) {
+        for(Packet p : queue.dropped)
+            this.release(p);
+        queue.dropped.clear();
+    }
+
+    /** Puts every leased packet the given peer hasn't acknowledged yet back in
+     * line, to be handed out again before anything else.
+     * @param peer The peer whose session with us is over.
+     */
+    public void release(Id peer) {
+        PacketQueue queue = this.packetQueueSet.get(peer);
+        if (queue != null)
+            queue.release();
+    }
+
+    /** Records the delivery of a packet from the given peer.
+     * @param peer The peer the packet came from.
+     * @param sequence The sequence number the peer gave the packet.
+     * @return Whether this is the first time we've seen this packet.
+     */
+    public boolean accept(Id peer, long sequence) {
+        if(sequence <= this.getLastAccepted(peer))
+            return false;
+
+        this.inboundSequences.put(peer, sequence);
+        return true;
+    }
+
+    /** Gets the sequence number of the last packet the given peer has
+     * delivered to us, which is where it should resume from.
+     * @param peer The peer the packets come from.
+     * @return The sequence number, or zero if it never delivered us anything.
+     */
+    public long getLastAccepted(Id peer) {
+        Long sequence = this.inboundSequences.get(peer);
+        return sequence == null ? 0 : sequence;
+    }
+
+    /** Gets how many packets are waiting to be delivered to the given peer.
+     * Packets that have expired but have not been dropped yet are counted, as
+     * are leased packets that have to be sent again, but not the ones that
+     * are out waiting for acknowledgement.
+     * @param peer The peer whose queue is to be queried.
+     * @return The number of queued packets.
+     */
+    public int getQueuedCount(Id peer) {
+        PacketQueue queue = this.packetQueueSet.get(peer);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /** Gets how many bytes of payload are waiting to be delivered to the given
+     * peer. Counts the same packets {@link #getQueuedCount(Id)} does.
+     * @param peer The peer whose queue is to be queried.
+     * @return The number of queued payload bytes.
+     */
+    public long getQueuedBytes(Id peer) {
+        PacketQueue queue = this.packetQueueSet.get(peer);
+        return queue == null ? 0 : queue.bytes;
+    }
+
+    /** Gets how many bytes of payload are waiting to be delivered, to every
+     * peer. Packets queued up for more than one peer count once for each.
+     * @return The number of queued payload bytes.
+     */
+    public long getQueuedBytes() {
+        long bytes = 0;
+        for(PacketQueue queue : this.packetQueueSet.values())
+            bytes += queue.bytes;
+        return bytes;
+    }
+
+    /** Gets how long the most urgent packet waiting to be delivered to the
+     * given peer has left before it expires. Counts the same packets
+     * {@link #getQueuedCount(Id)} does.
+     * @param peer The peer whose queue is to be queried.
+     * @return The time left in milliseconds, which is negative for packets
+     * that have expired but have not been dropped yet, or
+     * {@link Long#MAX_VALUE} if there are no packets.
+     */
+    public long getTimeLeft(Id peer) {
+        PacketQueue queue = this.packetQueueSet.get(peer);
+        return queue == null ? Long.MAX_VALUE : queue.timeLeft(this.clock.millis());
     }
 
     /** Gets the set of peers which have messages waiting to be delivered to them.
@@ -57,6 +299,19 @@ public class Router {
             .collect(Collectors.toCollection(HashSet::new));
     }
 
+    /** Gets the set of peers which have messages waiting to be delivered to
+     * them, be they reachable or not.
+     * @return A {@link HashSet} of the {@link Id}s of targeted peers.
+     */
+    public HashSet<Id> getTargetedPeers() {
+        return this.packetQueueSet
+            .entrySet()
+            .stream()
+            .filter(entry -> entry.getValue().hasNext())
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toCollection(HashSet::new));
+    }
+
     /** Registers the given {@link Id} as reachable.
      * @param id The {@link Id} of the peer to be marked as reachable.
      */
@@ -80,11 +335,6 @@ public class Router {
         HashSet<Id> targets = new HashSet<>(32);
         HashSet<Id> inRoute = Arrays.stream(p.route).collect(Collectors.toCollection(HashSet::new));
 
-        /* Trim any cycles by refusing to forward back to peers that have
-         * already seen this message, they shouldn't need to receive it again.
-         */
-        targets.removeIf(inRoute::contains);
-
         if(this.reachablePeers.contains(p.target))
             /* We can reach our target directly. */
             targets.add(p.target);
@@ -92,6 +342,13 @@ public class Router {
             /* Forward it to everyone in case we can't connect to them directly. */
             targets.addAll(this.reachablePeers);
 
+        /* Trim any cycles by refusing to forward back to peers that have
+         * already seen this message, they shouldn't need to receive it again.
+         * This has to come after the targets are in, or there'd be nothing to
+         * trim, and relays would bounce every packet back where it came from
+         * for as long as they stay in reach. */
+        targets.removeIf(inRoute::contains);
+
         return targets;
     }
 
@@ -107,51 +364,260 @@ public class Router {
             /* Initialize if none. */
             PacketQueue queue = this.packetQueueSet.get(forwardId);
             if(queue == null) {
-                queue = new PacketQueue();
+                queue = new PacketQueue(this.clock);
                 this.packetQueueSet.put(forwardId, queue);
             }
 
-            queue.enqueueIfNew(p, timeToLive);
+            if(queue.enqueueIfNew(p, timeToLive)) {
+                this.forwarded.increment();
+                this.hold(p);
+            }
         }
+
+        /* Nobody is going to take it, so there's nothing to hold on to. */
+        if(!this.holders.containsKey(p))
+            this.settle(p);
+    }
+
+    /** Drops every packet that has expired while waiting in its queue, rather
+     * than whenever its peer comes around again, which it may never do. */
+    public void purge() {
+        for(PacketQueue queue : this.packetQueueSet.values()) {
+            long expired = queue.expired;
+            queue.purge();
+            this.expired.add(queue.expired - expired);
+            this.releaseDropped(queue);
+        }
+    }
+
+    /** Gets how many bytes of payload the packets we relay, rather than send
+     * ourselves, add up to, be they waiting or out waiting for
+     * acknowledgement. Unlike {@link #getQueuedBytes()}, packets queued up for
+     * more than one peer count once.
+     * @return The number of relayed payload bytes. */
+    public long getRelayedBytes() {
+        return this.relayedBytes;
     }
 
+    /** Queue discipline for the packets waiting on a single peer. Packets are
+     * served in strict priority order, by {@link Packet.Priority} class, and
+     * earliest deadline first within each class, so that the packets that are
+     * about to expire get sent before the ones which still have plenty of time
+     * left. Both enqueueing and taking run in {@code O(log n)}.
+     *
+     * Packets handed out through {@link #lease()} are numbered in the order
+     * they go out, and stay around until the peer acknowledges them. Should a
+     * session drop before that, they are sent again, in the same order and
+     * with the same numbers, ahead of anything else. */
     protected static class PacketQueue {
-        /** The packets currently waiting, in queue order. */
-        public final ArrayDeque<QueuedPacket> queue;
-        /** The set of all packets currently queued up. */
+        /** The packets currently waiting, one heap per priority class. */
+        public final PriorityQueue<QueuedPacket>[] classes;
+        /** The set of all packets currently queued up, leased out or not. */
         public final HashSet<Packet> catalogue;
+        /** Leased packets that have been sent in the current session, but that
+         * haven't been acknowledged yet, in sequence order. */
+        public final ArrayDeque<Lease> unacknowledged;
+        /** Leased packets from an earlier session that have to be sent again,
+         * in sequence order. */
+        public final ArrayDeque<Lease> resend;
+        /** Packets that expired since the router last looked, so that it can
+         * let go of whatever they take up. */
+        public final ArrayList<Packet> dropped;
+        /** Arrival number to be given to the next packet, used to keep packets
+         * with the same deadline in arrival order. */
+        protected long arrivals;
+        /** Sequence number given to the last packet that was leased out. */
+        protected long sequence;
+        /** Total payload length of the packets that still have to be sent. */
+        protected long bytes;
+        /** How many packets expired before they could be sent. */
+        protected long expired;
+        /** Where we get the time from, to tell when packets expire. */
+        protected final Clock clock;
 
         public PacketQueue() {
+            this(Clock.UPTIME);
+        }
+
+        public PacketQueue(Clock clock) {
+            this.clock = clock;
             this.catalogue = new HashSet<>();
-            this.queue = new ArrayDeque<>();
+
+            /* Arrays of generic types can only be made raw. */
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            PriorityQueue<QueuedPacket>[] classes = new PriorityQueue[Packet.Priority.VALUES.length];
+            this.classes = classes;
+            for(int i = 0; i < this.classes.length; ++i)
+                this.classes[i] = new PriorityQueue<>(QueuedPacket.EARLIEST_DEADLINE_FIRST);
+            this.unacknowledged = new ArrayDeque<>();
+            this.resend = new ArrayDeque<>();
+            this.dropped = new ArrayList<>();
+            this.arrivals = 0;
+            this.sequence = 0;
+            this.bytes = 0;
+            this.expired = 0;
         }
 
         /** Enqueues the given {@link Packet} if it's not already in the queue.
          * @param p The Packet to be forwarded.
+         * @return Whether it wasn't.
          */
-        public void enqueueIfNew(Packet p, long timeToLive) {
+        public boolean enqueueIfNew(Packet p, long timeToLive) {
             if(!catalogue.contains(p)){
-                queue.add(QueuedPacket.wrap(p, timeToLive));
+                classes[p.priority.ordinal()].add(QueuedPacket.wrap(p, timeToLive, this.clock.millis(), this.arrivals++));
                 catalogue.add(p);
+                bytes += p.payload.length;
+                return true;
             }
+            return false;
         }
 
-        /** Takes the first {@link Packet} in this queue that still has not expired.
+        /** Takes the most urgent {@link Packet} in this queue that still has
+         * not expired, and forgets about it.
          * @return The {@link Packet}, if any.
          */
         public Optional<Packet> take() {
-            while(this.queue.size() > 0) {
-                QueuedPacket packet = this.queue.pop();
+            return this.poll().map(packet -> {
                 this.catalogue.remove(packet.packet);
+                this.bytes -= packet.packet.payload.length;
+                return packet.packet;
+            });
+        }
 
-                if(!packet.expired())
-                    return Optional.of(packet.packet);
+        /** Takes the next {@link Packet} that should go out, keeping it around
+         * until it gets acknowledged.
+         * @return The {@link Lease} on the packet, if any.
+         */
+        public Optional<Lease> lease() {
+            /* Whatever didn't make it last time goes first. */
+            while(this.resend.size() > 0) {
+                Lease lease = this.resend.pollFirst();
+                this.bytes -= lease.packet.payload.length;
+                if(lease.queued.expired(this.clock.millis())) {
+                    this.drop(lease.packet);
+                    continue;
+                }
+
+                this.unacknowledged.addLast(lease);
+                return Optional.of(lease);
+            }
+
+            return this.poll().map(packet -> {
+                this.bytes -= packet.packet.payload.length;
+                Lease lease = new Lease(++this.sequence, packet);
+                this.unacknowledged.addLast(lease);
+                return lease;
+            });
+        }
+
+        /** Drops every leased packet up to and including the given sequence
+         * number, which the peer has told us it already has, and numbers
+         * every packet leased out from then on past it.
+         * @param sequence The cumulative sequence number being acknowledged.
+         * @param acknowledged Where the dropped packets go.
+         */
+        public void acknowledge(long sequence, Collection<Packet> acknowledged) {
+            this.sequence = Math.max(this.sequence, sequence);
+            while(this.unacknowledged.size() > 0 && this.unacknowledged.peekFirst().sequence <= sequence) {
+                Lease lease = this.unacknowledged.pollFirst();
+                this.catalogue.remove(lease.packet);
+                acknowledged.add(lease.packet);
+            }
+
+            while(this.resend.size() > 0 && this.resend.peekFirst().sequence <= sequence) {
+                Lease lease = this.resend.pollFirst();
+                this.catalogue.remove(lease.packet);
+                this.bytes -= lease.packet.payload.length;
+                acknowledged.add(lease.packet);
+            }
+        }
+
+        /** Puts every leased packet that hasn't been acknowledged back in line
+         * to be sent again, ahead of everything else. */
+        public void release() {
+            while(this.unacknowledged.size() > 0) {
+                Lease lease = this.unacknowledged.pollLast();
+                this.resend.addFirst(lease);
+                this.bytes += lease.packet.payload.length;
+            }
+        }
+
+        /** Pops the most urgent packet that still has not expired off the
+         * heaps, dropping every expired one it comes across. */
+        protected Optional<QueuedPacket> poll() {
+            long now = this.clock.millis();
+            for(PriorityQueue<QueuedPacket> queue : this.classes) {
+                while(queue.size() > 0) {
+                    QueuedPacket packet = queue.poll();
+
+                    if(!packet.expired(now))
+                        return Optional.of(packet);
+                    this.bytes -= packet.packet.payload.length;
+                    this.drop(packet.packet);
+                }
             }
             return Optional.empty();
         }
 
+        /** Drops every packet at the head of the heaps that has expired,
+         * leaving the rest be. */
+        public void purge() {
+            long now = this.clock.millis();
+            for(PriorityQueue<QueuedPacket> queue : this.classes)
+                while(queue.size() > 0 && queue.peek().expired(now)) {
+                    QueuedPacket packet = queue.poll();
+                    this.bytes -= packet.packet.payload.length;
+                    this.drop(packet.packet);
+                }
+        }
+
+        /** Forgets about a packet that expired before it could be sent. */
+        protected void drop(Packet p) {
+            this.catalogue.remove(p);
+            this.expired++;
+            this.dropped.add(p);
+        }
+
+        /** How long the packet with the earliest deadline that still has to
+         * be sent has left, as of the given time, if there are any. */
+        public long timeLeft(long now) {
+            long deadline = Long.MAX_VALUE;
+            for(PriorityQueue<QueuedPacket> queue : this.classes)
+                if(queue.size() > 0)
+                    deadline = Math.min(deadline, queue.peek().deadline());
+            for(Lease lease : this.resend)
+                deadline = Math.min(deadline, lease.queued.deadline());
+
+            return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - now;
+        }
+
+        /** Whether there are any packets that still have to be sent, be it
+         * for the first time or again. */
         public boolean hasNext() {
-            return this.queue.size() > 0;
+            return this.catalogue.size() > this.unacknowledged.size();
+        }
+
+        /** How many packets still have to be sent, be it for the first time or
+         * again. */
+        public int size() {
+            return this.catalogue.size() - this.unacknowledged.size();
+        }
+    }
+
+    /** A packet that has been handed out for delivery, but which stays in its
+     * queue until the peer acknowledges it. */
+    public static class Lease {
+        /** Position of this packet in the stream of packets to its peer. */
+        public final long sequence;
+        /** The packet to be delivered. */
+        public final Packet packet;
+        /* Queue entry the packet came from, so it can still expire. */
+        protected final QueuedPacket queued;
+
+        protected Lease(long sequence, QueuedPacket queued) {
+            this.sequence = sequence;
+            this.packet = queued.packet;
+            this.queued = queued;
         }
     }
 
@@ -165,29 +631,54 @@ public class Router {
         protected final long timeToLive;
         /** Monotonic timestamp in milliseconds of the time this packet was queued. */
         protected final long postTime;
+        /** Order in which this packet arrived at its queue. */
+        protected final long arrival;
+
+        /** Orders packets by their deadline, breaking ties by arrival order. */
+        public static final Comparator<QueuedPacket> EARLIEST_DEADLINE_FIRST = (a, b) -> {
+            int byDeadline = Long.compare(a.deadline(), b.deadline());
+            if(byDeadline != 0)
+                return byDeadline;
+            return Long.compare(a.arrival, b.arrival);
+        };
 
-        public QueuedPacket(Packet packet, long timeToLive, long postTime) {
+        public QueuedPacket(Packet packet, long timeToLive, long postTime, long arrival) {
             this.packet = packet;
             this.timeToLive = timeToLive;
             this.postTime = postTime;
+            this.arrival = arrival;
         }
 
-        /** Wrap a packet with a given time to live and register it with the current time.
+        /** Wrap a packet with a given time to live and register it with the given time.
          * @param packet The packet to be wrapped.
          * @param timeToLive The time this packet should be valid for.
+         * @param now The current monotonic time, in milliseconds.
+         * @param arrival The arrival order of this packet in its queue.
          * @return The given packet, wrapped with its information time.
          */
-        public static QueuedPacket wrap(Packet packet, long timeToLive) {
-            long currTime = SystemClock.uptimeMillis();
-            return new QueuedPacket(packet, timeToLive, currTime);
+        public static QueuedPacket wrap(Packet packet, long timeToLive, long now, long arrival) {
+            return new QueuedPacket(packet, timeToLive, now, arrival);
+        }
+
+        /** Monotonic timestamp in milliseconds after which this packet expires. */
+        public long deadline() {
+            return this.postTime + this.timeToLive;
         }
 
         /** Has this packet exceeded its time to live property?
          * @return Whether this packet should be ignored for having expired.
          */
         public boolean expired() {
-            long currTime = SystemClock.uptimeMillis();
-            long delta = currTime - this.postTime;
+            return this.expired(Clock.UPTIME.millis());
+        }
+
+        /** Has this packet exceeded its time to live property, as of the
+         * given time?
+         * @param now The current monotonic time, in milliseconds.
+         * @return Whether this packet should be ignored for having expired.
+         */
+        public boolean expired(long now) {
+            long delta = now - this.postTime;
 
             if(delta < 0)
                 Log.w(
@@ -0,0 +1,126 @@
+package net.xn__n6x.communication.identity;
+
+import java.math.BigInteger;
+import java.security.*;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.*;
+import java.util.Arrays;
+
+/** The key pair behind an {@link Id}.
+ *
+ * Ids are the public halves of NIST P-256 key pairs, written down as the big
+ * endian X and Y coordinates of the public point, back to back, which happens
+ * to be exactly {@link Id#ID_LENGTH} bytes. That way, anyone who knows the Id
+ * of a device can seal messages that only that device can open, without the
+ * two of them ever having met. See {@link Sealer}. */
+public final class Keys {
+    /** The curve all of our keys are on. */
+    protected static final String CURVE = "secp256r1";
+    /** How long each coordinate of a public point is, in bytes. */
+    protected static final int COORDINATE_LENGTH = Id.ID_LENGTH / 2;
+
+    /** Our {@link Id}, which is our public key. */
+    protected final Id id;
+    /** Our private key. */
+    protected final PrivateKey privateKey;
+
+    protected Keys(Id id, PrivateKey privateKey) {
+        this.id = id;
+        this.privateKey = privateKey;
+    }
+
+    /** Generates a brand new key pair, and with it, a brand new {@link Id}. */
+    public static Keys generate() {
+        KeyPair pair = Curve.generate();
+        return new Keys(toId((ECPublicKey) pair.getPublic()), pair.getPrivate());
+    }
+
+    /** Loads a key pair back from its {@link Id} and the encoding of its
+     * private key, as given by {@link #encodePrivateKey()}.
+     * @throws InvalidKeySpecException When the encoding is not that of a
+     * private key. */
+    public static Keys fromEncoded(Id id, byte[] encoded) throws InvalidKeySpecException {
+        try {
+            PrivateKey key = KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(encoded));
+            return new Keys(id, key);
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Elliptic curves are not supported", e);
+        }
+    }
+
+    /** Gets the public key the given {@link Id} stands for.
+     * @throws InvalidKeyException When the Id is not a point on our curve,
+     * as is the case with those made up by {@link Id#random()}. */
+    public static PublicKey publicKey(Id id) throws InvalidKeyException {
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(id.data, 0, COORDINATE_LENGTH));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(id.data, COORDINATE_LENGTH, Id.ID_LENGTH));
+
+        /* Not every provider checks this for us, and agreeing on a key with a
+         * point that isn't on the curve gives away bits of the private key. */
+        ECParameterSpec params = Curve.PARAMETERS;
+        BigInteger p = ((ECFieldFp) params.getCurve().getField()).getP();
+        BigInteger a = params.getCurve().getA();
+        BigInteger b = params.getCurve().getB();
+        BigInteger lhs = y.multiply(y).mod(p);
+        BigInteger rhs = x.multiply(x).add(a).multiply(x).add(b).mod(p);
+        if(x.compareTo(p) >= 0 || y.compareTo(p) >= 0 || !lhs.equals(rhs))
+            throw new InvalidKeyException("Id is not a point on " + CURVE);
+
+        try {
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(new ECPoint(x, y), params));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Elliptic curves are not supported", e);
+        } catch(InvalidKeySpecException e) {
+            throw new InvalidKeyException("Id is not a valid public key", e);
+        }
+    }
+
+    /** Writes down the coordinates of the given public key as an {@link Id}. */
+    protected static Id toId(ECPublicKey key) {
+        byte[] data = new byte[Id.ID_LENGTH];
+        writeCoordinate(key.getW().getAffineX(), data, 0);
+        writeCoordinate(key.getW().getAffineY(), data, COORDINATE_LENGTH);
+
+        return new Id(data);
+    }
+
+    /** Writes a coordinate into the given array as a fixed length, big endian
+     * unsigned integer. */
+    protected static void writeCoordinate(BigInteger value, byte[] into, int offset) {
+        /* Big integers are signed, and as short as they can be. */
+        byte[] bytes = value.toByteArray();
+        int length = Math.min(bytes.length, COORDINATE_LENGTH);
+        System.arraycopy(bytes, bytes.length - length, into, offset + COORDINATE_LENGTH - length, length);
+    }
+
+    /** Encodes the private key, so that it can be stored and then loaded back
+     * with {@link #fromEncoded(Id, byte[])}. Keep it secret, keep it safe. */
+    public byte[] encodePrivateKey() {
+        return this.privateKey.getEncoded();
+    }
+
+    public Id getId() {
+        return id;
+    }
+
+    public PrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    /** Lazily set up parameters of our curve. Not every version of Android
+     * can look these up by name, so we take them from a key we generate. */
+    protected static final class Curve {
+        protected static final ECParameterSpec PARAMETERS =
+            ((ECPublicKey) generate().getPublic()).getParams();
+
+        protected static KeyPair generate() {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec(CURVE));
+                return generator.generateKeyPair();
+            } catch(GeneralSecurityException e) {
+                throw new IllegalStateException(CURVE + " is not supported", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package net.xn__n6x.communication.identity;
+
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/** Seals payloads so that only the device they are meant for can open them,
+ * and opens the ones meant for us.
+ *
+ * Payloads are sealed with AES-256-GCM, under keys both ends derive on their
+ * own from an ECDH agreement between their {@link Keys}, followed by
+ * HKDF-SHA256. The agreement is the only expensive part of all this, and it is
+ * done once per peer and then cached, so sealing a message costs about as much
+ * as encrypting it. The {@link Cipher} doing the encryption is reused too.
+ *
+ * Sealed payloads start with a salt and a counter, followed by the ciphertext
+ * and its tag:
+ * <pre>
+ * [16-byte salt][64-bit counter][ciphertext][16-byte tag]
+ * </pre>
+ * The salt picks the key, out of all the ones the agreement can give, and the
+ * counter is the nonce under that key. We pick a random salt for every peer we
+ * seal for, and a new one every so often after that, so that nonces are never
+ * reused, not even across restarts, and no key gets anywhere near the limits
+ * of GCM. Keys are different for either direction, so both ends can count
+ * from zero at the same time.
+ *
+ * Only payloads are sealed. Attachments, along with the addresses in the
+ * packet, which relays have to be able to read, go as they are. */
+public class Sealer {
+    /** How long the salt in front of a sealed payload is, in bytes. */
+    public static final int SALT_LENGTH = 16;
+    /** How long the tag at the end of a sealed payload is, in bytes. */
+    public static final int TAG_LENGTH = 16;
+    /** How much longer a payload gets once sealed, in bytes. */
+    public static final int OVERHEAD = SALT_LENGTH + 8 + TAG_LENGTH;
+    /** How many payloads we seal for a peer under the same key, by default. */
+    public static final long DEFAULT_ROTATE_AFTER = 1L << 24;
+    /** How long we seal for a peer under the same key, by default. */
+    public static final long DEFAULT_ROTATE_AGE = TimeUnit.DAYS.toMillis(1);
+
+    /** How long GCM nonces are, in bytes. */
+    protected static final int NONCE_LENGTH = 12;
+    /** How many of the keys we've opened payloads with we hang on to. */
+    protected static final int OPENING_KEYS = 256;
+    /** Binds derived keys to what they're used for. */
+    protected static final byte[] INFO = "Watchdog sealed payload".getBytes(StandardCharsets.UTF_8);
+
+    /** Our keys. */
+    protected final Keys keys;
+    protected final SecureRandom random;
+    protected final Cipher cipher;
+    protected final Mac mac;
+    protected final KeyAgreement agreement;
+    /** The secrets we have agreed upon with each peer. */
+    protected final HashMap<Id, byte[]> secrets;
+    /** The keys we are currently sealing under, for each peer. */
+    protected final HashMap<Id, Sealing> sealing;
+    /** The keys we have lately opened payloads with, least recent first. */
+    protected final LinkedHashMap<Opening, SecretKey> opening;
+    /** How many payloads we seal for a peer under the same key. */
+    protected long rotateAfter;
+    /** How long we seal for a peer under the same key, in milliseconds. */
+    protected long rotateAge;
+
+    public Sealer(Keys keys) {
+        this.keys = keys;
+        this.random = new SecureRandom();
+        try {
+            this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            this.mac = Mac.getInstance("HmacSHA256");
+            this.agreement = KeyAgreement.getInstance("ECDH");
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException("Sealing is not supported", e);
+        }
+        this.secrets = new HashMap<>();
+        this.sealing = new HashMap<>();
+        this.opening = new LinkedHashMap<Opening, SecretKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Opening, SecretKey> eldest) {
+                return this.size() > OPENING_KEYS;
+            }
+        };
+        this.rotateAfter = DEFAULT_ROTATE_AFTER;
+        this.rotateAge = DEFAULT_ROTATE_AGE;
+    }
+
+    /** Seals a payload for the given peer.
+     * @param peer The {@link Id} of the peer that should be able to open it.
+     * @param payload The payload to be sealed. Left untouched.
+     * @return The sealed payload, {@link #OVERHEAD} bytes longer.
+     * @throws InvalidKeyException When the peer has no keys behind its Id. */
+    public synchronized byte[] seal(Id peer, byte[] payload) throws InvalidKeyException {
+        Sealing current = this.sealing.get(peer);
+        if(current == null
+            || current.counter >= this.rotateAfter
+            || System.currentTimeMillis() - current.created >= this.rotateAge) {
+
+            byte[] salt = new byte[SALT_LENGTH];
+            this.random.nextBytes(salt);
+
+            current = new Sealing(salt, this.derive(peer, salt, this.keys.getId(), peer));
+            this.sealing.put(peer, current);
+        }
+        long counter = current.counter++;
+
+        /* The ciphertext goes straight in after the header. */
+        byte[] sealed = new byte[OVERHEAD + payload.length];
+        ByteBuffer.wrap(sealed)
+            .put(current.salt)
+            .putLong(counter);
+        try {
+            this.cipher.init(Cipher.ENCRYPT_MODE, current.key, nonce(counter));
+            this.cipher.updateAAD(sealed, 0, SALT_LENGTH + 8);
+            this.cipher.doFinal(payload, 0, payload.length, sealed, SALT_LENGTH + 8);
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException("Could not seal payload", e);
+        }
+
+        return sealed;
+    }
+
+    /** Opens a payload the given peer sealed for us.
+     * @param peer The {@link Id} of the peer that sealed it.
+     * @param sealed The sealed payload. Left untouched.
+     * @return The payload as it was before it was sealed.
+     * @throws GeneralSecurityException When the payload was not sealed for
+     * us by the peer, or has been tampered with along the way. */
+    public synchronized byte[] open(Id peer, byte[] sealed) throws GeneralSecurityException {
+        if(sealed.length < OVERHEAD)
+            throw new AEADBadTagException("Sealed payload is too short");
+
+        ByteBuffer header = ByteBuffer.wrap(sealed);
+        byte[] salt = new byte[SALT_LENGTH];
+        header.get(salt);
+        long counter = header.getLong();
+
+        Opening slot = new Opening(peer, salt);
+        SecretKey key = this.opening.get(slot);
+        if(key == null) {
+            key = this.derive(peer, salt, peer, this.keys.getId());
+            this.opening.put(slot, key);
+        }
+
+        this.cipher.init(Cipher.DECRYPT_MODE, key, nonce(counter));
+        this.cipher.updateAAD(sealed, 0, SALT_LENGTH + 8);
+        return this.cipher.doFinal(sealed, SALT_LENGTH + 8, sealed.length - SALT_LENGTH - 8);
+    }
+
+    /** Derives the key for payloads going from one end to the other, using
+     * the secret we share with the given peer and the given salt. */
+    protected SecretKey derive(Id peer, byte[] salt, Id from, Id to) throws InvalidKeyException {
+        byte[] secret = this.secrets.get(peer);
+        if(secret == null) {
+            this.agreement.init(this.keys.getPrivateKey());
+            this.agreement.doPhase(Keys.publicKey(peer), true);
+            secret = this.agreement.generateSecret();
+            this.secrets.put(peer, secret);
+        }
+
+        /* HKDF, with a single block of output, which is all AES-256 needs. */
+        this.mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = this.mac.doFinal(secret);
+
+        this.mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        this.mac.update(INFO);
+        this.mac.update(from.data);
+        this.mac.update(to.data);
+        this.mac.update((byte) 1);
+
+        return new SecretKeySpec(this.mac.doFinal(), "AES");
+    }
+
+    /** Makes up the nonce for the given counter. */
+    protected static GCMParameterSpec nonce(long counter) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        ByteBuffer.wrap(nonce).putLong(NONCE_LENGTH - 8, counter);
+
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    /** A key we're sealing payloads for a peer under. */
+    protected static final class Sealing {
+        protected final byte[] salt;
+        protected final SecretKey key;
+        /** When we started using the key, in milliseconds. */
+        protected final long created;
+        /** The counter of the next payload sealed under the key. */
+        protected long counter;
+
+        protected Sealing(byte[] salt, SecretKey key) {
+            this.salt = salt;
+            this.key = key;
+            this.created = System.currentTimeMillis();
+            this.counter = 0;
+        }
+    }
+
+    /** Which key some peer sealed a payload for us under. */
+    protected static final class Opening {
+        protected final Id peer;
+        protected final byte[] salt;
+
+        protected Opening(Id peer, byte[] salt) {
+            this.peer = peer;
+            this.salt = salt;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Opening that = (Opening) o;
+            return Objects.equals(peer, that.peer) &&
+                Arrays.equals(salt, that.salt);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hash(peer) + Arrays.hashCode(salt);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package net.xn__n6x.communication.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** A number that only ever goes up, like how many packets have expired.
+ * Counting never takes a lock, and threads counting at the same time don't
+ * get in each other's way. */
+public class Counter {
+    /** A counter that counts nothing, handed out by registries that are
+     * disabled, so that whatever is being measured doesn't have to check. */
+    public static final Counter NONE = new Counter() {
+        @Override
+        public void add(long amount) { }
+    };
+
+    /** The count so far. */
+    protected final LongAdder count;
+
+    protected Counter() {
+        this.count = new LongAdder();
+    }
+
+    /** Counts one more. */
+    public void increment() {
+        this.add(1);
+    }
+
+    /** Counts the given amount more. */
+    public void add(long amount) {
+        this.count.add(amount);
+    }
+
+    /** Gets the count so far. */
+    public long get() {
+        return this.count.sum();
+    }
+}
@@ -0,0 +1,142 @@
+package net.xn__n6x.communication.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** How a quantity, like a latency, is distributed, so its percentiles can be
+ * told without keeping every value around.
+ *
+ * Values go into buckets the way they do in HdrHistogram: below
+ * {@code 2 * SUB_BUCKETS}, every value has its own, and above that, every
+ * power of two is split into {@link #SUB_BUCKETS} buckets of the same width.
+ * That keeps the error of every value under one part in {@link #SUB_BUCKETS},
+ * whatever its magnitude, in a fixed amount of space. Recording is a couple
+ * of shifts and a few atomic operations, and never takes a lock. */
+public class Histogram {
+    /** How many bits of every value are kept. */
+    public static final int SUB_BUCKET_BITS = 4;
+    /** How many buckets each power of two is split into. */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** How many buckets it takes to cover every positive long. */
+    protected static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    /** A histogram that records nothing, handed out by registries that are
+     * disabled. */
+    public static final Histogram NONE = new Histogram(false) {
+        @Override
+        public void record(long value) { }
+    };
+
+    /** How many values fell in each bucket. */
+    protected final AtomicLongArray buckets;
+    /** The sum of every value, for the mean. */
+    protected final AtomicLong sum;
+    /** The largest value recorded. */
+    protected final AtomicLong max;
+
+    protected Histogram() {
+        this(true);
+    }
+
+    private Histogram(boolean buckets) {
+        this.buckets = new AtomicLongArray(buckets ? BUCKETS : 0);
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /** Gets the bucket the given value falls in. */
+    protected static int index(long value) {
+        if(value < 2 * SUB_BUCKETS)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /** Gets the largest value that falls in the given bucket. */
+    protected static long highest(int index) {
+        if(index < 2 * SUB_BUCKETS)
+            return index;
+
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /** Records the given value. Negative ones count as zero. */
+    public void record(long value) {
+        if(value < 0)
+            value = 0;
+
+        this.buckets.incrementAndGet(index(value));
+        this.sum.addAndGet(value);
+
+        long max;
+        do {
+            max = this.max.get();
+        } while(value > max && !this.max.compareAndSet(max, value));
+    }
+
+    /** Takes a snapshot of what's been recorded so far. Values recorded while
+     * it's being taken may or may not make it in. */
+    public Snapshot snapshot() {
+        long[] buckets = new long[this.buckets.length()];
+        long count = 0;
+        for(int i = 0; i < buckets.length; ++i) {
+            buckets[i] = this.buckets.get(i);
+            count += buckets[i];
+        }
+        return new Snapshot(buckets, count, this.sum.get(), this.max.get());
+    }
+
+    /** The state of a {@link Histogram} at some point. */
+    public static final class Snapshot {
+        protected final long[] buckets;
+        /** How many values had been recorded. */
+        public final long count;
+        /** The sum of them all. */
+        public final long sum;
+        /** The largest of them. */
+        public final long max;
+
+        protected Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /** Gets the mean of the values, or zero if there were none. */
+        public double getMean() {
+            return this.count == 0 ? 0 : (double) this.sum / this.count;
+        }
+
+        /** Gets the value the given percentage of them were at or under, give
+         * or take the width of its bucket, or zero if there were none. */
+        public long getPercentile(double percentile) {
+            if(this.count == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * this.count));
+            long seen = 0;
+            for(int i = 0; i < this.buckets.length; ++i) {
+                seen += this.buckets[i];
+                if(seen >= rank)
+                    return Math.min(highest(i), this.max);
+            }
+            return this.max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                this.count,
+                this.getMean(),
+                this.getPercentile(50),
+                this.getPercentile(90),
+                this.getPercentile(99),
+                this.max);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package net.xn__n6x.communication.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/** Keeps track of everything there is to measure about a part of the
+ * application, by name, so that it can all be looked at in one go, see
+ * {@link #snapshot()}.
+ *
+ * There are three kinds of things it keeps: {@link Counter}s, which only go
+ * up, gauges, which are asked for their value whenever a snapshot is taken,
+ * and {@link Histogram}s, for how things like latencies are distributed.
+ * Whatever is being measured should grab its instruments once, and keep them
+ * around, rather than look them up by name every time.
+ *
+ * A registry that is disabled, like {@link #NONE}, hands out instruments that
+ * do nothing at all, so that measuring costs next to nothing when no one is
+ * looking, and whatever is being measured never has to check. */
+public class Metrics {
+    /** A registry that keeps nothing. */
+    public static final Metrics NONE = new Metrics(false);
+
+    /** Whether this registry keeps anything. */
+    protected final boolean enabled;
+    /** The counters, by name. */
+    protected final ConcurrentHashMap<String, Counter> counters;
+    /** The gauges, by name. */
+    protected final ConcurrentHashMap<String, LongSupplier> gauges;
+    /** The histograms, by name. */
+    protected final ConcurrentHashMap<String, Histogram> histograms;
+
+    /** Creates a registry that keeps everything it's given. */
+    public Metrics() {
+        this(true);
+    }
+
+    protected Metrics(boolean enabled) {
+        this.enabled = enabled;
+        this.counters = new ConcurrentHashMap<>();
+        this.gauges = new ConcurrentHashMap<>();
+        this.histograms = new ConcurrentHashMap<>();
+    }
+
+    /** Whether this registry keeps anything. */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /** Gets the counter with the given name, creating it if there isn't
+     * one yet. */
+    public Counter counter(String name) {
+        if(!this.enabled)
+            return Counter.NONE;
+        return this.counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    /** Gets the histogram with the given name, creating it if there isn't
+     * one yet. */
+    public Histogram histogram(String name) {
+        if(!this.enabled)
+            return Histogram.NONE;
+        return this.histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /** Registers a gauge under the given name, replacing whichever was there.
+     * It gets asked for its value from whatever thread takes a snapshot, so
+     * it has to be safe to call from any of them. */
+    public void gauge(String name, LongSupplier gauge) {
+        if(this.enabled)
+            this.gauges.put(name, gauge);
+    }
+
+    /** Takes a snapshot of everything there is to measure. */
+    public Snapshot snapshot() {
+        TreeMap<String, Long> values = new TreeMap<>();
+        for(Map.Entry<String, Counter> counter : this.counters.entrySet())
+            values.put(counter.getKey(), counter.getValue().get());
+        for(Map.Entry<String, LongSupplier> gauge : this.gauges.entrySet())
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+
+        TreeMap<String, Histogram.Snapshot> histograms = new TreeMap<>();
+        for(Map.Entry<String, Histogram> histogram : this.histograms.entrySet())
+            histograms.put(histogram.getKey(), histogram.getValue().snapshot());
+
+        return new Snapshot(values, histograms);
+    }
+
+    /** The state of everything in a registry at some point. */
+    public static final class Snapshot {
+        /** The values of the counters and gauges, by name. */
+        public final SortedMap<String, Long> values;
+        /** The histograms, by name. */
+        public final SortedMap<String, Histogram.Snapshot> histograms;
+
+        protected Snapshot(TreeMap<String, Long> values, TreeMap<String, Histogram.Snapshot> histograms) {
+            this.values = Collections.unmodifiableSortedMap(values);
+            this.histograms = Collections.unmodifiableSortedMap(histograms);
+        }
+
+        /** Gets the value of the counter or gauge with the given name, or
+         * zero if there is none. */
+        public long get(String name) {
+            Long value = this.values.get(name);
+            return value == null ? 0 : value;
+        }
+
+        /** Gets the histogram with the given name, if there is one. */
+        public Histogram.Snapshot getHistogram(String name) {
+            return this.histograms.get(name);
+        }
+
+        /** Lays everything out one per line, in order of name. */
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for(Map.Entry<String, Long> value : this.values.entrySet())
+                builder.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+            for(Map.Entry<String, Histogram.Snapshot> histogram : this.histograms.entrySet())
+                builder.append(histogram.getKey()).append(' ').append(histogram.getValue()).append('\n');
+            return builder.toString();
+        }
+    }
+}
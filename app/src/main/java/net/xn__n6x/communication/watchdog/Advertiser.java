@@ -0,0 +1,37 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.io.Closeable;
+
+/** Tells the devices around us who we are, and finds out who they are, all
+ * without bringing up a single link.
+ *
+ * Learning the {@link net.xn__n6x.communication.identity.Id} of a peer over
+ * its {@link Transport} takes a link and a {@link Session}, one peer at a
+ * time. An advertiser gets the same out of the service records both sides put
+ * out, see {@link ServiceRecord}, which peers pick up for as many devices as
+ * are around in one go. Peers are known to it by the same hardware address
+ * they are known to the transport by.
+ *
+ * Every method may be called from any thread, and every event is delivered
+ * to the {@link Listener} asynchronously. */
+public interface Advertiser extends Closeable {
+    /** Starts delivering events to the given listener. */
+    void start(Listener listener);
+
+    /** Puts out the given record, in place of whatever we had put out. */
+    void advertise(ServiceRecord record);
+
+    /** Looks for the records of the devices around us. */
+    void browse();
+
+    /** Stops delivering events and takes our record down. */
+    @Override
+    void close();
+
+    interface Listener {
+        /** Fired when the record of a device around us has been found.
+         * @param address The hardware address of the device.
+         * @param record The record it put out. */
+        void onRecordFound(String address, ServiceRecord record);
+    }
+}
@@ -0,0 +1,55 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.util.Random;
+
+/** How long to wait before trying something again that has just failed.
+ *
+ * Every failure in a row doubles the wait, up to a limit, so that something
+ * that's busy, like the Wifi P2P radio, isn't hammered with requests it can't
+ * take. Only half of the wait is fixed, though. The rest is random, so that
+ * everyone who failed at the same time, like the devices all going after the
+ * same peer, doesn't come back at the same time, too. */
+public class Backoff {
+    /** How long the first wait is, at most, in milliseconds. */
+    protected final long initial;
+    /** How long any wait is, at most, in milliseconds. */
+    protected final long max;
+    /** Where the random part of the waits comes from. */
+    protected final Random random;
+    /** How many failures in a row there have been. */
+    protected int failures;
+
+    public Backoff(long initial, long max, Random random) {
+        if(initial <= 0 || max < initial)
+            throw new IllegalArgumentException("Backoff has to go from a positive wait up to a longer one");
+
+        this.initial = initial;
+        this.max = max;
+        this.random = random;
+        this.failures = 0;
+    }
+
+    /** Records another failure.
+     * @return How long to wait before trying again, in milliseconds. */
+    public long next() {
+        /* Past a point, doubling it again would overflow, and it's at the
+         * limit by then anyway. */
+        long ceiling = this.failures < Long.numberOfLeadingZeros(this.initial) - 1
+            ? Math.min(this.max, this.initial << this.failures)
+            : this.max;
+        ++this.failures;
+
+        long half = ceiling / 2;
+        return ceiling - half + (long) (this.random.nextDouble() * (half + 1));
+    }
+
+    /** Forgets about the failures, once something has gone through. */
+    public void reset() {
+        this.failures = 0;
+    }
+
+    /** How many failures in a row there have been. */
+    public int getFailures() {
+        return this.failures;
+    }
+}
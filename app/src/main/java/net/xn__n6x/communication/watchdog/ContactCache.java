@@ -0,0 +1,148 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.identity.Id;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/** Keeps what a {@link PeerTable} knows about the peers it has met on disk,
+ * so that a restarted {@link WatchdogEngine} doesn't have to link up with
+ * every device around it again just to relearn who they are.
+ *
+ * Only peers whose Id we know are kept, along with when they were last seen
+ * and how links and sessions with them have gone, down to whether we've
+ * stopped trying them for a while. Peers that haven't been
+ * seen for longer than the maximum age are left out, both when saving and
+ * when loading, and so are all but the most recently seen ones, once there
+ * are more of them than the cache holds.
+ *
+ * The table goes by a monotonic clock that starts over with every boot, so
+ * what's on disk are ages, taken at the date the cache was saved on, and
+ * the same goes for how much longer a peer is left alone for. Dates
+ * are wall clock milliseconds, and the cache is written to a file next to
+ * the real one first, then moved over it, so a cache is either there in
+ * whole or not at all. */
+public class ContactCache {
+    /** Marks the start of a cache file, and its version. */
+    protected static final int MAGIC = 0x57444332;
+    /** By default, how long peers that haven't been seen are kept for. */
+    public static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(14);
+    /** By default, how many peers are kept at most. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** Where the cache is kept. */
+    protected final File file;
+    /** How long peers that haven't been seen are kept for, in milliseconds. */
+    protected final long maxAge;
+    /** How many peers are kept at most. */
+    protected final int capacity;
+
+    public ContactCache(File file) {
+        this(file, DEFAULT_MAX_AGE, DEFAULT_CAPACITY);
+    }
+
+    public ContactCache(File file, long maxAge, int capacity) {
+        this.file = file;
+        this.maxAge = maxAge;
+        this.capacity = capacity;
+    }
+
+    /** Restores the peers in the cache into the given table, as known peers.
+     * A missing cache is an empty one.
+     * @param table Where the peers go.
+     * @param now What time it is, on the clock the table goes by.
+     * @param date What date it is, in wall clock milliseconds.
+     * @return How many peers were restored.
+     * @throws IOException When the cache can't be read, or is corrupt. */
+    public int load(PeerTable table, long now, long date) throws IOException {
+        if(!this.file.exists())
+            return 0;
+
+        ArrayList<PeerTable.Peer> restored = new ArrayList<>();
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            if(input.readInt() != MAGIC)
+                throw new IOException("Not a contact cache: " + this.file);
+
+            /* Clocks may well have been set back since. */
+            long elapsed = Math.max(0, date - input.readLong());
+            int count = input.readInt();
+            if(count < 0)
+                throw new IOException("Invalid contact count: " + count);
+
+            byte[] id = new byte[Id.ID_LENGTH];
+            for(int i = 0; i < count; ++i) {
+                PeerTable.Peer peer = new PeerTable.Peer(input.readUTF());
+                input.readFully(id);
+                peer.id = Id.fromBuffer(ByteBuffer.wrap(id));
+                long age = input.readLong() + elapsed;
+                peer.links = input.readInt();
+                peer.connectLatency = input.readLong();
+                peer.sessions = input.readInt();
+                peer.throughput = input.readDouble();
+                peer.failures = input.readInt();
+                peer.strikes = input.readInt();
+                /* Time off counts towards the cooldown, too. */
+                peer.retryAt = now + Math.max(0, input.readLong() - elapsed);
+
+                if(age > this.maxAge)
+                    continue;
+                peer.lastSeen = now - age;
+                restored.add(peer);
+            }
+        }
+
+        int count = 0;
+        for(PeerTable.Peer peer : restored)
+            if(table.restore(peer))
+                ++count;
+
+        return count;
+    }
+
+    /** Saves the peers in the given table whose Id we know.
+     * @param table Where the peers come from.
+     * @param now What time it is, on the clock the table goes by.
+     * @param date What date it is, in wall clock milliseconds.
+     * @throws IOException When the cache can't be written. */
+    public void save(PeerTable table, long now, long date) throws IOException {
+        ArrayList<PeerTable.Peer> peers = new ArrayList<>();
+        for(PeerTable.Peer peer : table.snapshot())
+            if(peer.id != null && now - peer.lastSeen <= this.maxAge)
+                peers.add(peer);
+
+        /* The most recently seen are the ones most likely to be seen again. */
+        peers.sort((a, b) -> Long.compare(b.lastSeen, a.lastSeen));
+        if(peers.size() > this.capacity)
+            peers.subList(this.capacity, peers.size()).clear();
+
+        File temporary = new File(this.file.getPath() + ".tmp");
+        try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeLong(date);
+            output.writeInt(peers.size());
+
+            ByteBuffer id = ByteBuffer.allocate(Id.ID_LENGTH);
+            for(PeerTable.Peer peer : peers) {
+                output.writeUTF(peer.address);
+                id.clear();
+                peer.id.intoBuffer(id);
+                output.write(id.array());
+                output.writeLong(now - peer.lastSeen);
+                output.writeInt(peer.links);
+                output.writeLong(peer.connectLatency);
+                output.writeInt(peer.sessions);
+                output.writeDouble(peer.throughput);
+                output.writeInt(peer.failures);
+                output.writeInt(peer.strikes);
+                output.writeLong(Math.max(0, peer.retryAt - now));
+            }
+        }
+
+        if(!temporary.renameTo(this.file)) {
+            temporary.delete();
+            throw new IOException("Could not move the contact cache into " + this.file);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.control.Router;
+import net.xn__n6x.communication.identity.Id;
+
+import java.util.Locale;
+
+/** Picks who the {@link WatchdogEngine} links up with next.
+ *
+ * Links are expensive, so every contact should be worth as much as it can
+ * for the time it takes. Contacts are scored by what they're worth, over
+ * what they cost, in seconds:
+ * <ul>
+ *     <li>
+ *         A peer we have packets for is worth a packet for every one we have
+ *         queued up for it, plus a little for every byte of them. All of it
+ *         is worth more the closer the most urgent of them is to expiring.
+ *     </li>
+ *     <li>
+ *         A peer that has packets for us, or that we owe credit, is worth a
+ *         few packets, as we don't know how many it has.
+ *     </li>
+ *     <li>
+ *         A device we have yet to discover is worth a few packets more than
+ *         that, as it may well turn out to be the way through to peers we
+ *         can't reach any other way.
+ *     </li>
+ * </ul>
+ * Whatever we know about a peer is scaled by how often links to it come up
+ * at all. What a contact costs is how long links to the peer take to come
+ * up, plus how long it should take to get its packets across, going by the
+ * measurements in the {@link PeerTable}, or by defaults for peers we have
+ * none for yet.
+ *
+ * Discovery and transmission are weighed against each other this way, so
+ * a peer with a lot of urgent packets gets visited before the rest of the
+ * devices around are discovered, and a device waiting to be discovered gets
+ * visited before a peer that only has a stale packet or two. */
+public class ContactScheduler {
+    /** How long a link is taken to come up, for peers we have no measurements
+     * for, in milliseconds. Wifi P2P groups take a couple of seconds. */
+    public static final long DEFAULT_LINK_COST = 2000;
+    /** How many bytes a second are taken to go over a session, for peers we
+     * have no measurements for. */
+    public static final double DEFAULT_THROUGHPUT = 256 * 1024;
+    /** What discovering a device is worth, in packets. */
+    public static final double DISCOVERY_VALUE = 8;
+    /** What going to a peer that has packets for us is worth, in packets. */
+    public static final double PULL_VALUE = 4;
+    /** What a byte is worth, in packets. */
+    public static final double BYTE_VALUE = 1.0 / 4096;
+    /** How many times more packets on the brink of expiring are worth than
+     * fresh ones. */
+    public static final double URGENCY = 4;
+
+    /** Where the packets we have for our peers are. */
+    protected final Router router;
+    /** Where what we know about our peers is. */
+    protected final PeerTable peers;
+
+    public ContactScheduler(Router router, PeerTable peers) {
+        this.router = router;
+        this.peers = peers;
+    }
+
+    /** Weighs linking up with the given peer to exchange packets.
+     * @param id The Id of the peer.
+     * @param pull Whether the peer has packets for us, or we owe it credit. */
+    public Contact transmission(Id id, boolean pull) {
+        PeerTable.Peer peer = this.peers.get(id);
+        int count = this.router.getQueuedCount(id);
+        long bytes = this.router.getQueuedBytes(id);
+
+        double value = pull ? PULL_VALUE : 0;
+        if(count > 0) {
+            long left = this.router.getTimeLeft(id);
+            double urgency = 1 + URGENCY * Math.min(1, Math.max(0, 1 - (double) left / Router.DEFAULT_TIME_TO_LIVE));
+            value += (count + bytes * BYTE_VALUE) * urgency;
+        }
+
+        double throughput = peer == null || peer.sessions == 0 ? DEFAULT_THROUGHPUT : peer.throughput;
+        long cost = linkCost(peer) + Math.round(bytes * 1000 / Math.max(1, throughput));
+
+        return new Contact(peer == null ? null : peer.address, id, value * reliability(peer), cost);
+    }
+
+    /** Weighs linking up with the given device to discover it.
+     * @param address The hardware address of the device. */
+    public Contact discovery(String address) {
+        PeerTable.Peer peer = this.peers.get(address);
+        return new Contact(address, null, DISCOVERY_VALUE * reliability(peer), linkCost(peer));
+    }
+
+    /** Picks the best of the given contacts, if there are any. Ties go to
+     * whichever came first. */
+    public Contact pick(Iterable<Contact> contacts) {
+        Contact best = null;
+        for(Contact contact : contacts)
+            if(best == null || contact.score() > best.score())
+                best = contact;
+
+        return best;
+    }
+
+    /** How long a link to the given peer should take to come up. */
+    protected static long linkCost(PeerTable.Peer peer) {
+        return peer == null || peer.links == 0 ? DEFAULT_LINK_COST : peer.connectLatency;
+    }
+
+    /** How likely a link to the given peer is to come up, going by how many
+     * have and how many times we've given up on it. Peers we've never tried
+     * get the benefit of the doubt. Failures in a row, like those of a peer
+     * whose circuit is only half-open, count for more than those a session
+     * has gone through since. */
+    protected static double reliability(PeerTable.Peer peer) {
+        if(peer == null)
+            return 1;
+        return (peer.links + 1.0) / (peer.links + peer.failures + 1.0) / (peer.strikes + 1.0);
+    }
+
+    /** A peer we could link up with next, and what it'd be worth. */
+    public static final class Contact {
+        /** The hardware address of the peer. */
+        public final String address;
+        /** The Id of the peer, or {@code null} if it's yet to be discovered. */
+        public final Id id;
+        /** What the contact is worth, in packets. */
+        public final double value;
+        /** How long the contact should take, in milliseconds. */
+        public final long cost;
+
+        public Contact(String address, Id id, double value, long cost) {
+            this.address = address;
+            this.id = id;
+            this.value = value;
+            this.cost = cost;
+        }
+
+        /** Whether the contact is for discovering the peer. */
+        public boolean isDiscovery() {
+            return this.id == null;
+        }
+
+        /** What the contact is worth for every second it takes. */
+        public double score() {
+            return this.value * 1000 / Math.max(1, this.cost);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s (%.1f packets in %dms)", this.address, this.value, this.cost);
+        }
+    }
+}
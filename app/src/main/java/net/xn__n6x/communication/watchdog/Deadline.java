@@ -0,0 +1,38 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.util.concurrent.TimeUnit;
+
+/** The points at which we give up on a peer that has stopped answering.
+ *
+ * Each one bounds how long a single step of a contact may take, so that a
+ * peer walking out of range in the middle of it only ever costs us that much
+ * time, rather than leaving us waiting on it forever. Whenever one of them
+ * passes, the session is closed with a {@link DeadlineException}, which gives
+ * whatever it had leased from the router back, and we move on. Except for
+ * {@link #LINGER}, which only ever ends a session the way it would have ended
+ * anyway. */
+public enum Deadline {
+    /** Bringing a link to a peer up, until its session says hello. Covers
+     * both forming the group and, when we own it, the peer connecting to us. */
+    LINK(30),
+    /** Opening the socket of a session. */
+    CONNECT(10),
+    /** Exchanging hellos and summaries, once the socket is open. */
+    HANDSHAKE(10),
+    /** Getting any bytes at all across, in either direction, while the
+     * session exchanges packets. Reset every time some are. */
+    PROGRESS(15),
+    /** Keeping a session open with nothing going across, once both sides are
+     * out of packets, for whatever may come in for either of them later. Reset
+     * every time anything does go across. Should be shorter than
+     * {@link #PROGRESS}, which is what the side that stops lingering first
+     * waits on the other one for. */
+    LINGER(10);
+
+    /** How long the step may take by default, in milliseconds. */
+    public final long defaultTimeout;
+
+    Deadline(long seconds) {
+        this.defaultTimeout = TimeUnit.SECONDS.toMillis(seconds);
+    }
+}
@@ -0,0 +1,18 @@
+package net.xn__n6x.communication.watchdog;
+
+/** A peer took longer than it was allowed to for some step of a contact. */
+public class DeadlineException extends WatchdogException {
+    private static final long serialVersionUID = 1L;
+
+    /** The deadline that passed. */
+    protected final Deadline deadline;
+
+    public DeadlineException(Deadline deadline, String message) {
+        super(message);
+        this.deadline = deadline;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+}
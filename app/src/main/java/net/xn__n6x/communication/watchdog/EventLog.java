@@ -0,0 +1,160 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/** What the {@link WatchdogEngine} has been up to, lately.
+ *
+ * Logging every step of the engine with {@code Log.d} has it building
+ * strings, and formatting every {@link net.xn__n6x.communication.identity.Id}
+ * into a couple hundred characters of hex, for every packet and every event,
+ * whether anyone's reading the log or not. Instead, every step goes into a
+ * ring of the last few events, as an {@link Event}, the time, and a couple of
+ * arguments, which are either primitives or references to whatever the
+ * engine already had lying around. Nothing gets allocated along the way, and
+ * nothing gets formatted until someone asks to see the events, see
+ * {@link #dump()}, so it's cheap enough to never turn off.
+ *
+ * Once the ring is full, new events take the place of the oldest ones. */
+public class EventLog {
+    /** By default, how many events are kept. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** Things the engine may do. Each one formats its arguments, the two
+     * objects first and the two numbers after. */
+    public enum Event {
+        RESTORED("Restored %3$d peers from our contacts"),
+        BOUND("Bound the session server to %1$s"),
+        SEARCHED("A search has revealed %3$d peers, %4$d of them yet to be discovered"),
+        RECORD_INCOMPATIBLE("Ignoring the record of %1$s, it speaks version %3$d"),
+        RECORD_FOUND("Found the record of %2$s at %1$s"),
+        FORWARDED("Received %3$d bytes from %1$s for %2$s, passing them on"),
+        KEPT("Received %3$d bytes from %1$s for us"),
+        SENT("Queued up %3$d bytes for %2$s while %1$s"),
+        LINK_OWNED("We own the link, waiting for the peer to connect"),
+        LINK_JOINED("Connecting to link owner at %1$s"),
+        LINKING("%1$s # Connecting to next device: %2$s"),
+        DISCOVERED("Exchanged discovery data with %2$s at %1$s"),
+        GAVE_UP("Giving up on %1$s until the next search"),
+        SESSION_FINISHED("Finished session with %1$s, sent %3$d packets and received %4$d"),
+        THROTTLED("%1$s had no room left for us"),
+        DISCOVERY_FINISHED("Finished discovery"),
+        STATE("%1$s -> %2$s"),
+        UNDOCKED("Restarting the Watchdog cycle"),
+        SEARCH_SCHEDULED("Searching again in %3$dms, with searches %4$dms apart"),
+        CIRCUIT_OPENED("Leaving %1$s alone for %3$dms, after %4$d failures in a row");
+
+        /** How the event is put into words. */
+        public final String format;
+
+        Event(String format) {
+            this.format = format;
+        }
+
+        static final Event[] VALUES = values();
+    }
+
+    /** What each event was. */
+    protected final byte[] events;
+    /** When each event happened, in {@link System#nanoTime()} terms. */
+    protected final long[] times;
+    /** The first object of each event. */
+    protected final Object[] subjects;
+    /** The second object of each event. */
+    protected final Object[] objects;
+    /** The first number of each event. */
+    protected final long[] as;
+    /** The second number of each event. */
+    protected final long[] bs;
+    /** How many events have been logged so far. */
+    protected long next;
+
+    /** Creates a log that keeps the default number of events. */
+    public EventLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a log that keeps the given number of events. */
+    public EventLog(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("A log has to keep at least one event");
+
+        this.events = new byte[capacity];
+        this.times = new long[capacity];
+        this.subjects = new Object[capacity];
+        this.objects = new Object[capacity];
+        this.as = new long[capacity];
+        this.bs = new long[capacity];
+        this.next = 0;
+    }
+
+    public void log(Event event) {
+        this.log(event, null, null, 0, 0);
+    }
+
+    public void log(Event event, Object subject) {
+        this.log(event, subject, null, 0, 0);
+    }
+
+    public void log(Event event, Object subject, Object object) {
+        this.log(event, subject, object, 0, 0);
+    }
+
+    public void log(Event event, Object subject, long a) {
+        this.log(event, subject, null, a, 0);
+    }
+
+    /** Logs the given event, with the given arguments. The objects should be
+     * left alone from then on, as they only get formatted once the event is
+     * dumped. */
+    public synchronized void log(Event event, Object subject, Object object, long a, long b) {
+        int slot = (int) (this.next++ % this.events.length);
+        this.events[slot] = (byte) event.ordinal();
+        this.times[slot] = System.nanoTime();
+        this.subjects[slot] = subject;
+        this.objects[slot] = object;
+        this.as[slot] = a;
+        this.bs[slot] = b;
+    }
+
+    /** How many events have been logged so far, including those that are no
+     * longer kept. */
+    public synchronized long getCount() {
+        return this.next;
+    }
+
+    /** Puts every event that's still kept into words, oldest first, along
+     * with how long before the newest one it happened, in milliseconds. */
+    public List<String> dump() {
+        byte[] events;
+        long[] times, as, bs;
+        Object[] subjects, objects;
+        long first, next;
+        synchronized(this) {
+            events = this.events.clone();
+            times = this.times.clone();
+            subjects = this.subjects.clone();
+            objects = this.objects.clone();
+            as = this.as.clone();
+            bs = this.bs.clone();
+            next = this.next;
+            first = Math.max(0, next - events.length);
+        }
+
+        ArrayList<String> lines = new ArrayList<>((int) (next - first));
+        long last = next == 0 ? 0 : times[(int) ((next - 1) % events.length)];
+        for(long i = first; i < next; ++i) {
+            int slot = (int) (i % events.length);
+            Event event = Event.VALUES[events[slot]];
+            lines.add(String.format(
+                Locale.ROOT,
+                "-%dms %s: %s",
+                TimeUnit.NANOSECONDS.toMillis(last - times[slot]),
+                event,
+                String.format(Locale.ROOT, event.format, subjects[slot], objects[slot], as[slot], bs[slot])));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,425 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.identity.Id;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** Framing for the non-blocking session protocol.
+ *
+ * Every frame starts with a header made of a big endian 32-bit length,
+ * counting both the type byte and the body, followed by the one byte
+ * {@link Type} of the frame. The body is laid out according to the type.
+ * Having every message carry its own length up front is what lets a
+ * {@link Session} tell whether it has a whole message to work with without
+ * having to block on the socket.
+ *
+ * The one exception are the files carried by {@link Type#ATTACHMENT} frames,
+ * which follow their frame on the wire as raw bytes, outside of any frame, so
+ * that they can go between the socket and the disk without being buffered. */
+public final class Frame {
+    /** Length of the header every frame starts with, in bytes. */
+    public static final int HEADER_LENGTH = 5;
+    /** Largest frame length a peer is allowed to send us, in bytes. */
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+    /** Largest payload a packet may carry, in bytes. Leaves enough room under
+     * {@link #MAX_LENGTH} for the frame and packet headers, with a route
+     * hundreds of hops long, so that the packet fits in a frame no matter
+     * how far it has to go. */
+    public static final int MAX_PAYLOAD = MAX_LENGTH - 64 * 1024;
+    /** Bytes every {@link Type#HELLO} opens with, marking the connection as
+     * one speaking the Watchdog protocol. */
+    public static final byte[] MAGIC = new byte[] { 0x00, 0x47, 0x61, 0x79, 0x36, 0x39 };
+    /** Version of the session protocol spoken by this build. */
+    public static final byte VERSION = 3;
+
+    /** The kinds of frames there are. */
+    public enum Type {
+        /** Opens the session and tells the peer who we are. Body is
+         * {@link #MAGIC}, the protocol {@link #VERSION}, our
+         * {@link Id} and our length prefixed, UTF-8 encoded MAC address. */
+        HELLO,
+        /** Tells the peer how much we have queued up for it, where it should
+         * resume sending from, and how much it may send. Body is a 32-bit
+         * packet count, a 64-bit byte count, the 64-bit sequence number of the
+         * last packet we got from the peer, our 64-bit credit, and a byte
+         * that is 1 if we'll linger once we're out of packets, 0 otherwise. */
+        SUMMARY,
+        /** Carries a run of {@link Packet}s, as built by a {@link Batch}.
+         * Body is a 32-bit packet count, followed by that many packets, each
+         * one being a 64-bit sequence number followed by the packet itself,
+         * encoded by {@link Packet#intoBuffer(ByteBuffer)}. */
+        BATCH,
+        /** Acknowledges every packet up to and including a sequence number,
+         * and grants the peer new credit. Body is that 64-bit sequence number,
+         * followed by the 64-bit credit. */
+        ACK,
+        /** Tells the peer we have no more packets for it. Has no body. */
+        END,
+        /** Tells the peer we've run out of credit while we still have packets
+         * for it, so that it acknowledges them right away. Has no body. */
+        BLOCKED,
+        /** Carries a single {@link Packet} with an
+         * {@link net.xn__n6x.communication.control.Attachment}. Body is the
+         * 64-bit sequence number of the packet, followed by the packet itself,
+         * encoded by {@link Packet#intoBuffer(ByteBuffer)}, and the 64-bit
+         * length of the attachment. That many bytes of the attached file come
+         * right after the frame. */
+        ATTACHMENT;
+
+        /* Cached, since values() clones the array on every call. */
+        protected static final Type[] VALUES = Type.values();
+
+        /** Gets the frame type with the given wire value.
+         * @throws WatchdogException When there is no such type. */
+        public static Type fromOrdinal(int value) throws WatchdogException {
+            if(value < 0 || value >= VALUES.length)
+                throw new WatchdogException("Invalid frame type: " + value);
+            return VALUES[value];
+        }
+    }
+
+    /** How much one side of a session has queued up for the other. */
+    public static final class Summary {
+        /** How many packets there are. */
+        public final int packets;
+        /** How many bytes those packets add up to. */
+        public final long bytes;
+        /** Sequence number of the last packet we got from the other side. */
+        public final long resume;
+        /** How many bytes of packets the other side may have in flight to us
+         * before it has to wait for an acknowledgement. */
+        public final long credit;
+        /** Whether we'll keep the session open once we're out of packets, so
+         * that whatever comes in for the other side later can still go out
+         * over it. See {@link Session}. */
+        public final boolean linger;
+
+        public Summary(int packets, long bytes, long resume, long credit) {
+            this(packets, bytes, resume, credit, false);
+        }
+
+        public Summary(int packets, long bytes, long resume, long credit, boolean linger) {
+            this.packets = packets;
+            this.bytes = bytes;
+            this.resume = resume;
+            this.credit = credit;
+            this.linger = linger;
+        }
+    }
+
+    /** Builds {@link Type#BATCH} frames out of packets, one after the other.
+     *
+     * Frames come out as arrays of buffers, to be written in one go with
+     * {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}. The
+     * headers of the packets are laid out back to back in a block of memory
+     * shared by every frame the batch builds, up until it fills up. Small
+     * payloads get copied in along with them, as that is cheaper than having
+     * the socket gather lots of tiny buffers, but larger ones are wrapped
+     * right where they are and never get copied at all. */
+    public static final class Batch {
+        /** Payloads at least this long are referenced rather than copied. */
+        public static final int COPY_LIMIT = 1024;
+        /** Size of the blocks headers are laid out in. */
+        protected static final int BLOCK_SIZE = 64 * 1024;
+
+        /** The block headers are currently being laid out in. */
+        protected ByteBuffer block;
+        /** Where the part of the block that is yet to be handed out starts. */
+        protected int mark;
+        /** The buffers making up the frame so far. */
+        protected final ArrayList<ByteBuffer> buffers;
+        /** The header of the frame, filled in once it's finished. */
+        protected ByteBuffer header;
+        /** How many packets are in the frame. */
+        protected int count;
+        /** How long the frame is, header included. */
+        protected int length;
+
+        public Batch() {
+            this.block = ByteBuffer.allocate(BLOCK_SIZE);
+            this.mark = 0;
+            this.buffers = new ArrayList<>();
+            this.header = null;
+            this.count = 0;
+            this.length = 0;
+        }
+
+        /** Adds a packet to the frame being built. */
+        public void add(long sequence, Packet p) {
+            if(this.count == 0) {
+                this.reserve(HEADER_LENGTH + 4);
+                this.header = this.block.slice();
+                this.header.limit(HEADER_LENGTH + 4);
+                this.block.position(this.block.position() + HEADER_LENGTH + 4);
+                this.length = HEADER_LENGTH + 4;
+            }
+
+            byte[] payload = p.getPayload();
+            boolean copy = payload.length < COPY_LIMIT;
+
+            this.reserve(8 + p.headerLength() + (copy ? payload.length : 0));
+            this.block.putLong(sequence);
+            p.headerIntoBuffer(this.block);
+            if(copy)
+                this.block.put(payload);
+            else {
+                this.cut();
+                this.buffers.add(ByteBuffer.wrap(payload));
+            }
+
+            this.count++;
+            this.length += 8 + p.intoBufferLength();
+        }
+
+        /** Finishes the frame being built and starts over.
+         * @return The buffers making up the frame, in order. */
+        public ByteBuffer[] finish() {
+            if(this.count == 0)
+                throw new IllegalStateException("Empty batch");
+
+            this.cut();
+            this.header.putInt(0, this.length - 4);
+            this.header.put(4, (byte) Type.BATCH.ordinal());
+            this.header.putInt(HEADER_LENGTH, this.count);
+
+            ByteBuffer[] frame = this.buffers.toArray(new ByteBuffer[0]);
+            this.buffers.clear();
+            this.header = null;
+            this.count = 0;
+            this.length = 0;
+
+            return frame;
+        }
+
+        public boolean isEmpty() {
+            return this.count == 0;
+        }
+
+        /** How long the frame being built is so far, header included. */
+        public int length() {
+            return this.length;
+        }
+
+        /** Makes sure the block has room for the given number of bytes,
+         * moving on to a new block if it doesn't. */
+        protected void reserve(int bytes) {
+            if(this.block.remaining() >= bytes)
+                return;
+
+            this.cut();
+            this.block = ByteBuffer.allocate(Math.max(BLOCK_SIZE, bytes));
+            this.mark = 0;
+        }
+
+        /** Hands whatever has been laid out in the block since the last cut
+         * over to the frame. */
+        protected void cut() {
+            int position = this.block.position();
+            if(position == this.mark)
+                return;
+
+            ByteBuffer run = this.block.duplicate();
+            run.position(this.mark);
+            run.limit(position);
+            this.buffers.add(run.slice());
+            this.mark = position;
+        }
+    }
+
+    private Frame() {
+    }
+
+    /** Allocates a frame with room for a body of the given length and writes
+     * its header. */
+    protected static ByteBuffer allocate(Type type, int bodyLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        buffer.putInt(bodyLength + 1);
+        buffer.put((byte) type.ordinal());
+
+        return buffer;
+    }
+
+    public static ByteBuffer hello(Id id, String address) {
+        byte[] bytes = address.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = allocate(
+            Type.HELLO,
+            MAGIC.length + 1 + Id.ID_LENGTH + 4 + bytes.length);
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        id.intoBuffer(buffer);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer summary(Summary summary) {
+        ByteBuffer buffer = allocate(Type.SUMMARY, 4 + 8 + 8 + 8 + 1);
+        buffer.putInt(summary.packets);
+        buffer.putLong(summary.bytes);
+        buffer.putLong(summary.resume);
+        buffer.putLong(summary.credit);
+        buffer.put((byte) (summary.linger ? 1 : 0));
+
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer end() {
+        ByteBuffer buffer = allocate(Type.END, 0);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Frames a packet with an attachment. The frame is only the header of
+     * what goes out, the attached file has to be sent right after it. */
+    public static ByteBuffer attachment(long sequence, Packet p) {
+        long length = p.getAttachment()
+            .orElseThrow(() -> new IllegalArgumentException("Packet has no attachment"))
+            .getLength();
+
+        ByteBuffer buffer = allocate(Type.ATTACHMENT, 8 + p.intoBufferLength() + 8);
+        buffer.putLong(sequence);
+        p.intoBuffer(buffer);
+        buffer.putLong(length);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer ack(long sequence, long credit) {
+        ByteBuffer buffer = allocate(Type.ACK, 8 + 8);
+        buffer.putLong(sequence);
+        buffer.putLong(credit);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer blocked() {
+        ByteBuffer buffer = allocate(Type.BLOCKED, 0);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Reads the {@link Id} in the body of a {@link Type#HELLO} frame, after
+     * making sure the peer speaks our protocol. The MAC address can be read
+     * with {@link #readString(ByteBuffer)} after it. */
+    public static Id readHello(ByteBuffer body) throws WatchdogException {
+        if(body.remaining() < MAGIC.length + 1 + Id.ID_LENGTH)
+            throw new WatchdogException("Malformed hello frame");
+
+        byte[] magic = new byte[MAGIC.length];
+        body.get(magic);
+        if(!Arrays.equals(magic, MAGIC))
+            throw new WatchdogException("Peer does not speak the Watchdog protocol");
+
+        byte version = body.get();
+        if(version != VERSION)
+            throw new WatchdogException("Peer speaks version " + version + " of the protocol, we speak " + VERSION);
+
+        return Id.fromBuffer(body);
+    }
+
+    public static String readString(ByteBuffer body) throws WatchdogException {
+        if(body.remaining() < 4)
+            throw new WatchdogException("Malformed string");
+
+        int length = body.getInt();
+        if(length < 0 || length > body.remaining())
+            throw new WatchdogException("Malformed string of length " + length);
+
+        String string = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+
+        return string;
+    }
+
+    public static Summary readSummary(ByteBuffer body) throws WatchdogException {
+        if(body.remaining() != 4 + 8 + 8 + 8 + 1)
+            throw new WatchdogException("Malformed summary frame");
+
+        int packets = body.getInt();
+        long bytes = body.getLong();
+        long resume = body.getLong();
+        long credit = body.getLong();
+        byte linger = body.get();
+        if(packets < 0 || bytes < 0 || resume < 0 || credit < 0)
+            throw new WatchdogException("Negative summary");
+        if(linger != 0 && linger != 1)
+            throw new WatchdogException("Malformed summary frame");
+
+        return new Summary(packets, bytes, resume, credit, linger == 1);
+    }
+
+    /** Reads the number of packets at the start of a {@link Type#BATCH}
+     * frame. */
+    public static int readBatchCount(ByteBuffer body) throws WatchdogException {
+        if(body.remaining() < 4)
+            throw new WatchdogException("Malformed batch frame");
+
+        int count = body.getInt();
+        if(count < 1)
+            throw new WatchdogException("Batch of " + count + " packets");
+
+        return count;
+    }
+
+    /** Reads the sequence number in front of a packet in a {@link Type#BATCH}
+     * or {@link Type#ATTACHMENT} frame, or the one in an {@link Type#ACK}
+     * frame. */
+    public static long readSequence(ByteBuffer body) throws WatchdogException {
+        if(body.remaining() < 8)
+            throw new WatchdogException("Missing sequence number");
+
+        long sequence = body.getLong();
+        if(sequence < 0)
+            throw new WatchdogException("Negative sequence number: " + sequence);
+
+        return sequence;
+    }
+
+    /** Reads the credit in an {@link Type#ACK} frame, after its sequence
+     * number. */
+    public static long readCredit(ByteBuffer body) throws WatchdogException {
+        if(body.remaining() != 8)
+            throw new WatchdogException("Malformed acknowledgement frame");
+
+        long credit = body.getLong();
+        if(credit < 0)
+            throw new WatchdogException("Negative credit: " + credit);
+
+        return credit;
+    }
+
+    /** Reads the length of the attached file at the end of an
+     * {@link Type#ATTACHMENT} frame, after its packet. */
+    public static long readAttachmentLength(ByteBuffer body) throws WatchdogException {
+        if(body.remaining() != 8)
+            throw new WatchdogException("Malformed attachment frame");
+
+        long length = body.getLong();
+        if(length < 0)
+            throw new WatchdogException("Negative attachment length: " + length);
+
+        return length;
+    }
+
+    /** Reads a {@link Packet} in a {@link Type#BATCH} or
+     * {@link Type#ATTACHMENT} frame, after its sequence number. */
+    public static Packet readPacket(ByteBuffer body) throws WatchdogException {
+        try {
+            return Packet.fromBuffer(body);
+        } catch(IllegalArgumentException | java.nio.BufferUnderflowException e) {
+            throw new WatchdogException("Malformed packet frame", e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.util.Map;
+
+/** In-process {@link Advertiser}, for the peers of a
+ * {@link LoopbackTransport.Network}.
+ *
+ * Records go through the same TXT entries they would over the air, so what
+ * one peer puts out is read back by the others just like it would be on a
+ * phone. Browsing finds the records of every other peer in the network that
+ * has put one out. */
+public class LoopbackAdvertiser implements Advertiser {
+    /** The network we are part of. */
+    protected final LoopbackTransport.Network network;
+    /** Our address on the network. */
+    protected final String address;
+    /** Where events go, once we've started. */
+    protected Listener listener;
+    /** The TXT entries of the record we've put out, if any. */
+    protected volatile Map<String, String> txt;
+
+    public LoopbackAdvertiser(LoopbackTransport.Network network, String address) {
+        this.network = network;
+        this.address = address;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        this.network.advertisers.put(this.address, this);
+    }
+
+    @Override
+    public void advertise(ServiceRecord record) {
+        this.txt = record.toTxt();
+    }
+
+    @Override
+    public void browse() {
+        this.network.post(() -> {
+            for(LoopbackAdvertiser peer : this.network.advertisers.values()) {
+                Map<String, String> txt = peer.txt;
+                if(peer == this || txt == null)
+                    continue;
+
+                try {
+                    this.listener.onRecordFound(peer.address, ServiceRecord.fromTxt(txt));
+                } catch(WatchdogException e) {
+                    throw new IllegalStateException("Loopback records can't be malformed", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        this.network.advertisers.remove(this.address, this);
+    }
+}
@@ -0,0 +1,133 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/** In-process {@link Transport}, where every peer is a {@link WatchdogEngine}
+ * in the same process, with its session server listening on loopback.
+ *
+ * This is what lets the whole discovery and transmission state machine run
+ * headless on a plain JVM, so that it can be tested and measured without a
+ * single phone in sight. Links come up instantly, and every peer in the same
+ * {@link Network} is always in reach of every other. Links are owned by the
+ * peer being asked for one, unless the transport asking says otherwise. */
+public class LoopbackTransport implements Transport {
+    /** The network we are part of. */
+    protected final Network network;
+    /** Our address on the network. */
+    protected final String address;
+    /** Where our session server ended up being bound, once we've started. */
+    protected InetSocketAddress bound;
+    /** Where events go, once we've started. */
+    protected Listener listener;
+    /** Whether we own the links we ask for, rather than the peers we ask
+     * for them to. */
+    protected final boolean owner;
+    /** How many peers may share a link we own. */
+    protected int capacity;
+
+    public LoopbackTransport(Network network, String address) {
+        this(network, address, false);
+    }
+
+    public LoopbackTransport(Network network, String address, boolean owner) {
+        this.network = network;
+        this.address = address;
+        this.owner = owner;
+        this.capacity = 1;
+    }
+
+    @Override
+    public InetSocketAddress getServerAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    @Override
+    public void start(InetSocketAddress bound, Listener listener) {
+        this.bound = bound;
+        this.listener = listener;
+        this.network.peers.put(this.address, this);
+    }
+
+    @Override
+    public String getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public void search() {
+        this.network.post(() -> {
+            ArrayList<String> addresses = new ArrayList<>(this.network.peers.keySet());
+            addresses.remove(this.address);
+
+            this.listener.onPeersChanged(addresses);
+        });
+    }
+
+    @Override
+    public void connect(String address) {
+        this.network.post(() -> {
+            LoopbackTransport peer = this.network.peers.get(address);
+            if(peer == null) {
+                this.listener.onLinkFailed(address, new WatchdogException("There is no peer at " + address));
+                return;
+            }
+
+            LoopbackTransport host = this.owner ? this : peer;
+            LoopbackTransport guest = this.owner ? peer : this;
+            host.listener.onLinkUp(new Link(host.bound, true));
+            guest.listener.onLinkUp(new Link(host.bound, false));
+        });
+    }
+
+    @Override
+    public int getLinkCapacity() {
+        return this.capacity;
+    }
+
+    @Override
+    public void close() {
+        this.network.peers.remove(this.address, this);
+    }
+
+    /** A set of loopback transports that can all reach each other. Events
+     * are delivered in order from a single thread, much like the main thread
+     * of an Android application. */
+    public static class Network implements Closeable {
+        /** Every transport in the network, by address. */
+        protected final ConcurrentHashMap<String, LoopbackTransport> peers;
+        /** Every {@link LoopbackAdvertiser} in the network, by address. */
+        protected final ConcurrentHashMap<String, LoopbackAdvertiser> advertisers;
+        /** The thread events are delivered from. */
+        protected final ExecutorService events;
+
+        public Network() {
+            this.peers = new ConcurrentHashMap<>();
+            this.advertisers = new ConcurrentHashMap<>();
+            this.events = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "LoopbackNetwork");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        protected void post(Runnable event) {
+            try {
+                this.events.execute(event);
+            } catch(RejectedExecutionException e) {
+                /* The network is gone, and so are its events. */
+            }
+        }
+
+        @Override
+        public void close() {
+            this.events.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.identity.Id;
+
+import java.util.*;
+
+/** Everything the {@link WatchdogEngine} knows about the peers it has come
+ * across, be it through its {@link Transport}, its {@link Advertiser}, or
+ * the sessions it has had with them.
+ *
+ * Peers can be looked up by either their hardware address or their
+ * {@link Id} in constant time, and the ones whose Id we have yet to learn
+ * wait in line for discovery in the order they were found in, in a queue
+ * that can also tell whether it has a peer in it, or take it out, in
+ * constant time.
+ *
+ * Alongside who they are, the table keeps track of how well things are
+ * going with each of them: when they were last seen, how long links to them
+ * take to come up, how fast sessions with them go, and how often they fail.
+ *
+ * Peers we've given up on are only left alone until the next search, at
+ * first, but one that keeps failing would have us spend every cycle on it,
+ * so every peer has a {@link Circuit} to it, like a circuit breaker. After
+ * {@link #FAILURE_THRESHOLD} failures in a row, the circuit opens, and
+ * searches don't give the peer another chance until a cooldown is over.
+ * Then, it's half-open, and the next search gives the peer a single try. If
+ * that fails too, the circuit opens again, for twice as long, and if it goes
+ * through, the circuit closes, and the peer's slate is wiped clean.
+ *
+ * Writing to the table is up to a single owner, which is the engine, and so
+ * are the {@link Peer}s handed out by the lookups, which are the live
+ * entries. Anyone else can take a {@link #snapshot()}, from any thread, which
+ * is never written to after it has been taken. Times are all in milliseconds,
+ * on whatever monotonic clock the owner goes by. */
+public class PeerTable {
+    /** How much a new measurement weighs in the running averages. */
+    protected static final double SMOOTHING = 0.25;
+    /** How many failures in a row it takes for the circuit to a peer to
+     * open. */
+    public static final int FAILURE_THRESHOLD = 3;
+    /** How long the circuit to a peer stays open the first time, in
+     * milliseconds. (1 minute) */
+    public static final long COOLDOWN = 60_000;
+    /** How long the circuit to a peer stays open, at most, in milliseconds.
+     * (30 minutes) */
+    public static final long MAX_COOLDOWN = 30 * 60_000;
+
+    /** Peers, by hardware address. */
+    protected final HashMap<String, Peer> byAddress;
+    /** Peers whose Id we know, by Id. */
+    protected final HashMap<Id, Peer> byId;
+    /** Addresses of the peers waiting to be discovered, in order. */
+    protected final LinkedHashSet<String> discovery;
+    /** How many peers are being discovered. */
+    protected int discovering;
+    /** Copy of the table handed out to readers, until it changes. */
+    protected volatile List<Peer> snapshot;
+
+    /** What we make of a peer at the moment. */
+    public enum State {
+        /** We've seen the peer around, but don't know who it is yet. */
+        UNKNOWN,
+        /** We're linking up with the peer to find out who it is. */
+        DISCOVERING,
+        /** We know who the peer is, but it wasn't around last we looked. */
+        KNOWN,
+        /** We know who the peer is, and it's around. */
+        REACHABLE,
+        /** We've given up on the peer until the next search, or until its
+         * circuit is no longer open. */
+        FAILING
+    }
+
+    /** Whether a peer is given another chance after it fails. */
+    public enum Circuit {
+        /** The peer hasn't failed enough for us to stop trying, and gets a
+         * chance with every search. */
+        CLOSED,
+        /** The peer has failed too often, and gets no chance until its
+         * cooldown is over. */
+        OPEN,
+        /** The cooldown is over, and the peer gets a single chance with the
+         * next search, which decides whether it closes or opens again. */
+        HALF_OPEN
+    }
+
+    public PeerTable() {
+        this.byAddress = new HashMap<>();
+        this.byId = new HashMap<>();
+        this.discovery = new LinkedHashSet<>();
+        this.discovering = 0;
+        this.snapshot = null;
+    }
+
+    /** Gets the peer at the given hardware address, if we've seen it. */
+    public Peer get(String address) {
+        return this.byAddress.get(address);
+    }
+
+    /** Gets the peer with the given Id, if we know it. */
+    public Peer get(Id id) {
+        return this.byId.get(id);
+    }
+
+    /** Gets the Id of the peer at the given hardware address, if we know it. */
+    public Id getId(String address) {
+        Peer peer = this.byAddress.get(address);
+        return peer == null ? null : peer.id;
+    }
+
+    /** Gets the hardware address of the peer with the given Id, if we know it. */
+    public String getAddress(Id id) {
+        Peer peer = this.byId.get(id);
+        return peer == null ? null : peer.address;
+    }
+
+    /** Whether we know who the peer at the given hardware address is. */
+    public boolean isKnown(String address) {
+        return this.getId(address) != null;
+    }
+
+    /** Whether we've given up on the peer with the given Id. */
+    public boolean isFailing(Id id) {
+        Peer peer = this.byId.get(id);
+        return peer != null && peer.state == State.FAILING;
+    }
+
+    /** Records the peers a search has revealed, as of the given time. Those
+     * we don't know yet are lined up for discovery, those we know become
+     * reachable, and those we know but that weren't in the results aren't,
+     * anymore. Fresh results are a fresh chance for those we'd given up on,
+     * unless their circuit is open.
+     * @return The Ids of the peers in the results that we know, failing or
+     * not. */
+    public synchronized HashSet<Id> onSearched(Collection<String> addresses, long now) {
+        HashSet<String> found = new HashSet<>(addresses);
+        HashSet<Id> reachable = new HashSet<>();
+        for(String address : found) {
+            Peer peer = this.byAddress.get(address);
+            if(peer == null) {
+                peer = new Peer(address);
+                this.byAddress.put(address, peer);
+            }
+            peer.lastSeen = now;
+
+            boolean open = peer.getCircuit(now) == Circuit.OPEN;
+            if(peer.id == null) {
+                if(peer.state == State.UNKNOWN && !open)
+                    this.discovery.add(address);
+            } else {
+                peer.state = open ? State.FAILING : State.REACHABLE;
+                reachable.add(peer.id);
+            }
+        }
+        for(Peer peer : this.byId.values())
+            if(!found.contains(peer.address))
+                peer.state = peer.getCircuit(now) == Circuit.OPEN ? State.FAILING : State.KNOWN;
+
+        this.snapshot = null;
+        return reachable;
+    }
+
+    /** Records who the peer at the given hardware address is, which also
+     * means it's in reach, as of the given time. Whatever we knew of the
+     * address while we didn't know who was at it is kept, and an Id showing
+     * up at a new address moves over there, along with everything we knew
+     * of it.
+     * @return Whether this is news to us. */
+    public synchronized boolean identify(String address, Id id, long now) {
+        Peer peer = this.byAddress.get(address);
+        if(peer != null && id.equals(peer.id)) {
+            peer.lastSeen = now;
+            if(peer.state != State.FAILING)
+                peer.state = State.REACHABLE;
+            this.snapshot = null;
+            return false;
+        }
+
+        /* Whatever used to be at either end is gone. */
+        if(peer != null && peer.state == State.DISCOVERING)
+            this.discovering--;
+        Peer moved = this.byId.remove(id);
+        if(moved != null)
+            this.byAddress.remove(moved.address);
+        if(peer != null && peer.id != null)
+            this.byId.remove(peer.id);
+
+        Peer identified;
+        if(moved != null) {
+            identified = moved.copy(address);
+            /* The link we asked for is to the address, not the Id. */
+            if(peer != null && peer.id == null)
+                identified.linking = peer.linking;
+        } else if(peer != null && peer.id == null)
+            identified = peer;
+        else
+            identified = new Peer(address);
+        identified.id = id;
+        identified.lastSeen = now;
+        identified.state = State.REACHABLE;
+        this.byAddress.put(address, identified);
+        this.byId.put(id, identified);
+        this.discovery.remove(address);
+
+        this.snapshot = null;
+        return true;
+    }
+
+    /** Brings back a peer we knew before, like one from a
+     * {@link ContactCache}, as known, but not yet seen around. Whatever we
+     * already know about either its address or its Id comes first.
+     * @return Whether the peer was brought back. */
+    public synchronized boolean restore(Peer peer) {
+        if(peer.id == null || this.byAddress.containsKey(peer.address) || this.byId.containsKey(peer.id))
+            return false;
+
+        Peer restored = peer.copy(peer.address);
+        restored.state = State.KNOWN;
+        restored.linking = -1;
+        this.byAddress.put(restored.address, restored);
+        this.byId.put(restored.id, restored);
+
+        this.snapshot = null;
+        return true;
+    }
+
+    /** Takes the next peer waiting to be discovered out of line, if any.
+     * It is then taken for being discovered. */
+    public synchronized String pollDiscovery() {
+        Iterator<String> iterator = this.discovery.iterator();
+        if(!iterator.hasNext())
+            return null;
+
+        String address = iterator.next();
+        iterator.remove();
+        this.byAddress.get(address).state = State.DISCOVERING;
+        this.discovering++;
+
+        this.snapshot = null;
+        return address;
+    }
+
+    /** Gets the next peer waiting to be discovered, leaving it in line, if
+     * there is any. */
+    public String peekDiscovery() {
+        Iterator<String> iterator = this.discovery.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /** Whether there are peers waiting to be discovered. */
+    public boolean hasDiscovery() {
+        return !this.discovery.isEmpty();
+    }
+
+    /** Whether there are peers being discovered. */
+    public boolean isDiscovering() {
+        return this.discovering > 0;
+    }
+
+    /** The peers waiting to be discovered, in order. Read only. */
+    public Collection<String> getDiscovery() {
+        return Collections.unmodifiableCollection(this.discovery);
+    }
+
+    /** Records that we've asked for a link to the peer at the given address,
+     * at the given time. */
+    public synchronized void onLinking(String address, long now) {
+        Peer peer = this.byAddress.get(address);
+        if(peer != null)
+            peer.linking = now;
+    }
+
+    /** Records that a link to the peer at the given address, if we asked for
+     * one, has come up, and that a session is running over it, at the given
+     * time.
+     * @return How long the link took to come up, or -1 if we never asked
+     * for one. */
+    public synchronized long onLinked(String address, long now) {
+        Peer peer = this.byAddress.get(address);
+        if(peer == null || peer.linking < 0)
+            return -1;
+
+        long latency = now - peer.linking;
+        peer.linking = -1;
+        peer.connectLatency = peer.links == 0
+            ? latency
+            : Math.round(SMOOTHING * latency + (1 - SMOOTHING) * peer.connectLatency);
+        peer.links++;
+        this.snapshot = null;
+
+        return latency;
+    }
+
+    /** Records that a session with the peer with the given Id went through,
+     * moving the given number of bytes in the given number of milliseconds,
+     * which closes the circuit to it. */
+    public synchronized void onExchanged(Id id, long bytes, long millis) {
+        Peer peer = this.byId.get(id);
+        if(peer == null)
+            return;
+
+        peer.strikes = 0;
+        peer.retryAt = 0;
+        double throughput = bytes * 1000.0 / Math.max(1, millis);
+        peer.throughput = peer.sessions == 0
+            ? throughput
+            : SMOOTHING * throughput + (1 - SMOOTHING) * peer.throughput;
+        peer.sessions++;
+        this.snapshot = null;
+    }
+
+    /** Gives up on the peer at the given address, at the given time, until
+     * the next search. Peers we never got to know are lined up for discovery
+     * again then. Should the peer have failed too many times in a row, its
+     * circuit opens, and it's given up on for longer.
+     * @return How long the circuit to the peer is open for, in milliseconds,
+     * or 0 if it's still closed. */
+    public synchronized long fail(String address, long now) {
+        Peer peer = this.byAddress.get(address);
+        if(peer == null)
+            return 0;
+
+        peer.failures++;
+        peer.strikes++;
+        if(peer.state == State.DISCOVERING)
+            this.discovering--;
+        peer.state = peer.id == null ? State.UNKNOWN : State.FAILING;
+        this.snapshot = null;
+
+        if(peer.strikes < FAILURE_THRESHOLD)
+            return 0;
+
+        /* Every try that fails past the threshold doubles the cooldown. Past
+         * a point, doubling it again would overflow, and it's at the limit by
+         * then anyway. */
+        int doublings = peer.strikes - FAILURE_THRESHOLD;
+        long cooldown = doublings < Long.numberOfLeadingZeros(COOLDOWN) - 1
+            ? Math.min(MAX_COOLDOWN, COOLDOWN << doublings)
+            : MAX_COOLDOWN;
+        peer.retryAt = now + cooldown;
+        return cooldown;
+    }
+
+    /** Gets the Ids of the peers in a given state. */
+    public HashSet<Id> getIds(State state) {
+        HashSet<Id> ids = new HashSet<>();
+        for(Peer peer : this.byId.values())
+            if(peer.state == state)
+                ids.add(peer.id);
+
+        return ids;
+    }
+
+    /** Takes a copy of every peer in the table, which stays as it is no
+     * matter what happens to the table after. May be called from any thread. */
+    public List<Peer> snapshot() {
+        List<Peer> snapshot = this.snapshot;
+        if(snapshot != null)
+            return snapshot;
+
+        synchronized(this) {
+            ArrayList<Peer> copy = new ArrayList<>(this.byAddress.size());
+            for(Peer peer : this.byAddress.values())
+                copy.add(peer.copy(peer.address));
+
+            snapshot = Collections.unmodifiableList(copy);
+            this.snapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /** Everything we know about a single peer. */
+    public static final class Peer {
+        /** The hardware address of the peer. */
+        public final String address;
+        /** The Id of the peer, if we know it. */
+        public Id id;
+        /** What we make of the peer. */
+        public State state;
+        /** When the peer was last seen around, in milliseconds. */
+        public long lastSeen;
+        /** How many links to the peer have come up. */
+        public int links;
+        /** Running average of how long links to the peer take to come up,
+         * in milliseconds. */
+        public long connectLatency;
+        /** How many sessions with the peer have gone through. */
+        public int sessions;
+        /** Running average of how many bytes a second go either way over
+         * sessions with the peer. */
+        public double throughput;
+        /** How many times we've given up on the peer. */
+        public int failures;
+        /** How many times in a row we've given up on the peer, since a
+         * session with it last went through. */
+        public int strikes;
+        /** When the circuit to the peer stops being open, should it be, in
+         * milliseconds. */
+        public long retryAt;
+        /** When we last asked for a link to the peer, if it's yet to come up,
+         * or -1. */
+        protected long linking;
+
+        protected Peer(String address) {
+            this.address = address;
+            this.id = null;
+            this.state = State.UNKNOWN;
+            this.lastSeen = 0;
+            this.links = 0;
+            this.connectLatency = 0;
+            this.sessions = 0;
+            this.throughput = 0;
+            this.failures = 0;
+            this.strikes = 0;
+            this.retryAt = 0;
+            this.linking = -1;
+        }
+
+        /** Whether the peer is given another chance, as of the given time. */
+        public Circuit getCircuit(long now) {
+            if(this.strikes < FAILURE_THRESHOLD)
+                return Circuit.CLOSED;
+            return now < this.retryAt ? Circuit.OPEN : Circuit.HALF_OPEN;
+        }
+
+        /** Copies the peer over to the given address. */
+        protected Peer copy(String address) {
+            Peer copy = new Peer(address);
+            copy.id = this.id;
+            copy.state = this.state;
+            copy.lastSeen = this.lastSeen;
+            copy.links = this.links;
+            copy.connectLatency = this.connectLatency;
+            copy.sessions = this.sessions;
+            copy.throughput = this.throughput;
+            copy.failures = this.failures;
+            copy.strikes = this.strikes;
+            copy.retryAt = this.retryAt;
+            copy.linking = this.linking;
+
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Picks how long the {@link WatchdogEngine} waits between searches, while
+ * it's docked.
+ *
+ * Searching keeps the radio busy, and has every device around us busy
+ * answering, so it's only worth doing as often as there's something new to
+ * find. Every search that turns up nobody new doubles the wait until the
+ * next one, up to a limit, and one that turns up somebody new brings it all
+ * the way back down, since more may be on the way. While we have packets
+ * waiting for peers we can't reach, we search as often as we can, as finding
+ * them sooner is what gets the packets delivered sooner. Waits are jittered,
+ * so that devices that got together at the same time don't keep searching in
+ * lockstep. */
+public class ScanScheduler {
+    /** By default, the shortest wait between searches. (15 seconds) */
+    public static final long DEFAULT_MIN_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+    /** By default, the longest wait between searches. (5 minutes) */
+    public static final long DEFAULT_MAX_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    /** How far off of the interval, either way, waits may be, as a fraction
+     * of it. */
+    public static final double JITTER = 0.2;
+
+    /** The shortest wait between searches, in milliseconds. */
+    protected final long minInterval;
+    /** The longest wait between searches, in milliseconds. */
+    protected final long maxInterval;
+    /** Where the jitter comes from. */
+    protected final Random random;
+    /** The wait between searches, as of the last one. */
+    protected long interval;
+    /** The addresses the last search turned up. */
+    protected HashSet<String> neighbourhood;
+
+    public ScanScheduler(Random random) {
+        this(DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, random);
+    }
+
+    public ScanScheduler(long minInterval, long maxInterval, Random random) {
+        if(minInterval < 0 || maxInterval < minInterval)
+            throw new IllegalArgumentException("Scan intervals have to go from a wait up to a longer one");
+
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.random = random;
+        this.interval = minInterval;
+        this.neighbourhood = new HashSet<>();
+    }
+
+    /** Records the addresses a search has turned up, and adapts to them.
+     * @return Whether any of them weren't there the last time. */
+    public boolean onSearched(Collection<String> addresses) {
+        boolean changed = false;
+        for(String address : addresses)
+            if(!this.neighbourhood.contains(address)) {
+                changed = true;
+                break;
+            }
+        this.neighbourhood = new HashSet<>(addresses);
+
+        this.interval = changed
+            ? this.minInterval
+            : Math.min(this.maxInterval, Math.max(1, this.interval) * 2);
+        return changed;
+    }
+
+    /** Gets how long to wait before the next search.
+     * @param pending Whether we have packets waiting for peers we can't
+     *                reach. */
+    public long next(boolean pending) {
+        long interval = pending ? this.minInterval : this.interval;
+        double jitter = (this.random.nextDouble() * 2 - 1) * JITTER;
+        return Math.max(0, Math.round(interval * (1 + jitter)));
+    }
+
+    /** The wait between searches, as of the last one, before jitter. */
+    public long getInterval() {
+        return this.interval;
+    }
+}
@@ -0,0 +1,117 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.identity.Id;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/** What a device tells everyone around it about itself through its
+ * {@link Advertiser}, without a link having to be brought up first.
+ *
+ * That's its {@link Id}, which version of the session protocol it speaks,
+ * and a digest of the peers it has packets waiting for. The digest is a tiny
+ * Bloom filter, so it may claim to have packets for a peer it doesn't, but
+ * never the other way around, and a peer that finds itself in there can come
+ * pick them up rather than wait to be visited.
+ *
+ * Records travel as the TXT entries of a DNS-SD service, one key for each of
+ * the above, all of them short enough to fit in the single string DNS-SD
+ * allows them, and all of them needed for a record to be read back. The Id
+ * goes whole rather than as a fingerprint, as it's what messages are sealed
+ * for, and a fingerprint alone would still call for a session to learn it. */
+public final class ServiceRecord {
+    /** TXT key of the version of the session protocol. */
+    public static final String VERSION_KEY = "v";
+    /** TXT key of the Id, in hexadecimal. */
+    public static final String ID_KEY = "id";
+    /** TXT key of the digest, in hexadecimal. */
+    public static final String DIGEST_KEY = "for";
+
+    /** The Id of the device. */
+    public final Id id;
+    /** The version of the session protocol the device speaks. */
+    public final int version;
+    /** Bloom filter of the Ids of the peers the device has packets for. */
+    public final long digest;
+
+    public ServiceRecord(Id id, int version, long digest) {
+        this.id = id;
+        this.version = version;
+        this.digest = digest;
+    }
+
+    /** Makes up the record of a device running this build.
+     * @param id The Id of the device.
+     * @param targets The peers it has packets waiting for. */
+    public static ServiceRecord of(Id id, Collection<Id> targets) {
+        long digest = 0;
+        for(Id target : targets)
+            digest |= bits(target);
+
+        return new ServiceRecord(id, Frame.VERSION, digest);
+    }
+
+    /** The two bits the given Id sets in a digest. Ids are points on a curve,
+     * their hashes are as good as random. */
+    protected static long bits(Id id) {
+        int hash = id.hashCode() * 0x9e3779b9;
+        return (1L << (hash & 63)) | (1L << ((hash >>> 6) & 63));
+    }
+
+    /** Whether the device may have packets waiting for the given peer. */
+    public boolean mayHaveFor(Id peer) {
+        long bits = bits(peer);
+        return (this.digest & bits) == bits;
+    }
+
+    /** Whether the device speaks the same session protocol we do. */
+    public boolean isCompatible() {
+        return this.version == Frame.VERSION;
+    }
+
+    /** Writes the record down as the TXT entries of a service. */
+    public Map<String, String> toTxt() {
+        HashMap<String, String> txt = new HashMap<>();
+        txt.put(VERSION_KEY, Integer.toString(this.version));
+        txt.put(ID_KEY, this.id.toString());
+        txt.put(DIGEST_KEY, Long.toHexString(this.digest));
+
+        return txt;
+    }
+
+    /** Reads a record back from the TXT entries of a service.
+     * @throws WatchdogException When the entries are not those of a record. */
+    public static ServiceRecord fromTxt(Map<String, String> txt) throws WatchdogException {
+        String version = txt.get(VERSION_KEY);
+        String id = txt.get(ID_KEY);
+        String digest = txt.get(DIGEST_KEY);
+        if(version == null || id == null || digest == null)
+            throw new WatchdogException("Service record is missing entries: " + txt.keySet());
+
+        try {
+            return new ServiceRecord(
+                Id.fromString(id),
+                Integer.parseInt(version),
+                Long.parseUnsignedLong(digest, 16));
+        } catch(IllegalArgumentException e) {
+            throw new WatchdogException("Service record is malformed", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ServiceRecord that = (ServiceRecord) o;
+        return version == that.version &&
+            digest == that.digest &&
+            Objects.equals(id, that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, version, digest);
+    }
+}
@@ -0,0 +1,985 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.control.Attachment;
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.control.Router;
+import net.xn__n6x.communication.identity.Id;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Optional;
+
+/** A single conversation with a peer, driven by a {@link SessionLoop}.
+ *
+ * Sessions never block. The loop hands them whatever bytes have arrived and
+ * lets them know whenever their socket can take more data, and the session
+ * advances its own state machine as complete frames come in.
+ *
+ * Everything we have to do with a peer is done in a single session, so that
+ * each contact only has to pay for forming a group once. It goes through the
+ * following phases:
+ * <ul>
+ *     <li>
+ *         {@link Phase#HANDSHAKE}, where both sides send their
+ *         {@link Frame.Type#HELLO} frames, with their {@link Id}s and MAC
+ *         addresses, at the same time. This takes a single round trip.
+ *     </li>
+ *     <li>
+ *         {@link Phase#EXCHANGE}, where both sides tell one another how much
+ *         they have queued up with a {@link Frame.Type#SUMMARY}, then stream
+ *         all of those packets, and then hang up. Both directions run at the
+ *         same time, and packets are pulled out of the router one by one as
+ *         the socket drains, instead of all at once up front.
+ *         <br><br>
+ *         Packets pulled out together go out together, as a single
+ *         {@link Frame.Type#BATCH} frame, and whatever frames are waiting on
+ *         the socket are handed to it with a single gathering write, so a
+ *         burst of small messages costs a handful of system calls rather than
+ *         one per message.
+ *         <br><br>
+ *         How much either side may send is bounded by the credit the other
+ *         side grants it, in bytes. A sender never has more bytes in flight
+ *         than its credit, except for a single packet when nothing else is,
+ *         so that packets larger than the credit still get through. Once the
+ *         peer grants no credit at all, the rest of the packets are kept for
+ *         the next contact, and {@link #isThrottled()} tells as much. A peer
+ *         that sends more than its credit anyway has its session closed.
+ *         <br><br>
+ *         Packets with an {@link Attachment} go out as an
+ *         {@link Frame.Type#ATTACHMENT} frame followed by the file itself,
+ *         which is handed from the disk to the socket with
+ *         {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ *         and from the socket to a new file with
+ *         {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}
+ *         on the other end. Credit only counts the payload of a packet, as
+ *         attachments never take up any memory.
+ *         <br><br>
+ *         Either side may say in its summary that it'll linger, in which case
+ *         neither side ends its stream once it runs out of packets. Packets
+ *         that come in for the peer later, be it from the application or from
+ *         another peer, go out over the session as soon as the delegate wakes
+ *         it up, see {@link SessionLoop#wake()}. That's what lets the owner of
+ *         a link shared by a few peers pass packets between them right away.
+ *         Once nothing has gone across for a while, see
+ *         {@link Deadline#LINGER}, the streams end like they otherwise would.
+ *     </li>
+ *     <li>
+ *         {@link Phase#CLOSED}, once the session is over, be it because it
+ *         has finished or because it has failed.
+ *     </li>
+ * </ul>
+ *
+ * Every step of the way is up against a {@link Deadline}, which the loop
+ * enforces, so a peer that stops answering gets the session closed instead
+ * of leaving it open forever. */
+public class Session {
+    /** Size the inbound buffer starts at. Grows to fit larger frames. */
+    protected static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    /** How many bytes of packets we keep queued up ahead of the socket while
+     * streaming. Enough to keep the link busy between two selections, small
+     * enough that we don't pull the whole router queue into memory. */
+    protected static final int LOW_WATERMARK = 64 * 1024;
+    /** How many packets we may have sent without them being acknowledged. */
+    protected static final int WINDOW = 128;
+    /** How many packets we receive before acknowledging them. */
+    protected static final int ACK_EVERY = WINDOW / 4;
+    /** How many buffers we hand to the socket in a single write, at most. */
+    protected static final int GATHER_LIMIT = 64;
+
+    /** The phases of a session. */
+    public enum Phase {
+        HANDSHAKE,
+        EXCHANGE,
+        CLOSED
+    }
+
+    /** Whatever is on the other end of the session, usually the
+     * {@link Watchdog}. All of these methods are called from the thread
+     * running the {@link SessionLoop}. */
+    public interface Delegate {
+        /** Our {@link Id}. */
+        Id getId();
+
+        /** Our MAC address. */
+        String getAddress();
+
+        /** Fired when the peer has told us who it is, before any packets are
+         * exchanged. */
+        void onDiscovered(Id id, String address);
+
+        /** How many more bytes of packets we are willing to take from the
+         * given peer right now. Asked for every time we acknowledge packets.
+         * @param peer The {@link Id} of the peer.
+         * @param previous The credit we had granted the peer before, which
+         *                 has been either used up or given back by now. */
+        long credit(Id peer, long previous);
+
+        /** Sums up what we have queued for the given peer.
+         * @param peer The {@link Id} of the peer.
+         * @return How much we are about to send it. */
+        Frame.Summary summarize(Id peer);
+
+        /** Claims the stream of packets to the given peer for this session.
+         * Only one session may stream to a peer at a time, as they would both
+         * be leasing from and acknowledging the same queue otherwise. The
+         * claim goes away once the session is closed.
+         * @param peer The {@link Id} of the peer.
+         * @return Whether we got the claim. */
+        boolean claim(Id peer);
+
+        /** Leases the next packet that should be sent to the given peer.
+         * @param peer The {@link Id} of the peer.
+         * @return The lease, or nothing if there are no more to be sent. */
+        Optional<Router.Lease> nextOutbound(Id peer);
+
+        /** Fired when the peer has told us it has every packet we sent it, up
+         * to and including the given sequence number, so that they may be
+         * dropped from the router. */
+        void onAcknowledged(Id peer, long sequence);
+
+        /** Makes up a new file for an attachment the peer is about to send us,
+         * which gets written to as the attachment comes in. Once it's all
+         * there, the file goes to {@link #onPacketReceived(Id, long, Packet)}
+         * along with its packet, and is the delegate's to keep or delete. Should
+         * the session fail before that, it gets deleted. */
+        File newAttachmentFile() throws IOException;
+
+        /** Fired for every packet the peer sends us. The delegate is the one
+         * that remembers which sequence numbers it has already seen, and it
+         * should ignore packets it is sent again.
+         * @param peer The peer that sent the packet.
+         * @param sequence The sequence number the peer gave the packet.
+         * @param p The packet. */
+        void onPacketReceived(Id peer, long sequence, Packet p);
+
+        /** Fired once the session has closed. Every leased packet the peer
+         * hasn't acknowledged should be put back in line by the delegate.
+         * @param session The session that has closed, or {@code null} if it
+         *                could not even be opened.
+         * @param error Why the session failed, or {@code null} if it finished
+         *              successfully. */
+        void onSessionClosed(Session session, WatchdogException error);
+    }
+
+    protected final SocketChannel channel;
+    protected final Delegate delegate;
+    /** Selection key of our channel, once registered. */
+    protected SelectionKey key;
+
+    /** Bytes read from the peer that haven't been parsed into frames yet.
+     * Always kept ready for writing into. */
+    protected ByteBuffer inbound;
+    /** Frames and attachments waiting to be written out, in order. */
+    protected final ArrayDeque<Outbound> outbound;
+    /** How many bytes are waiting in the outbound queue. */
+    protected long outboundBytes;
+    /** Packets on their way into the outbound queue, as a single frame. */
+    protected final Frame.Batch batch;
+    /** Scratch array for gathering outbound buffers into a single write. */
+    protected final ByteBuffer[] gather;
+    /** The attachment we are in the middle of receiving, if any. */
+    protected Download download;
+
+    /** The phase we are currently in. */
+    protected Phase phase;
+    /** The {@link Id} of the peer, once we know it. */
+    protected Id peer;
+    /** The MAC address of the peer, once we know it. */
+    protected String peerAddress;
+    /** What the peer has told us it has queued up for us, once it does. */
+    protected Frame.Summary peerSummary;
+    /** Whether we are streaming packets to the peer. */
+    protected boolean streaming;
+    /** Whether we have told the peer we have nothing more to send. */
+    protected boolean sentEnd;
+    /** Whether the peer has told us it has nothing more to send. */
+    protected boolean receivedEnd;
+    /** Packets we've sent that the peer hasn't acknowledged yet, in order. */
+    protected final ArrayDeque<Router.Lease> unacknowledged;
+    /** How many payload bytes the unacknowledged packets add up to. */
+    protected long unacknowledgedBytes;
+    /** A packet we've leased but that didn't fit in our credit yet. */
+    protected Router.Lease held;
+    /** How many payload bytes the peer lets us have in flight. */
+    protected long credit;
+    /** Whether we've told the peer we're blocked on credit, and are waiting
+     * for it to answer. */
+    protected boolean blocked;
+    /** Whether we ended our stream because the peer had no credit left for
+     * us, rather than because we ran out of packets. */
+    protected boolean throttled;
+    /** Sequence number of the last packet the peer sent us. */
+    protected long lastReceived;
+    /** How many packets the peer has sent us since we last acknowledged. */
+    protected int pendingAcknowledgement;
+    /** How many payload bytes the peer has sent us since we last acknowledged. */
+    protected long pendingBytes;
+    /** The credit we last granted the peer. */
+    protected long granted;
+    /** The credit we had granted the peer before that, which whatever it sent
+     * before our last grant came through still went by. */
+    protected long previouslyGranted;
+    /** How many packets we have sent the peer so far. */
+    protected int sent;
+    /** How many packets the peer has sent us so far. */
+    protected int received;
+    /** Whether we've got everything we needed from the peer in this phase. */
+    protected boolean done;
+    /** Whether we said we'd linger in our summary. */
+    protected boolean linger;
+    /** Whether we've given up on lingering, for lack of anything to send. */
+    protected boolean settled;
+    /** When the current deadline started running, in {@link System#nanoTime()}
+     * terms. */
+    protected long since;
+    /** When the session was opened, in {@link System#nanoTime()} terms. */
+    protected final long opened;
+    /** How many bytes we've read off the socket, attachments and all. */
+    protected long bytesRead;
+    /** How many bytes we've written to the socket, attachments and all. */
+    protected long bytesWritten;
+
+    public Session(SocketChannel channel, Delegate delegate) {
+        this.channel = channel;
+        this.delegate = delegate;
+        this.inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.outbound = new ArrayDeque<>();
+        this.outboundBytes = 0;
+        this.batch = new Frame.Batch();
+        this.gather = new ByteBuffer[GATHER_LIMIT];
+        this.download = null;
+        this.phase = Phase.HANDSHAKE;
+        this.streaming = false;
+        this.sentEnd = false;
+        this.receivedEnd = false;
+        this.unacknowledged = new ArrayDeque<>();
+        this.unacknowledgedBytes = 0;
+        this.held = null;
+        this.credit = 0;
+        this.blocked = false;
+        this.throttled = false;
+        this.lastReceived = 0;
+        this.pendingAcknowledgement = 0;
+        this.pendingBytes = 0;
+        this.granted = 0;
+        this.sent = 0;
+        this.received = 0;
+        this.done = false;
+        this.linger = false;
+        this.settled = false;
+        this.since = System.nanoTime();
+        this.opened = this.since;
+        this.bytesRead = 0;
+        this.bytesWritten = 0;
+    }
+
+    /** Starts the conversation. Called by the loop once the channel has been
+     * connected and registered. */
+    protected void start(SelectionKey key) {
+        this.key = key;
+        this.since = System.nanoTime();
+        this.send(Frame.hello(this.delegate.getId(), this.delegate.getAddress()));
+    }
+
+    /** Queues up a frame to be written as soon as the socket allows it. */
+    protected void send(ByteBuffer frame) {
+        this.send(new Buffered(frame));
+    }
+
+    /** Queues up anything to be written as soon as the socket allows it. */
+    protected void send(Outbound data) {
+        this.outbound.addLast(data);
+        this.outboundBytes += data.remaining();
+        if(this.key != null && this.key.isValid())
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /** Called by the loop when the socket has data for us. */
+    protected void onReadable() throws IOException, WatchdogException {
+        if(this.download != null && this.inbound.position() == 0) {
+            /* Nothing has been read ahead, so the attachment can go straight
+             * from the socket to the disk. */
+            long moved = this.download.transfer(this.channel);
+            this.bytesRead += moved;
+            if(moved > 0)
+                this.since = System.nanoTime();
+            if(this.download.isDone())
+                this.finishDownload();
+            else if(moved > 0)
+                return;
+
+            /* Otherwise, the socket may have been closed on us, which only a
+             * regular read can tell. */
+        }
+
+        int read = this.channel.read(this.inbound);
+        if(read < 0)
+            throw new WatchdogException("Peer hung up in the middle of the session");
+        if(read > 0) {
+            this.bytesRead += read;
+            this.since = System.nanoTime();
+        }
+
+        this.inbound.flip();
+        while(this.phase != Phase.CLOSED) {
+            if(this.download != null) {
+                /* Whatever we've read of the attachment goes in first. */
+                this.download.drain(this.inbound);
+                if(!this.download.isDone())
+                    break;
+
+                this.finishDownload();
+                continue;
+            }
+            if(this.inbound.remaining() < Frame.HEADER_LENGTH)
+                break;
+
+            int length = this.inbound.getInt(this.inbound.position());
+            if(length < 1 || length > Frame.MAX_LENGTH)
+                throw new WatchdogException("Invalid frame length: " + length);
+
+            if(this.inbound.remaining() < 4 + length) {
+                /* Make sure the rest of the frame will fit in the buffer. */
+                if(this.inbound.capacity() < 4 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(this.inbound);
+                    larger.flip();
+                    this.inbound = larger;
+                }
+                break;
+            }
+
+            this.inbound.position(this.inbound.position() + 4);
+            Frame.Type type = Frame.Type.fromOrdinal(this.inbound.get());
+
+            ByteBuffer body = this.inbound.slice();
+            body.limit(length - 1);
+            this.inbound.position(this.inbound.position() + length - 1);
+
+            this.onFrame(type, body);
+        }
+        this.inbound.compact();
+
+        this.closeIfFinished();
+    }
+
+    /** Called by the loop when the socket can take more data. */
+    protected void onWritable() throws IOException, WatchdogException {
+        this.fill();
+        while(!this.outbound.isEmpty()) {
+            Outbound head = this.outbound.peekFirst();
+
+            long expected;
+            long written;
+            if(head instanceof Buffered) {
+                /* Write out as many frames as we can in one go. */
+                int count = 0;
+                for(Outbound data : this.outbound) {
+                    if(!(data instanceof Buffered) || count == this.gather.length)
+                        break;
+                    count += ((Buffered) data).gather(this.gather, count);
+                }
+
+                expected = 0;
+                for(int i = 0; i < count; ++i)
+                    expected += this.gather[i].remaining();
+                written = this.channel.write(this.gather, 0, count);
+                Arrays.fill(this.gather, 0, count, null);
+            } else {
+                expected = head.remaining();
+                written = head.write(this.channel);
+            }
+            this.outboundBytes -= written;
+            this.bytesWritten += written;
+            if(written > 0)
+                this.since = System.nanoTime();
+
+            while(!this.outbound.isEmpty() && this.outbound.peekFirst().remaining() == 0)
+                this.outbound.pollFirst().release();
+            if(written < expected)
+                /* The socket is full, wait for the next round. */
+                return;
+
+            this.fill();
+        }
+
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+        this.closeIfFinished();
+    }
+
+    /** Advances the state machine with a frame from the peer. */
+    protected void onFrame(Frame.Type type, ByteBuffer body) throws WatchdogException {
+        switch(this.phase) {
+            case HANDSHAKE:
+                this.expect(type, Frame.Type.HELLO);
+                this.peer = Frame.readHello(body);
+                this.peerAddress = Frame.readString(body);
+                this.delegate.onDiscovered(this.peer, this.peerAddress);
+
+                /* Tell the peer what's coming, and where to pick up from. */
+                Frame.Summary summary = this.delegate.summarize(this.peer);
+                this.lastReceived = summary.resume;
+                this.granted = summary.credit;
+                this.previouslyGranted = summary.credit;
+                this.linger = summary.linger;
+
+                this.phase = Phase.EXCHANGE;
+                this.send(Frame.summary(summary));
+                break;
+            case EXCHANGE:
+                if(this.peerSummary == null) {
+                    this.expect(type, Frame.Type.SUMMARY);
+                    this.peerSummary = Frame.readSummary(body);
+                    this.credit = this.peerSummary.credit;
+                    this.since = System.nanoTime();
+
+                    if(!this.delegate.claim(this.peer)) {
+                        /* Another session with the peer is streaming to it
+                         * already, so we've got nothing for it. */
+                        this.send(Frame.end());
+                        this.sentEnd = true;
+                    } else {
+                        /* Skip whatever the peer already got from us last
+                         * time, and start streaming the rest. */
+                        this.delegate.onAcknowledged(this.peer, this.peerSummary.resume);
+                        this.streaming = true;
+                        this.fill();
+                    }
+                } else if(type == Frame.Type.ACK) {
+                    long sequence = Frame.readSequence(body);
+                    this.credit = Frame.readCredit(body);
+                    while(!this.unacknowledged.isEmpty() && this.unacknowledged.peekFirst().sequence <= sequence)
+                        this.unacknowledgedBytes -= this.unacknowledged.pollFirst().packet.getPayload().length;
+
+                    /* The window just opened up. */
+                    this.blocked = false;
+                    this.delegate.onAcknowledged(this.peer, sequence);
+                    this.fill();
+                } else if(this.receivedEnd) {
+                    throw new WatchdogException("Peer sent " + type + " frame after it was done");
+                } else if(type == Frame.Type.END) {
+                    this.receivedEnd = true;
+
+                    /* Only acknowledge when the peer is still waiting on us to,
+                     * as otherwise it might have hung up already. */
+                    if(this.pendingAcknowledgement > 0)
+                        this.acknowledge();
+
+                    /* We may have only been lingering because the peer was. */
+                    this.fill();
+                } else if(type == Frame.Type.BLOCKED) {
+                    /* The peer is waiting on us to go on. Unless the
+                     * acknowledgement it's waiting for is already on its way,
+                     * in which case another one might find it gone. */
+                    if(this.pendingAcknowledgement > 0)
+                        this.acknowledge();
+                } else if(type == Frame.Type.ATTACHMENT) {
+                    long sequence = Frame.readSequence(body);
+                    if(sequence <= this.lastReceived)
+                        throw new WatchdogException("Peer sent packet " + sequence + " out of order");
+
+                    /* The packet is only ours once its file has come in. */
+                    Packet p = Frame.readPacket(body);
+                    this.charge(p);
+                    long length = Frame.readAttachmentLength(body);
+                    try {
+                        this.download = new Download(sequence, p, this.delegate.newAttachmentFile(), length);
+                    } catch(IOException e) {
+                        throw new WatchdogException("Could not store attachment", e);
+                    }
+                } else {
+                    this.expect(type, Frame.Type.BATCH);
+                    int count = Frame.readBatchCount(body);
+                    for(int i = 0; i < count; ++i) {
+                        long sequence = Frame.readSequence(body);
+                        if(sequence <= this.lastReceived)
+                            throw new WatchdogException("Peer sent packet " + sequence + " out of order");
+
+                        Packet p = Frame.readPacket(body);
+                        this.charge(p);
+                        this.onPacket(sequence, p);
+                    }
+                    if(body.hasRemaining())
+                        throw new WatchdogException("Malformed batch frame");
+
+                    /* A lingering peer never ends its stream, which is when we
+                     * would have acknowledged the rest of it otherwise. */
+                    if(this.peerSummary.linger && this.pendingAcknowledgement > 0)
+                        this.acknowledge();
+                }
+
+                this.done = this.sentEnd && this.receivedEnd && this.unacknowledged.isEmpty();
+                break;
+            case CLOSED:
+                break;
+        }
+    }
+
+    /** Makes sure a packet the peer sent us fits in the credit we granted it,
+     * which it may only go over with a single packet, when nothing else is
+     * in flight. Packets sent before our last grant came through may still
+     * go by the one before, so whichever of the two is larger is what goes.
+     * @throws WatchdogException When the peer went over it anyway. */
+    protected void charge(Packet p) throws WatchdogException {
+        long limit = Math.max(this.granted, this.previouslyGranted);
+        long pending = this.pendingBytes + p.getPayload().length;
+        if(pending > limit && (this.pendingBytes > 0 || limit == 0))
+            throw new WatchdogException("Peer sent " + pending + " bytes on a credit of " + limit);
+    }
+
+    /** Hands a packet the peer sent us over to the delegate. */
+    protected void onPacket(long sequence, Packet p) {
+        this.delegate.onPacketReceived(this.peer, sequence, p);
+        this.lastReceived = sequence;
+        this.received++;
+
+        /* Acknowledge often enough that the peer never runs dry while it
+         * still has credit. */
+        this.pendingBytes += p.getPayload().length;
+        if(++this.pendingAcknowledgement >= ACK_EVERY || this.pendingBytes >= this.granted / 2)
+            this.acknowledge();
+    }
+
+    /** Hands the attachment we've just finished receiving over to the
+     * delegate, along with its packet. */
+    protected void finishDownload() throws IOException {
+        Download download = this.download;
+        this.download = null;
+
+        this.onPacket(download.sequence, download.finish());
+        if(this.peerSummary.linger && this.pendingAcknowledgement > 0)
+            this.acknowledge();
+    }
+
+    /** Acknowledges every packet the peer has sent us so far, and grants it
+     * as much credit as the delegate is willing to. */
+    protected void acknowledge() {
+        this.previouslyGranted = this.granted;
+        this.granted = this.delegate.credit(this.peer, this.granted);
+        this.send(Frame.ack(this.lastReceived, this.granted));
+        this.pendingAcknowledgement = 0;
+        this.pendingBytes = 0;
+    }
+
+    /** Tops up the outbound queue with packets for the peer, as far as the
+     * window and our credit allow, and with the end of the stream once the
+     * router has run out of them. */
+    protected void fill() throws WatchdogException {
+        while(this.streaming
+            && !this.sentEnd
+            && !this.blocked
+            && this.outboundBytes + this.batch.length() < LOW_WATERMARK
+            && this.unacknowledged.size() < WINDOW) {
+
+            if(this.held == null) {
+                Optional<Router.Lease> lease = this.delegate.nextOutbound(this.peer);
+                if(!lease.isPresent() && this.isLingering()) {
+                    /* Wait around for more, until we're woken up. */
+                    break;
+                }
+                if(!lease.isPresent()) {
+                    this.flush();
+                    this.send(Frame.end());
+                    this.sentEnd = true;
+                    break;
+                }
+                this.held = lease.get();
+            }
+
+            int length = this.held.packet.getPayload().length;
+            if(this.unacknowledgedBytes + length > this.credit) {
+                if(!this.unacknowledged.isEmpty()) {
+                    /* Have the peer acknowledge what we've sent, and wait. */
+                    this.flush();
+                    this.send(Frame.blocked());
+                    this.blocked = true;
+                    break;
+                }
+                if(this.credit == 0) {
+                    /* The peer can't take any more. What's left stays queued
+                     * up until next time, held packet included. */
+                    this.flush();
+                    this.send(Frame.end());
+                    this.sentEnd = true;
+                    this.throttled = true;
+                    break;
+                }
+
+                /* Nothing else is in flight, so let this one overshoot. */
+            }
+
+            Packet p = this.held.packet.tag(this.peer);
+            if(p.getAttachment().isPresent()) {
+                Transfer transfer;
+                try {
+                    transfer = new Transfer(p.getAttachment().get());
+                } catch(IOException e) {
+                    throw new WatchdogException("Could not open attachment", e);
+                }
+
+                this.flush();
+                this.send(Frame.attachment(this.held.sequence, p));
+                this.send(transfer);
+            } else
+                this.batch.add(this.held.sequence, p);
+            this.unacknowledged.addLast(this.held);
+            this.unacknowledgedBytes += length;
+            this.held = null;
+            this.sent++;
+        }
+        this.flush();
+    }
+
+    /** Whether we're keeping our stream open once we're out of packets. We
+     * do for as long as either side said it would linger, except for when it
+     * was the peer, and it has since ended its own stream. */
+    protected boolean isLingering() {
+        if(this.settled || this.peerSummary == null)
+            return false;
+        return this.linger || (this.peerSummary.linger && !this.receivedEnd);
+    }
+
+    /** Has the session look for new packets for the peer, should it be
+     * lingering for them. Called by the loop. */
+    protected void wake() {
+        if(this.phase == Phase.EXCHANGE && this.streaming && !this.sentEnd && this.key.isValid())
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /** Ends our stream, if it's still open, as nothing has gone across for
+     * as long as we were willing to linger. Called by the loop. */
+    protected void stopLingering() throws WatchdogException {
+        this.settled = true;
+        this.since = System.nanoTime();
+
+        this.fill();
+        this.done = this.sentEnd && this.receivedEnd && this.unacknowledged.isEmpty();
+        if(this.key.isValid())
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /** Queues up the packets in the batch being built, if any, as a frame. */
+    protected void flush() {
+        if(!this.batch.isEmpty())
+            this.send(new Buffered(this.batch.finish()));
+    }
+
+    protected void expect(Frame.Type got, Frame.Type expected) throws WatchdogException {
+        if(got != expected)
+            throw new WatchdogException(
+                "Expected " + expected + " frame while in " + this.phase + ", got " + got);
+    }
+
+    /** Hangs up once both we and the peer have said everything we had to. */
+    protected void closeIfFinished() {
+        if(this.done && this.outbound.isEmpty())
+            this.close(null);
+    }
+
+    /** Closes the session, letting the delegate know why.
+     * @param error What went wrong, or {@code null} if nothing did. */
+    protected void close(WatchdogException error) {
+        if(this.phase == Phase.CLOSED)
+            return;
+        this.phase = Phase.CLOSED;
+
+        if(this.key != null)
+            this.key.cancel();
+        try {
+            this.channel.close();
+        } catch(IOException ignored) {
+            /* We're done with it either way. */
+        }
+
+        /* Let go of the files we had open. */
+        for(Outbound data : this.outbound)
+            data.release();
+        this.outbound.clear();
+        if(this.download != null) {
+            this.download.abandon();
+            this.download = null;
+        }
+
+        this.delegate.onSessionClosed(this, error);
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /** Which deadline the session is up against right now. */
+    public Deadline getDeadline() {
+        if(this.key == null)
+            return Deadline.CONNECT;
+        if(this.peerSummary == null)
+            return Deadline.HANDSHAKE;
+        if(this.isLingering() && this.unacknowledged.isEmpty() && this.download == null && !this.blocked)
+            return Deadline.LINGER;
+        return Deadline.PROGRESS;
+    }
+
+    /** When the deadline the session is up against started running, in
+     * {@link System#nanoTime()} terms. */
+    public long getDeadlineStart() {
+        return since;
+    }
+
+    /** How many packets we have sent the peer. */
+    public int getSent() {
+        return sent;
+    }
+
+    /** How many packets the peer has sent us. */
+    public int getReceived() {
+        return received;
+    }
+
+    /** When the session was opened, in {@link System#nanoTime()} terms. */
+    public long getOpened() {
+        return opened;
+    }
+
+    /** How many bytes have gone either way over the session so far. */
+    public long getBytesExchanged() {
+        return bytesRead + bytesWritten;
+    }
+
+    /** How many bytes the peer has sent us over the session so far. */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /** How many bytes we have sent the peer over the session so far. */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Whether we've been streaming packets to the peer, as opposed to
+     * leaving that to another session with it. */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /** The credit the peer last granted us, be it used up or not. */
+    public long getCredit() {
+        return credit;
+    }
+
+    /** The credit we last granted the peer, be it used up or not. */
+    public long getGranted() {
+        return granted;
+    }
+
+    /** Whether we had to leave packets behind because the peer had no credit
+     * left for them. */
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    /** The {@link Id} of the peer, or {@code null} if it hasn't told us yet. */
+    public Id getPeer() {
+        return peer;
+    }
+
+    /** The MAC address of the peer, or {@code null} if it hasn't told us yet. */
+    public String getPeerAddress() {
+        return peerAddress;
+    }
+
+    /** What the peer had queued up for us, or {@code null} if it hasn't told
+     * us yet. */
+    public Frame.Summary getPeerSummary() {
+        return peerSummary;
+    }
+
+    /** The network address at the other end of the session, if connected. */
+    public SocketAddress getRemoteAddress() {
+        try {
+            return this.channel.getRemoteAddress();
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /** Something queued up to be written to the socket. */
+    protected interface Outbound {
+        /** Writes as much of it as the socket takes right now.
+         * @return How many bytes went out. */
+        long write(SocketChannel channel) throws IOException;
+
+        /** How many bytes are still to go. */
+        long remaining();
+
+        /** Lets go of whatever backs it, be it because it has all gone out or
+         * because the session is over. */
+        void release();
+    }
+
+    /** A frame waiting to be written, in as many pieces as it was built in.
+     * Runs of these get gathered into a single write. */
+    protected static final class Buffered implements Outbound {
+        protected final ByteBuffer[] buffers;
+        /** The first of the buffers that isn't all written yet. */
+        protected int first;
+
+        protected Buffered(ByteBuffer... buffers) {
+            this.buffers = buffers;
+            this.first = 0;
+        }
+
+        /** Puts what's left of the frame in the given array of buffers, as
+         * far as it fits.
+         * @return How many buffers were put in. */
+        protected int gather(ByteBuffer[] into, int offset) {
+            this.skip();
+
+            int count = Math.min(this.buffers.length - this.first, into.length - offset);
+            System.arraycopy(this.buffers, this.first, into, offset, count);
+            return count;
+        }
+
+        @Override
+        public long write(SocketChannel channel) throws IOException {
+            this.skip();
+            return channel.write(this.buffers, this.first, this.buffers.length - this.first);
+        }
+
+        @Override
+        public long remaining() {
+            this.skip();
+
+            long remaining = 0;
+            for(int i = this.first; i < this.buffers.length; ++i)
+                remaining += this.buffers[i].remaining();
+            return remaining;
+        }
+
+        /** Moves past the buffers that have been written already. */
+        protected void skip() {
+            while(this.first < this.buffers.length && !this.buffers[this.first].hasRemaining())
+                this.first++;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /** An attachment going straight from the disk to the socket. */
+    protected static final class Transfer implements Outbound {
+        protected final FileChannel file;
+        /** Where in the file the next write starts. */
+        protected long position;
+        /** Where in the file the attachment ends. */
+        protected final long end;
+
+        protected Transfer(Attachment attachment) throws IOException {
+            this.file = new FileInputStream(attachment.getFile()).getChannel();
+            this.position = 0;
+            this.end = attachment.getLength();
+        }
+
+        @Override
+        public long write(SocketChannel channel) throws IOException {
+            if(this.position == this.end)
+                return 0;
+
+            long written = this.file.transferTo(this.position, this.end - this.position, channel);
+            if(written == 0 && this.position >= this.file.size())
+                throw new IOException("Attachment got shorter while being sent");
+
+            this.position += written;
+            return written;
+        }
+
+        @Override
+        public long remaining() {
+            return this.end - this.position;
+        }
+
+        @Override
+        public void release() {
+            try {
+                this.file.close();
+            } catch(IOException ignored) {
+                /* We only ever read from it. */
+            }
+        }
+    }
+
+    /** An attachment going straight from the socket to the disk. */
+    protected static final class Download {
+        /** Sequence number of the packet the attachment belongs to. */
+        protected final long sequence;
+        /** The packet the attachment belongs to. */
+        protected final Packet packet;
+        protected final File file;
+        protected final FileChannel channel;
+        /** How long the attachment is. */
+        protected final long length;
+        /** How much of it we've got. */
+        protected long position;
+
+        protected Download(long sequence, Packet packet, File file, long length) throws IOException {
+            this.sequence = sequence;
+            this.packet = packet;
+            this.file = file;
+            this.channel = new FileOutputStream(file).getChannel();
+            this.length = length;
+            this.position = 0;
+        }
+
+        /** Writes whatever of the attachment has been read into the given
+         * buffer along with the frames before it. */
+        protected void drain(ByteBuffer inbound) throws IOException {
+            int count = (int) Math.min(inbound.remaining(), this.length - this.position);
+
+            ByteBuffer slice = inbound.slice();
+            slice.limit(count);
+            while(slice.hasRemaining())
+                this.position += this.channel.write(slice, this.position);
+            inbound.position(inbound.position() + count);
+        }
+
+        /** Moves as much of the attachment as the socket has for us right now
+         * to the disk.
+         * @return How many bytes were moved. */
+        protected long transfer(SocketChannel socket) throws IOException {
+            long moved = this.channel.transferFrom(socket, this.position, this.length - this.position);
+            this.position += moved;
+
+            return moved;
+        }
+
+        protected boolean isDone() {
+            return this.position == this.length;
+        }
+
+        /** Closes the file, now that it's all there.
+         * @return The packet, carrying the attachment. */
+        protected Packet finish() throws IOException {
+            this.channel.close();
+            return this.packet.attach(new Attachment(this.file, this.length));
+        }
+
+        /** Closes and deletes the file, which will never be all there. */
+        protected void abandon() {
+            try {
+                this.channel.close();
+            } catch(IOException ignored) {
+                /* It's going away anyway. */
+            }
+            if(!this.file.delete())
+                this.file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package net.xn__n6x.communication.watchdog;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Non-blocking transport for Watchdog sessions.
+ *
+ * A single thread runs a {@link Selector} over the server socket and every
+ * open connection, accepting peers and feeding each {@link Session} whatever
+ * its socket is ready for. Because nothing in here ever blocks, one loop can
+ * serve as many peers at once as the group has, and because it only deals in
+ * plain socket channels, it can be driven over loopback on any JVM.
+ *
+ * The loop is also what keeps sessions to their {@link Deadline}s, closing
+ * the ones that run past them, and it doubles as a timer for whoever needs
+ * one, see {@link #schedule(Runnable, long)}. */
+public class SessionLoop implements Runnable, Closeable {
+    protected final Selector selector;
+    protected final Session.Delegate delegate;
+    /** Work handed to us by other threads, to be run inside the loop. */
+    protected final ConcurrentLinkedQueue<Runnable> tasks;
+    /** The server socket peers connect to, if we are listening. */
+    protected ServerSocketChannel server;
+    /** The thread running the loop, once started. */
+    protected Thread thread;
+    /** Whether the loop should keep running. */
+    protected volatile boolean running;
+    /** How long sessions may take for each step, in milliseconds. */
+    protected final EnumMap<Deadline, Long> timeouts;
+    /** No session can run out of time before this, in
+     * {@link System#nanoTime()} terms, so there's no need to look before. */
+    protected long nextExpiry;
+    /** Tasks waiting for their time to come, soonest first. */
+    protected final PriorityQueue<Timer> timers;
+
+    public SessionLoop(Session.Delegate delegate) throws IOException {
+        this.selector = Selector.open();
+        this.delegate = delegate;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.running = false;
+        this.timeouts = new EnumMap<>(Deadline.class);
+        for(Deadline deadline : Deadline.values())
+            this.timeouts.put(deadline, deadline.defaultTimeout);
+        this.nextExpiry = System.nanoTime();
+        this.timers = new PriorityQueue<>();
+    }
+
+    /** Changes how long sessions may take for the given step. Only takes
+     * effect for sessions opened after the change.
+     * @param deadline The step.
+     * @param millis How long it may take, in milliseconds. */
+    public void setTimeout(Deadline deadline, long millis) {
+        this.execute(() -> {
+            this.timeouts.put(deadline, millis);
+            this.nextExpiry = System.nanoTime();
+        });
+    }
+
+    /** Runs the given task inside the loop thread once the given time has
+     * passed.
+     * @param task The task to be run.
+     * @param millis How long from now it should run, in milliseconds. */
+    public void schedule(Runnable task, long millis) {
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        this.execute(() -> this.timers.add(new Timer(due, task)));
+    }
+
+    /** Starts accepting sessions on the given address.
+     * @param address Address to bind the server to.
+     * @return The address the server was actually bound to. */
+    public InetSocketAddress listen(InetSocketAddress address) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.setOption(java.net.StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(address);
+        server.configureBlocking(false);
+
+        this.server = server;
+        this.execute(() -> {
+            try {
+                server.register(this.selector, SelectionKey.OP_ACCEPT);
+            } catch(ClosedChannelException e) {
+                Log.e("SessionLoop", "Server closed before it could be registered");
+            }
+        });
+
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /** Opens a new session with the peer at the given address. The session
+     * only starts once the connection has been established, and its outcome
+     * is reported to the delegate like any other.
+     * @param address The address of the peer. */
+    public void connect(InetSocketAddress address) {
+        this.execute(() -> {
+            SocketChannel channel = null;
+            Session session = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                session = new Session(channel, this.delegate);
+                this.nextExpiry = System.nanoTime();
+
+                if(channel.connect(address))
+                    this.register(session);
+                else
+                    channel.register(this.selector, SelectionKey.OP_CONNECT, session);
+            } catch(IOException e) {
+                if(session != null)
+                    session.close(new WatchdogException("Could not connect to " + address, e));
+                else
+                    this.delegate.onSessionClosed(null, new WatchdogException(e));
+            }
+        });
+    }
+
+    /** Has every lingering session look for new packets for its peer, as
+     * some may have just come in. */
+    public void wake() {
+        this.execute(() -> {
+            for(SelectionKey key : this.selector.keys())
+                if(key.attachment() instanceof Session)
+                    ((Session) key.attachment()).wake();
+        });
+    }
+
+    /** Runs the given task inside the loop thread. */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /** Spawns the thread that runs this loop. */
+    public void start() {
+        this.running = true;
+        this.thread = new Thread(this, "SessionLoop");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void run() {
+        while(this.running) {
+            try {
+                long wait = this.untilNext();
+                if(wait > 0)
+                    this.selector.select(wait);
+                else if(wait < 0)
+                    this.selector.select();
+                else
+                    this.selector.selectNow();
+            } catch(IOException e) {
+                Log.e("SessionLoop", "Selection failed", e);
+                break;
+            }
+
+            for(Runnable task = this.tasks.poll(); task != null; task = this.tasks.poll())
+                task.run();
+            long now = System.nanoTime();
+            while(!this.timers.isEmpty() && now - this.timers.peek().due >= 0)
+                this.timers.poll().task.run();
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if(!key.isValid())
+                    continue;
+                if(key.channel() == this.server)
+                    this.onAcceptable();
+                else
+                    this.onSessionReady(key);
+            }
+
+            this.expire();
+        }
+
+        this.shutdown();
+    }
+
+    /** How long the loop may wait for sockets before it has to get back to
+     * its deadlines and timers.
+     * @return The time in milliseconds, or a negative number if it may wait
+     * for as long as it takes. */
+    protected long untilNext() {
+        boolean sessions = this.selector.keys().size() > (this.server == null ? 0 : 1);
+        if(!sessions && this.timers.isEmpty())
+            return -1;
+
+        long now = System.nanoTime();
+        long next = sessions ? this.nextExpiry - now : Long.MAX_VALUE;
+        if(!this.timers.isEmpty())
+            next = Math.min(next, this.timers.peek().due - now);
+
+        /* Round up, so that we never wake up a hair too early. */
+        return next <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(next) + 1;
+    }
+
+    /** Closes every session that has run past its deadline. */
+    protected void expire() {
+        long now = System.nanoTime();
+        if(now - this.nextExpiry < 0)
+            return;
+
+        /* Deadlines only ever get pushed back, so the soonest one we see
+         * here is as soon as any of them can be, until a session opens or
+         * moves on to the next step. */
+        long next = now + TimeUnit.DAYS.toNanos(1);
+        for(SelectionKey key : this.selector.keys()) {
+            if(!(key.attachment() instanceof Session))
+                continue;
+            Session session = (Session) key.attachment();
+            if(session.getPhase() == Session.Phase.CLOSED)
+                continue;
+
+            Deadline deadline = session.getDeadline();
+            long timeout = TimeUnit.MILLISECONDS.toNanos(this.timeouts.get(deadline));
+            long expiry = session.getDeadlineStart() + timeout;
+            if(now - expiry >= 0 && deadline == Deadline.LINGER) {
+                /* Nothing came in for the peer, nor for us, so wrap it up. */
+                try {
+                    session.stopLingering();
+                } catch(WatchdogException e) {
+                    session.close(e);
+                }
+                next = now;
+            } else if(now - expiry >= 0) {
+                Log.w("SessionLoop", "Session with " + session.getRemoteAddress() + " ran past its " + deadline + " deadline");
+                session.close(new DeadlineException(
+                    deadline,
+                    "Peer took longer than " + this.timeouts.get(deadline) + "ms for " + deadline));
+            } else if(expiry - next < 0)
+                next = expiry;
+        }
+
+        this.nextExpiry = next;
+    }
+
+    /** Accepts every peer waiting on the server. */
+    protected void onAcceptable() {
+        try {
+            for(SocketChannel channel = this.server.accept(); channel != null; channel = this.server.accept()) {
+                channel.configureBlocking(false);
+                this.register(new Session(channel, this.delegate));
+                this.nextExpiry = System.nanoTime();
+            }
+        } catch(IOException e) {
+            Log.e("SessionLoop", "Could not accept peer", e);
+        }
+    }
+
+    /** Registers a connected session with the selector and starts it. */
+    protected void register(Session session) throws IOException {
+        session.channel.socket().setTcpNoDelay(true);
+        SelectionKey key = session.channel.register(this.selector, SelectionKey.OP_READ, session);
+        session.start(key);
+    }
+
+    /** Dispatches the readiness of a session socket. */
+    protected void onSessionReady(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        Deadline deadline = session.getDeadline();
+        try {
+            if(key.isConnectable()) {
+                if(!session.channel.finishConnect())
+                    return;
+
+                session.channel.socket().setTcpNoDelay(true);
+                key.interestOps(SelectionKey.OP_READ);
+                session.start(key);
+                return;
+            }
+            if(key.isValid() && key.isReadable())
+                session.onReadable();
+            if(key.isValid() && key.isWritable())
+                session.onWritable();
+        } catch(IOException e) {
+            session.close(new WatchdogException(e));
+        } catch(WatchdogException e) {
+            session.close(e);
+        } catch(CancelledKeyException e) {
+            session.close(new WatchdogException("Session cancelled", e));
+        } catch(RuntimeException e) {
+            /* Whatever went wrong, it went wrong with this session alone, and
+             * the loop has to keep going for all the others. */
+            session.close(new WatchdogException("Session failed", e));
+        } finally {
+            /* The next step may well have a shorter deadline. */
+            if(session.getDeadline() != deadline)
+                this.nextExpiry = System.nanoTime();
+        }
+    }
+
+    /** Stops the loop. Sessions still open are closed with an error. */
+    @Override
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+
+        if(this.thread == null)
+            this.shutdown();
+    }
+
+    /** A task waiting for its time to come. */
+    protected static final class Timer implements Comparable<Timer> {
+        /** When the task should run, in {@link System#nanoTime()} terms. */
+        protected final long due;
+        protected final Runnable task;
+
+        protected Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.signum(this.due - other.due);
+        }
+    }
+
+    protected void shutdown() {
+        for(SelectionKey key : this.selector.keys()) {
+            if(key.attachment() instanceof Session)
+                ((Session) key.attachment()).close(new WatchdogException("Session loop has been shut down"));
+        }
+
+        try {
+            if(this.server != null)
+                this.server.close();
+            this.selector.close();
+        } catch(IOException e) {
+            Log.e("SessionLoop", "Could not shut down cleanly", e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/** Reads back the traces written by a {@link TraceRecorder}, and turns them
+ * into the encounters they saw, which can then be played back against a
+ * {@link net.xn__n6x.communication.control.Router} without the devices that
+ * recorded them. */
+public final class TraceReader {
+    private TraceReader() {}
+
+    /** A single record in a trace. */
+    public static final class Record {
+        /** What happened. */
+        public final TraceRecorder.Type type;
+        /** When it happened, on the monotonic clock of the engine. */
+        public final long time;
+        /** The packed hardware address of the peer it concerns, if any. */
+        public final long peer;
+        /** The first value, whose meaning depends on the type. */
+        public final long a;
+        /** The second value, whose meaning depends on the type. */
+        public final int b;
+
+        public Record(TraceRecorder.Type type, long time, long peer, long a, int b) {
+            this.type = type;
+            this.time = time;
+            this.peer = peer;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public String toString() {
+            return this.time + " " + this.type + " " + Long.toHexString(this.peer) + " " + this.a + " " + this.b;
+        }
+    }
+
+    /** A stretch of time in which a peer was within reach. */
+    public static final class Encounter {
+        /** The packed hardware address of the peer. */
+        public final long peer;
+        /** The first search that found it. */
+        public final long start;
+        /** The first search that didn't, after that, or the last thing
+         * recorded, if none did. */
+        public final long end;
+
+        public Encounter(long peer, long start, long end) {
+            this.peer = peer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString(this.peer) + " [" + this.start + ", " + this.end + ")";
+        }
+    }
+
+    /** Reads every record the ring in the given trace still holds, oldest
+     * first.
+     * @throws IOException When the file can't be read, or isn't a trace. */
+    public static List<Record> read(File file) throws IOException {
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(input.readInt() != TraceRecorder.MAGIC)
+                throw new IOException("Not a trace");
+            if(input.readInt() != TraceRecorder.VERSION)
+                throw new IOException("Trace is of an unsupported version");
+            if(input.readInt() != TraceRecorder.RECORD_SIZE)
+                throw new IOException("Trace has records of the wrong size");
+            int slots = input.readInt();
+            long next = input.readLong();
+            if(slots <= 0 || next < 0)
+                throw new IOException("Trace has a broken header");
+            input.skipBytes(TraceRecorder.HEADER_SIZE - 24);
+
+            /* Whole file's in memory, it's a few megabytes at most. */
+            byte[] ring = new byte[slots * TraceRecorder.RECORD_SIZE];
+            input.readFully(ring);
+
+            long first = Math.max(0, next - slots);
+            ArrayList<Record> records = new ArrayList<>((int) (next - first));
+            for(long i = first; i < next; ++i) {
+                int offset = (int) (i % slots) * TraceRecorder.RECORD_SIZE;
+                int type = ring[offset + 28] & 0xff;
+                if(type >= TraceRecorder.Type.VALUES.length)
+                    throw new IOException("Trace has a record of unknown type " + type);
+
+                records.add(new Record(
+                    TraceRecorder.Type.VALUES[type],
+                    readLong(ring, offset),
+                    readLong(ring, offset + 8),
+                    readLong(ring, offset + 16),
+                    (int) (readLong(ring, offset + 24) >>> 32)));
+            }
+            return records;
+        }
+    }
+
+    protected static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; ++i)
+            value = value << 8 | (buffer[offset + i] & 0xff);
+        return value;
+    }
+
+    /** Lines the times of the given records up with the wall clock, going by
+     * the {@link TraceRecorder.Type#START} or {@link TraceRecorder.Type#CLOCK}
+     * record that comes before each of them, in the same run. Records from a
+     * run whose clock the ring no longer holds are left out.
+     * @return The records that could be lined up, with their times on the
+     * wall clock. */
+    public static List<Record> align(List<Record> records) {
+        ArrayList<Record> aligned = new ArrayList<>(records.size());
+
+        /* The records ahead of the first clock are from the same run as it,
+         * unless it's the start of a new one. */
+        boolean known = false;
+        long offset = 0;
+        for(Record record : records)
+            if(isClock(record)) {
+                known = record.type == TraceRecorder.Type.CLOCK;
+                offset = record.a - record.time;
+                break;
+            }
+
+        for(Record record : records) {
+            if(isClock(record)) {
+                known = true;
+                offset = record.a - record.time;
+            }
+            if(known)
+                aligned.add(new Record(record.type, record.time + offset, record.peer, record.a, record.b));
+        }
+        return aligned;
+    }
+
+    /** Whether the given record says what the wall clock was. */
+    protected static boolean isClock(Record record) {
+        return record.type == TraceRecorder.Type.START || record.type == TraceRecorder.Type.CLOCK;
+    }
+
+    /** Gets the packed address of the device that recorded the given records,
+     * or zero if they never say. */
+    public static long owner(List<Record> records) {
+        for(Record record : records)
+            if(isClock(record) && record.peer != 0)
+                return record.peer;
+        return 0;
+    }
+
+    /** Works out when every peer was in reach, from the searches in the given
+     * records. A peer is in reach from the first search that finds it up
+     * until the first one after that which doesn't. A restart of the engine
+     * puts everyone out of reach, as the clock might've started over.
+     * @return The encounters, in the order they ended in. */
+    public static List<Encounter> encounters(List<Record> records) {
+        ArrayList<Encounter> encounters = new ArrayList<>();
+        LinkedHashMap<Long, Long> open = new LinkedHashMap<>();
+        HashSet<Long> found = new HashSet<>();
+
+        long last = 0;
+        int remaining = 0;
+        long searched = 0;
+        for(Record record : records) {
+            if(record.type == TraceRecorder.Type.CLOCK)
+                continue;
+            if(record.type == TraceRecorder.Type.FOUND && remaining > 0) {
+                found.add(record.peer);
+                open.putIfAbsent(record.peer, record.time);
+                if(--remaining == 0)
+                    close(encounters, open, found, searched);
+                continue;
+            }
+            if(remaining > 0) {
+                /* The search was cut short, somehow. Go with what it had. */
+                remaining = 0;
+                close(encounters, open, found, searched);
+            }
+
+            if(record.type == TraceRecorder.Type.START) {
+                close(encounters, open, new HashSet<>(), last);
+            } else if(record.type == TraceRecorder.Type.SEARCH) {
+                searched = record.time;
+                remaining = (int) record.a;
+                found.clear();
+                if(remaining == 0)
+                    close(encounters, open, found, searched);
+            }
+            last = record.time;
+        }
+        close(encounters, open, new HashSet<>(), last);
+
+        return encounters;
+    }
+
+    /** Ends the encounters with all the peers that weren't found. */
+    protected static void close(ArrayList<Encounter> encounters, LinkedHashMap<Long, Long> open, HashSet<Long> found, long time) {
+        open.entrySet().removeIf(entry -> {
+            if(found.contains(entry.getKey()))
+                return false;
+            encounters.add(new Encounter(entry.getKey(), entry.getValue(), time));
+            return true;
+        });
+    }
+}
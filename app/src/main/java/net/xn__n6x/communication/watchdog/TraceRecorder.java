@@ -0,0 +1,246 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/** Records what a {@link WatchdogEngine} runs into out in the field, so that
+ * routing can be tuned against real encounters later, see
+ * {@link TraceReader}.
+ *
+ * The trace is a ring of fixed size records in a memory-mapped file, behind
+ * a small header that says how many records have been written so far. Once
+ * the ring is full, the newest records take the place of the oldest ones.
+ * Recording is a handful of absolute writes into the mapping, with nothing
+ * allocated and no system calls made, and the kernel gets the pages to disk
+ * on its own, even should the process die. A record only counts once the
+ * header says so, which is the last thing written, so a record cut short
+ * never shows up.
+ *
+ * Every record has a time, on the monotonic clock of the engine, a type, the
+ * hardware address of the peer it concerns, if any, and two values whose
+ * meaning depends on the type. Addresses are packed into a long, see
+ * {@link #address(String)}. Opening a trace that is already there carries
+ * on where it left off, so one trace can span many runs of the engine.
+ *
+ * Each run starts with a {@link Type#START} record, which says who we are
+ * and what the wall clock date was, as the monotonic clock the records go
+ * by may well have started over since the last run. Should the ring wrap
+ * past it, that would be lost, so every so often there's a
+ * {@link Type#CLOCK} record, which says the same, without it being a
+ * restart. */
+public class TraceRecorder implements Closeable {
+    /** Marks the start of a trace file. */
+    public static final int MAGIC = 0x57445452;
+    /** Version of the format. */
+    public static final int VERSION = 2;
+    /** How long the header is, in bytes. */
+    public static final int HEADER_SIZE = 32;
+    /** How long every record is, in bytes. */
+    public static final int RECORD_SIZE = 32;
+    /** By default, how many records the ring holds. (4MiB) */
+    public static final int DEFAULT_SLOTS = 1 << 17;
+
+    /** Where the header keeps the number of records written so far. */
+    protected static final int NEXT = 16;
+
+    /** What a record says happened. */
+    public enum Type {
+        /** The engine started. The peer is our own address, if we knew it by
+         * then, and the first value is the wall clock date, in milliseconds,
+         * which lines the trace up with the traces of other devices. */
+        START,
+        /** A search revealed as many peers as the first value, which come in
+         * the {@link #FOUND} records right after. */
+        SEARCH,
+        /** A search revealed the peer. */
+        FOUND,
+        /** We've asked for a link to the peer. */
+        LINKING,
+        /** A session with the peer has started. */
+        LINKED,
+        /** A session with the peer went through, moving as many bytes as the
+         * first value and as many packets as the second, both ways. */
+        SESSION,
+        /** A session with the peer, or the link for it, failed. */
+        FAILED,
+        /** The router has as many bytes queued up as the first value, for as
+         * many peers as the second. */
+        QUEUE,
+        /** The engine is still running since it last started. The peer is
+         * our own address, and the first value is the wall clock date, in
+         * milliseconds, like for {@link #START}. */
+        CLOCK;
+
+        static final Type[] VALUES = values();
+    }
+
+    /** The file the trace is in. */
+    protected final FileChannel channel;
+    /** The mapping of the whole file. */
+    protected final MappedByteBuffer buffer;
+    /** How many records the ring holds. */
+    protected final int slots;
+    /** How many records have been written so far. */
+    protected long next;
+    /** Our own packed address, as of the last start. */
+    protected long self;
+    /** The difference between the wall clock and the times of the records,
+     * as of the last start. */
+    protected long offset;
+    /** Whether the engine has started since the trace was opened. */
+    protected boolean started;
+    /** The number of the last {@link Type#START} or {@link Type#CLOCK}
+     * record. */
+    protected long clocked;
+
+    /** Opens the trace in the given file, with the default number of slots. */
+    public TraceRecorder(File file) throws IOException {
+        this(file, DEFAULT_SLOTS);
+    }
+
+    /** Opens the trace in the given file, carrying on with the records in it
+     * if it's a trace with as many slots, or starting over if not.
+     * @param file Where the trace goes.
+     * @param slots How many records the ring holds. */
+    public TraceRecorder(File file, int slots) throws IOException {
+        if(slots <= 0)
+            throw new IllegalArgumentException("A trace has to hold at least one record");
+
+        this.slots = slots;
+        this.channel = FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * RECORD_SIZE);
+        this.buffer.order(ByteOrder.BIG_ENDIAN);
+
+        if(this.buffer.getInt(0) == MAGIC
+                && this.buffer.getInt(4) == VERSION
+                && this.buffer.getInt(8) == RECORD_SIZE
+                && this.buffer.getInt(12) == slots
+                && this.buffer.getLong(NEXT) >= 0)
+            this.next = this.buffer.getLong(NEXT);
+        else {
+            this.next = 0;
+            this.buffer.putLong(NEXT, 0);
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putInt(4, VERSION);
+            this.buffer.putInt(8, RECORD_SIZE);
+            this.buffer.putInt(12, slots);
+        }
+    }
+
+    /** Packs the given hardware address into a long. MAC addresses go in as
+     * they are, anything else goes in hashed, with the top bit set so that it
+     * can't be mistaken for one. Nothing at all is zero. */
+    public static long address(String address) {
+        if(address == null)
+            return 0;
+
+        if(address.length() == 17) {
+            long packed = 0;
+            boolean mac = true;
+            for(int i = 0; i < 6 && mac; ++i) {
+                int high = Character.digit(address.charAt(i * 3), 16);
+                int low = Character.digit(address.charAt(i * 3 + 1), 16);
+                mac = high >= 0 && low >= 0 && (i == 5 || address.charAt(i * 3 + 2) == ':');
+                packed = packed << 8 | high << 4 | low;
+            }
+            if(mac)
+                return packed;
+        }
+
+        /* FNV-1a, which is stable across runs, unlike String#hashCode. */
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < address.length(); ++i) {
+            hash ^= address.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash | Long.MIN_VALUE;
+    }
+
+    /** How many records have been written so far, including those the ring
+     * no longer holds. */
+    public synchronized long getCount() {
+        return this.next;
+    }
+
+    /** Writes down a record, and goes on to write down the clock, should it
+     * be about to no longer be in the ring. */
+    public synchronized void record(Type type, long time, long peer, long a, int b) {
+        if(type == Type.START || type == Type.CLOCK)
+            this.clocked = this.next;
+        this.write(type, time, peer, a, b);
+
+        if(this.started && this.next - this.clocked >= Math.max(1, this.slots / 2)) {
+            this.clocked = this.next;
+            this.write(Type.CLOCK, time, this.self, time + this.offset, 0);
+        }
+    }
+
+    protected void write(Type type, long time, long peer, long a, int b) {
+        int offset = HEADER_SIZE + (int) (this.next % this.slots) * RECORD_SIZE;
+        this.buffer.putLong(offset, time);
+        this.buffer.putLong(offset + 8, peer);
+        this.buffer.putLong(offset + 16, a);
+        this.buffer.putInt(offset + 24, b);
+        this.buffer.put(offset + 28, (byte) type.ordinal());
+
+        this.buffer.putLong(NEXT, ++this.next);
+    }
+
+    public synchronized void start(long time, long date, String self) {
+        this.self = address(self);
+        this.offset = date - time;
+        this.started = true;
+        this.record(Type.START, time, this.self, date, 0);
+    }
+
+    /** Records our own address, which the engine may only learn some time
+     * after it starts, as that's up to its transport. */
+    public synchronized void owner(long time, String self) {
+        this.self = address(self);
+        if(this.started)
+            this.record(Type.CLOCK, time, this.self, time + this.offset, 0);
+    }
+
+    public synchronized void search(long time, Collection<String> addresses) {
+        this.record(Type.SEARCH, time, 0, addresses.size(), 0);
+        for(String address : addresses)
+            this.record(Type.FOUND, time, address(address), 0, 0);
+    }
+
+    public void linking(long time, String address) {
+        this.record(Type.LINKING, time, address(address), 0, 0);
+    }
+
+    public void linked(long time, String address) {
+        this.record(Type.LINKED, time, address(address), 0, 0);
+    }
+
+    public void session(long time, String address, long bytes, int packets) {
+        this.record(Type.SESSION, time, address(address), bytes, packets);
+    }
+
+    public void failed(long time, String address) {
+        this.record(Type.FAILED, time, address(address), 0, 0);
+    }
+
+    public void queue(long time, long bytes, int peers) {
+        this.record(Type.QUEUE, time, 0, bytes, peers);
+    }
+
+    /** Gets the records down to disk, and lets go of the file. */
+    @Override
+    public synchronized void close() throws IOException {
+        this.buffer.force();
+        this.channel.close();
+    }
+}
@@ -0,0 +1,84 @@
+package net.xn__n6x.communication.watchdog;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+
+/** The medium the {@link WatchdogEngine} finds and reaches peers through.
+ *
+ * A transport only deals in links, which is whatever has to be set up before
+ * two devices can open a socket to one another. On Wifi P2P, that's a group.
+ * Once a link is up, a {@link Session} is opened over TCP to the side that
+ * owns the link, and accepted by the server that side is listening on, no
+ * matter which transport brought them together.
+ *
+ * The side owning a link may be able to bring more peers into it, in which
+ * case they all open their sessions to it, side by side. How many peers a
+ * link can take is up to the transport, see {@link #getLinkCapacity()}.
+ *
+ * Peers are known to the transport by their hardware address, which is the
+ * same address peers tell each other about in their {@link Frame.Type#HELLO}.
+ * Every method may be called from any thread, and every event is delivered
+ * to the {@link Listener} asynchronously. */
+public interface Transport extends Closeable {
+    /** Gets the address the session server should be bound to. */
+    InetSocketAddress getServerAddress();
+
+    /** Starts delivering events to the given listener.
+     * @param bound The address the session server was actually bound to.
+     * @param listener The listener all events should be delivered to. */
+    void start(InetSocketAddress bound, Listener listener);
+
+    /** Gets our own hardware address, if we know it yet. */
+    String getAddress();
+
+    /** Drops the current link, if any, and starts looking for peers. */
+    void search();
+
+    /** Brings up a link to the given peer. If we own the current link, the
+     * peer is brought into it, and whoever else is in it stays. Otherwise, the
+     * current link, if any, is dropped first.
+     * @param address The hardware address of the peer. */
+    void connect(String address);
+
+    /** Gets how many peers may share a link we own at once. */
+    int getLinkCapacity();
+
+    /** Stops delivering events and drops the current link. */
+    @Override
+    void close();
+
+    /** A link that has been brought up with a peer. */
+    final class Link {
+        /** Address of the session server of the side owning the link. */
+        public final InetSocketAddress owner;
+        /** Whether we are the side owning the link, in which case the peer
+         * will be the one opening the session. */
+        public final boolean isOwner;
+
+        public Link(InetSocketAddress owner, boolean isOwner) {
+            this.owner = owner;
+            this.isOwner = isOwner;
+        }
+    }
+
+    interface Listener {
+        /** Fired when a search has revealed the peers around us.
+         * @param addresses The hardware addresses of every peer in reach. */
+        void onPeersChanged(Collection<String> addresses);
+
+        /** Fired when a link has been brought up, be it because we asked for
+         * it or because a peer did. */
+        void onLinkUp(Link link);
+
+        /** Fired when the link we asked for could not be brought up. */
+        void onLinkFailed(String address, WatchdogException error);
+
+        /** Fired when the transport can no longer be used at all. */
+        void onTransportLost(WatchdogException error);
+
+        /** Fired when the transport learns our own hardware address, should
+         * it not have known it when it started, or when it changes. */
+        void onAddressKnown(String address);
+    }
+}
@@ -0,0 +1,1307 @@
+package net.xn__n6x.communication.watchdog;
+
+import android.util.Log;
+import net.xn__n6x.communication.Assertions;
+import net.xn__n6x.communication.control.Attachment;
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.control.Router;
+import net.xn__n6x.communication.identity.Id;
+import net.xn__n6x.communication.identity.Keys;
+import net.xn__n6x.communication.identity.Sealer;
+import net.xn__n6x.communication.metrics.Counter;
+import net.xn__n6x.communication.metrics.Histogram;
+import net.xn__n6x.communication.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/** The discovery and transmission state machine of the {@link Watchdog}, with
+ * none of the Android around it.
+ *
+ * At its core, the engine is a finite state machine driven by the links its
+ * {@link Transport} brings up. First, it discovers and profiles every device
+ * in its surroundings. Then, once that is done, it transmits all the messages
+ * it had queued for every device to them.
+ *
+ * Every link runs a single {@link Session}, which both identifies the peer
+ * and exchanges every packet either side has for the other. Who we link up
+ * with next, be it a device we have never talked to, or a peer we have
+ * packets for, is up to a {@link ContactScheduler}, which goes for whichever
+ * is worth the most for the time it takes. The states only tell which of
+ * the two we're going after at the moment.
+ *
+ * Given an {@link Advertiser}, though, most devices never have to be linked
+ * up with to be discovered. Every search starts by browsing the
+ * {@link ServiceRecord}s of the devices around us, which tell us who they are
+ * outright, and which peers they have packets for. Those that have packets
+ * for us are then linked up with while transmitting, just like those we have
+ * packets for. Devices we get no record from are still discovered the long
+ * way around.
+ *
+ * Given a {@link ContactCache}, the peers we've met survive restarts, too.
+ * Those the first search finds are reachable right away, and whatever we have
+ * for them goes out on the first link, rather than after a round of
+ * discovery has relearned who everyone is.
+ *
+ * Links we don't own can only have the one peer on them, so we go through
+ * those one at a time. Once we own a link, though, up to as many peers as
+ * the transport lets share it are brought in at once, and their sessions all
+ * run side by side, rather than one link having to be set up for each. Those
+ * sessions linger, and whatever we get for one of the peers on the link while
+ * they do, be it from another one of them or from the application, goes out
+ * to it right away, as if we were a switch.
+ *
+ * Messages are sealed by a {@link Sealer} as they are sent, and only opened
+ * once the application picks them up, so only their sender and their
+ * recipient ever get to read them. Relays only ever see them sealed.
+ *
+ * Every link we ask for, and every step of the sessions over it, is up
+ * against a {@link Deadline}. A peer that misses one, or whose session fails
+ * in any other way, is left alone for the rest of the cycle, and the state
+ * machine moves on to the next one. How often each deadline passes is kept
+ * track of, see {@link #getExpiredCount(Deadline)}. Everything else worth
+ * measuring, from how long sessions take to how deep the inbound queue gets,
+ * goes into {@link Metrics}, if it's been given any, see
+ * {@link #measure(Metrics)}. And every step it takes goes into an
+ * {@link EventLog}, see {@link #getLog()}, rather than straight to the
+ * Android log, so that it costs next to nothing unless someone looks.
+ *
+ * The state machine itself only ever advances from its event queue, the
+ * {@link Executor} it is given, one event at a time: peers changing, links
+ * coming up or failing, sessions finishing, and messages being sent all get
+ * queued up there, rather than handled by whoever brought them about. That
+ * way, neither the thread the transport runs on, nor the application, nor the
+ * {@link SessionLoop}, ever has to wait on the state machine, and the work
+ * that does take a while, like sealing, happens off of all of them. The queue
+ * should be a thread of its own, then, and not the main thread of an Android
+ * application.
+ *
+ * Every public method may be called from any thread. */
+public class WatchdogEngine implements Closeable {
+    /** By default, how many bytes of messages we hold for the application
+     * before we stop accepting more from our peers. (4MiB) */
+    public static final long DEFAULT_INBOUND_CAPACITY = 4 * 1024 * 1024;
+
+    /** The Id of this device. */
+    protected final Id id;
+    /** Seals the messages we send, and opens the ones we receive. */
+    protected final Sealer sealer;
+    /** The medium we reach our peers through. */
+    protected final Transport transport;
+    /** What we learn about our peers without linking up with them through,
+     * if anything. */
+    protected final Advertiser advertiser;
+    /** Where every event the state machine handles is queued up, to be
+     * handled one at a time and in order. */
+    protected final Executor events;
+    /** The router managing our known peers. */
+    protected final Router router;
+    /** Where the attachments we receive are kept. */
+    protected final File attachments;
+    /** Everything we know about our peers, and those we're yet to discover. */
+    protected final PeerTable peers;
+    /** Where what we know about our peers is kept across restarts, if
+     * anywhere. */
+    protected final ContactCache contacts;
+    /** Inbound packets, in the order they were received. */
+    protected final HashMap<Id, ArrayDeque<Packet>> inboundQueue;
+    /** How many payload bytes are waiting in the inbound queues. */
+    protected long inboundBytes;
+    /** How many payload bytes the inbound queues, along with the packets we
+     * relay, may hold. The credit we grant our peers is whatever room is left,
+     * so we only ever go over by the one packet each peer may overshoot its
+     * credit with. Relayed packets count until every peer they were queued up
+     * for has them, or they expire. */
+    protected long inboundCapacity;
+    /** How much credit our sessions have granted, and not yet settled. This
+     * keeps sessions running side by side from handing out the same room. */
+    protected long inboundReserved;
+    /** Peers one of our sessions is streaming packets to. */
+    protected final HashSet<Id> streams;
+    /** Peers that had no credit left for us in our last session with them.
+     * They aren't targeted again until a session with them shows they've
+     * made room, which they'll come tell us about themselves. */
+    protected final HashSet<Id> throttled;
+    /** Peers we had no credit left for in our last session with them. Once
+     * the application has made room, we go tell them. */
+    protected final HashSet<Id> starved;
+    /** Peers whose records say they may have packets for us, and that we
+     * haven't had a session with since. */
+    protected final HashSet<Id> waiting;
+    /** Listeners for new inbound messages. */
+    protected final HashMap<Id, ArrayList<OnMessage>> inboundListeners;
+    /** Listeners for onFinishedDiscovery events. */
+    protected final ArrayList<OnFinishedDiscovery> finishedDiscoveryListeners;
+    /** Listeners for onFailure events. */
+    protected final ArrayList<OnFailure> failureListeners;
+    /** Event loop running our sessions with peers, and the server they
+     * connect to, once we've started. */
+    protected SessionLoop sessions;
+    /** Current state of the engine. */
+    protected State state;
+    /** Picks who we link up with next. */
+    protected final ContactScheduler scheduler;
+    /** Whether a round of discovery is under way, the end of which those
+     * listening for discoveries have yet to hear about. */
+    protected boolean discovering;
+    /** How long a link we ask for may take to come up, in milliseconds. */
+    protected long linkTimeout;
+    /** The addresses of the peers we've asked for a link to, and whose
+     * sessions have yet to say hello, along with which attempt it was. */
+    protected final HashMap<String, Long> pending;
+    /** The addresses of the peers we've asked for a link to, and whose
+     * sessions are running. */
+    protected final HashSet<String> linked;
+    /** Whether we own the current link, and so can bring more peers into it. */
+    protected boolean owner;
+    /** How many links we've asked for so far, which tells stale link
+     * deadlines apart from the current one. */
+    protected long attempt;
+    /** How many times each deadline has passed. */
+    protected final EnumMap<Deadline, Long> expired;
+    /** Whether the transport has been lost for good. */
+    protected boolean lost;
+    /** Whether we've been closed, after which sessions failing as they get
+     * cut short are nothing to write home about. */
+    protected boolean closed;
+    /** Where to record what we run into, if anywhere. */
+    protected TraceRecorder trace;
+    /** Picks how long to wait between searches while we're docked. */
+    protected ScanScheduler scans;
+    /** Numbers the searches we schedule, so that only the last one goes. */
+    protected long scan;
+    /** When we last searched. */
+    protected long searched;
+    /** Whether we've yet to hear back from the last search. The transport
+     * tells us about peers whenever anything about them changes, many times
+     * a search, but only the first results after one say how it went. */
+    protected boolean awaitingSearch;
+    /** The steps we've taken lately. */
+    protected final EventLog log;
+    /** Where everything we measure goes. */
+    protected Metrics metrics;
+    /** Counts the bytes our peers have sent us. */
+    protected Counter bytesIn;
+    /** Counts the bytes we have sent our peers. */
+    protected Counter bytesOut;
+    /** Counts the sessions that failed. */
+    protected Counter failedSessions;
+    /** Counts the times we've stopped giving a peer chances for a while. */
+    protected Counter openedCircuits;
+    /** How long sessions take, by the state we were in when they ended. */
+    protected EnumMap<State, Histogram> sessionTimes;
+    /** How long the links we ask for take to come up, with a session
+     * running over them. */
+    protected Histogram linkTimes;
+
+    /** Because links are expensive to set up, and because we can only be in
+     * one at a time, we need a way to keep track of which kind of peer we are
+     * currently going after. Which one we go after next is up to the
+     * {@link ContactScheduler}, though, which weighs the devices we're yet to
+     * discover against the peers we have packets for, and switches between
+     * the two whenever one is worth more than the other. */
+    protected enum State {
+        /** We're discovering the devices we have near us, or the last link we
+         * asked for was to discover one of them. Once every device we know of
+         * has been discovered, everyone listening for discoveries hears about
+         * it. */
+        DISCOVERY,
+        /** We're transmitting data between ourselves and the devices we found
+         * in the discovery phase, or the last link we asked for was to
+         * transmit to one of them. */
+        TRANSMISSION,
+        /** We have finished either discovery or transmission with no target
+         * to connect to next. Since the state machine only progresses between
+         * connections, it will stay in this state until an external event
+         * restarts the discovery-transmission loop. This state exists in order
+         * to signal these external events that they need to restart the cycle
+         * manually, instead of just leaving their data to be processed by the
+         * discovery-transmission loop. */
+        DOCKED
+    }
+
+    /** Creates a new engine, which keeps the attachments it receives in the
+     * temporary directory of the system. Nothing happens until it is started.
+     * @param keys Our {@link Keys}, and with them, our {@link Id}.
+     * @param transport The medium to reach peers through.
+     * @param events Where the state machine should advance. */
+    public WatchdogEngine(Keys keys, Transport transport, Executor events) {
+        this(keys, transport, events, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /** Creates a new engine. Nothing happens until it is started.
+     * @param keys Our {@link Keys}, and with them, our {@link Id}.
+     * @param transport The medium to reach peers through.
+     * @param events Where the state machine should advance.
+     * @param attachments Where the attachments we receive should be kept. */
+    public WatchdogEngine(Keys keys, Transport transport, Executor events, File attachments) {
+        this(keys, transport, null, events, attachments);
+    }
+
+    /** Creates a new engine, which also finds out about its peers through
+     * the given {@link Advertiser}. Nothing happens until it is started.
+     * @param keys Our {@link Keys}, and with them, our {@link Id}.
+     * @param transport The medium to reach peers through.
+     * @param advertiser What to put our record out and find those of our
+     *                   peers through, if anything.
+     * @param events Where the state machine should advance.
+     * @param attachments Where the attachments we receive should be kept. */
+    public WatchdogEngine(Keys keys, Transport transport, Advertiser advertiser, Executor events, File attachments) {
+        this(keys, transport, advertiser, null, events, attachments);
+    }
+
+    /** Creates a new engine, which also remembers the peers it has met
+     * across restarts in the given {@link ContactCache}. Nothing happens
+     * until it is started.
+     * @param keys Our {@link Keys}, and with them, our {@link Id}.
+     * @param transport The medium to reach peers through.
+     * @param advertiser What to put our record out and find those of our
+     *                   peers through, if anything.
+     * @param contacts Where to keep the peers we've met, if anywhere.
+     * @param events Where the state machine should advance.
+     * @param attachments Where the attachments we receive should be kept. */
+    public WatchdogEngine(
+            Keys keys,
+            Transport transport,
+            Advertiser advertiser,
+            ContactCache contacts,
+            Executor events,
+            File attachments) {
+        this.id = keys.getId();
+        this.sealer = new Sealer(keys);
+        this.transport = transport;
+        this.advertiser = advertiser;
+        this.events = events;
+        this.router = new Router(this.id);
+        /* The files of the attachments we relayed are ours, and so it's on us
+         * to get rid of them once every peer has got them, or nobody will. */
+        this.router.onReleased(p -> {
+            if(!p.getSource().equals(this.id))
+                p.getAttachment().ifPresent(attachment -> attachment.getFile().delete());
+        });
+        this.attachments = attachments;
+        this.peers = new PeerTable();
+        this.contacts = contacts;
+        this.inboundQueue = new HashMap<>();
+        this.inboundBytes = 0;
+        this.inboundCapacity = DEFAULT_INBOUND_CAPACITY;
+        this.inboundReserved = 0;
+        this.streams = new HashSet<>();
+        this.throttled = new HashSet<>();
+        this.starved = new HashSet<>();
+        this.waiting = new HashSet<>();
+        this.inboundListeners = new HashMap<>();
+        this.finishedDiscoveryListeners = new ArrayList<>();
+        this.failureListeners = new ArrayList<>();
+        this.state = State.DOCKED;
+        this.scheduler = new ContactScheduler(this.router, this.peers);
+        this.discovering = false;
+        this.linkTimeout = Deadline.LINK.defaultTimeout;
+        this.pending = new HashMap<>();
+        this.linked = new HashSet<>();
+        this.owner = false;
+        this.attempt = 0;
+        this.expired = new EnumMap<>(Deadline.class);
+        for(Deadline deadline : Deadline.values())
+            this.expired.put(deadline, 0L);
+        this.lost = false;
+        this.closed = false;
+        this.trace = null;
+        this.scans = new ScanScheduler(new Random());
+        this.scan = 0;
+        this.searched = 0;
+        this.awaitingSearch = false;
+        this.log = new EventLog();
+        this.instrument(Metrics.NONE);
+    }
+
+    /** Starts the session server, and then starts searching for peers. The
+     * peers we knew before, if we keep them anywhere, are known right away,
+     * so the first search that finds them has them reachable, without having
+     * to discover them all over again.
+     * @return The address the session server was bound to. */
+    public synchronized InetSocketAddress start() throws IOException {
+        if(this.contacts != null) {
+            try {
+                int restored = this.contacts.load(this.peers, now(), System.currentTimeMillis());
+                this.log.log(EventLog.Event.RESTORED, null, restored);
+            } catch(IOException e) {
+                /* We'll just have to meet everyone again. */
+                Log.w("Watchdog", "Could not restore our contacts", e);
+            }
+        }
+
+        this.sessions = new SessionLoop(new SessionHandler());
+        InetSocketAddress bound = this.sessions.listen(this.transport.getServerAddress());
+        this.sessions.start();
+        this.log.log(EventLog.Event.BOUND, bound);
+
+        this.transport.start(bound, new TransportHandler());
+        if(this.advertiser != null)
+            this.advertiser.start(new AdvertiserHandler());
+
+        /* Start ourselves docked and drop any connections. */
+        this.state = State.DOCKED;
+        this.search();
+
+        return bound;
+    }
+
+    @Override
+    public void close() {
+        synchronized(this) {
+            this.closed = true;
+        }
+        this.transport.close();
+        if(this.advertiser != null)
+            this.advertiser.close();
+        if(this.sessions != null)
+            this.sessions.close();
+        this.saveContacts();
+    }
+
+    public Id getId() {
+        return this.id;
+    }
+
+    /** Starts recording the peers we find, the links we ask for and the
+     * sessions we have with them, and how much we have queued up, to the
+     * given trace, which is left for the caller to close. See
+     * {@link TraceReader} for what to do with it afterwards.
+     * @param trace Where to record it all, or null to stop recording. */
+    public synchronized void trace(TraceRecorder trace) {
+        this.trace = trace;
+        if(trace != null)
+            trace.start(now(), System.currentTimeMillis(), this.transport.getAddress());
+    }
+
+    /** Starts measuring how the engine, and its router, are doing, in the
+     * given registry. Measuring nothing, which is what it does until this
+     * gets called, costs next to nothing.
+     * @param metrics Where everything should go, or {@link Metrics#NONE}. */
+    public synchronized void measure(Metrics metrics) {
+        this.instrument(metrics);
+        this.router.measure(metrics);
+
+        /* The rest is only ever looked at under the engine lock. */
+        metrics.gauge("router.queued.bytes", () -> {
+            synchronized(this) {
+                return this.router.getQueuedBytes();
+            }
+        });
+        metrics.gauge("watchdog.inbound.bytes", () -> {
+            synchronized(this) {
+                return this.inboundBytes;
+            }
+        });
+        metrics.gauge("watchdog.inbound.packets", () -> {
+            synchronized(this) {
+                long packets = 0;
+                for(ArrayDeque<Packet> queue : this.inboundQueue.values())
+                    packets += queue.size();
+                return packets;
+            }
+        });
+        metrics.gauge("watchdog.circuits.open", () -> {
+            long now = now();
+            return this.peers.snapshot().stream()
+                .filter(peer -> peer.getCircuit(now) == PeerTable.Circuit.OPEN)
+                .count();
+        });
+        for(Deadline deadline : Deadline.values())
+            metrics.gauge(
+                "watchdog.expired." + deadline.name().toLowerCase(Locale.ROOT),
+                () -> this.getExpiredCount(deadline));
+    }
+
+    /** Grabs the instruments the engine measures itself with. */
+    protected void instrument(Metrics metrics) {
+        this.metrics = metrics;
+        this.bytesIn = metrics.counter("watchdog.bytes.in");
+        this.bytesOut = metrics.counter("watchdog.bytes.out");
+        this.failedSessions = metrics.counter("watchdog.sessions.failed");
+        this.openedCircuits = metrics.counter("watchdog.circuits.opened");
+        this.sessionTimes = new EnumMap<>(State.class);
+        for(State state : State.values())
+            this.sessionTimes.put(state, metrics.histogram("watchdog.session." + state.name().toLowerCase(Locale.ROOT)));
+        this.linkTimes = metrics.histogram("watchdog.link");
+    }
+
+    /** Gets the steps the engine has taken lately. */
+    public EventLog getLog() {
+        return this.log;
+    }
+
+    /** Gets the registry everything the engine measures goes into. */
+    public synchronized Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /** Records how much we have queued up, if we're recording anything. */
+    protected void traceQueue() {
+        if(this.trace != null)
+            this.trace.queue(
+                now(),
+                this.router.getQueuedBytes(),
+                this.router.getTargetedReachablePeers().size());
+    }
+
+    /** Takes a snapshot of everything we know about our peers. May be called
+     * from any thread, without holding anything up. */
+    public List<PeerTable.Peer> getPeers() {
+        return this.peers.snapshot();
+    }
+
+    /** What time it is, as far as the peer table is concerned. */
+    protected static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    protected synchronized void onPeersChanged(Collection<String> devices) {
+        /* Fresh results are a fresh chance for the peers we gave up on. */
+        HashSet<Id> reachable = this.peers.onSearched(devices, now());
+        boolean searched = this.awaitingSearch;
+        if(searched) {
+            this.awaitingSearch = false;
+            this.scans.onSearched(devices);
+        }
+        if(this.trace != null)
+            this.trace.search(now(), devices);
+        this.log.log(EventLog.Event.SEARCHED, null, null, devices.size(), this.peers.getDiscovery().size());
+
+        /* Trim all the devices we can't communicate to from the router. */
+        this.router.retain(reachable);
+
+        /* Re-register any devices we might've temporarily lost. */
+        reachable.forEach(this.router::register);
+
+        if(this.state == State.DOCKED && this.peers.hasDiscovery()) {
+            /* If we're docked, start connecting to them. */
+            this.state = State.DISCOVERY;
+            this.discovering = true;
+            this.advance();
+        } else {
+            /* Peers we already knew, be it from before we started, may have
+             * just come back into reach with packets waiting for them. */
+            this.undockIfTargeted();
+
+            /* Otherwise, look again once the results say it's worth it. */
+            if(this.state == State.DOCKED && searched)
+                this.scheduleSearch();
+        }
+    }
+
+    /** Learns who the device at the given address is from its record, as if
+     * we had discovered it over a session, and whether it has anything for
+     * us. */
+    protected synchronized void onRecordFound(String address, ServiceRecord record) {
+        if(!record.isCompatible()) {
+            this.log.log(EventLog.Event.RECORD_INCOMPATIBLE, address, record.version);
+            return;
+        }
+        try {
+            Keys.publicKey(record.id);
+        } catch(InvalidKeyException e) {
+            Log.w("Watchdog", "Ignoring the record of " + address + ", its Id is not a key", e);
+            return;
+        }
+
+        this.log.log(EventLog.Event.RECORD_FOUND, address, record.id);
+
+        boolean known = !this.peers.identify(address, record.id, now());
+        this.router.register(record.id);
+
+        if(record.mayHaveFor(this.id))
+            this.waiting.add(record.id);
+        else
+            this.waiting.remove(record.id);
+
+        if(this.state == State.DOCKED) {
+            /* Nobody's going to finish a discovery for this one. */
+            if(!known)
+                this.notifyDiscovery();
+            this.undockIfTargeted();
+        }
+    }
+
+    protected void onPacketReceived(Packet p) {
+        if(!p.getTarget().equals(this.id)) {
+            /* Forward packets we don't know on. */
+            this.log.log(EventLog.Event.FORWARDED, p.getSource(), p.getTarget(), p.getPayload().length, 0);
+            this.router.forward(p, Router.DEFAULT_TIME_TO_LIVE);
+            this.wakeLingering();
+        } else {
+            /* And keep the ones that we should receive. */
+            this.log.log(EventLog.Event.KEPT, p.getSource(), p.getPayload().length);
+            ArrayDeque<Packet> packets = this.inboundQueue.get(p.getSource());
+            if(packets == null) {
+                packets = new ArrayDeque<>(1);
+                this.inboundQueue.put(p.getSource(), packets);
+            }
+
+            packets.addLast(p);
+            this.inboundBytes += p.getPayload().length;
+
+            /* Notify the listeners. */
+            Optional.ofNullable(this.inboundListeners.get(p.getSource()))
+                .ifPresent(list -> list.forEach(val -> val.onMessage(p.getSource())));
+        }
+    }
+
+    protected synchronized void onLinkUp(Transport.Link link) {
+        this.owner = link.isOwner;
+        if(link.isOwner) {
+            /* Our server is always listening, the peer will come to us. And
+             * so may others, if we have them brought in. */
+            this.log.log(EventLog.Event.LINK_OWNED);
+            this.advance();
+        } else {
+            /* Connect to the owner. */
+            this.log.log(EventLog.Event.LINK_JOINED, link.owner);
+            this.sessions.connect(link.owner);
+        }
+    }
+
+    /** Asks the transport for a link to the given peer, and gives up on it
+     * if its session hasn't said hello by the time the link deadline passes.
+     * @param address The hardware address of the peer. */
+    protected void link(String address) {
+        long attempt = ++this.attempt;
+        this.pending.put(address, attempt);
+        this.peers.onLinking(address, now());
+        if(this.trace != null)
+            this.trace.linking(now(), address);
+        this.transport.connect(address);
+
+        this.sessions.schedule(
+            () -> this.events.execute(() -> this.onLinkDeadline(address, attempt)),
+            this.linkTimeout);
+    }
+
+    /** How many of the links we asked for are either coming up or running
+     * their sessions. */
+    protected int inFlight() {
+        return this.pending.size() + this.linked.size();
+    }
+
+    /** How many links we may have in flight at once. */
+    protected int slots() {
+        return this.owner ? Math.max(1, this.transport.getLinkCapacity()) : 1;
+    }
+
+    /** Whether our sessions should linger, which they should for as long as
+     * we own a link that more peers than the one can share. */
+    protected boolean isLingering() {
+        return this.owner && this.slots() > 1;
+    }
+
+    /** Has our lingering sessions, if any, pick up whatever was just put in
+     * the router for their peers. Those may be lingering because their peers
+     * are, too, and not only because we are. */
+    protected void wakeLingering() {
+        if(!this.streams.isEmpty())
+            this.sessions.wake();
+    }
+
+    /** Whether we've already asked for a link to the given peer. */
+    protected boolean isInFlight(String address) {
+        return this.pending.containsKey(address) || this.linked.contains(address);
+    }
+
+    /** Gives up on a link we asked for, if the transport says it's not coming. */
+    protected synchronized void onLinkFailed(String address, WatchdogException error) {
+        this.onFailure(error);
+        if(this.pending.remove(address) != null) {
+            this.giveUp(address);
+            this.advance();
+        }
+    }
+
+    /** Writes down who we are in the trace, now that we know. The transport
+     * might not have by the time we started recording it. */
+    protected synchronized void onAddressKnown(String address) {
+        if(this.trace != null)
+            this.trace.owner(now(), address);
+    }
+
+    /** Gives up on everything, as the transport is gone. */
+    protected synchronized void onTransportLost(WatchdogException error) {
+        this.lost = true;
+        this.onFailure(error);
+    }
+
+    /** Gives up on the given link, should it still not be up. */
+    protected synchronized void onLinkDeadline(String address, long attempt) {
+        Long current = this.pending.get(address);
+        if(current == null || current != attempt)
+            return;
+        this.pending.remove(address);
+
+        this.onFailure(new DeadlineException(
+            Deadline.LINK,
+            "Link to " + address + " took longer than " + this.linkTimeout + "ms"));
+        this.giveUp(address);
+        this.advance();
+    }
+
+    /** Leaves the peer at the given address alone for the rest of the
+     * cycle, or for longer, should it keep failing. */
+    protected void giveUp(String address) {
+        this.log.log(EventLog.Event.GAVE_UP, address);
+        long cooldown = this.peers.fail(address, now());
+        if(cooldown > 0) {
+            PeerTable.Peer peer = this.peers.get(address);
+            this.log.log(EventLog.Event.CIRCUIT_OPENED, address, null, cooldown, peer.strikes);
+            this.openedCircuits.increment();
+        }
+        if(this.trace != null)
+            this.trace.failed(now(), address);
+    }
+
+    /** How many times the given deadline has passed so far. */
+    public synchronized long getExpiredCount(Deadline deadline) {
+        return this.expired.get(deadline);
+    }
+
+    /** Whether the transport has been lost for good, in which case there is
+     * nothing left for the engine to do. */
+    public synchronized boolean isLost() {
+        return this.lost;
+    }
+
+    /** Tells everyone listening for failures about the given error. */
+    protected synchronized void onFailure(WatchdogException error) {
+        if(this.closed)
+            return;
+        if(error instanceof DeadlineException) {
+            Deadline deadline = ((DeadlineException) error).getDeadline();
+            this.expired.put(deadline, this.expired.get(deadline) + 1);
+        }
+
+        Log.e("Watchdog", "The Watchdog has failed", error);
+        for(OnFailure listener : this.failureListeners)
+            listener.onFailure(error);
+    }
+
+    /** Advances the state machine once a session with a peer is over. */
+    protected synchronized void onSessionFinished(Session session, WatchdogException error) {
+        String address = session == null ? null : session.getPeerAddress();
+        if(address != null)
+            this.linked.remove(address);
+        if(session != null) {
+            this.bytesIn.add(session.getBytesRead());
+            this.bytesOut.add(session.getBytesWritten());
+        }
+
+        if(error != null) {
+            /* Whatever it was, it's not going to get any better this cycle. */
+            this.failedSessions.increment();
+            this.onFailure(error);
+            if(address != null)
+                this.giveUp(address);
+            else if(!this.owner && this.pending.size() == 1) {
+                /* It never said hello, but there's only the one peer it could
+                 * have been. Otherwise, the link deadline sorts it out. */
+                String pending = this.pending.keySet().iterator().next();
+                this.pending.remove(pending);
+                this.giveUp(pending);
+            }
+        } else {
+            /* Whatever they had for us, we've got it now. */
+            this.waiting.remove(session.getPeer());
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - session.getOpened());
+            this.peers.onExchanged(session.getPeer(), session.getBytesExchanged(), duration);
+            this.sessionTimes.get(this.state).record(duration);
+            if(this.trace != null) {
+                this.trace.session(
+                    now(),
+                    session.getPeerAddress(),
+                    session.getBytesExchanged(),
+                    session.getSent() + session.getReceived());
+                this.traceQueue();
+            }
+
+            this.log.log(
+                EventLog.Event.SESSION_FINISHED,
+                session.getPeerAddress(),
+                null,
+                session.getSent(),
+                session.getReceived());
+
+            if(session.isThrottled()) {
+                this.log.log(EventLog.Event.THROTTLED, session.getPeerAddress());
+                this.throttled.add(session.getPeer());
+            } else if(session.getCredit() > 0)
+                this.throttled.remove(session.getPeer());
+        }
+
+        this.advance();
+    }
+
+    /** Moves on to whatever comes next, now that we're done with a peer, or
+     * that we've got room for more of them. */
+    protected void advance() {
+        while(!this.closed) {
+            if(this.state == State.DOCKED) {
+                /* A peer came to us while we were idle. The exchange may have
+                 * left us with packets to pass on, so see if we should get
+                 * back to work. */
+                this.undockIfTargeted();
+                return;
+            }
+
+            if(this.discovering && !this.peers.hasDiscovery() && !this.peers.isDiscovering()) {
+                /* We've finished discovering things. Fire all of the
+                 * discovery finished listeners, and carry on with whatever
+                 * else there is to do. */
+                this.log.log(EventLog.Event.DISCOVERY_FINISHED);
+                this.discovering = false;
+                this.notifyDiscovery();
+            }
+
+            if(this.inFlight() >= this.slots())
+                return;
+
+            ContactScheduler.Contact next = this.nextContact();
+            if(next != null) {
+                State state = next.isDiscovery() ? State.DISCOVERY : State.TRANSMISSION;
+                if(state != this.state) {
+                    this.log.log(EventLog.Event.STATE, this.state, state);
+                    this.state = state;
+                }
+                if(next.isDiscovery()) {
+                    this.peers.pollDiscovery();
+                    this.discovering = true;
+                }
+
+                this.log.log(EventLog.Event.LINKING, state, next);
+                this.link(next.address);
+                continue;
+            }
+
+            /* Wait for the rest of the links to be done with. */
+            if(this.inFlight() > 0)
+                return;
+
+            /* No more targets to link up with. */
+            this.log.log(EventLog.Event.STATE, this.state, State.DOCKED);
+            this.dock();
+            return;
+        }
+    }
+
+    /** Picks the contact worth the most out of the next device waiting to be
+     * discovered and the targets we haven't already asked for a link to, if
+     * there are any. */
+    protected ContactScheduler.Contact nextContact() {
+        ArrayList<ContactScheduler.Contact> contacts = new ArrayList<>();
+
+        String discovery = this.peers.peekDiscovery();
+        if(discovery != null)
+            contacts.add(this.scheduler.discovery(discovery));
+
+        for(Id target : this.getTargets()) {
+            String address = this.peers.getAddress(target);
+            if(address == null)
+                Assertions.fail("We are targeting a peer we don't know: %s", target);
+            if(!this.isInFlight(address))
+                contacts.add(this.scheduler.transmission(
+                    target,
+                    this.waiting.contains(target) || this.starved.contains(target)));
+        }
+
+        return this.scheduler.pick(contacts);
+    }
+
+    /** Tells everyone listening for discoveries about the peers we know, and
+     * keeps them for the next time we start, if we keep them anywhere. */
+    protected void notifyDiscovery() {
+        for(OnFinishedDiscovery listener : this.finishedDiscoveryListeners)
+            listener.onFinishedDiscovery(this.router.getReachablePeers());
+        this.saveContacts();
+    }
+
+    /** Keeps the peers we know for the next time we start, if we keep them
+     * anywhere. Works off of a snapshot of the table, so it may be called
+     * from any thread. */
+    protected void saveContacts() {
+        if(this.contacts == null)
+            return;
+        try {
+            this.contacts.save(this.peers, now(), System.currentTimeMillis());
+        } catch(IOException e) {
+            Log.w("Watchdog", "Could not save our contacts", e);
+        }
+    }
+
+    /** Docks ourselves, and starts searching again, which drops whatever
+     * link we had. */
+    protected void dock() {
+        this.state = State.DOCKED;
+        this.owner = false;
+        this.scheduleSearch();
+    }
+
+    /** Searches again once the {@link ScanScheduler} says it's time to, if
+     * we're still docked by then, and keeps on doing so for as long as we
+     * are. A search that's long overdue happens right away. */
+    protected void scheduleSearch() {
+        long scan = ++this.scan;
+        boolean pending = !this.router.getTargetedPeers().isEmpty();
+        long delay = Math.max(0, this.searched + this.scans.next(pending) - now());
+        this.log.log(EventLog.Event.SEARCH_SCHEDULED, null, null, delay, this.scans.getInterval());
+
+        this.sessions.schedule(
+            () -> this.events.execute(() -> this.onSearchDue(scan)),
+            delay);
+    }
+
+    /** Searches, if the given search is still the one we're waiting on.
+     * Should the results never come back, it's searched again regardless, on
+     * whatever the schedule was; if they do, they pick the next one. */
+    protected synchronized void onSearchDue(long scan) {
+        if(this.closed || scan != this.scan || this.state != State.DOCKED)
+            return;
+
+        this.search();
+        this.scheduleSearch();
+    }
+
+    /** Starts searching for peers, by their records first, if we have an
+     * advertiser, and with our own record brought up to date. Those that
+     * come in before the search is over spare us a link. */
+    protected void search() {
+        this.searched = now();
+        this.awaitingSearch = true;
+        if(this.advertiser != null) {
+            this.advertise();
+            this.advertiser.browse();
+        }
+        this.transport.search();
+    }
+
+    /** Brings our record up to date with the packets we have waiting, if we
+     * have an advertiser to put it out. */
+    protected void advertise() {
+        if(this.advertiser != null)
+            this.advertiser.advertise(ServiceRecord.of(this.id, this.router.getTargetedPeers()));
+    }
+
+    /** Gets the reachable peers we have packets for, and that have room for
+     * them, as far as we know. Along with the peers we've left waiting for
+     * room, and those that have packets for us, once we have a fair amount of
+     * it again. */
+    protected HashSet<Id> getTargets() {
+        HashSet<Id> targets = this.router.getTargetedReachablePeers();
+        targets.removeAll(this.throttled);
+        if(this.inboundBytes + this.router.getRelayedBytes() <= this.inboundCapacity / 2) {
+            HashSet<Id> starved = new HashSet<>(this.starved);
+            starved.addAll(this.waiting);
+            starved.retainAll(this.router.getReachablePeers());
+            targets.addAll(starved);
+        }
+        targets.removeIf(this.peers::isFailing);
+
+        return targets;
+    }
+
+    /** Restarts the discovery-transmission loop if we are docked and there
+     * are reachable peers we have packets for. */
+    protected void undockIfTargeted() {
+        if(this.state == State.DOCKED && this.getTargets().size() > 0) {
+            this.log.log(EventLog.Event.UNDOCKED);
+
+            this.state = State.TRANSMISSION;
+            this.advance();
+        }
+    }
+
+    /** Tries to pull in a message from the given peer, if any. The
+     * underlying functionality of this method should be that of a queue.
+     * No messages must be dropped, no matter how long a client takes
+     * to pick them up. Messages that can't be opened are the exception, as
+     * they have been forged or tampered with, and are dropped on sight.
+     * @param from The {@link Id} of the peer whose queue is to be queried.
+     * @return The data of the first message in the queue, if any. */
+    public Optional<byte[]> tryReceive(Id from) {
+        return this.tryReceivePacket(from).map(Packet::getPayload);
+    }
+
+    /** Tries to pull in a whole message from the given peer, if any, just
+     * like {@link #tryReceive(Id)}. Messages with attachments are best picked
+     * up this way, as the files they carry are then handed over to the caller,
+     * who should move or delete them once done.
+     * @param from The {@link Id} of the peer whose queue is to be queried.
+     * @return The first message in the queue, if any. */
+    public Optional<Packet> tryReceivePacket(Id from) {
+        while(true) {
+            Packet p;
+            synchronized(this) {
+                ArrayDeque<Packet> queue = this.inboundQueue.get(from);
+                if(queue == null || queue.isEmpty())
+                    return Optional.empty();
+
+                p = queue.pollFirst();
+                this.inboundBytes -= p.getPayload().length;
+
+                /* We may have just made room for someone we had turned away. */
+                if(!this.starved.isEmpty())
+                    this.events.execute(this::onRoomMade);
+            }
+
+            /* Opening is done without holding up the sessions. */
+            try {
+                byte[] payload = this.sealer.open(p.getSource(), p.getPayload());
+                return Optional.of(new Packet(
+                    p.getSource(),
+                    p.getRoute(),
+                    p.getTarget(),
+                    p.getPriority(),
+                    payload,
+                    p.getAttachment().orElse(null)));
+            } catch(GeneralSecurityException e) {
+                Log.w("Watchdog", "Dropping a message from " + from + " that could not be opened", e);
+                p.getAttachment().ifPresent(attachment -> attachment.getFile().delete());
+            }
+        }
+    }
+
+    /** Goes tell the peers we had turned away that we have room again, if
+     * we have enough of it. */
+    protected synchronized void onRoomMade() {
+        this.undockIfTargeted();
+    }
+
+    /** Grants a session with the given peer credit out of the room we have
+     * left, and sets it aside until the session settles it. Only half the
+     * room goes out at a time, so that a session running alongside never
+     * gets left with none and takes its peer for full, unless we really are.
+     * @param peer The peer the credit is for.
+     * @param previous The credit the session had been granted before, now
+     *                 either used up or given back.
+     * @return The new credit. */
+    protected synchronized long grant(Id peer, long previous) {
+        this.inboundReserved -= previous;
+
+        /* Relayed packets nobody came around for shouldn't hold up room. */
+        this.router.purge();
+        long held = this.inboundBytes + this.router.getRelayedBytes();
+        long room = Math.max(0, this.inboundCapacity - held - this.inboundReserved);
+        long credit = room - room / 2;
+        this.inboundReserved += credit;
+
+        if(credit == 0)
+            this.starved.add(peer);
+        else
+            this.starved.remove(peer);
+
+        return credit;
+    }
+
+    /** Package up and submit the given data to the network to be
+     * delivered to the specified device, in the given priority class. This
+     * only queues the message up, and returns right away.
+     * @param data The data to be delivered. Sealed for the recipient before
+     *             it leaves, so that nobody else can read or forge it.
+     * @param to The intended recipient of the message.
+     * @param priority The delivery class of the message.
+     * @return Completes once the message has been sealed and handed over to
+     * the router, in the order it was sent in.
+     * @throws IllegalArgumentException When the recipient has no keys behind
+     * its {@link Id}, and so can't be sent anything, or when the data is too
+     * long to fit in a frame once sealed.
+     */
+    public CompletableFuture<Void> send(byte[] data, Id to, Packet.Priority priority) {
+        checkRecipient(to);
+        checkLength(data);
+        return CompletableFuture.runAsync(() -> {
+            /* Wrap the message into a new packet. */
+            Packet p = new Packet(this.id, new Id[] { this.id }, to, priority, this.seal(data, to));
+
+            /* And send it to the router. */
+            synchronized(this) {
+                this.router.forward(p, Router.DEFAULT_TIME_TO_LIVE);
+                this.traceQueue();
+                this.wakeLingering();
+                this.advertise();
+                this.log.log(EventLog.Event.SENT, this.state, to, p.getPayload().length, 0);
+
+                this.undockIfTargeted();
+            }
+        }, this.events);
+    }
+
+    /** Package up and submit the given data and file to the network to be
+     * delivered to the specified device, in the given priority class. The
+     * file is never read into memory, and must stay where it is, unchanged,
+     * until it's been delivered. Only the data gets sealed, the file goes as
+     * it is, so it should be encrypted beforehand if it has to be.
+     * @param data The data to be delivered alongside the file.
+     * @param file The file to be delivered.
+     * @param to The intended recipient of the message.
+     * @param priority The delivery class of the message.
+     * @return Completes once the message has been sealed and handed over to
+     * the router, in the order it was sent in.
+     * @throws IllegalArgumentException When the recipient has no keys behind
+     * its {@link Id}, and so can't be sent anything, or when the data is too
+     * long to fit in a frame once sealed.
+     */
+    public CompletableFuture<Void> sendAttachment(byte[] data, File file, Id to, Packet.Priority priority) {
+        checkRecipient(to);
+        checkLength(data);
+        return CompletableFuture.runAsync(() -> {
+            Packet p = new Packet(this.id, new Id[] { this.id }, to, priority, this.seal(data, to), new Attachment(file));
+            synchronized(this) {
+                this.router.forward(p, Router.DEFAULT_TIME_TO_LIVE);
+                this.traceQueue();
+                this.wakeLingering();
+                this.advertise();
+                this.log.log(EventLog.Event.SENT, this.state, to, p.getPayload().length, 0);
+                this.undockIfTargeted();
+            }
+        }, this.events);
+    }
+
+    /** Makes sure the given recipient can be sent anything, which is cheap
+     * enough to be done by whoever is sending, unlike the sealing itself.
+     * @throws IllegalArgumentException When it can't. */
+    protected static void checkRecipient(Id to) {
+        try {
+            Keys.publicKey(to);
+        } catch(InvalidKeyException e) {
+            throw new IllegalArgumentException("Cannot seal messages for " + to, e);
+        }
+    }
+
+    /** Makes sure the given data still fits in a single frame once sealed,
+     * as a packet that doesn't would fail every session it's tried in.
+     * @throws IllegalArgumentException When it doesn't. */
+    protected static void checkLength(byte[] data) {
+        if(data.length > Frame.MAX_PAYLOAD - Sealer.OVERHEAD)
+            throw new IllegalArgumentException("Message of " + data.length
+                + " bytes is longer than the limit of " + (Frame.MAX_PAYLOAD - Sealer.OVERHEAD));
+    }
+
+    /** Seals the given data for the given recipient. */
+    protected byte[] seal(byte[] data, Id to) {
+        try {
+            return this.sealer.seal(to, data);
+        } catch(InvalidKeyException e) {
+            throw new IllegalArgumentException("Cannot seal messages for " + to, e);
+        }
+    }
+
+    /** Registers the given listener to listen for the event in which we
+     * have received any messages originating from the specified peer.
+     * @param subject The subject of the listening.
+     * @param listener The listener that should be fired.
+     */
+    public synchronized void listen(Id subject, OnMessage listener) {
+        ArrayList<OnMessage> listeners = this.inboundListeners.get(subject);
+        if(listeners == null) {
+            listeners = new ArrayList<>();
+            this.inboundListeners.put(subject, listeners);
+        }
+        listeners.add(listener);
+    }
+
+    /** Registers the given listener to listen for whenever the
+     * discovery phase has ended and we have a complete peer list.
+     * @param listener The listener that should be fired.
+     */
+    public synchronized void watchDiscovery(OnFinishedDiscovery listener) {
+        this.finishedDiscoveryListeners.add(listener);
+    }
+
+    /** Registers the given listener to listen for whenever the engine has
+     * run into an error.
+     * @param listener The listener that should be fired.
+     */
+    public synchronized void watchFailure(OnFailure listener) {
+        this.failureListeners.add(listener);
+    }
+
+    /** Bridges the events of our {@link Transport} to our state. */
+    protected class TransportHandler implements Transport.Listener {
+        @Override
+        public void onPeersChanged(Collection<String> addresses) {
+            WatchdogEngine.this.events.execute(() -> WatchdogEngine.this.onPeersChanged(addresses));
+        }
+
+        @Override
+        public void onLinkUp(Transport.Link link) {
+            WatchdogEngine.this.events.execute(() -> WatchdogEngine.this.onLinkUp(link));
+        }
+
+        @Override
+        public void onLinkFailed(String address, WatchdogException error) {
+            WatchdogEngine.this.events.execute(() -> WatchdogEngine.this.onLinkFailed(address, error));
+        }
+
+        @Override
+        public void onTransportLost(WatchdogException error) {
+            WatchdogEngine.this.events.execute(() -> WatchdogEngine.this.onTransportLost(error));
+        }
+
+        @Override
+        public void onAddressKnown(String address) {
+            WatchdogEngine.this.events.execute(() -> WatchdogEngine.this.onAddressKnown(address));
+        }
+    }
+
+    /** Bridges the events of our {@link Advertiser} to our state. */
+    protected class AdvertiserHandler implements Advertiser.Listener {
+        @Override
+        public void onRecordFound(String address, ServiceRecord record) {
+            WatchdogEngine.this.events.execute(() -> WatchdogEngine.this.onRecordFound(address, record));
+        }
+    }
+
+    /** Bridges the sessions run by the {@link SessionLoop} to our state. Its
+     * methods run on the loop thread, so they take the same lock as the
+     * methods running on the event queue. */
+    protected class SessionHandler implements Session.Delegate {
+        @Override
+        public Id getId() {
+            return WatchdogEngine.this.id;
+        }
+
+        @Override
+        public String getAddress() {
+            return WatchdogEngine.this.transport.getAddress();
+        }
+
+        @Override
+        public void onDiscovered(Id id, String address) {
+            synchronized(WatchdogEngine.this) {
+                WatchdogEngine.this.log.log(EventLog.Event.DISCOVERED, address, id);
+
+                long now = now();
+                WatchdogEngine.this.peers.identify(address, id, now);
+
+                /* The link we asked for is up, and then some. */
+                if(WatchdogEngine.this.pending.remove(address) != null) {
+                    WatchdogEngine.this.linked.add(address);
+                    long latency = WatchdogEngine.this.peers.onLinked(address, now);
+                    if(latency >= 0)
+                        WatchdogEngine.this.linkTimes.record(latency);
+                    if(WatchdogEngine.this.trace != null)
+                        WatchdogEngine.this.trace.linked(now, address);
+                }
+
+                WatchdogEngine.this.router.register(id);
+            }
+        }
+
+        @Override
+        public Frame.Summary summarize(Id peer) {
+            synchronized(WatchdogEngine.this) {
+                return new Frame.Summary(
+                    WatchdogEngine.this.router.getQueuedCount(peer),
+                    WatchdogEngine.this.router.getQueuedBytes(peer),
+                    WatchdogEngine.this.router.getLastAccepted(peer),
+                    WatchdogEngine.this.grant(peer, 0),
+                    WatchdogEngine.this.isLingering());
+            }
+        }
+
+        @Override
+        public long credit(Id peer, long previous) {
+            return WatchdogEngine.this.grant(peer, previous);
+        }
+
+        @Override
+        public boolean claim(Id peer) {
+            synchronized(WatchdogEngine.this) {
+                return WatchdogEngine.this.streams.add(peer);
+            }
+        }
+
+        @Override
+        public Optional<Router.Lease> nextOutbound(Id peer) {
+            synchronized(WatchdogEngine.this) {
+                return WatchdogEngine.this.router.lease(peer);
+            }
+        }
+
+        @Override
+        public void onAcknowledged(Id peer, long sequence) {
+            synchronized(WatchdogEngine.this) {
+                long relayed = WatchdogEngine.this.router.getRelayedBytes();
+                WatchdogEngine.this.router.acknowledge(peer, sequence);
+
+                /* Passing packets on may have just made room for someone we
+                 * had turned away. */
+                if(WatchdogEngine.this.router.getRelayedBytes() < relayed && !WatchdogEngine.this.starved.isEmpty())
+                    WatchdogEngine.this.events.execute(WatchdogEngine.this::onRoomMade);
+            }
+        }
+
+        @Override
+        public File newAttachmentFile() throws IOException {
+            return File.createTempFile("attachment", null, WatchdogEngine.this.attachments);
+        }
+
+        @Override
+        public void onPacketReceived(Id peer, long sequence, Packet p) {
+            synchronized(WatchdogEngine.this) {
+                if(WatchdogEngine.this.router.accept(peer, sequence)) {
+                    WatchdogEngine.this.onPacketReceived(p);
+                    return;
+                }
+            }
+
+            /* We already have this one, file and all. */
+            p.getAttachment().ifPresent(attachment -> attachment.getFile().delete());
+        }
+
+        @Override
+        public void onSessionClosed(Session session, WatchdogException error) {
+            if(session != null && session.getPeer() != null) synchronized(WatchdogEngine.this) {
+                if(session.isStreaming()) {
+                    /* Whatever the peer didn't acknowledge goes out again next time. */
+                    WatchdogEngine.this.router.release(session.getPeer());
+                    WatchdogEngine.this.streams.remove(session.getPeer());
+                }
+
+                /* And whatever room we set aside for it is free again. */
+                WatchdogEngine.this.inboundReserved -= session.getGranted();
+            }
+
+            WatchdogEngine.this.events.execute(() -> WatchdogEngine.this.onSessionFinished(session, error));
+        }
+    }
+
+    public interface OnMessage {
+        /** Fired when a new message is available to be received.
+         * @param source The {@link Id} of the peer that has become ready.
+         */
+        void onMessage(Id source);
+    }
+
+    public interface OnFinishedDiscovery {
+        /** Fired when the discovery phase has ended.
+         * @param reachable A set of {@link Id} of the peers that were
+         *                  reachable at the end of discovery.
+         */
+        void onFinishedDiscovery(HashSet<Id> reachable);
+    }
+
+    public interface OnFailure {
+        /** Fired when the engine has run into an error. Most of them only
+         * concern a single peer, which the engine leaves alone until the next
+         * search before carrying on with the others. The one it can't carry on
+         * from is losing the transport, see {@link #isLost()}.
+         * @param error What went wrong.
+         */
+        void onFailure(WatchdogException error);
+    }
+}
@@ -0,0 +1,110 @@
+package net.xn__n6x.communication.watchdog;
+
+import android.content.Context;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
+import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
+import android.util.Log;
+
+import java.util.Map;
+
+/** {@link Advertiser} over Wifi P2P service discovery.
+ *
+ * Our record goes out as the TXT entries of a DNS-SD service, which Wifi P2P
+ * answers queries for on its own, before and without any group being formed.
+ * Browsing queries every device in reach for that same service. */
+public class WifiDirectAdvertiser implements Advertiser {
+    /** Instance name of our service. */
+    public static final String INSTANCE = "watchdog";
+    /** DNS-SD type of our service. */
+    public static final String SERVICE_TYPE = "_watchdog._tcp";
+
+    /** The manager for our Wifi P2P state. */
+    protected final WifiP2pManager wifiManager;
+    /** The Wifi P2P channel we are operating in. */
+    protected final WifiP2pManager.Channel wifiChannel;
+    /** Where events go. */
+    protected Listener listener;
+    /** The record we've put out, if any. */
+    protected ServiceRecord record;
+
+    /** Gets a hold of the Wifi P2P interfaces of the device.
+     * @throws WatchdogException When the device has no Wifi P2P. */
+    public WifiDirectAdvertiser(Context context) throws WatchdogException {
+        this.wifiManager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
+        if(this.wifiManager == null)
+            throw new WatchdogException("Wifi P2P is not available");
+        this.wifiChannel = this.wifiManager.initialize(context, context.getMainLooper(), null);
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+
+        this.wifiManager.setDnsSdResponseListeners(this.wifiChannel, null, this::onTxtRecordAvailable);
+        this.wifiManager.addServiceRequest(
+            this.wifiChannel,
+            WifiP2pDnsSdServiceRequest.newInstance(INSTANCE, SERVICE_TYPE),
+            this.logHandler("add the service request"));
+    }
+
+    @Override
+    public synchronized void advertise(ServiceRecord record) {
+        /* Putting a service out again isn't free, skip it if nothing changed. */
+        if(record.equals(this.record))
+            return;
+        this.record = record;
+
+        WifiP2pDnsSdServiceInfo service = WifiP2pDnsSdServiceInfo.newInstance(INSTANCE, SERVICE_TYPE, record.toTxt());
+        this.wifiManager.clearLocalServices(
+            this.wifiChannel,
+            this.logHandler("clear our local services", () -> this.wifiManager.addLocalService(
+                this.wifiChannel,
+                service,
+                this.logHandler("advertise our service record"))));
+    }
+
+    @Override
+    public void browse() {
+        this.wifiManager.discoverServices(this.wifiChannel, this.logHandler("start service discovery"));
+    }
+
+    @Override
+    public void close() {
+        this.wifiManager.clearServiceRequests(this.wifiChannel, null);
+        this.wifiManager.clearLocalServices(this.wifiChannel, null);
+    }
+
+    protected void onTxtRecordAvailable(String domain, Map<String, String> txt, WifiP2pDevice device) {
+        if(!domain.startsWith(INSTANCE + "." + SERVICE_TYPE))
+            return;
+
+        try {
+            this.listener.onRecordFound(device.deviceAddress, ServiceRecord.fromTxt(txt));
+        } catch(WatchdogException e) {
+            Log.w("Watchdog", "Ignoring the service record of " + device.deviceAddress, e);
+        }
+    }
+
+    protected WifiP2pManager.ActionListener logHandler(String action) {
+        return this.logHandler(action, () -> {});
+    }
+
+    /** Carries on once the given action went through, and logs it if it
+     * didn't. Service discovery is only ever a shortcut, so failing at it is
+     * fine, the transport still gets us there. */
+    protected WifiP2pManager.ActionListener logHandler(String action, Runnable follow) {
+        return new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                follow.run();
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                Log.w("Watchdog", "Could not " + action + ", reason: " + reason);
+            }
+        };
+    }
+}
@@ -0,0 +1,432 @@
+package net.xn__n6x.communication.watchdog;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.p2p.*;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import net.xn__n6x.communication.Assertions;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Random;
+
+/** {@link Transport} over Android's Wifi P2P interfaces.
+ *
+ * Links are Wifi P2P groups. We can only be in one group at a time, so every
+ * search, and every connection we make while we're not the owner of the group
+ * we're in, starts by leaving it. The owner of a group can have a few clients
+ * at once, though, so when we own ours, connecting only invites the peer into
+ * it. The group owner is where sessions are opened to, on {@link #TCP_PORT}. */
+public class WifiDirectTransport implements Transport {
+    /** Port for the Watchdog TCP server. */
+    public static final short TCP_PORT = 20666;
+    /** How many clients we have in a group we own at once. Devices can take
+     * more than this, but not all of them can take many more, and every
+     * client shares the same channel. */
+    public static final int GROUP_CAPACITY = 4;
+    /** How long we wait, at first, before asking the Wifi P2P interface
+     * again after it's told us it's busy. (250 milliseconds) */
+    public static final long RETRY_INITIAL = 250;
+    /** How long we wait, at most, before asking it again. (4 seconds) */
+    public static final long RETRY_MAX = 4_000;
+    /** How many times in a row we ask it again before giving up. Along with
+     * the waits, that's under 12 seconds of retries, so a link we've given
+     * up on is given up on well before {@link Deadline#LINK} passes, and the
+     * engine never has us retrying one it has moved on from. */
+    public static final int RETRY_LIMIT = 6;
+
+    /** The context we are running in. */
+    protected final Context context;
+    /** The manager for our Wifi P2P state. */
+    protected final WifiP2pManager wifiManager;
+    /** The Wifi P2P channel we are operating in. */
+    protected final WifiP2pManager.Channel wifiChannel;
+    /** Where retries get posted to, on the main thread. */
+    protected final Handler handler;
+    /** Where the random part of the waits between retries comes from. */
+    protected final Random random;
+    /** The requests that are still going, by the address of the peer they're
+     * for, or {@code null} for the search. */
+    protected final HashMap<String, Request> requests;
+    /** The receiver of the Wifi P2P broadcasts, once we've started. */
+    protected BroadcastHandler receiver;
+    /** Where events go. */
+    protected Listener listener;
+    /** The MAC address of our host device. */
+    protected volatile String macAddress;
+
+    /** Gets a hold of the Wifi P2P interfaces of the device.
+     * @throws WatchdogException When the device has no Wifi P2P. */
+    public WifiDirectTransport(Context context) throws WatchdogException {
+        this.context = context;
+        this.wifiManager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
+        if(this.wifiManager == null)
+            throw new WatchdogException("Wifi P2P is not available");
+        this.wifiChannel = this.wifiManager.initialize(context, context.getMainLooper(), null);
+        this.handler = new Handler(context.getMainLooper());
+        this.random = new Random();
+        this.requests = new HashMap<>();
+    }
+
+    @Override
+    public InetSocketAddress getServerAddress() {
+        return new InetSocketAddress(TCP_PORT);
+    }
+
+    @Override
+    public void start(InetSocketAddress bound, Listener listener) {
+        this.listener = listener;
+
+        /* Register the broadcast handler. */
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION);
+        filter.addAction(WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION);
+        filter.addAction(WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION);
+        filter.addAction(WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION);
+
+        this.receiver = new BroadcastHandler();
+        this.context.registerReceiver(this.receiver, filter);
+    }
+
+    @Override
+    public String getAddress() {
+        return this.macAddress;
+    }
+
+    @Override
+    public void connect(String address) {
+        WifiP2pConfig config = new WifiP2pConfig();
+        config.deviceAddress = address;
+
+        this.dropCurrentConnectionThenConnectTo(config, this.begin(address));
+    }
+
+    @Override
+    public int getLinkCapacity() {
+        return GROUP_CAPACITY;
+    }
+
+    @Override
+    public void search() {
+        this.dropCurrentConnectionAndStartSearch(this.begin(null));
+    }
+
+    @Override
+    public void close() {
+        if(this.receiver != null) {
+            this.context.unregisterReceiver(this.receiver);
+            this.receiver = null;
+        }
+        synchronized(this.requests) {
+            for(Request request : this.requests.values())
+                request.cancel();
+            this.requests.clear();
+        }
+        this.wifiManager.removeGroup(this.wifiChannel, null);
+    }
+
+    protected void onPeersChanged(WifiP2pDeviceList list) {
+        Collection<WifiP2pDevice> devices = list.getDeviceList();
+        ArrayList<String> addresses = new ArrayList<>(devices.size());
+        for(WifiP2pDevice device : devices)
+            addresses.add(device.deviceAddress);
+
+        this.listener.onPeersChanged(addresses);
+    }
+
+    protected void onConnectionChanged(WifiP2pInfo info) {
+        if(info.groupOwnerAddress == null) {
+            Log.d("Watchdog", "Called onConnectionChanged() with null owner address, assuming disconnected.");
+            return;
+        }
+
+        this.listener.onLinkUp(new Link(
+            new InetSocketAddress(info.groupOwnerAddress, TCP_PORT),
+            info.isGroupOwner));
+    }
+
+    /** Starts a new request for the given peer, or a search. Whatever would
+     * get in its way goes: the last request for the same peer, along with the
+     * search, as it leaves groups, and as for a new search, every request,
+     * since it leaves the group they're for anyway. */
+    protected Request begin(String address) {
+        Request request = new Request(address);
+        synchronized(this.requests) {
+            if(address == null) {
+                for(Request previous : this.requests.values())
+                    previous.cancel();
+                this.requests.clear();
+            } else {
+                Request search = this.requests.remove(null);
+                if(search != null)
+                    search.cancel();
+            }
+
+            Request previous = this.requests.put(address, request);
+            if(previous != null)
+                previous.cancel();
+        }
+        return request;
+    }
+
+    protected void dropCurrentConnectionThenConnectTo(WifiP2pConfig connection, Request request) {
+        this.wifiManager.requestGroupInfo(
+            this.wifiChannel,
+            info -> {
+                if(request.cancelled)
+                    return;
+
+                /* We don't need to disconnect when we aren't connected, nor
+                 * when the group is ours to invite the peer into. */
+                if(info == null || info.isGroupOwner()) {
+                    /* Connect to the next handler. */
+                    WifiDirectTransport.this.wifiManager.connect(
+                        WifiDirectTransport.this.wifiChannel,
+                        connection,
+                        this.dropConnectionHandler(
+                            request,
+                            () -> Log.d("Watchdog", "Requested connection to " + connection.deviceAddress),
+                            () -> this.dropCurrentConnectionThenConnectTo(connection, request)
+                        ));
+
+                    return;
+                }
+
+                this.wifiManager.removeGroup(
+                    this.wifiChannel,
+                    this.dropConnectionHandler(
+                        request,
+                        () -> {
+                            /* Connect to the next handler. */
+                            WifiDirectTransport.this.wifiManager.connect(
+                                WifiDirectTransport.this.wifiChannel,
+                                connection,
+                                null);
+                            Log.d("Watchdog",
+                                "Dropped connection then requested connection to " + connection.deviceAddress);
+                        },
+                        () -> this.dropCurrentConnectionThenConnectTo(connection, request)
+                    ));
+            });
+    }
+
+    protected void dropCurrentConnectionAndStartSearch(Request request) {
+        this.wifiManager.requestGroupInfo(
+            this.wifiChannel,
+            info -> {
+                if(request.cancelled)
+                    return;
+
+                /* We don't need to disconnect when we aren't connected. */
+                if(info == null) {
+                    /* Fire another search, so that we don't run out of events. */
+                    WifiDirectTransport.this.wifiManager.discoverPeers(
+                        WifiDirectTransport.this.wifiChannel,
+                        this.dropConnectionHandler(
+                            request,
+                            () -> Log.d("Watchdog", "Started peer discovery"),
+                            () -> this.dropCurrentConnectionAndStartSearch(request)
+                        ));
+
+                    return;
+                }
+
+                this.wifiManager.removeGroup(
+                    this.wifiChannel,
+                    this.dropConnectionHandler(
+                        request,
+                        () -> {
+                            /* Fire another search, so that we don't run out of events. */
+                            WifiDirectTransport.this.wifiManager.discoverPeers(
+                                WifiDirectTransport.this.wifiChannel,
+                                null);
+                            Log.d("Watchdog", "Disconnected and started peer discovery");
+                        },
+                        () -> this.dropCurrentConnectionAndStartSearch(request)
+                    ));
+            });
+    }
+
+    /** Handles the outcome of a step of the given request to the Wifi P2P
+     * interface.
+     *
+     * Steps that fail, be it because the interface is busy or because of an
+     * error on its side, are retried, but never right away, since it won't
+     * have gotten any better by then, and the retries would only keep it busy
+     * for longer. They wait longer and longer, see {@link Backoff}, and after
+     * {@link #RETRY_LIMIT} of them, the request is given up on. */
+    protected WifiP2pManager.ActionListener dropConnectionHandler(Request request, Runnable follow, Runnable retry) {
+        return new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                if(request.cancelled)
+                    return;
+
+                follow.run();
+                request.finish();
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                if(request.cancelled)
+                    return;
+
+                switch(reason) {
+                    case WifiP2pManager.ERROR:
+                    case WifiP2pManager.BUSY:
+                        /* Either way, we should try again, in a while. */
+                        if(request.backoff.getFailures() >= RETRY_LIMIT) {
+                            request.finish();
+                            request.giveUp(reason);
+                            break;
+                        }
+
+                        long delay = request.backoff.next();
+                        Log.w("Watchdog", "Wifi P2P has returned " + reason(reason) + ", retrying in " + delay + "ms");
+                        request.retry(retry, delay);
+                        break;
+                    case WifiP2pManager.P2P_UNSUPPORTED:
+                        /* Wifi P2P is not supported. */
+                        Assertions.fail("Wifi P2P not supported. This should not be reachable.");
+                }
+            }
+        };
+    }
+
+    /** Puts the reason a request failed into words. */
+    protected static String reason(int reason) {
+        return reason == WifiP2pManager.BUSY ? "BUSY" : "ERROR";
+    }
+
+    /** A request to the Wifi P2P interface, either to connect to a peer or to
+     * search, and the retries of it, which go by their own {@link Backoff},
+     * so that other requests going on at the same time don't eat into it. */
+    protected class Request {
+        /** The address of the peer the request is for, or {@code null} if
+         * it's a search. */
+        protected final String address;
+        /** How long to wait before retrying, after the interface has failed. */
+        protected final Backoff backoff;
+        /** Whether a newer request took the place of this one. */
+        protected volatile boolean cancelled;
+
+        protected Request(String address) {
+            this.address = address;
+            this.backoff = new Backoff(RETRY_INITIAL, RETRY_MAX, WifiDirectTransport.this.random);
+            this.cancelled = false;
+        }
+
+        /** Runs the given retry after the given delay, unless the request is
+         * cancelled by then. */
+        protected void retry(Runnable retry, long delay) {
+            WifiDirectTransport.this.handler.postAtTime(
+                () -> {
+                    if(!this.cancelled)
+                        retry.run();
+                },
+                this,
+                SystemClock.uptimeMillis() + delay);
+        }
+
+        /** Drops whatever retries are still waiting to go. */
+        protected void cancel() {
+            this.cancelled = true;
+            WifiDirectTransport.this.handler.removeCallbacksAndMessages(this);
+        }
+
+        /** Lets go of the request, now that it's done with. */
+        protected void finish() {
+            synchronized(WifiDirectTransport.this.requests) {
+                if(WifiDirectTransport.this.requests.get(this.address) == this)
+                    WifiDirectTransport.this.requests.remove(this.address);
+            }
+        }
+
+        /** Gives up on the request. Failed connections are the engine's to
+         * know about. Failed searches aren't, as the engine searches again
+         * on its own schedule. */
+        protected void giveUp(int reason) {
+            String message = "Wifi P2P has returned " + reason(reason) + " through " + RETRY_LIMIT + " retries";
+            if(this.address == null)
+                Log.w("Watchdog", message + ", skipping this search");
+            else
+                WifiDirectTransport.this.listener.onLinkFailed(this.address, new WatchdogException(message));
+        }
+    }
+
+    protected class BroadcastHandler extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if(intent.getAction() == null) return;
+            switch(intent.getAction()) {
+                case WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION:
+                    /* The state of the Wifi P2P system has changed. */
+                    int state = intent.getIntExtra(
+                        WifiP2pManager.EXTRA_WIFI_STATE,
+                        WifiP2pManager.WIFI_P2P_STATE_DISABLED);
+
+                    switch(state) {
+                        case WifiP2pManager.WIFI_P2P_STATE_ENABLED:
+                            /* Indicate this somehow, I guess? Android is a
+                             * mess. */
+                            /*Log.d("Watchdog", "Wifi P2P is enabled");*/
+                            break;
+                        case WifiP2pManager.WIFI_P2P_STATE_DISABLED:
+                            /* There's no point in running when we can't even
+                             * talk to anyone anymore. */
+                            Log.e("Watchdog", "Wifi P2P has been disabled");
+                            WifiDirectTransport.this.listener.onTransportLost(
+                                new WatchdogException("Wifi P2P has been disabled"));
+                            break;
+                        default:
+                            /* Are there even valid values besides these two?
+                             * None that I'm aware of. Crashing here makes sure
+                             * I'll be able to quickly catch these during
+                             * testing. */
+                            Assertions.fail("Got unknown value for EXTRA_WIFI_STATE: 0x%08x", state);
+                    }
+                    break;
+                case WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION:
+                    /* Our peer list has been changed. */
+                    Log.d("Watchdog", "Our list of Wifi P2P peers has changed");
+                    WifiDirectTransport.this.wifiManager.requestPeers(
+                        WifiDirectTransport.this.wifiChannel,
+                        WifiDirectTransport.this::onPeersChanged);
+                    break;
+                case WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION:
+                    /* The state of the connection has changed. */
+                    WifiDirectTransport.this.wifiManager.requestConnectionInfo(
+                        WifiDirectTransport.this.wifiChannel,
+                        WifiDirectTransport.this::onConnectionChanged);
+                    break;
+                case WifiP2pManager.WIFI_P2P_THIS_DEVICE_CHANGED_ACTION:
+                    /* We can extract our own MAC address from this intent by
+                     * using the parcelable extra EXTRA_WIFI_P2P_DEVICE, which
+                     * will store a parcelable WifiP2pDevice structure,
+                     * containing the data we need. Apparently nowhere else in
+                     * the API is this functionality available.
+                     *
+                     * Android has a very well designed API what are you
+                     * talking about.
+                     */
+                    WifiP2pDevice device = intent.getParcelableExtra(WifiP2pManager.EXTRA_WIFI_P2P_DEVICE);
+                    if(device == null)
+                        Assertions.fail("The EXTRA_WIFI_P2P_DEVICE parcelable is null");
+                    if(device.deviceAddress.equals(WifiDirectTransport.this.macAddress))
+                        break;
+                    WifiDirectTransport.this.macAddress = device.deviceAddress;
+                    Log.d("Watchdog",
+                        "Android has graced us with our MAC address: " + WifiDirectTransport.this.macAddress);
+                    WifiDirectTransport.this.listener.onAddressKnown(device.deviceAddress);
+
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.xn__n6x.communication;
+
+import java.util.Locale;
+
+/** Tiny harness for the microbenchmarks in the test tree. Benchmarks are
+ * tagged with {@link Benchmark#TAG} and are skipped by default, run them
+ * with {@code ./gradlew testDebugUnitTest -Pbenchmarks}. */
+public final class Benchmark {
+    /** JUnit tag carried by every benchmark. */
+    public static final String TAG = "benchmark";
+
+    /** How many times a body runs before we start measuring it. */
+    protected static final int WARMUP_ROUNDS = 5;
+    /** How many measured runs a body gets. */
+    protected static final int MEASURED_ROUNDS = 10;
+
+    /* Keeps the JIT from throwing away the results of the benchmarked code. */
+    protected static volatile long sink;
+
+    private Benchmark() {
+    }
+
+    /** A piece of code to be measured. */
+    public interface Body {
+        /** Runs one round of the benchmark.
+         * @return Any value derived from the work done, so that it can't be
+         * optimized away.
+         * @throws Exception Whenever the benchmarked code does.
+         */
+        long run() throws Exception;
+    }
+
+    /** Runs the given body a number of times and reports the best round.
+     * @param name Name of the benchmark, for the report.
+     * @param operations Number of operations performed in a single round.
+     * @param body The code to be measured.
+     * @return The best time per operation, in nanoseconds.
+     * @throws Exception Whenever the benchmarked code does.
+     */
+    public static double measure(String name, long operations, Body body) throws Exception {
+        for(int i = 0; i < WARMUP_ROUNDS; ++i)
+            sink += body.run();
+
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < MEASURED_ROUNDS; ++i) {
+            long start = System.nanoTime();
+            sink += body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        double perOperation = (double) best / operations;
+        System.out.println(String.format(
+            Locale.ROOT,
+            "%-48s %12.1f ns/op %14.0f op/s",
+            name, perOperation, 1e9 / perOperation));
+
+        return perOperation;
+    }
+}
@@ -0,0 +1,95 @@
+package net.xn__n6x.communication.control;
+
+import net.xn__n6x.communication.Benchmark;
+import net.xn__n6x.communication.identity.Id;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/** Compares the priority and deadline aware {@link Router.PacketQueue} to the
+ * plain {@link ArrayDeque} it replaced. */
+@Tag(Benchmark.TAG)
+class PacketQueueBenchmark {
+    protected static final int[] SIZES = { 16, 256, 4096, 65536 };
+
+    /** Creates a set of distinct packets with a mix of priorities. */
+    protected static Packet[] packets(int count) {
+        Random random = new Random(count);
+        Id source = Id.random();
+        Id target = Id.random();
+        Packet.Priority[] priorities = Packet.Priority.values();
+
+        Packet[] packets = new Packet[count];
+        for(int i = 0; i < count; ++i) {
+            byte[] payload = new byte[] { (byte) i, (byte) (i >> 8), (byte) (i >> 16) };
+            packets[i] = new Packet(
+                source, new Id[] {}, target,
+                priorities[random.nextInt(priorities.length)],
+                payload);
+        }
+        return packets;
+    }
+
+    @Test
+    void enqueueThenDrain() throws Exception {
+        for(int size : SIZES) {
+            Packet[] packets = packets(size);
+            Random random = new Random(size);
+            long[] ttls = new long[size];
+            for(int i = 0; i < size; ++i)
+                ttls[i] = 1000 + random.nextInt((int) Router.DEFAULT_TIME_TO_LIVE);
+
+            Benchmark.measure("ArrayDeque enqueue+drain n=" + size, size, () -> {
+                Router.PacketQueue baseline = new Router.PacketQueue();
+                ArrayDeque<Router.QueuedPacket> queue = new ArrayDeque<>();
+                for(int i = 0; i < size; ++i) {
+                    if(!baseline.catalogue.contains(packets[i])) {
+                        queue.add(new Router.QueuedPacket(packets[i], ttls[i], 0, i));
+                        baseline.catalogue.add(packets[i]);
+                    }
+                }
+
+                long taken = 0;
+                while(queue.size() > 0) {
+                    Router.QueuedPacket packet = queue.pop();
+                    baseline.catalogue.remove(packet.packet);
+                    if(!packet.expired()) ++taken;
+                }
+                return taken;
+            });
+
+            Benchmark.measure("PacketQueue enqueue+drain n=" + size, size, () -> {
+                Router.PacketQueue queue = new Router.PacketQueue();
+                for(int i = 0; i < size; ++i)
+                    queue.enqueueIfNew(packets[i], ttls[i]);
+
+                long taken = 0;
+                while(queue.take().isPresent()) ++taken;
+                return taken;
+            });
+        }
+    }
+
+    @Test
+    void steadyState() throws Exception {
+        /* Keep the queue at a fixed depth, interleaving arrivals with departures. */
+        for(int size : SIZES) {
+            Packet[] packets = packets(size * 2);
+
+            Benchmark.measure("PacketQueue steady state depth=" + size, size, () -> {
+                Router.PacketQueue queue = new Router.PacketQueue();
+                for(int i = 0; i < size; ++i)
+                    queue.enqueueIfNew(packets[i], Router.DEFAULT_TIME_TO_LIVE);
+
+                long taken = 0;
+                for(int i = size; i < size * 2; ++i) {
+                    queue.enqueueIfNew(packets[i], Router.DEFAULT_TIME_TO_LIVE);
+                    if(queue.take().isPresent()) ++taken;
+                }
+                return taken;
+            });
+        }
+    }
+}
@@ -4,6 +4,7 @@ import net.xn__n6x.communication.identity.Id;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
@@ -30,24 +31,77 @@ class PacketTest {
         Id idA = Id.random();
         Id idB = Id.random();
 
+        byte normal = (byte) Packet.Priority.NORMAL.ordinal();
+
         /* Craft an invalid buffer that will fail in the first check. */
-        ByteBuffer failA = ByteBuffer.allocate(Id.ID_LENGTH * 2 + 4);
+        ByteBuffer failA = ByteBuffer.allocate(Id.ID_LENGTH * 2 + 1 + 4);
         idA.intoBuffer(failA);
         idB.intoBuffer(failA);
+        failA.put(normal);
         failA.putInt(-1);
         failA.position(0);
 
         /* Craft an invalid buffer that will fail in the second check. */
-        ByteBuffer failB = ByteBuffer.allocate(Id.ID_LENGTH * 2 + 8);
+        ByteBuffer failB = ByteBuffer.allocate(Id.ID_LENGTH * 2 + 1 + 8);
         idA.intoBuffer(failB);
         idB.intoBuffer(failB);
+        failB.put(normal);
         failB.putInt(0);
         failB.putInt(-1);
         failB.position(0);
 
-        /* Test both for failures. */
+        /* Craft an invalid buffer with a priority class that doesn't exist. */
+        ByteBuffer failC = ByteBuffer.allocate(Id.ID_LENGTH * 2 + 1);
+        idA.intoBuffer(failC);
+        idB.intoBuffer(failC);
+        failC.put((byte) 0x7f);
+        failC.position(0);
+
+        /* Craft invalid buffers whose route and payload lengths are longer
+         * than the buffers themselves. */
+        ByteBuffer failD = ByteBuffer.allocate(Id.ID_LENGTH * 2 + 1 + 4);
+        idA.intoBuffer(failD);
+        idB.intoBuffer(failD);
+        failD.put(normal);
+        failD.putInt(Integer.MAX_VALUE);
+        failD.position(0);
+
+        ByteBuffer failE = ByteBuffer.allocate(Id.ID_LENGTH * 2 + 1 + 8);
+        idA.intoBuffer(failE);
+        idB.intoBuffer(failE);
+        failE.put(normal);
+        failE.putInt(0);
+        failE.putInt(Integer.MAX_VALUE);
+        failE.position(0);
+
+        /* Test all of them for failures. */
         Assertions.assertThrows(IllegalArgumentException.class, () -> Packet.fromBuffer(failA));
         Assertions.assertThrows(IllegalArgumentException.class, () -> Packet.fromBuffer(failB));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Packet.fromBuffer(failC));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Packet.fromBuffer(failD));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Packet.fromBuffer(failE));
+    }
+
+    @Test
+    void priority() {
+        Id     source = Id.random();
+        Id     target = Id.random();
+        byte[] data   = new byte[] { 0x69 };
+
+        Packet p = new Packet(source, new Id[] {}, target, Packet.Priority.URGENT, data);
+        Packet q = new Packet(source, new Id[] {}, target, data);
+
+        /* Priority defaults to normal and tells packets apart. */
+        Assertions.assertEquals(Packet.Priority.NORMAL, q.getPriority());
+        Assertions.assertNotEquals(p, q);
+
+        /* It survives both serialization and tagging. */
+        ByteBuffer buffer = ByteBuffer.allocate(p.intoBufferLength());
+        p.intoBuffer(buffer);
+        buffer.position(0);
+
+        Assertions.assertEquals(Packet.Priority.URGENT, Packet.fromBuffer(buffer).getPriority());
+        Assertions.assertEquals(Packet.Priority.URGENT, p.tag(Id.random()).getPriority());
     }
 
 
@@ -86,4 +140,27 @@ class PacketTest {
 
         Assertions.assertEquals(q, p.tag(interm));
     }
-}
\ No newline at end of file
+
+    @Test
+    void attachment() {
+        Id     source = Id.random();
+        Id     target = Id.random();
+        byte[] data   = new byte[] { 0x69 };
+        Attachment attachment = new Attachment(new File("photo.jpg"), 1024);
+
+        Packet p = new Packet(source, new Id[] {}, target, data);
+        Packet q = p.attach(attachment);
+
+        /* Attachments tell packets apart, and stick to them when tagged. */
+        Assertions.assertFalse(p.getAttachment().isPresent());
+        Assertions.assertEquals(attachment, q.getAttachment().orElse(null));
+        Assertions.assertNotEquals(p, q);
+        Assertions.assertEquals(attachment, q.tag(Id.random()).getAttachment().orElse(null));
+
+        /* They aren't part of the buffer encoding. */
+        ByteBuffer buffer = ByteBuffer.allocate(q.intoBufferLength());
+        q.intoBuffer(buffer);
+        buffer.position(0);
+        Assertions.assertEquals(p, Packet.fromBuffer(buffer));
+    }
+}
@@ -1,9 +1,14 @@
 package net.xn__n6x.communication.control;
 
 import net.xn__n6x.communication.identity.Id;
+import net.xn__n6x.communication.metrics.Metrics;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -28,6 +33,189 @@ class RouterTest {
         Assertions.assertEquals(p, q);
     }
 
+    @Test
+    void getNextMessageForPeerByPriority() {
+        Id self = Id.random();
+        Router r = new Router(self);
+
+        Id other = Id.random();
+        r.register(other);
+
+        /* Queue up bulk traffic before an urgent packet. */
+        Packet bulk   = new Packet(self, new Id[] {}, other, Packet.Priority.BULK, new byte[] { 0 });
+        Packet normal = new Packet(self, new Id[] {}, other, Packet.Priority.NORMAL, new byte[] { 1 });
+        Packet urgent = new Packet(self, new Id[] {}, other, Packet.Priority.URGENT, new byte[] { 2 });
+        r.forward(bulk, Router.DEFAULT_TIME_TO_LIVE);
+        r.forward(normal, Router.DEFAULT_TIME_TO_LIVE);
+        r.forward(urgent, Router.DEFAULT_TIME_TO_LIVE);
+
+        /* The urgent packet must jump the line. */
+        Assertions.assertEquals(urgent, r.getNextMessageForPeer(other).orElse(null));
+        Assertions.assertEquals(normal, r.getNextMessageForPeer(other).orElse(null));
+        Assertions.assertEquals(bulk, r.getNextMessageForPeer(other).orElse(null));
+        Assertions.assertFalse(r.getNextMessageForPeer(other).isPresent());
+    }
+
+    @Test
+    void getNextMessageForPeerByDeadline() {
+        Id self = Id.random();
+        Router r = new Router(self);
+
+        Id other = Id.random();
+        r.register(other);
+
+        /* Within the same class, the packet closer to expiring goes first. */
+        Packet relaxed = new Packet(self, new Id[] {}, other, new byte[] { 0 });
+        Packet hurried = new Packet(self, new Id[] {}, other, new byte[] { 1 });
+        Packet tied    = new Packet(self, new Id[] {}, other, new byte[] { 2 });
+        r.forward(relaxed, Router.DEFAULT_TIME_TO_LIVE);
+        r.forward(hurried, Router.DEFAULT_TIME_TO_LIVE / 2);
+        r.forward(tied, Router.DEFAULT_TIME_TO_LIVE);
+
+        /* And packets with the same deadline keep their arrival order. */
+        Assertions.assertEquals(hurried, r.getNextMessageForPeer(other).orElse(null));
+        Assertions.assertEquals(relaxed, r.getNextMessageForPeer(other).orElse(null));
+        Assertions.assertEquals(tied, r.getNextMessageForPeer(other).orElse(null));
+    }
+
+    @Test
+    void getQueued() {
+        Id self = Id.random();
+        Router r = new Router(self);
+
+        Id other = Id.random();
+        r.register(other);
+        Assertions.assertEquals(0, r.getQueuedCount(other));
+        Assertions.assertEquals(0, r.getQueuedBytes(other));
+
+        r.forward(new Packet(self, new Id[] {}, other, new byte[10]), Router.DEFAULT_TIME_TO_LIVE);
+        r.forward(new Packet(self, new Id[] {}, other, new byte[5]), Router.DEFAULT_TIME_TO_LIVE);
+        Assertions.assertEquals(2, r.getQueuedCount(other));
+        Assertions.assertEquals(15, r.getQueuedBytes(other));
+
+        r.getNextMessageForPeer(other);
+        Assertions.assertEquals(1, r.getQueuedCount(other));
+    }
+
+    @Test
+    void leaseAndAcknowledge() {
+        Id self = Id.random();
+        Router r = new Router(self);
+
+        Id other = Id.random();
+        r.register(other);
+        for(int i = 0; i < 3; ++i)
+            r.forward(new Packet(self, new Id[] {}, other, new byte[] { (byte) i }), Router.DEFAULT_TIME_TO_LIVE);
+
+        /* Leased packets are numbered in order and stop counting as queued. */
+        Router.Lease a = r.lease(other).get();
+        Router.Lease b = r.lease(other).get();
+        Assertions.assertEquals(1, a.sequence);
+        Assertions.assertEquals(2, b.sequence);
+        Assertions.assertEquals(1, r.getQueuedCount(other));
+        Assertions.assertEquals(1, r.getQueuedBytes(other));
+
+        /* Acknowledging them drops them for good. */
+        r.acknowledge(other, 2);
+        r.release(other);
+        Assertions.assertEquals(1, r.getQueuedCount(other));
+        Assertions.assertEquals(3, r.lease(other).get().sequence);
+        Assertions.assertFalse(r.lease(other).isPresent());
+    }
+
+    @Test
+    void measured() {
+        Id self = Id.random();
+        long[] now = { 0 };
+        Router r = new Router(self, () -> now[0]);
+        Metrics metrics = new Metrics();
+        r.measure(metrics);
+
+        Id other = Id.random();
+        r.register(other);
+        Packet p = new Packet(self, new Id[] {}, other, new byte[] { 0 });
+        r.forward(p, Router.DEFAULT_TIME_TO_LIVE);
+        r.forward(p, Router.DEFAULT_TIME_TO_LIVE);
+        r.forward(new Packet(self, new Id[] {}, other, new byte[] { 1 }), 1000);
+
+        /* One waits for a while, the other doesn't make it. */
+        now[0] = 5000;
+        Router.Lease lease = r.lease(other).get();
+        r.acknowledge(other, lease.sequence);
+        Assertions.assertFalse(r.lease(other).isPresent());
+
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        Assertions.assertEquals(2, snapshot.get("router.forwarded"));
+        Assertions.assertEquals(1, snapshot.get("router.taken"));
+        Assertions.assertEquals(1, snapshot.get("router.acknowledged"));
+        Assertions.assertEquals(1, snapshot.get("router.expired"));
+        Assertions.assertEquals(5000, snapshot.getHistogram("router.waited").max);
+    }
+
+    @Test
+    void release() {
+        Id self = Id.random();
+        Router r = new Router(self);
+
+        Id other = Id.random();
+        r.register(other);
+        for(int i = 0; i < 3; ++i)
+            r.forward(new Packet(self, new Id[] {}, other, new byte[] { (byte) i }), Router.DEFAULT_TIME_TO_LIVE);
+
+        Router.Lease a = r.lease(other).get();
+        Router.Lease b = r.lease(other).get();
+        r.acknowledge(other, 1);
+
+        /* The session died before the second packet got acknowledged, so it
+         * has to go out again first, under the same sequence number. */
+        r.release(other);
+        Assertions.assertEquals(2, r.getQueuedCount(other));
+        Assertions.assertEquals(2, r.getQueuedBytes(other));
+
+        Router.Lease again = r.lease(other).get();
+        Assertions.assertEquals(b.sequence, again.sequence);
+        Assertions.assertEquals(b.packet, again.packet);
+        Assertions.assertEquals(3, r.lease(other).get().sequence);
+    }
+
+    @Test
+    void resume() {
+        Id self = Id.random();
+        Id other = Id.random();
+
+        /* We restarted, but the peer remembers what we sent it before, and
+         * tells us where to pick up from, before we have anything for it. */
+        Router r = new Router(self);
+        r.register(other);
+        Assertions.assertTrue(r.acknowledge(other, 41).isEmpty());
+        Assertions.assertEquals(0, r.getQueuedCount(other));
+        Assertions.assertTrue(r.getTargetedPeers().isEmpty());
+
+        r.forward(new Packet(self, new Id[] {}, other, new byte[] { 1 }), Router.DEFAULT_TIME_TO_LIVE);
+        Assertions.assertEquals(42, r.lease(other).get().sequence);
+
+        /* Nor does an older acknowledgement take the numbers back. */
+        r.acknowledge(other, 10);
+        r.forward(new Packet(self, new Id[] {}, other, new byte[] { 2 }), Router.DEFAULT_TIME_TO_LIVE);
+        Assertions.assertEquals(43, r.lease(other).get().sequence);
+    }
+
+    @Test
+    void accept() {
+        Id self = Id.random();
+        Router r = new Router(self);
+
+        Id other = Id.random();
+        Assertions.assertEquals(0, r.getLastAccepted(other));
+        Assertions.assertTrue(r.accept(other, 1));
+        Assertions.assertTrue(r.accept(other, 2));
+
+        /* Packets we've already been sent are turned away. */
+        Assertions.assertFalse(r.accept(other, 2));
+        Assertions.assertFalse(r.accept(other, 1));
+        Assertions.assertEquals(2, r.getLastAccepted(other));
+    }
+
     @Test
     void getTargetedReachablePeersDirect() {
         Id self = Id.random();
@@ -132,4 +320,72 @@ class RouterTest {
 
         Assertions.assertEquals(reachable, r.getReachablePeers());
     }
-}
\ No newline at end of file
+
+    @Test
+    void released() {
+        Id self = Id.random();
+        long[] now = { 0 };
+        Router r = new Router(self, () -> now[0]);
+        ArrayList<Packet> released = new ArrayList<>();
+        r.onReleased(released::add);
+
+        Id source = Id.random();
+        Id otherA = Id.random();
+        Id otherB = Id.random();
+        r.register(otherA);
+        r.register(otherB);
+
+        /* Relayed to both, out of the same file. */
+        Packet p = new Packet(source, new Id[] { source }, Id.random(), Packet.Priority.NORMAL,
+            new byte[] { 0 }, new Attachment(new File("photo"), 0));
+        r.forward(p, 1000);
+
+        /* One having it isn't enough to let go of it. */
+        r.acknowledge(otherA, r.lease(otherA).get().sequence);
+        Assertions.assertTrue(released.isEmpty());
+
+        /* But the other never getting it in time is. */
+        r.lease(otherB);
+        r.release(otherB);
+        now[0] = 5000;
+        Assertions.assertFalse(r.lease(otherB).isPresent());
+        Assertions.assertEquals(Collections.singletonList(p), released);
+
+        /* Nor is it held on to when there's nobody to pass it on to. */
+        r.retain(Collections.emptyList());
+        Packet q = new Packet(source, new Id[] { source }, Id.random(), Packet.Priority.NORMAL,
+            new byte[] { 1 }, new Attachment(new File("other"), 0));
+        r.forward(q, 1000);
+        Assertions.assertEquals(Arrays.asList(p, q), released);
+    }
+
+    @Test
+    void relayedBytes() {
+        Id self = Id.random();
+        long[] now = { 0 };
+        Router r = new Router(self, () -> now[0]);
+
+        Id source = Id.random();
+        Id otherA = Id.random();
+        Id otherB = Id.random();
+        r.register(otherA);
+        r.register(otherB);
+
+        /* What we send ourselves doesn't count, what we relay counts once. */
+        r.forward(new Packet(self, new Id[] { self }, otherA, new byte[10]), 1000);
+        r.forward(new Packet(source, new Id[] { source }, Id.random(), new byte[100]), 1000);
+        Assertions.assertEquals(100, r.getRelayedBytes());
+        Assertions.assertEquals(210, r.getQueuedBytes());
+
+        /* Until both peers have it. */
+        r.acknowledge(otherA, r.lease(otherA).get().sequence);
+        r.acknowledge(otherA, r.lease(otherA).get().sequence);
+        Assertions.assertEquals(100, r.getRelayedBytes());
+
+        /* Or it expires waiting on a peer that never comes back. */
+        now[0] = 5000;
+        r.purge();
+        Assertions.assertEquals(0, r.getRelayedBytes());
+        Assertions.assertEquals(0, r.getQueuedBytes());
+    }
+}
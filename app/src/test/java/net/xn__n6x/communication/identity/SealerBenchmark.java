@@ -0,0 +1,56 @@
+package net.xn__n6x.communication.identity;
+
+import net.xn__n6x.communication.Benchmark;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Measures how fast the {@link Sealer} gets through payloads of all sizes,
+ * compared to doing the key agreement for every one of them. */
+@Tag(Benchmark.TAG)
+class SealerBenchmark {
+    protected static final int[] SIZES = { 64, 1024, 65536 };
+
+    @Test
+    void sealAndOpen() throws Exception {
+        Keys alice = Keys.generate();
+        Keys bob = Keys.generate();
+        Sealer a = new Sealer(alice);
+        Sealer b = new Sealer(bob);
+
+        for(int size : SIZES) {
+            byte[] payload = new byte[size];
+            int count = Math.max(64, (4 * 1024 * 1024) / size);
+
+            Benchmark.measure("seal " + size + "B", count, () -> {
+                long sum = 0;
+                for(int i = 0; i < count; ++i)
+                    sum += a.seal(bob.getId(), payload).length;
+                return sum;
+            });
+
+            byte[] sealed = a.seal(bob.getId(), payload);
+            Benchmark.measure("open " + size + "B", count, () -> {
+                long sum = 0;
+                for(int i = 0; i < count; ++i)
+                    sum += b.open(alice.getId(), sealed).length;
+                return sum;
+            });
+        }
+    }
+
+    @Test
+    void agreementPerMessage() throws Exception {
+        /* What every message would cost if keys weren't cached. */
+        Keys alice = Keys.generate();
+        Keys bob = Keys.generate();
+        byte[] payload = new byte[64];
+
+        int count = 200;
+        Benchmark.measure("seal 64B, new sealer every time", count, () -> {
+            long sum = 0;
+            for(int i = 0; i < count; ++i)
+                sum += new Sealer(alice).seal(bob.getId(), payload).length;
+            return sum;
+        });
+    }
+}
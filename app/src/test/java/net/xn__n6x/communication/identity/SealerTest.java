@@ -0,0 +1,121 @@
+package net.xn__n6x.communication.identity;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+class SealerTest {
+    @Test
+    public void keys() throws GeneralSecurityException {
+        Keys keys = Keys.generate();
+        Assertions.assertNotNull(Keys.publicKey(keys.getId()));
+
+        /* They survive being stored away. */
+        Keys loaded = Keys.fromEncoded(keys.getId(), keys.encodePrivateKey());
+        Sealer a = new Sealer(keys);
+        Sealer b = new Sealer(loaded);
+        byte[] sealed = a.seal(keys.getId(), new byte[] { 1, 2, 3 });
+        Assertions.assertArrayEquals(new byte[] { 1, 2, 3 }, b.open(keys.getId(), sealed));
+
+        /* Made up Ids are not public keys. */
+        Assertions.assertThrows(InvalidKeyException.class, () -> Keys.publicKey(Id.random()));
+    }
+
+    @Test
+    public void roundTrip() throws GeneralSecurityException {
+        Keys alice = Keys.generate();
+        Keys bob = Keys.generate();
+        Sealer a = new Sealer(alice);
+        Sealer b = new Sealer(bob);
+
+        for(int size : new int[] { 0, 1, 100, 100000 }) {
+            byte[] payload = new byte[size];
+            Arrays.fill(payload, (byte) size);
+
+            byte[] sealed = a.seal(bob.getId(), payload);
+            Assertions.assertEquals(size + Sealer.OVERHEAD, sealed.length);
+            Assertions.assertArrayEquals(payload, b.open(alice.getId(), sealed));
+
+            /* And the other way around, counting from zero as well. */
+            sealed = b.seal(alice.getId(), payload);
+            Assertions.assertArrayEquals(payload, a.open(bob.getId(), sealed));
+        }
+    }
+
+    @Test
+    public void nonces() throws GeneralSecurityException {
+        Keys alice = Keys.generate();
+        Keys bob = Keys.generate();
+        byte[] payload = "same old".getBytes(StandardCharsets.UTF_8);
+
+        /* Neither the same sealer twice, nor a new one after a restart, ever
+         * seal the same thing the same way. */
+        byte[] first = new Sealer(alice).seal(bob.getId(), payload);
+        byte[] again = new Sealer(alice).seal(bob.getId(), payload);
+        Sealer sealer = new Sealer(alice);
+        byte[] second = sealer.seal(bob.getId(), payload);
+        byte[] third = sealer.seal(bob.getId(), payload);
+
+        Assertions.assertFalse(Arrays.equals(first, again));
+        Assertions.assertFalse(Arrays.equals(second, third));
+    }
+
+    @Test
+    public void rotation() throws GeneralSecurityException {
+        Keys alice = Keys.generate();
+        Keys bob = Keys.generate();
+        Sealer a = new Sealer(alice);
+        Sealer b = new Sealer(bob);
+        a.rotateAfter = 2;
+
+        byte[][] sealed = new byte[5][];
+        for(int i = 0; i < sealed.length; ++i)
+            sealed[i] = a.seal(bob.getId(), new byte[] { (byte) i });
+
+        /* Every other payload comes with a new salt. */
+        for(int i = 0; i < sealed.length; ++i) {
+            byte[] salt = Arrays.copyOf(sealed[i], Sealer.SALT_LENGTH);
+            byte[] previous = Arrays.copyOf(sealed[i == 0 ? 0 : i - 1], Sealer.SALT_LENGTH);
+            Assertions.assertEquals(i % 2 == 0 && i > 0, !Arrays.equals(salt, previous));
+        }
+
+        /* And all of them still open, out of order as they may be. */
+        for(int i = sealed.length - 1; i >= 0; --i)
+            Assertions.assertArrayEquals(new byte[] { (byte) i }, b.open(alice.getId(), sealed[i]));
+    }
+
+    @Test
+    public void forgery() throws GeneralSecurityException {
+        Keys alice = Keys.generate();
+        Keys bob = Keys.generate();
+        Keys eve = Keys.generate();
+        Sealer a = new Sealer(alice);
+        Sealer b = new Sealer(bob);
+        Sealer e = new Sealer(eve);
+
+        byte[] sealed = a.seal(bob.getId(), "hi bob".getBytes(StandardCharsets.UTF_8));
+
+        /* Eve can't read it. */
+        Assertions.assertThrows(GeneralSecurityException.class, () -> e.open(alice.getId(), sealed));
+
+        /* Nor can she mess with it. */
+        for(int i : new int[] { 0, Sealer.SALT_LENGTH, Sealer.SALT_LENGTH + 8, sealed.length - 1 }) {
+            byte[] tampered = sealed.clone();
+            tampered[i] ^= 1;
+            Assertions.assertThrows(GeneralSecurityException.class, () -> b.open(alice.getId(), tampered));
+        }
+        Assertions.assertThrows(GeneralSecurityException.class,
+            () -> b.open(alice.getId(), Arrays.copyOf(sealed, Sealer.OVERHEAD - 1)));
+
+        /* Nor pass her own words off as Alice's. */
+        byte[] forged = e.seal(bob.getId(), "hi bob, it's alice".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertThrows(GeneralSecurityException.class, () -> b.open(alice.getId(), forged));
+
+        /* While Bob can still read the real thing. */
+        Assertions.assertEquals("hi bob", new String(b.open(alice.getId(), sealed), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,97 @@
+package net.xn__n6x.communication.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class MetricsTest {
+    @Test
+    void registry() {
+        Metrics metrics = new Metrics();
+        Counter counter = metrics.counter("a.counter");
+        Assertions.assertSame(counter, metrics.counter("a.counter"));
+        counter.increment();
+        counter.add(41);
+
+        AtomicLong gauge = new AtomicLong(7);
+        metrics.gauge("a.gauge", gauge::get);
+        metrics.histogram("a.histogram").record(3);
+
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        Assertions.assertEquals(42, snapshot.get("a.counter"));
+        Assertions.assertEquals(7, snapshot.get("a.gauge"));
+        Assertions.assertEquals(0, snapshot.get("missing"));
+        Assertions.assertEquals(1, snapshot.getHistogram("a.histogram").count);
+        Assertions.assertEquals(
+            "a.counter 42\n"
+                + "a.gauge 7\n"
+                + "a.histogram count=1 mean=3.0 p50=3 p90=3 p99=3 max=3\n",
+            snapshot.toString());
+
+        /* Gauges are asked every time. */
+        gauge.set(8);
+        Assertions.assertEquals(8, metrics.snapshot().get("a.gauge"));
+    }
+
+    @Test
+    void disabled() {
+        Metrics metrics = Metrics.NONE;
+        Assertions.assertFalse(metrics.isEnabled());
+        Assertions.assertSame(Counter.NONE, metrics.counter("a.counter"));
+        Assertions.assertSame(Histogram.NONE, metrics.histogram("a.histogram"));
+
+        metrics.counter("a.counter").increment();
+        metrics.histogram("a.histogram").record(10);
+        metrics.gauge("a.gauge", () -> 1);
+        Assertions.assertEquals(0, Counter.NONE.get());
+        Assertions.assertEquals(0, Histogram.NONE.snapshot().count);
+        Assertions.assertEquals("", metrics.snapshot().toString());
+    }
+
+    @Test
+    void histogram() {
+        Histogram histogram = new Histogram();
+        Histogram.Snapshot empty = histogram.snapshot();
+        Assertions.assertEquals(0, empty.getPercentile(50));
+        Assertions.assertEquals(0, empty.getMean(), 0);
+
+        for(long i = 1; i <= 1000; ++i)
+            histogram.record(i);
+        histogram.record(-5);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assertions.assertEquals(1001, snapshot.count);
+        Assertions.assertEquals(1000, snapshot.max);
+        Assertions.assertEquals(500500 / 1001.0, snapshot.getMean(), 1e-9);
+        Assertions.assertEquals(0, snapshot.getPercentile(0));
+        Assertions.assertEquals(1000, snapshot.getPercentile(100));
+
+        /* Percentiles are off by no more than the width of their bucket. */
+        for(int percentile : new int[] { 10, 50, 90, 99 }) {
+            long exact = Math.round(percentile / 100.0 * 1001) - 1;
+            long estimate = snapshot.getPercentile(percentile);
+            Assertions.assertTrue(estimate >= exact, percentile + ": " + estimate + " < " + exact);
+            Assertions.assertTrue(estimate <= exact + exact / Histogram.SUB_BUCKETS + 1, percentile + ": " + estimate + " > " + exact);
+        }
+
+        /* Small values are exact, and so is everything at the far end. */
+        Histogram small = new Histogram();
+        small.record(17);
+        small.record(Long.MAX_VALUE);
+        Assertions.assertEquals(17, small.snapshot().getPercentile(50));
+        Assertions.assertEquals(Long.MAX_VALUE, small.snapshot().getPercentile(100));
+    }
+
+    @Test
+    void buckets() {
+        /* Every bucket picks up right where the last one left off. */
+        long highest = -1;
+        for(int i = 0; i < Histogram.BUCKETS; ++i) {
+            Assertions.assertEquals(i, Histogram.index(highest + 1));
+            Assertions.assertEquals(i, Histogram.index(Histogram.highest(i)));
+            highest = Histogram.highest(i);
+        }
+        Assertions.assertEquals(Long.MAX_VALUE, highest);
+    }
+}
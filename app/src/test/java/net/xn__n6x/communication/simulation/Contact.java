@@ -0,0 +1,30 @@
+package net.xn__n6x.communication.simulation;
+
+/** Two nodes being in reach of each other for a while. */
+public final class Contact {
+    /** When the nodes come into reach, in milliseconds. */
+    public final long start;
+    /** When the nodes go out of reach, in milliseconds. */
+    public final long end;
+    /** The index of one of the nodes. */
+    public final int a;
+    /** The index of the other. */
+    public final int b;
+
+    public Contact(long start, long end, int a, int b) {
+        if(end < start)
+            throw new IllegalArgumentException("Contact ends before it starts: " + start + " > " + end);
+        if(a == b)
+            throw new IllegalArgumentException("Node " + a + " can't be in contact with itself");
+
+        this.start = start;
+        this.end = end;
+        this.a = a;
+        this.b = b;
+    }
+
+    @Override
+    public String toString() {
+        return "Contact{" + this.a + " <-> " + this.b + " from " + this.start + " to " + this.end + "}";
+    }
+}
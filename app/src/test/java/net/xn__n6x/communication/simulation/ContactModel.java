@@ -0,0 +1,13 @@
+package net.xn__n6x.communication.simulation;
+
+import java.util.Iterator;
+
+/** Who is in reach of whom, and when, over the course of a simulation. */
+public interface ContactModel {
+    /** How many nodes there are. Contacts only ever refer to nodes below
+     * this number. */
+    int getNodeCount();
+
+    /** The contacts, in the order they start in. */
+    Iterator<Contact> contacts();
+}
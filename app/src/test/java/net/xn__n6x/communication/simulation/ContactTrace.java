@@ -0,0 +1,99 @@
+package net.xn__n6x.communication.simulation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/** Contacts replayed from a trace, in the connection event format of the
+ * ONE simulator, which most published traces have been converted to:
+ * <pre>
+ *     # time CONN a b up|down
+ *     12.5 CONN 0 3 up
+ *     80.0 CONN 3 0 down
+ * </pre>
+ * Times are in seconds, nodes are numbered from zero, and blank lines and
+ * lines starting with {@code #} are skipped. Contacts still up by the end of
+ * the trace end along with it. */
+public class ContactTrace implements ContactModel {
+    /** How many nodes there are. */
+    protected final int nodes;
+    /** The contacts, in the order they start in. */
+    protected final ArrayList<Contact> contacts;
+
+    protected ContactTrace(int nodes, ArrayList<Contact> contacts) {
+        this.nodes = nodes;
+        this.contacts = contacts;
+    }
+
+    /** Reads a trace in from the given reader.
+     * @throws IOException When the reader does, or when the trace is
+     * malformed. */
+    public static ContactTrace read(Reader reader) throws IOException {
+        HashMap<Long, Long> up = new HashMap<>();
+        ArrayList<Contact> contacts = new ArrayList<>();
+        int nodes = 0;
+        long last = 0;
+
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while((line = lines.readLine()) != null) {
+            ++number;
+            line = line.trim();
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] fields = line.split("\\s+");
+            if(fields.length != 5 || !fields[1].equals("CONN"))
+                throw new IOException("Line " + number + " is not a connection event: " + line);
+
+            long time;
+            int a, b;
+            try {
+                time = Math.round(Double.parseDouble(fields[0]) * 1000);
+                a = Integer.parseInt(fields[2]);
+                b = Integer.parseInt(fields[3]);
+            } catch(NumberFormatException e) {
+                throw new IOException("Line " + number + " is malformed: " + line, e);
+            }
+            if(a < 0 || b < 0 || a == b)
+                throw new IOException("Line " + number + " has invalid nodes: " + line);
+            if(time < last)
+                throw new IOException("Line " + number + " goes back in time: " + line);
+
+            last = time;
+            nodes = Math.max(nodes, Math.max(a, b) + 1);
+            long pair = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+
+            if(fields[4].equals("up"))
+                up.putIfAbsent(pair, time);
+            else if(fields[4].equals("down")) {
+                Long start = up.remove(pair);
+                if(start != null)
+                    contacts.add(new Contact(start, time, Math.min(a, b), Math.max(a, b)));
+            } else
+                throw new IOException("Line " + number + " is neither up nor down: " + line);
+        }
+
+        for(Map.Entry<Long, Long> open : up.entrySet())
+            contacts.add(new Contact(
+                open.getValue(),
+                last,
+                (int) (open.getKey() >>> 32),
+                (int) (long) open.getKey()));
+
+        contacts.sort((x, y) -> Long.compare(x.start, y.start));
+        return new ContactTrace(nodes, contacts);
+    }
+
+    @Override
+    public int getNodeCount() {
+        return this.nodes;
+    }
+
+    @Override
+    public Iterator<Contact> contacts() {
+        return Collections.unmodifiableList(this.contacts).iterator();
+    }
+}
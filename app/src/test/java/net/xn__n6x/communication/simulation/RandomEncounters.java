@@ -0,0 +1,78 @@
+package net.xn__n6x.communication.simulation;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/** Nodes running into each other at random, like people walking around a
+ * campus would.
+ *
+ * Contacts start as a single Poisson process over the whole population, and
+ * each one picks its pair of nodes uniformly, so every node runs into
+ * another one every so often on average, and any pair is as likely as any
+ * other. How long they stay in reach is exponentially distributed. Given
+ * the same seed, the contacts are always the same. */
+public class RandomEncounters implements ContactModel {
+    /** How many nodes there are. */
+    protected final int nodes;
+    /** How long a node goes between contacts, on average, in milliseconds. */
+    protected final long meanInterval;
+    /** How long a contact lasts, on average, in milliseconds. */
+    protected final long meanDuration;
+    /** When contacts stop starting, in milliseconds. */
+    protected final long until;
+    /** Where the randomness comes from. */
+    protected final long seed;
+
+    public RandomEncounters(int nodes, long meanInterval, long meanDuration, long until, long seed) {
+        if(nodes < 2)
+            throw new IllegalArgumentException("There have to be at least two nodes for them to meet");
+
+        this.nodes = nodes;
+        this.meanInterval = meanInterval;
+        this.meanDuration = meanDuration;
+        this.until = until;
+        this.seed = seed;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return this.nodes;
+    }
+
+    @Override
+    public Iterator<Contact> contacts() {
+        Random random = new Random(this.seed);
+
+        /* Every contact takes two nodes. */
+        double rate = this.nodes / (2.0 * this.meanInterval);
+        return new Iterator<Contact>() {
+            protected double time = next(0);
+
+            protected double next(double time) {
+                return time - Math.log(1 - random.nextDouble()) / rate;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.time < RandomEncounters.this.until;
+            }
+
+            @Override
+            public Contact next() {
+                if(!this.hasNext())
+                    throw new NoSuchElementException();
+
+                int a = random.nextInt(RandomEncounters.this.nodes);
+                int b = random.nextInt(RandomEncounters.this.nodes - 1);
+                if(b >= a)
+                    ++b;
+                long start = (long) this.time;
+                long duration = 1 + (long) (-Math.log(1 - random.nextDouble()) * RandomEncounters.this.meanDuration);
+
+                this.time = this.next(this.time);
+                return new Contact(start, start + duration, a, b);
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package net.xn__n6x.communication.simulation;
+
+import net.xn__n6x.communication.watchdog.TraceReader;
+
+import java.util.*;
+
+/** Contacts replayed from the traces recorded by real devices, see
+ * {@link net.xn__n6x.communication.watchdog.TraceRecorder}. Every device that
+ * recorded a trace, and every peer any of them found, becomes a node, in the
+ * order they first show up in. The traces are lined up by the wall clock,
+ * run by run, see {@link TraceReader#align(List)}, and the contacts start
+ * with the earliest of them, at zero. Two devices that both recorded each other are in contact whenever
+ * either of them says so. */
+public class RecordedContacts implements ContactModel {
+    /** The nodes, by packed hardware address. */
+    protected final LinkedHashMap<Long, Integer> nodes;
+    /** The contacts, in the order they start in. */
+    protected final ArrayList<Contact> contacts;
+
+    /** Builds the contacts from the records of the given traces. */
+    @SafeVarargs
+    public RecordedContacts(List<TraceReader.Record>... traces) {
+        this.nodes = new LinkedHashMap<>();
+
+        /* Contacts between each pair, in wall clock time. */
+        TreeMap<Long, ArrayList<long[]>> pairs = new TreeMap<>();
+        long origin = Long.MAX_VALUE;
+        for(List<TraceReader.Record> trace : traces) {
+            int owner = this.node(TraceReader.owner(trace));
+            for(TraceReader.Encounter encounter : TraceReader.encounters(TraceReader.align(trace))) {
+                int peer = this.node(encounter.peer);
+                if(peer == owner)
+                    continue;
+
+                long pair = ((long) Math.min(owner, peer) << 32) | Math.max(owner, peer);
+                pairs.computeIfAbsent(pair, k -> new ArrayList<>())
+                    .add(new long[] { encounter.start, encounter.end });
+                origin = Math.min(origin, encounter.start);
+            }
+        }
+
+        /* Overlapping stretches are the same contact. */
+        this.contacts = new ArrayList<>();
+        for(Map.Entry<Long, ArrayList<long[]>> pair : pairs.entrySet()) {
+            int a = (int) (pair.getKey() >>> 32);
+            int b = (int) (long) pair.getKey();
+
+            ArrayList<long[]> stretches = pair.getValue();
+            stretches.sort((x, y) -> Long.compare(x[0], y[0]));
+            long start = stretches.get(0)[0];
+            long end = stretches.get(0)[1];
+            for(long[] stretch : stretches) {
+                if(stretch[0] > end) {
+                    this.contacts.add(new Contact(start - origin, end - origin, a, b));
+                    start = stretch[0];
+                }
+                end = Math.max(end, stretch[1]);
+            }
+            this.contacts.add(new Contact(start - origin, end - origin, a, b));
+        }
+        this.contacts.sort((x, y) -> Long.compare(x.start, y.start));
+    }
+
+    /** Gets the node with the given packed hardware address, making it up if
+     * there isn't one yet. */
+    protected int node(long address) {
+        return this.nodes.computeIfAbsent(address, k -> this.nodes.size());
+    }
+
+    /** Gets the node with the given packed hardware address.
+     * @throws NoSuchElementException If it's not in any of the traces. */
+    public int getNode(long address) {
+        Integer node = this.nodes.get(address);
+        if(node == null)
+            throw new NoSuchElementException("No node at " + Long.toHexString(address));
+        return node;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return this.nodes.size();
+    }
+
+    @Override
+    public Iterator<Contact> contacts() {
+        return Collections.unmodifiableList(this.contacts).iterator();
+    }
+}
@@ -0,0 +1,120 @@
+package net.xn__n6x.communication.simulation;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/** What came out of a {@link Simulator} run. */
+public final class Report {
+    /** How many nodes there were. */
+    public final int nodes;
+    /** How many contacts there were. */
+    public final long contacts;
+    /** How many messages were sent. */
+    public final long sent;
+    /** How many messages had nowhere to go when sent, as their senders had
+     * no peers in reach. */
+    public final long unrouted;
+    /** How many messages made it to their targets. */
+    public final long delivered;
+    /** How long the messages that made it took to, in milliseconds, from
+     * quickest to slowest. */
+    public final long[] latencies;
+    /** How many packets went over the air, in all. */
+    public final long transmissions;
+    /** How many bytes went over the air, in all. */
+    public final long bytes;
+    /** How many of those bytes didn't take a message to its target for the
+     * first time: relays, duplicates, and headers of both. */
+    public final long overhead;
+    /** The most payload bytes queued up across every router at once. */
+    public final long peakQueued;
+    /** How much time went by in the simulation, in milliseconds. */
+    public final long simulated;
+    /** How long the simulation took to run, in nanoseconds. */
+    public final long elapsed;
+    /** How many events ran. */
+    public final long events;
+
+    public Report(
+            int nodes,
+            long contacts,
+            long sent,
+            long unrouted,
+            long delivered,
+            long[] latencies,
+            long transmissions,
+            long bytes,
+            long overhead,
+            long peakQueued,
+            long simulated,
+            long elapsed,
+            long events) {
+        this.nodes = nodes;
+        this.contacts = contacts;
+        this.sent = sent;
+        this.unrouted = unrouted;
+        this.delivered = delivered;
+        this.latencies = latencies;
+        this.transmissions = transmissions;
+        this.bytes = bytes;
+        this.overhead = overhead;
+        this.peakQueued = peakQueued;
+        this.simulated = simulated;
+        this.elapsed = elapsed;
+        this.events = events;
+    }
+
+    /** The share of the messages that made it to their targets. */
+    public double getDeliveryRatio() {
+        return this.sent == 0 ? 0 : (double) this.delivered / this.sent;
+    }
+
+    /** How long it took for the given share of the messages that made it to
+     * get there, in milliseconds.
+     * @param percentile The share, from 0 to 100. */
+    public long getLatency(double percentile) {
+        if(this.latencies.length == 0)
+            return 0;
+
+        int index = (int) Math.ceil(percentile / 100 * this.latencies.length) - 1;
+        return this.latencies[Math.max(0, Math.min(this.latencies.length - 1, index))];
+    }
+
+    /** How many times faster than real time the simulation ran. */
+    public double getSpeedup() {
+        return this.simulated * 1e6 / Math.max(1, this.elapsed);
+    }
+
+    /** Whether the given report has the same outcome as this one, no matter
+     * how long either took to run. */
+    public boolean sameOutcome(Report other) {
+        return this.nodes == other.nodes
+            && this.contacts == other.contacts
+            && this.sent == other.sent
+            && this.unrouted == other.unrouted
+            && this.delivered == other.delivered
+            && Arrays.equals(this.latencies, other.latencies)
+            && this.transmissions == other.transmissions
+            && this.bytes == other.bytes
+            && this.overhead == other.overhead
+            && this.peakQueued == other.peakQueued
+            && this.simulated == other.simulated
+            && this.events == other.events;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.ROOT,
+            "%6d nodes %8d contacts | %7d sent %7d unrouted %6.1f%% delivered"
+                + " | latency p50 %7.1fs p90 %7.1fs p99 %7.1fs"
+                + " | %6.1fMiB over the air %5.1f%% overhead | %7.1fMiB peak queued"
+                + " | %9d events %6.1fs %8.0fx real time",
+            this.nodes, this.contacts,
+            this.sent, this.unrouted, this.getDeliveryRatio() * 100,
+            this.getLatency(50) / 1e3, this.getLatency(90) / 1e3, this.getLatency(99) / 1e3,
+            this.bytes / 1048576.0, this.bytes == 0 ? 0 : this.overhead * 100.0 / this.bytes,
+            this.peakQueued / 1048576.0,
+            this.events, this.elapsed / 1e9, this.getSpeedup());
+    }
+}
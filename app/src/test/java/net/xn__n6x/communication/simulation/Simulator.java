@@ -0,0 +1,426 @@
+package net.xn__n6x.communication.simulation;
+
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.control.Router;
+import net.xn__n6x.communication.identity.Id;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/** Deterministic discrete-event simulation of a whole mesh of nodes, each
+ * with a real {@link Router}, all going by the same {@link VirtualClock}.
+ *
+ * Who is in reach of whom, and when, comes from a {@link ContactModel}. Nodes
+ * in reach of each other are registered as reachable in each other's
+ * routers, just like a search would have the {@link
+ * net.xn__n6x.communication.watchdog.WatchdogEngine} do, and have sessions
+ * with each other whenever either has packets queued up for the other. A
+ * session takes a while to get going, as a link has to come up first, and
+ * then goes back and forth, one packet at a time, each one taking as long as
+ * it takes to go over the air, for as long as either side has something
+ * left. Packets still out when the contact ends are given back, as the
+ * session would.
+ *
+ * Packets go out tagged with their recipient, and those that get to nodes
+ * other than their target are forwarded on with a fresh time to live, which
+ * is what the engine does. Whatever the router makes of them from there is
+ * what the simulation measures, see {@link Report}.
+ *
+ * Messages are sent at random between random nodes, at a given interval, on
+ * average, for every node, or at the times given to {@link #send}. Given the
+ * same contacts and seed, every run goes exactly the same. */
+public class Simulator {
+    /** By default, how long a link takes to come up, in milliseconds. Wifi
+     * P2P groups take a couple of seconds. */
+    public static final long DEFAULT_LINK_LATENCY = 2000;
+    /** By default, how many bytes a second go over a link. */
+    public static final double DEFAULT_BANDWIDTH = 1024 * 1024;
+    /** By default, how many bytes of payload every message has. */
+    public static final int DEFAULT_PAYLOAD_SIZE = 256;
+
+    /** How long a link takes to come up, in milliseconds. */
+    public long linkLatency = DEFAULT_LINK_LATENCY;
+    /** How many bytes a second go over a link. */
+    public double bandwidth = DEFAULT_BANDWIDTH;
+    /** How many bytes of payload every message has, at least 8. */
+    public int payloadSize = DEFAULT_PAYLOAD_SIZE;
+    /** How long packets live for in a router, in milliseconds. */
+    public long timeToLive = Router.DEFAULT_TIME_TO_LIVE;
+    /** How long every node goes between sending messages to random nodes, on
+     * average, in milliseconds, or zero for it not to. */
+    public long messageInterval = 0;
+
+    /** Who is in reach of whom, and when. */
+    protected final ContactModel model;
+    /** Where the randomness comes from. */
+    protected final Random random;
+    /** The time everyone goes by. */
+    protected final VirtualClock clock;
+    /** Every node, by index. */
+    protected final Node[] nodes;
+    /** Every node, by Id. */
+    protected final HashMap<Id, Node> byId;
+    /** Events waiting to run, in the order they should. */
+    protected final PriorityQueue<Event> events;
+    /** How many events have been queued up so far, which breaks ties. */
+    protected long queued;
+    /** When every message was sent, by message number. */
+    protected long[] sentAt;
+    /** The messages that have made it to their targets. */
+    protected final BitSet delivered;
+    /** How long the messages that made it took, in the order they did. */
+    protected long[] latencies;
+
+    protected long contactCount;
+    protected long sent;
+    protected long unrouted;
+    protected long deliveredCount;
+    protected long transmissions;
+    protected long bytes;
+    protected long deliveryBytes;
+    protected long queuedBytes;
+    protected long peakQueued;
+    protected long ran;
+
+    /** Sets up a node, with a router of its own, for every node in the given
+     * model.
+     * @param model Who is in reach of whom, and when.
+     * @param seed Where the Ids of the nodes and the messages come from. */
+    public Simulator(ContactModel model, long seed) {
+        this.model = model;
+        this.random = new Random(seed);
+        this.clock = new VirtualClock();
+        this.nodes = new Node[model.getNodeCount()];
+        this.byId = new HashMap<>();
+        for(int i = 0; i < this.nodes.length; ++i) {
+            byte[] id = new byte[Id.ID_LENGTH];
+            this.random.nextBytes(id);
+
+            Node node = new Node(i, Id.fromBuffer(ByteBuffer.wrap(id)));
+            this.nodes[i] = node;
+            this.byId.put(node.id, node);
+        }
+        this.events = new PriorityQueue<>();
+        this.queued = 0;
+        this.sentAt = new long[64];
+        this.delivered = new BitSet();
+        this.latencies = new long[64];
+    }
+
+    /** Gets the Id of the node with the given index. */
+    public Id getId(int node) {
+        return this.nodes[node].id;
+    }
+
+    /** Sends a message from one node to another at the given time.
+     * @return The number of the message. */
+    public int send(long time, int source, int target) {
+        int message = (int) this.sent++;
+        this.sentAt = grow(this.sentAt, message);
+        this.sentAt[message] = time;
+        this.at(time, () -> this.onSend(message, this.nodes[source], this.nodes[target]));
+
+        return message;
+    }
+
+    /** Whether the given message has made it to its target. */
+    public boolean isDelivered(int message) {
+        return this.delivered.get(message);
+    }
+
+    /** Runs the simulation until the given time, and reports on it. */
+    public Report run(long until) {
+        long start = System.nanoTime();
+
+        Iterator<Contact> contacts = this.model.contacts();
+        if(contacts.hasNext())
+            this.schedule(contacts.next(), contacts);
+        if(this.messageInterval > 0 && this.nodes.length > 1)
+            this.at(this.nextMessage(0), () -> this.onRandomMessage(until));
+
+        while(!this.events.isEmpty() && this.events.peek().time <= until) {
+            Event event = this.events.poll();
+            this.clock.set(event.time);
+            event.action.run();
+            ++this.ran;
+        }
+        this.clock.set(Math.max(this.clock.millis(), until));
+
+        return new Report(
+            this.nodes.length,
+            this.contactCount,
+            this.sent,
+            this.unrouted,
+            this.deliveredCount,
+            sorted(this.latencies, (int) this.deliveredCount),
+            this.transmissions,
+            this.bytes,
+            this.bytes - this.deliveryBytes,
+            this.peakQueued,
+            until,
+            System.nanoTime() - start,
+            this.ran);
+    }
+
+    /** Queues the given action up to run at the given time. */
+    protected void at(long time, Runnable action) {
+        this.events.add(new Event(time, this.queued++, action));
+    }
+
+    /** Queues the given contact up, along with the one after it, once it
+     * comes. */
+    protected void schedule(Contact contact, Iterator<Contact> rest) {
+        this.at(contact.start, () -> {
+            this.onContactUp(contact);
+            if(rest.hasNext())
+                this.schedule(rest.next(), rest);
+        });
+    }
+
+    protected void onContactUp(Contact contact) {
+        ++this.contactCount;
+
+        Link link = new Link(contact, this.nodes[contact.a], this.nodes[contact.b]);
+        link.a.links.add(link);
+        link.b.links.add(link);
+        link.a.router.register(link.b.id);
+        link.b.router.register(link.a.id);
+        this.at(contact.end, () -> this.onContactDown(link));
+
+        this.wake(link);
+    }
+
+    protected void onContactDown(Link link) {
+        link.up = false;
+        link.a.links.remove(link);
+        link.b.links.remove(link);
+        this.retain(link.a);
+        this.retain(link.b);
+
+        /* Whatever was still out gets sent again next time. */
+        link.a.router.release(link.b.id);
+        link.b.router.release(link.a.id);
+        link.inFlight = null;
+        this.account(link.a);
+        this.account(link.b);
+    }
+
+    /** Keeps only the nodes the given one still has links to as reachable. */
+    protected void retain(Node node) {
+        HashSet<Id> reachable = new HashSet<>();
+        for(Link link : node.links)
+            reachable.add(link.other(node).id);
+        node.router.retain(reachable);
+    }
+
+    protected void onRandomMessage(long until) {
+        int source = this.random.nextInt(this.nodes.length);
+        int target = this.random.nextInt(this.nodes.length - 1);
+        if(target >= source)
+            ++target;
+
+        long now = this.clock.millis();
+        int message = (int) this.sent++;
+        this.sentAt = grow(this.sentAt, message);
+        this.sentAt[message] = now;
+        this.onSend(message, this.nodes[source], this.nodes[target]);
+
+        long next = this.nextMessage(now);
+        if(next <= until)
+            this.at(next, () -> this.onRandomMessage(until));
+    }
+
+    /** When the next random message should go out, after the given time. */
+    protected long nextMessage(long time) {
+        double rate = (double) this.nodes.length / this.messageInterval;
+        return time + (long) Math.ceil(-Math.log(1 - this.random.nextDouble()) / rate);
+    }
+
+    protected void onSend(int message, Node source, Node target) {
+        byte[] payload = new byte[Math.max(8, this.payloadSize)];
+        ByteBuffer.wrap(payload).putLong(message);
+
+        /* The router has nowhere to put packets when no one is in reach. */
+        if(source.links.isEmpty())
+            ++this.unrouted;
+
+        source.router.forward(new Packet(source.id, new Id[] { source.id }, target.id, payload), this.timeToLive);
+        this.account(source);
+        this.wake(source);
+    }
+
+    /** Brings up sessions over the links of the given node that are idle,
+     * and that have packets to go over them. */
+    protected void wake(Node node) {
+        for(Link link : node.links)
+            this.wake(link);
+    }
+
+    protected void wake(Link link) {
+        if(link.busy || !link.up)
+            return;
+        if(link.a.router.getQueuedCount(link.b.id) == 0 && link.b.router.getQueuedCount(link.a.id) == 0)
+            return;
+
+        link.busy = true;
+        this.at(this.clock.millis() + this.linkLatency, () -> this.onSessionStep(link));
+    }
+
+    /** Has the packet that was out over the given link get there, and sends
+     * the next one, if there is one and it can make it before the contact
+     * ends. */
+    protected void onSessionStep(Link link) {
+        if(!link.up)
+            return;
+
+        if(link.inFlight != null) {
+            Router.Lease lease = link.inFlight;
+            Node from = link.from;
+            Node to = link.other(from);
+            link.inFlight = null;
+
+            from.router.acknowledge(to.id, lease.sequence);
+            this.account(from);
+            this.receive(to, lease.packet.tag(to.id));
+        }
+
+        long now = this.clock.millis();
+        for(int i = 0; i < 2; ++i) {
+            Node from = link.turn ? link.a : link.b;
+            Node to = link.other(from);
+            link.turn = !link.turn;
+
+            Optional<Router.Lease> lease = from.router.lease(to.id);
+            if(!lease.isPresent())
+                continue;
+
+            int size = lease.get().packet.tag(to.id).intoBufferLength();
+            long time = (long) Math.ceil(size * 1000 / this.bandwidth);
+            if(now + time > link.contact.end) {
+                from.router.release(to.id);
+                break;
+            }
+
+            link.inFlight = lease.get();
+            link.from = from;
+            ++this.transmissions;
+            this.bytes += size;
+            this.account(from);
+            this.at(now + time, () -> this.onSessionStep(link));
+            return;
+        }
+
+        link.busy = false;
+    }
+
+    protected void receive(Node node, Packet p) {
+        if(p.getTarget().equals(node.id)) {
+            int message = (int) ByteBuffer.wrap(p.getPayload()).getLong();
+            if(!this.delivered.get(message)) {
+                this.delivered.set(message);
+                int index = (int) this.deliveredCount++;
+                this.latencies = grow(this.latencies, index);
+                this.latencies[index] = this.clock.millis() - this.sentAt[message];
+                this.deliveryBytes += p.intoBufferLength();
+            }
+            return;
+        }
+
+        node.router.forward(p, this.timeToLive);
+        this.account(node);
+        this.wake(node);
+    }
+
+    /** Keeps track of how much is queued up across every router. */
+    protected void account(Node node) {
+        long bytes = node.router.getQueuedBytes();
+        this.queuedBytes += bytes - node.queued;
+        node.queued = bytes;
+        this.peakQueued = Math.max(this.peakQueued, this.queuedBytes);
+    }
+
+    protected static long[] grow(long[] array, int index) {
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+
+    protected static long[] sorted(long[] array, int length) {
+        long[] copy = Arrays.copyOf(array, length);
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    /** A simulated device. */
+    protected final class Node {
+        /** Where the node is in the simulation. */
+        public final int index;
+        /** Who the node is. */
+        public final Id id;
+        /** Where the node keeps its packets. */
+        public final Router router;
+        /** The contacts the node is in. */
+        public final ArrayList<Link> links;
+        /** How many payload bytes the router of the node had queued up, last
+         * we checked. */
+        protected long queued;
+
+        protected Node(int index, Id id) {
+            this.index = index;
+            this.id = id;
+            this.router = new Router(id, Simulator.this.clock);
+            this.links = new ArrayList<>(4);
+            this.queued = 0;
+        }
+    }
+
+    /** A contact that is under way, and the session going on over it. */
+    protected static final class Link {
+        public final Contact contact;
+        public final Node a;
+        public final Node b;
+        /** Whether the contact is still under way. */
+        public boolean up;
+        /** Whether a session is going on, or about to. */
+        public boolean busy;
+        /** Whether it's a's turn to send. */
+        public boolean turn;
+        /** The packet out over the link, if any. */
+        public Router.Lease inFlight;
+        /** Who sent the packet out over the link. */
+        public Node from;
+
+        protected Link(Contact contact, Node a, Node b) {
+            this.contact = contact;
+            this.a = a;
+            this.b = b;
+            this.up = true;
+            this.busy = false;
+            this.turn = true;
+            this.inFlight = null;
+            this.from = null;
+        }
+
+        public Node other(Node node) {
+            return node == this.a ? this.b : this.a;
+        }
+    }
+
+    /** Something that happens at a given time. */
+    protected static final class Event implements Comparable<Event> {
+        public final long time;
+        /** Events at the same time run in the order they were queued in. */
+        public final long order;
+        public final Runnable action;
+
+        protected Event(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(this.time, other.time);
+            return byTime != 0 ? byTime : Long.compare(this.order, other.order);
+        }
+    }
+}
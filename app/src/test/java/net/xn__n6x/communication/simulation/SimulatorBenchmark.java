@@ -0,0 +1,43 @@
+package net.xn__n6x.communication.simulation;
+
+import net.xn__n6x.communication.Benchmark;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/** Runs the mesh at a range of sizes, with the same density of contacts and
+ * messages per node, and reports on how the router fares at each. */
+@Tag(Benchmark.TAG)
+class SimulatorBenchmark {
+    protected static final int[] SIZES = { 10, 100, 1000, 10000 };
+    protected static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    /** Runs an hour of the mesh at every given size.
+     * @param interval How long every node goes between contacts, on average.
+     * @param duration How long contacts last, on average. */
+    protected static void run(int[] sizes, long interval, long duration) {
+        for(int size : sizes) {
+            Simulator simulator = new Simulator(new RandomEncounters(size, interval, duration, HOUR, size), size);
+            simulator.messageInterval = TimeUnit.MINUTES.toMillis(10);
+
+            System.out.println(simulator.run(HOUR));
+        }
+    }
+
+    @Test
+    void sparse() {
+        /* Everyone runs into someone every ten minutes, for two minutes. */
+        run(SIZES, TimeUnit.MINUTES.toMillis(10), TimeUnit.MINUTES.toMillis(2));
+    }
+
+    @Test
+    void dense() {
+        /* Everyone runs into someone every minute, for five minutes, so they
+         * have a handful of peers in reach at any time. Packets that take
+         * different routes are different packets to the router, so every
+         * message floods along every path there is, until the air is full.
+         * Past a dozen nodes, that takes forever to simulate. */
+        run(new int[] { 10 }, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5));
+    }
+}
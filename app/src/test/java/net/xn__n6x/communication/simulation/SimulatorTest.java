@@ -0,0 +1,151 @@
+package net.xn__n6x.communication.simulation;
+
+import net.xn__n6x.communication.watchdog.TraceReader;
+import net.xn__n6x.communication.watchdog.TraceRecorder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+class SimulatorTest {
+    static ContactTrace trace(String trace) throws IOException {
+        return ContactTrace.read(new StringReader(trace));
+    }
+
+    @Test
+    void traces() throws IOException {
+        ContactTrace trace = trace(
+            "# time CONN a b up|down\n"
+            + "0.5 CONN 0 1 up\n"
+            + "1 CONN 2 1 up\n"
+            + "\n"
+            + "2.25 CONN 1 0 down\n"
+            + "3 CONN 3 4 up\n");
+        Assertions.assertEquals(5, trace.getNodeCount());
+
+        ArrayList<String> contacts = new ArrayList<>();
+        for(Iterator<Contact> i = trace.contacts(); i.hasNext(); )
+            contacts.add(i.next().toString());
+        Assertions.assertEquals("[" + new Contact(500, 2250, 0, 1)
+            + ", " + new Contact(1000, 3000, 1, 2)
+            + ", " + new Contact(3000, 3000, 3, 4) + "]", contacts.toString());
+
+        Assertions.assertThrows(IOException.class, () -> trace("1 CONN 0 0 up"));
+        Assertions.assertThrows(IOException.class, () -> trace("1 CONN 0 1 sideways"));
+        Assertions.assertThrows(IOException.class, () -> trace("2 CONN 0 1 up\n1 CONN 0 1 down"));
+        Assertions.assertThrows(IOException.class, () -> trace("one CONN 0 1 up"));
+    }
+
+    @Test
+    void relay() throws IOException {
+        /* 1 is in reach of both 0 and 2 for a while. */
+        Simulator simulator = new Simulator(trace(
+            "0 CONN 0 1 up\n"
+            + "5 CONN 1 2 up\n"
+            + "60 CONN 0 1 down\n"
+            + "60 CONN 1 2 down\n"), 1);
+        int relayed = simulator.send(10000, 0, 2);
+        int direct = simulator.send(20000, 1, 2);
+        int alone = simulator.send(70000, 2, 0);
+        Report report = simulator.run(120000);
+
+        Assertions.assertTrue(simulator.isDelivered(relayed));
+        Assertions.assertTrue(simulator.isDelivered(direct));
+        Assertions.assertFalse(simulator.isDelivered(alone));
+        Assertions.assertEquals(3, report.sent);
+        Assertions.assertEquals(1, report.unrouted);
+        Assertions.assertEquals(2, report.delivered);
+
+        /* Two links to bring up, and two packets to get across. */
+        Assertions.assertTrue(report.getLatency(100) >= 2 * Simulator.DEFAULT_LINK_LATENCY);
+        Assertions.assertTrue(report.getLatency(100) < 2 * Simulator.DEFAULT_LINK_LATENCY + 100);
+        Assertions.assertTrue(report.peakQueued > 0);
+        Assertions.assertTrue(report.bytes > report.overhead);
+    }
+
+    @Test
+    void expiry() throws IOException {
+        /* The first contact is over before a link could come up, so the
+         * message waits for the second one, as long as it lives. */
+        String trace =
+            "0 CONN 0 1 up\n"
+            + "1 CONN 0 1 down\n"
+            + "60 CONN 0 1 up\n"
+            + "90 CONN 0 1 down\n";
+
+        Simulator patient = new Simulator(trace(trace), 1);
+        int message = patient.send(500, 0, 1);
+        Report report = patient.run(120000);
+        Assertions.assertTrue(patient.isDelivered(message));
+        Assertions.assertEquals(61500, report.getLatency(50), 100);
+
+        Simulator hurried = new Simulator(trace(trace), 1);
+        hurried.timeToLive = 30000;
+        message = hurried.send(500, 0, 1);
+        report = hurried.run(120000);
+        Assertions.assertFalse(hurried.isDelivered(message));
+        Assertions.assertEquals(0, report.transmissions);
+    }
+
+    @Test
+    void recorded(@TempDir File directory) throws IOException {
+        String a = "aa:aa:aa:aa:aa:aa";
+        String b = "bb:bb:bb:bb:bb:bb";
+        String c = "cc:cc:cc:cc:cc:cc";
+
+        /* Two devices that met, with clocks that started at different times,
+         * one of which also met a third. */
+        File first = new File(directory, "a");
+        try(TraceRecorder trace = new TraceRecorder(first, 64)) {
+            trace.start(0, 1000000, a);
+            trace.search(1000, Collections.singletonList(b));
+            trace.search(60000, Collections.emptyList());
+        }
+        File second = new File(directory, "b");
+        try(TraceRecorder trace = new TraceRecorder(second, 64)) {
+            trace.start(500, 1002000, b);
+            trace.search(3000, Arrays.asList(a, c));
+            trace.search(70000, Collections.emptyList());
+        }
+
+        RecordedContacts contacts = new RecordedContacts(TraceReader.read(first), TraceReader.read(second));
+        Assertions.assertEquals(3, contacts.getNodeCount());
+        int nodeA = contacts.getNode(TraceRecorder.address(a));
+        int nodeB = contacts.getNode(TraceRecorder.address(b));
+        int nodeC = contacts.getNode(TraceRecorder.address(c));
+
+        ArrayList<String> listed = new ArrayList<>();
+        for(Iterator<Contact> i = contacts.contacts(); i.hasNext(); )
+            listed.add(i.next().toString());
+        Assertions.assertEquals("[" + new Contact(0, 70500, nodeA, nodeB)
+            + ", " + new Contact(3500, 70500, nodeB, nodeC) + "]", listed.toString());
+
+        /* Which is enough for a to get through to c. */
+        Simulator simulator = new Simulator(contacts, 1);
+        int message = simulator.send(10000, nodeA, nodeC);
+        simulator.run(120000);
+        Assertions.assertTrue(simulator.isDelivered(message));
+    }
+
+    @Test
+    void deterministic() {
+        Report[] reports = new Report[3];
+        for(int i = 0; i < reports.length; ++i) {
+            long seed = i < 2 ? 42 : 43;
+            Simulator simulator = new Simulator(new RandomEncounters(50, 60000, 30000, 600000, seed), seed);
+            simulator.messageInterval = 60000;
+            reports[i] = simulator.run(600000);
+        }
+
+        Assertions.assertTrue(reports[0].delivered > 0);
+        Assertions.assertTrue(reports[0].sameOutcome(reports[1]));
+        Assertions.assertFalse(reports[0].sameOutcome(reports[2]));
+    }
+}
@@ -0,0 +1,25 @@
+package net.xn__n6x.communication.simulation;
+
+import net.xn__n6x.communication.control.Clock;
+
+/** A {@link Clock} that only ever moves when the {@link Simulator} says so. */
+public class VirtualClock implements Clock {
+    /** What time it is, in milliseconds. */
+    protected long now;
+
+    public VirtualClock() {
+        this.now = 0;
+    }
+
+    @Override
+    public long millis() {
+        return this.now;
+    }
+
+    /** Moves the clock to the given time, which may not be in the past. */
+    public void set(long now) {
+        if(now < this.now)
+            throw new IllegalArgumentException("Time only moves forward: " + now + " < " + this.now);
+        this.now = now;
+    }
+}
@@ -0,0 +1,52 @@
+package net.xn__n6x.communication.watchdog;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+class BackoffTest {
+    @Test
+    void doubles() {
+        Backoff backoff = new Backoff(100, 1000, new Random(1));
+
+        /* Every wait is somewhere in the upper half of its ceiling. */
+        long[] ceilings = { 100, 200, 400, 800, 1000, 1000 };
+        for(long ceiling : ceilings) {
+            long wait = backoff.next();
+            Assertions.assertTrue(wait >= ceiling / 2 && wait <= ceiling, wait + " out of " + ceiling);
+        }
+        Assertions.assertEquals(ceilings.length, backoff.getFailures());
+
+        backoff.reset();
+        Assertions.assertEquals(0, backoff.getFailures());
+        Assertions.assertTrue(backoff.next() <= 100);
+    }
+
+    @Test
+    void jitters() {
+        /* Two devices that fail at the same time shouldn't keep waiting the
+         * same. */
+        Backoff a = new Backoff(1000, 60_000, new Random(1));
+        Backoff b = new Backoff(1000, 60_000, new Random(2));
+
+        int same = 0;
+        for(int i = 0; i < 8; ++i)
+            if(a.next() == b.next())
+                ++same;
+        Assertions.assertTrue(same < 8);
+    }
+
+    @Test
+    void neverOverflows() {
+        Backoff backoff = new Backoff(3, Long.MAX_VALUE, new Random(1));
+        for(int i = 0; i < 100; ++i)
+            Assertions.assertTrue(backoff.next() > 0);
+    }
+
+    @Test
+    void rejectsEmpty() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Backoff(0, 10, new Random()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Backoff(10, 5, new Random()));
+    }
+}
@@ -0,0 +1,135 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.identity.Id;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+class ContactCacheTest {
+    static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Test
+    void roundTrip(@TempDir File directory) throws IOException {
+        ContactCache cache = new ContactCache(new File(directory, "contacts"));
+        Id a = Id.random();
+
+        PeerTable table = new PeerTable();
+        table.identify("aa", a, 1000);
+        table.onLinking("aa", 1000);
+        table.onLinked("aa", 1500);
+        table.onExchanged(a, 4096, 1000);
+        table.fail("aa", 1500);
+        table.onSearched(Arrays.asList("aa", "bb"), 2000);
+        cache.save(table, 3000, 10 * DAY);
+
+        /* The monotonic clock starts over, but a day has passed. */
+        PeerTable restored = new PeerTable();
+        Assertions.assertEquals(1, cache.load(restored, 50, 11 * DAY));
+
+        PeerTable.Peer peer = restored.get(a);
+        Assertions.assertEquals("aa", peer.address);
+        Assertions.assertEquals(PeerTable.State.KNOWN, peer.state);
+        Assertions.assertEquals(50 - 1000 - DAY, peer.lastSeen);
+        Assertions.assertEquals(1, peer.links);
+        Assertions.assertEquals(500, peer.connectLatency);
+        Assertions.assertEquals(1, peer.sessions);
+        Assertions.assertEquals(4096, peer.throughput, 1e-9);
+        Assertions.assertEquals(1, peer.failures);
+
+        /* Only peers whose Id we know are kept. */
+        Assertions.assertNull(restored.get("bb"));
+
+        /* Once found again, it's reachable, without having to be discovered. */
+        Assertions.assertEquals(Collections.singleton(a), restored.onSearched(Arrays.asList("aa", "cc"), 100));
+        Assertions.assertEquals(Collections.singletonList("cc"), Arrays.asList(restored.getDiscovery().toArray()));
+    }
+
+    @Test
+    void aging(@TempDir File directory) throws IOException {
+        ContactCache cache = new ContactCache(new File(directory, "contacts"), 7 * DAY, 2);
+        Id a = Id.random();
+        Id b = Id.random();
+        Id c = Id.random();
+
+        PeerTable table = new PeerTable();
+        table.identify("aa", a, 0);
+        table.identify("bb", b, 2 * DAY);
+        table.identify("cc", c, 3 * DAY);
+        Id stale = Id.random();
+        table.identify("dd", stale, 0);
+        table.onSearched(Collections.emptyList(), 8 * DAY);
+
+        /* Only the most recently seen fit, and none that are too old. */
+        cache.save(table, 8 * DAY, 100 * DAY);
+        PeerTable restored = new PeerTable();
+        Assertions.assertEquals(2, cache.load(restored, 0, 100 * DAY));
+        Assertions.assertNotNull(restored.get(b));
+        Assertions.assertNotNull(restored.get(c));
+
+        /* And they keep on aging while on disk. */
+        restored = new PeerTable();
+        Assertions.assertEquals(1, cache.load(restored, 0, 102 * DAY));
+        Assertions.assertNotNull(restored.get(c));
+        Assertions.assertEquals(0, cache.load(new PeerTable(), 0, 104 * DAY));
+
+        /* Whatever the table already knows comes first. */
+        PeerTable known = new PeerTable();
+        Id moved = Id.random();
+        known.identify("cc", moved, 0);
+        Assertions.assertEquals(0, cache.load(known, 0, 102 * DAY));
+        Assertions.assertEquals(moved, known.getId("cc"));
+    }
+
+    @Test
+    void circuit(@TempDir File directory) throws IOException {
+        ContactCache cache = new ContactCache(new File(directory, "contacts"));
+        Id a = Id.random();
+
+        PeerTable table = new PeerTable();
+        table.identify("aa", a, 0);
+        for(int i = 0; i < PeerTable.FAILURE_THRESHOLD; ++i)
+            table.fail("aa", 1000);
+        Assertions.assertEquals(PeerTable.Circuit.OPEN, table.get(a).getCircuit(1000));
+        cache.save(table, 1000, 10 * DAY);
+
+        /* It's still left alone for as long as it had left, give or take the
+         * time spent on disk, on whatever clock the table now goes by. */
+        PeerTable restored = new PeerTable();
+        Assertions.assertEquals(1, cache.load(restored, 50, 10 * DAY + 20_000));
+        PeerTable.Peer peer = restored.get(a);
+        Assertions.assertEquals(PeerTable.FAILURE_THRESHOLD, peer.strikes);
+        Assertions.assertEquals(50 + PeerTable.COOLDOWN - 20_000, peer.retryAt);
+        Assertions.assertEquals(PeerTable.Circuit.OPEN, peer.getCircuit(50));
+
+        /* Once the cooldown is over, it gets another chance right away. */
+        restored = new PeerTable();
+        cache.load(restored, 50, 10 * DAY + PeerTable.COOLDOWN);
+        Assertions.assertEquals(PeerTable.Circuit.HALF_OPEN, restored.get(a).getCircuit(50));
+    }
+
+    @Test
+    void missing(@TempDir File directory) throws IOException {
+        File file = new File(directory, "contacts");
+        ContactCache cache = new ContactCache(file);
+        Assertions.assertEquals(0, cache.load(new PeerTable(), 0, 0));
+
+        try(FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+        }
+        Assertions.assertThrows(IOException.class, () -> cache.load(new PeerTable(), 0, 0));
+
+        /* Saving over it fixes it. */
+        PeerTable table = new PeerTable();
+        table.identify("aa", Id.random(), 0);
+        cache.save(table, 0, 0);
+        Assertions.assertEquals(1, cache.load(new PeerTable(), 0, 0));
+        Assertions.assertFalse(new File(directory, "contacts.tmp").exists());
+    }
+}
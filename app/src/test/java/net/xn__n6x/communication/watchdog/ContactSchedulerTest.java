@@ -0,0 +1,248 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.control.Router;
+import net.xn__n6x.communication.identity.Id;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+class ContactSchedulerTest {
+    /** Where the packets we have for our peers come from. */
+    static final Id SOURCE = Id.random();
+
+    /** Makes the peer at the given address known and reachable, with the
+     * given number of distinct packets of the given size queued up for it. */
+    static Id peer(Router router, PeerTable peers, String address, int count, int size, long timeToLive) {
+        return peer(router, peers, address, Id.random(), count, size, timeToLive);
+    }
+
+    static Id peer(Router router, PeerTable peers, String address, Id id, int count, int size, long timeToLive) {
+        peers.identify(address, id, 0);
+        router.register(id);
+
+        Random random = new Random(address.hashCode());
+        for(int i = 0; i < count; ++i) {
+            byte[] payload = new byte[size];
+            random.nextBytes(payload);
+            router.forward(new Packet(SOURCE, new Id[] { SOURCE }, id, payload), timeToLive);
+        }
+
+        return id;
+    }
+
+    @Test
+    void urgentBeforeStale() {
+        Router router = new Router(Id.random());
+        PeerTable peers = new PeerTable();
+        ContactScheduler scheduler = new ContactScheduler(router, peers);
+
+        Id stale = peer(router, peers, "aa", 1, 64, Router.DEFAULT_TIME_TO_LIVE);
+        Id urgent = peer(router, peers, "bb", 1, 64, 1000);
+        Id many = peer(router, peers, "cc", 100, 64, Router.DEFAULT_TIME_TO_LIVE);
+
+        /* Same packets, but one of them is about to expire. */
+        Assertions.assertEquals(urgent, scheduler.pick(Arrays.asList(
+            scheduler.transmission(stale, false),
+            scheduler.transmission(urgent, false))).id);
+
+        /* And more packets are worth more than fewer. */
+        Assertions.assertEquals(many, scheduler.pick(Arrays.asList(
+            scheduler.transmission(urgent, false),
+            scheduler.transmission(many, false))).id);
+
+        /* Peers with something for us are worth going to, even if we have
+         * nothing for them. */
+        Id pull = peer(router, peers, "dd", 0, 0, 0);
+        Assertions.assertTrue(scheduler.transmission(pull, true).value > 0);
+        Assertions.assertEquals(0, scheduler.transmission(pull, false).value);
+    }
+
+    @Test
+    void linkQuality() {
+        Router router = new Router(Id.random());
+        PeerTable peers = new PeerTable();
+        ContactScheduler scheduler = new ContactScheduler(router, peers);
+
+        Id slow = peer(router, peers, "aa", 10, 64, Router.DEFAULT_TIME_TO_LIVE);
+        Id fast = peer(router, peers, "bb", 10, 64, Router.DEFAULT_TIME_TO_LIVE);
+        Id flaky = peer(router, peers, "cc", 10, 64, Router.DEFAULT_TIME_TO_LIVE);
+
+        peers.onLinking("aa", 0);
+        peers.onLinked("aa", 8000);
+        peers.onLinking("bb", 0);
+        peers.onLinked("bb", 500);
+        peers.onLinking("cc", 0);
+        peers.onLinked("cc", 500);
+        for(int i = 0; i < 5; ++i)
+            peers.fail("cc", 500);
+
+        Assertions.assertEquals(fast, scheduler.pick(Arrays.asList(
+            scheduler.transmission(slow, false),
+            scheduler.transmission(fast, false))).id);
+        Assertions.assertEquals(fast, scheduler.pick(Arrays.asList(
+            scheduler.transmission(flaky, false),
+            scheduler.transmission(fast, false))).id);
+
+        /* Slow sessions cost too, once there's a lot to get across. */
+        Id bulky = peer(router, peers, "dd", 10, 1024 * 1024, Router.DEFAULT_TIME_TO_LIVE);
+        peers.onExchanged(bulky, 10 * 1024, 1000);
+        Assertions.assertTrue(scheduler.transmission(bulky, false).cost > 100000);
+    }
+
+    @Test
+    void discoveryInterleaved() {
+        Router router = new Router(Id.random());
+        PeerTable peers = new PeerTable();
+        ContactScheduler scheduler = new ContactScheduler(router, peers);
+
+        Id stale = peer(router, peers, "aa", 1, 64, Router.DEFAULT_TIME_TO_LIVE);
+        Id busy = peer(router, peers, "bb", 50, 64, 10000);
+        peers.onSearched(Arrays.asList("aa", "bb", "cc"), 0);
+
+        /* A device we have yet to discover beats a stale packet or two, but
+         * not a peer with a lot of urgent ones. */
+        ContactScheduler.Contact discovery = scheduler.discovery(peers.peekDiscovery());
+        Assertions.assertTrue(discovery.isDiscovery());
+        Assertions.assertSame(discovery, scheduler.pick(Arrays.asList(
+            scheduler.transmission(stale, false),
+            discovery)));
+        Assertions.assertEquals(busy, scheduler.pick(Arrays.asList(
+            discovery,
+            scheduler.transmission(busy, false))).id);
+
+        Assertions.assertNull(scheduler.pick(Collections.emptyList()));
+    }
+
+    /** A device in a simulated round, and how it really behaves, as opposed
+     * to what the scheduler makes of it. */
+    static final class Simulated {
+        final String address;
+        final Id id;
+        final long latency;
+        final double throughput;
+        final int count;
+        final int size;
+        final long timeToLive;
+
+        Simulated(String address, Id id, long latency, double throughput, int count, int size, long timeToLive) {
+            this.address = address;
+            this.id = id;
+            this.latency = latency;
+            this.throughput = throughput;
+            this.count = count;
+            this.size = size;
+            this.timeToLive = timeToLive;
+        }
+
+        /** How long a contact with the device takes, in milliseconds. */
+        long cost() {
+            return this.latency + Math.round((double) this.count * this.size * 1000 / this.throughput);
+        }
+    }
+
+    /** Runs a round of contacts in the given order, one at a time, and counts
+     * the packets that get across before they expire. */
+    static int deliver(List<Simulated> order) {
+        long now = 0;
+        int delivered = 0;
+        for(Simulated device : order) {
+            now += device.cost();
+            if(device.id != null && now <= device.timeToLive)
+                delivered += device.count;
+        }
+
+        return delivered;
+    }
+
+    @Test
+    void simulation() {
+        /* Random rounds, each with a few peers we've met before, and a few
+         * devices we have yet to discover. The old order went through every
+         * one of those first, then through the peers in whatever order the
+         * router had them in. */
+        Random random = new Random(0x5ca1ab1e);
+        long scheduled = 0;
+        long previous = 0;
+        int better = 0;
+        int worse = 0;
+
+        for(int round = 0; round < 200; ++round) {
+            Router router = new Router(Id.random());
+            PeerTable peers = new PeerTable();
+            ContactScheduler scheduler = new ContactScheduler(router, peers);
+
+            HashMap<String, Simulated> devices = new HashMap<>();
+            int known = 3 + random.nextInt(8);
+            for(int i = 0; i < known; ++i) {
+                String address = "known:" + i;
+                int count = random.nextInt(60);
+                int size = 64 + random.nextInt(4096);
+                long timeToLive = 5000 + random.nextInt(115000);
+                long latency = 500 + random.nextInt(4000);
+                double throughput = 64 * 1024 + random.nextInt(1024 * 1024);
+
+                /* The old order depends on the Ids, so they come from the
+                 * same seed as everything else. */
+                byte[] bytes = new byte[Id.ID_LENGTH];
+                random.nextBytes(bytes);
+                Id id = peer(router, peers, address, Id.fromBuffer(ByteBuffer.wrap(bytes)), count, size, timeToLive);
+                peers.onLinking(address, 0);
+                peers.onLinked(address, latency);
+                peers.onExchanged(id, 64 * 1024, Math.round(64 * 1024 * 1000 / throughput));
+                devices.put(address, new Simulated(address, id, latency, throughput, count, size, timeToLive));
+            }
+
+            int found = random.nextInt(6);
+            for(int i = 0; i < found; ++i) {
+                String address = "unknown:" + i;
+                devices.put(address, new Simulated(address, null, 500 + random.nextInt(4000), 1, 0, 0, 0));
+            }
+            ArrayList<String> searched = new ArrayList<>(devices.keySet());
+            peers.onSearched(searched, 0);
+
+            /* The old order. */
+            ArrayList<Simulated> order = new ArrayList<>();
+            for(String address : peers.getDiscovery())
+                order.add(devices.get(address));
+            for(Id target : router.getTargetedReachablePeers())
+                order.add(devices.get(peers.getAddress(target)));
+            int before = deliver(order);
+
+            /* The scheduled one. */
+            order.clear();
+            HashSet<Id> targets = router.getTargetedReachablePeers();
+            while(true) {
+                ArrayList<ContactScheduler.Contact> contacts = new ArrayList<>();
+                if(peers.hasDiscovery())
+                    contacts.add(scheduler.discovery(peers.peekDiscovery()));
+                for(Id target : targets)
+                    contacts.add(scheduler.transmission(target, false));
+
+                ContactScheduler.Contact next = scheduler.pick(contacts);
+                if(next == null)
+                    break;
+                if(next.isDiscovery())
+                    peers.pollDiscovery();
+                else
+                    targets.remove(next.id);
+                order.add(devices.get(next.address));
+            }
+            int after = deliver(order);
+
+            previous += before;
+            scheduled += after;
+            if(after > before)
+                ++better;
+            else if(after < before)
+                ++worse;
+        }
+
+        Assertions.assertTrue(scheduled > previous * 21 / 20,
+            "Scheduled " + scheduled + " packets across, against " + previous);
+        Assertions.assertTrue(better > worse * 4,
+            "Scheduling did better in " + better + " rounds, and worse in " + worse);
+    }
+}
@@ -0,0 +1,34 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.Benchmark;
+import net.xn__n6x.communication.identity.Id;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/** Measures what logging a step of the engine costs, against building the
+ * string for it, which is what it used to cost before it even got to the
+ * Android log. */
+@Tag(Benchmark.TAG)
+class EventLogBenchmark {
+    @Test
+    void log() throws Exception {
+        EventLog log = new EventLog();
+        Id source = Id.random();
+        Id target = Id.random();
+
+        int events = 1 << 20;
+        Benchmark.measure("event log", events, () -> {
+            for(int i = 0; i < events; ++i)
+                log.log(EventLog.Event.FORWARDED, source, target, i, 0);
+            return log.getCount();
+        });
+
+        int strings = 1 << 14;
+        Benchmark.measure("string building", strings, () -> {
+            long length = 0;
+            for(int i = 0; i < strings; ++i)
+                length += ("    * From: " + source + "    * To:   " + target + "    * Len:  " + i).length();
+            return length;
+        });
+    }
+}
@@ -0,0 +1,66 @@
+package net.xn__n6x.communication.watchdog;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+class EventLogTest {
+    /** Strips the time off of the given dumped event. */
+    static String strip(String line) {
+        return line.substring(line.indexOf(' ') + 1);
+    }
+
+    @Test
+    void dump() {
+        EventLog log = new EventLog(8);
+        Assertions.assertTrue(log.dump().isEmpty());
+
+        log.log(EventLog.Event.SEARCHED, null, null, 3, 1);
+        log.log(EventLog.Event.GAVE_UP, "aa:aa:aa:aa:aa:aa");
+        log.log(EventLog.Event.STATE, WatchdogEngine.State.DISCOVERY, WatchdogEngine.State.DOCKED);
+        log.log(EventLog.Event.UNDOCKED);
+
+        List<String> lines = log.dump();
+        Assertions.assertEquals(4, lines.size());
+        Assertions.assertEquals("SEARCHED: A search has revealed 3 peers, 1 of them yet to be discovered", strip(lines.get(0)));
+        Assertions.assertEquals("GAVE_UP: Giving up on aa:aa:aa:aa:aa:aa until the next search", strip(lines.get(1)));
+        Assertions.assertEquals("STATE: DISCOVERY -> DOCKED", strip(lines.get(2)));
+        Assertions.assertEquals("-0ms UNDOCKED: Restarting the Watchdog cycle", lines.get(3));
+        Assertions.assertTrue(lines.get(0).startsWith("-"));
+    }
+
+    @Test
+    void wrapAround() {
+        EventLog log = new EventLog(4);
+        for(int i = 0; i < 10; ++i)
+            log.log(EventLog.Event.RESTORED, null, i);
+        Assertions.assertEquals(10, log.getCount());
+
+        /* Only the newest are kept, oldest first. */
+        List<String> lines = log.dump();
+        Assertions.assertEquals(4, lines.size());
+        for(int i = 0; i < 4; ++i)
+            Assertions.assertEquals("RESTORED: Restored " + (6 + i) + " peers from our contacts", strip(lines.get(i)));
+    }
+
+    @Test
+    void lazy() {
+        /* Nothing gets put into words until it's dumped. */
+        EventLog log = new EventLog(4);
+        int[] formatted = { 0 };
+        Object subject = new Object() {
+            @Override
+            public String toString() {
+                ++formatted[0];
+                return "subject";
+            }
+        };
+        log.log(EventLog.Event.GAVE_UP, subject);
+        log.log(EventLog.Event.THROTTLED, subject);
+        Assertions.assertEquals(0, formatted[0]);
+
+        Assertions.assertEquals("THROTTLED: subject had no room left for us", strip(log.dump().get(1)));
+        Assertions.assertEquals(2, formatted[0]);
+    }
+}
@@ -0,0 +1,112 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.identity.Id;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+class FrameTest {
+    /** Lays the given buffers out back to back, like a socket would. */
+    static ByteBuffer concat(ByteBuffer[] buffers) {
+        int length = 0;
+        for(ByteBuffer buffer : buffers)
+            length += buffer.remaining();
+
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for(ByteBuffer buffer : buffers)
+            joined.put(buffer.duplicate());
+        joined.flip();
+
+        return joined;
+    }
+
+    /** Reads the header of a frame, and makes sure it has the given type.
+     * @return The body of the frame. */
+    static ByteBuffer body(ByteBuffer frame, Frame.Type type) throws WatchdogException {
+        int length = frame.getInt();
+        Assertions.assertEquals(frame.remaining(), length);
+        Assertions.assertEquals(type, Frame.Type.fromOrdinal(frame.get()));
+
+        return frame.slice();
+    }
+
+    @Test
+    void batch() throws WatchdogException {
+        Id source = Id.random();
+        Id target = Id.random();
+
+        /* Small payloads get copied, large ones get referenced, and there are
+         * enough of them to spill over into a second block. */
+        ArrayList<Packet> packets = new ArrayList<>();
+        for(int size : new int[] { 0, 10, Frame.Batch.COPY_LIMIT, 50, 100000, 20 }) {
+            byte[] payload = new byte[size];
+            for(int i = 0; i < size; ++i)
+                payload[i] = (byte) (i * 31 + size);
+            packets.add(new Packet(source, new Id[] { source }, target, payload));
+        }
+        for(int i = 0; i < 1000; ++i)
+            packets.add(new Packet(source, new Id[] { source }, target, new byte[] { (byte) i }));
+
+        Frame.Batch batch = new Frame.Batch();
+        Assertions.assertTrue(batch.isEmpty());
+        for(int i = 0; i < packets.size(); ++i)
+            batch.add(i + 1, packets.get(i));
+
+        ByteBuffer[] buffers = batch.finish();
+        Assertions.assertTrue(batch.isEmpty());
+        Assertions.assertEquals(0, batch.length());
+
+        ByteBuffer body = body(concat(buffers), Frame.Type.BATCH);
+        Assertions.assertEquals(packets.size(), Frame.readBatchCount(body));
+        for(int i = 0; i < packets.size(); ++i) {
+            Assertions.assertEquals(i + 1, Frame.readSequence(body));
+            Assertions.assertEquals(packets.get(i), Frame.readPacket(body));
+        }
+        Assertions.assertFalse(body.hasRemaining());
+
+        /* The large payload went out from where it was. */
+        boolean referenced = false;
+        for(ByteBuffer buffer : buffers)
+            referenced |= buffer.hasArray() && buffer.array() == packets.get(4).getPayload();
+        Assertions.assertTrue(referenced);
+    }
+
+    @Test
+    void batchesShareBlocks() throws WatchdogException {
+        Id source = Id.random();
+        Id target = Id.random();
+        Packet p = new Packet(source, new Id[] { source }, target, new byte[] { 1, 2, 3 });
+
+        /* Back to back batches, with the first one still waiting to go out. */
+        Frame.Batch batch = new Frame.Batch();
+        batch.add(1, p);
+        ByteBuffer first = concat(batch.finish());
+        batch.add(2, p);
+        batch.add(3, p);
+        ByteBuffer second = concat(batch.finish());
+
+        ByteBuffer body = body(first, Frame.Type.BATCH);
+        Assertions.assertEquals(1, Frame.readBatchCount(body));
+        Assertions.assertEquals(1, Frame.readSequence(body));
+        Assertions.assertEquals(p, Frame.readPacket(body));
+
+        body = body(second, Frame.Type.BATCH);
+        Assertions.assertEquals(2, Frame.readBatchCount(body));
+        Assertions.assertEquals(2, Frame.readSequence(body));
+        Assertions.assertEquals(p, Frame.readPacket(body));
+        Assertions.assertEquals(3, Frame.readSequence(body));
+        Assertions.assertEquals(p, Frame.readPacket(body));
+    }
+
+    @Test
+    void emptyBatch() {
+        Assertions.assertThrows(IllegalStateException.class, () -> new Frame.Batch().finish());
+
+        ByteBuffer body = ByteBuffer.allocate(4);
+        body.putInt(0, 0);
+        Assertions.assertThrows(WatchdogException.class, () -> Frame.readBatchCount(body));
+    }
+}
@@ -0,0 +1,224 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.identity.Id;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+class PeerTableTest {
+    @Test
+    void discovery() {
+        PeerTable table = new PeerTable();
+        Id b = Id.random();
+
+        /* Unknown peers line up in the order they were found, once. */
+        Assertions.assertTrue(table.onSearched(Arrays.asList("aa", "bb", "cc"), 1).isEmpty());
+        table.onSearched(Arrays.asList("cc", "bb", "dd"), 2);
+        Assertions.assertEquals(Arrays.asList("aa", "bb", "cc", "dd"), Arrays.asList(table.getDiscovery().toArray()));
+
+        /* Learning who one is, however we did, takes it out of line. */
+        Assertions.assertTrue(table.identify("bb", b, 3));
+        Assertions.assertFalse(table.identify("bb", b, 4));
+        Assertions.assertEquals("aa", table.pollDiscovery());
+        Assertions.assertEquals(PeerTable.State.DISCOVERING, table.get("aa").state);
+        Assertions.assertEquals("cc", table.pollDiscovery());
+
+        /* Those being discovered don't line up again. */
+        table.onSearched(Arrays.asList("aa", "bb", "cc", "dd"), 5);
+        Assertions.assertEquals(Collections.singletonList("dd"), Arrays.asList(table.getDiscovery().toArray()));
+        Assertions.assertEquals("dd", table.pollDiscovery());
+        Assertions.assertNull(table.pollDiscovery());
+        Assertions.assertFalse(table.hasDiscovery());
+
+        /* Unless they failed. */
+        table.fail("aa", 5);
+        table.onSearched(Arrays.asList("aa", "bb"), 6);
+        Assertions.assertEquals("aa", table.pollDiscovery());
+        Assertions.assertEquals(1, table.get("aa").failures);
+    }
+
+    @Test
+    void lookups() {
+        PeerTable table = new PeerTable();
+        Id a = Id.random();
+        Id b = Id.random();
+
+        table.identify("aa", a, 1);
+        table.identify("bb", b, 1);
+        Assertions.assertEquals(a, table.getId("aa"));
+        Assertions.assertEquals("bb", table.getAddress(b));
+        Assertions.assertSame(table.get("aa"), table.get(a));
+        Assertions.assertNull(table.getId("cc"));
+        Assertions.assertNull(table.getAddress(Id.random()));
+
+        /* An Id that moves takes what we knew of it along. */
+        table.onLinking("aa", 10);
+        table.onLinked("aa", 30);
+        table.identify("cc", a, 40);
+        Assertions.assertNull(table.get("aa"));
+        Assertions.assertEquals("cc", table.getAddress(a));
+        Assertions.assertEquals(20, table.get(a).connectLatency);
+
+        /* And an address that changes hands forgets its old Id. */
+        table.identify("bb", a, 50);
+        Assertions.assertNull(table.get(b));
+        Assertions.assertNull(table.get("cc"));
+        Assertions.assertEquals(a, table.getId("bb"));
+    }
+
+    @Test
+    void states() {
+        PeerTable table = new PeerTable();
+        Id a = Id.random();
+        Id b = Id.random();
+        table.identify("aa", a, 1);
+        table.identify("bb", b, 1);
+
+        /* Known peers are reachable for as long as searches find them. */
+        Assertions.assertEquals(Collections.singleton(a), table.onSearched(Collections.singletonList("aa"), 2));
+        Assertions.assertEquals(PeerTable.State.REACHABLE, table.get(a).state);
+        Assertions.assertEquals(PeerTable.State.KNOWN, table.get(b).state);
+        Assertions.assertEquals(2, table.get(a).lastSeen);
+
+        /* And failing until the next one. */
+        table.fail("aa", 2);
+        Assertions.assertTrue(table.isFailing(a));
+        Assertions.assertEquals(Collections.singleton(a), table.getIds(PeerTable.State.FAILING));
+        table.identify("aa", a, 3);
+        Assertions.assertTrue(table.isFailing(a));
+        table.onSearched(Arrays.asList("aa", "bb"), 4);
+        Assertions.assertFalse(table.isFailing(a));
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(a, b)), table.getIds(PeerTable.State.REACHABLE));
+    }
+
+    @Test
+    void circuits() {
+        PeerTable table = new PeerTable();
+        Id a = Id.random();
+        table.identify("aa", a, 0);
+        table.onSearched(Arrays.asList("aa", "bb"), 0);
+        Assertions.assertEquals("bb", table.pollDiscovery());
+
+        /* A couple of failures only last until the next search. */
+        Assertions.assertEquals(0, table.fail("aa", 10));
+        Assertions.assertEquals(0, table.fail("aa", 20));
+        Assertions.assertEquals(PeerTable.Circuit.CLOSED, table.get(a).getCircuit(20));
+        table.onSearched(Collections.singletonList("aa"), 30);
+        Assertions.assertFalse(table.isFailing(a));
+
+        /* One too many, and searches leave them alone for a while, known or
+         * not. Known ones are still around, though. */
+        Assertions.assertEquals(PeerTable.COOLDOWN, table.fail("aa", 100));
+        for(int i = 0; i < PeerTable.FAILURE_THRESHOLD; ++i)
+            table.fail("bb", 100);
+        Assertions.assertEquals(PeerTable.Circuit.OPEN, table.get(a).getCircuit(100));
+        Assertions.assertEquals(Collections.singleton(a), table.onSearched(Arrays.asList("aa", "bb"), 200));
+        Assertions.assertTrue(table.isFailing(a));
+        Assertions.assertFalse(table.hasDiscovery());
+
+        /* Going out of reach doesn't reset them either. */
+        table.onSearched(Collections.emptyList(), 300);
+        Assertions.assertTrue(table.isFailing(a));
+
+        /* Once the cooldown is over, they get a single try. */
+        long over = 100 + PeerTable.COOLDOWN;
+        Assertions.assertEquals(PeerTable.Circuit.HALF_OPEN, table.get(a).getCircuit(over));
+        table.onSearched(Arrays.asList("aa", "bb"), over);
+        Assertions.assertFalse(table.isFailing(a));
+        Assertions.assertEquals("bb", table.pollDiscovery());
+
+        /* Which, should it fail, opens them again for longer. */
+        Assertions.assertEquals(2 * PeerTable.COOLDOWN, table.fail("aa", over));
+        Assertions.assertEquals(PeerTable.Circuit.OPEN, table.get(a).getCircuit(over + PeerTable.COOLDOWN));
+
+        /* And should it go through, closes them. */
+        table.onExchanged(a, 1024, 100);
+        Assertions.assertEquals(PeerTable.Circuit.CLOSED, table.get(a).getCircuit(over));
+        Assertions.assertEquals(0, table.get(a).strikes);
+        Assertions.assertEquals(PeerTable.FAILURE_THRESHOLD + 1, table.get(a).failures);
+
+        /* Cooldowns only get so long. */
+        for(int i = 0; i < 100; ++i)
+            table.fail("aa", 0);
+        Assertions.assertEquals(PeerTable.MAX_COOLDOWN, table.fail("aa", 0));
+    }
+
+    @Test
+    void identifyKeepsHistory() {
+        PeerTable table = new PeerTable();
+        Id a = Id.random();
+
+        /* What we knew of a device before we found out who it was sticks,
+         * including the link that we're discovering it over. */
+        table.onSearched(Collections.singletonList("aa"), 0);
+        Assertions.assertEquals("aa", table.pollDiscovery());
+        table.fail("aa", 5);
+        table.onSearched(Collections.singletonList("aa"), 10);
+        Assertions.assertEquals("aa", table.pollDiscovery());
+        table.onLinking("aa", 10);
+        Assertions.assertTrue(table.identify("aa", a, 30));
+        Assertions.assertFalse(table.isDiscovering());
+        Assertions.assertEquals(20, table.onLinked("aa", 30));
+        Assertions.assertEquals(1, table.get(a).links);
+        Assertions.assertEquals(20, table.get(a).connectLatency);
+        Assertions.assertEquals(1, table.get(a).failures);
+        Assertions.assertEquals(1, table.get(a).strikes);
+
+        /* An Id that moves to an address we were discovering takes the
+         * link along. */
+        table.onSearched(Collections.singletonList("bb"), 40);
+        Assertions.assertEquals("bb", table.pollDiscovery());
+        table.onLinking("bb", 40);
+        Assertions.assertTrue(table.identify("bb", a, 50));
+        Assertions.assertEquals(10, table.onLinked("bb", 50));
+        Assertions.assertEquals(2, table.get(a).links);
+    }
+
+    @Test
+    void statistics() {
+        PeerTable table = new PeerTable();
+        Id a = Id.random();
+        table.identify("aa", a, 0);
+
+        /* Links we didn't ask for don't count. */
+        table.onLinked("aa", 100);
+        Assertions.assertEquals(0, table.get(a).links);
+
+        table.onLinking("aa", 0);
+        table.onLinked("aa", 100);
+        table.onLinking("aa", 200);
+        table.onLinked("aa", 220);
+        Assertions.assertEquals(2, table.get(a).links);
+        Assertions.assertEquals(80, table.get(a).connectLatency);
+
+        table.onExchanged(a, 1000, 1000);
+        table.onExchanged(a, 5000, 1000);
+        Assertions.assertEquals(2, table.get(a).sessions);
+        Assertions.assertEquals(2000, table.get(a).throughput, 1e-9);
+    }
+
+    @Test
+    void snapshots() {
+        PeerTable table = new PeerTable();
+        Id a = Id.random();
+        table.identify("aa", a, 0);
+
+        List<PeerTable.Peer> before = table.snapshot();
+        Assertions.assertSame(before, table.snapshot());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> before.remove(0));
+
+        /* Writes never show up in a snapshot that has already been taken. */
+        table.fail("aa", 1);
+        table.onSearched(Arrays.asList("aa", "bb"), 1);
+        Assertions.assertEquals(1, before.size());
+        Assertions.assertEquals(0, before.get(0).failures);
+        Assertions.assertNotSame(table.get(a), before.get(0));
+
+        List<PeerTable.Peer> after = table.snapshot();
+        Assertions.assertEquals(2, after.size());
+    }
+}
@@ -0,0 +1,51 @@
+package net.xn__n6x.communication.watchdog;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+class ScanSchedulerTest {
+    @Test
+    void stretches() {
+        ScanScheduler scans = new ScanScheduler(100, 1000, new Random(1));
+
+        /* Somebody new shows up, so we keep looking. */
+        Assertions.assertTrue(scans.onSearched(Collections.singletonList("aa:aa:aa:aa:aa:aa")));
+        Assertions.assertEquals(100, scans.getInterval());
+
+        /* Nobody new does, so we look less and less often. */
+        long[] intervals = { 200, 400, 800, 1000, 1000 };
+        for(long interval : intervals) {
+            Assertions.assertFalse(scans.onSearched(Collections.singletonList("aa:aa:aa:aa:aa:aa")));
+            Assertions.assertEquals(interval, scans.getInterval());
+        }
+
+        /* Losing someone isn't news either. */
+        Assertions.assertFalse(scans.onSearched(Collections.emptyList()));
+        Assertions.assertEquals(1000, scans.getInterval());
+
+        /* Until somebody new shows up again. */
+        Assertions.assertTrue(scans.onSearched(Arrays.asList("aa:aa:aa:aa:aa:aa", "bb:bb:bb:bb:bb:bb")));
+        Assertions.assertEquals(100, scans.getInterval());
+    }
+
+    @Test
+    void pending() {
+        ScanScheduler scans = new ScanScheduler(100, 1000, new Random(1));
+        for(int i = 0; i < 8; ++i)
+            scans.onSearched(Collections.emptyList());
+        Assertions.assertEquals(1000, scans.getInterval());
+
+        /* Packets waiting on someone keep us looking as often as we can. */
+        for(int i = 0; i < 100; ++i) {
+            long pending = scans.next(true);
+            Assertions.assertTrue(pending >= 80 && pending <= 120, "pending " + pending);
+
+            long idle = scans.next(false);
+            Assertions.assertTrue(idle >= 800 && idle <= 1200, "idle " + idle);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.identity.Id;
+import net.xn__n6x.communication.identity.Keys;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+class ServiceRecordTest {
+    @Test
+    void roundTrip() throws WatchdogException {
+        Id id = Keys.generate().getId();
+        ServiceRecord record = ServiceRecord.of(id, Arrays.asList(Id.random(), Id.random()));
+
+        Map<String, String> txt = record.toTxt();
+        ServiceRecord read = ServiceRecord.fromTxt(txt);
+        Assertions.assertEquals(record, read);
+        Assertions.assertEquals(id, read.id);
+        Assertions.assertTrue(read.isCompatible());
+
+        /* It all fits in the one string DNS-SD allows every entry. */
+        for(Map.Entry<String, String> entry : txt.entrySet())
+            Assertions.assertTrue(entry.getKey().length() + 1 + entry.getValue().length() <= 255);
+    }
+
+    @Test
+    void digest() {
+        ArrayList<Id> targets = new ArrayList<>();
+        for(int i = 0; i < 4; ++i)
+            targets.add(Id.random());
+        ServiceRecord record = ServiceRecord.of(Id.random(), targets);
+
+        /* Never misses a peer it has packets for. */
+        for(Id target : targets)
+            Assertions.assertTrue(record.mayHaveFor(target));
+
+        /* And mostly rules out those it doesn't. */
+        int falsePositives = 0;
+        for(int i = 0; i < 1000; ++i)
+            if(record.mayHaveFor(Id.random()))
+                ++falsePositives;
+        Assertions.assertTrue(falsePositives < 100, "Got " + falsePositives + " false positives");
+
+        /* With nothing waiting, there's nothing to claim. */
+        Assertions.assertFalse(ServiceRecord.of(Id.random(), Collections.emptyList()).mayHaveFor(targets.get(0)));
+    }
+
+    @Test
+    void malformed() {
+        Map<String, String> txt = ServiceRecord.of(Id.random(), Collections.emptyList()).toTxt();
+
+        for(String key : txt.keySet()) {
+            Map<String, String> missing = new HashMap<>(txt);
+            missing.remove(key);
+            Assertions.assertThrows(WatchdogException.class, () -> ServiceRecord.fromTxt(missing));
+
+            Map<String, String> garbled = new HashMap<>(txt);
+            garbled.put(key, "zz");
+            Assertions.assertThrows(WatchdogException.class, () -> ServiceRecord.fromTxt(garbled));
+        }
+
+        /* Other versions read just fine, it's up to the engine to skip them. */
+        Map<String, String> other = new HashMap<>(txt);
+        other.put(ServiceRecord.VERSION_KEY, Integer.toString(Frame.VERSION + 1));
+        Assertions.assertDoesNotThrow(() -> Assertions.assertFalse(ServiceRecord.fromTxt(other).isCompatible()));
+    }
+}
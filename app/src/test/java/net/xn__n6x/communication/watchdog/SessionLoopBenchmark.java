@@ -0,0 +1,153 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.Benchmark;
+import net.xn__n6x.communication.control.Packet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+/** Drives the {@link SessionLoop} over loopback. */
+@Tag(Benchmark.TAG)
+class SessionLoopBenchmark {
+    @Test
+    void discoverySessions() throws Exception {
+        try(TestNode owner = new TestNode("00:00:00:00:00:00");
+            TestNode client = new TestNode("aa:aa:aa:aa:aa:aa")) {
+
+            int sessions = 200;
+            Benchmark.measure("discovery session", sessions, () -> {
+                for(int i = 0; i < sessions; ++i) {
+                    client.connect(owner);
+                    Assertions.assertFalse(client.awaitClose().isPresent());
+                    Assertions.assertFalse(owner.awaitClose().isPresent());
+                }
+                return sessions;
+            });
+        }
+    }
+
+    @Test
+    void concurrentClients() throws Exception {
+        /* One loop on the owner serving every client at the same time. */
+        int clients = 16;
+        TestNode owner = new TestNode("00:00:00:00:00:00");
+        TestNode[] nodes = new TestNode[clients];
+        for(int i = 0; i < clients; ++i)
+            nodes[i] = new TestNode(String.format("aa:aa:aa:aa:aa:%02x", i));
+
+        try {
+            Benchmark.measure("discovery session, " + clients + " clients at once", clients, () -> {
+                for(TestNode node : nodes)
+                    node.connect(owner);
+                for(int i = 0; i < clients; ++i)
+                    Assertions.assertFalse(owner.awaitClose().isPresent());
+                for(TestNode node : nodes)
+                    Assertions.assertFalse(node.awaitClose().isPresent());
+                return clients;
+            });
+        } finally {
+            owner.close();
+            for(TestNode node : nodes)
+                node.close();
+        }
+    }
+
+    @Test
+    void transmissionThroughput() throws Exception {
+        for(int size : new int[] { 64, 1024, 65536 }) {
+            int count = Math.max(16, (8 * 1024 * 1024) / size);
+            try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+                TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+                Benchmark.measure("transmission, " + count + " packets of " + size + "B", count, () -> {
+                    b.received.clear();
+                    a.queue(b.id, count, size);
+
+                    a.connect(b);
+                    Assertions.assertFalse(a.awaitClose().isPresent());
+                    Assertions.assertFalse(b.awaitClose().isPresent());
+                    Assertions.assertEquals(count, b.received.size());
+                    return count;
+                });
+            }
+        }
+    }
+
+    @Test
+    void textMessages() throws Exception {
+        /* The bread and butter of the network: short chat messages. */
+        int count = 100000;
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            Benchmark.measure("transmission, " + count + " text messages", count, () -> {
+                b.received.clear();
+                a.queueText(b.id, count);
+
+                a.connect(b);
+                Assertions.assertFalse(a.awaitClose().isPresent());
+                Assertions.assertFalse(b.awaitClose().isPresent());
+                Assertions.assertEquals(count, b.received.size());
+                return count;
+            });
+        }
+    }
+
+    @Test
+    void attachmentThroughput() throws Exception {
+        /* Compare, byte for byte, with the large heap packets above. */
+        int count = 4;
+        int size = 16 * 1024 * 1024;
+        File[] files = new File[count];
+        for(int i = 0; i < count; ++i)
+            files[i] = TestNode.randomFile(size);
+
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            Benchmark.measure("transmission, " + count + " attachments of 16MiB", count, () -> {
+                b.received.clear();
+                for(int i = 0; i < count; ++i)
+                    a.queueAttachment(b.id, new byte[] { (byte) i }, files[i]);
+
+                a.connect(b);
+                Assertions.assertFalse(a.awaitClose().isPresent());
+                Assertions.assertFalse(b.awaitClose().isPresent());
+                Assertions.assertEquals(count, b.received.size());
+
+                for(Packet p : b.received)
+                    p.getAttachment().ifPresent(attachment -> attachment.getFile().delete());
+                return count;
+            });
+        } finally {
+            for(File file : files)
+                file.delete();
+        }
+    }
+
+    @Test
+    void sessionTimeByBatchSize() throws Exception {
+        /* Both sides have a batch of small messages for one another. */
+        for(int batch : new int[] { 1, 10, 100, 1000, 10000 }) {
+            try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+                TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+                Benchmark.measure("transmission session, batch of " + batch + " each way", 1, () -> {
+                    a.received.clear();
+                    b.received.clear();
+                    a.queue(b.id, batch, 256);
+                    b.queue(a.id, batch, 256);
+
+                    a.connect(b);
+                    Assertions.assertFalse(a.awaitClose().isPresent());
+                    Assertions.assertFalse(b.awaitClose().isPresent());
+                    Assertions.assertEquals(batch, a.received.size());
+                    Assertions.assertEquals(batch, b.received.size());
+                    return batch;
+                });
+            }
+        }
+    }
+}
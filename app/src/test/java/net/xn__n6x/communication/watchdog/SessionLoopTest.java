@@ -0,0 +1,416 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.identity.Id;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+class SessionLoopTest {
+    @Test
+    void discovery() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            a.connect(b);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+
+            /* Both sides learn about each other. */
+            Assertions.assertEquals(b.address, a.discovered.get(b.id));
+            Assertions.assertEquals(a.address, b.discovered.get(a.id));
+        }
+    }
+
+    @Test
+    void singleSession() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            /* Neither side knows the other, yet a single session both
+             * identifies them and delivers what they had for each other. */
+            a.queue(b.id, 5, 10);
+            b.queue(a.id, 7, 10);
+            a.discovered.clear();
+
+            a.connect(b);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+
+            Assertions.assertEquals(b.address, a.discovered.get(b.id));
+            Assertions.assertEquals(a.address, b.discovered.get(a.id));
+            Assertions.assertEquals(7, a.received.size());
+            Assertions.assertEquals(5, b.received.size());
+        }
+    }
+
+    @Test
+    void transmission() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            /* Make them large enough to need more than a single read. */
+            a.queue(b.id, 50, 100000);
+            b.queue(a.id, 3, 10);
+
+            b.connect(a);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+
+            Assertions.assertEquals(3, a.received.size());
+            Assertions.assertEquals(50, b.received.size());
+            Assertions.assertFalse(a.router.getNextMessageForPeer(b.id).isPresent());
+
+            /* Packets are tagged with the peer they were sent to. */
+            Assertions.assertEquals(b.id, b.received.get(0).getRoute()[1]);
+        }
+    }
+
+    @Test
+    void fullDuplex() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            /* Batches much larger than the socket buffers, going both ways at
+             * once, must neither deadlock nor be pulled out all at once. */
+            a.queue(b.id, 2000, 8192);
+            b.queue(a.id, 2000, 8192);
+
+            a.connect(b);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+
+            Assertions.assertEquals(2000, a.received.size());
+            Assertions.assertEquals(2000, b.received.size());
+        }
+    }
+
+    @Test
+    void credit() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            /* b only lets a have a couple of packets in flight at a time. */
+            b.credit = 2500;
+            a.queue(b.id, 40, 1000);
+
+            a.connect(b);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+
+            Assertions.assertEquals(40, b.received.size());
+            Assertions.assertFalse(a.sessions.get(0).isThrottled());
+        }
+    }
+
+    @Test
+    void creditSmallerThanPacket() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            /* Packets that never fit still go, one at a time. */
+            b.credit = 100;
+            a.queue(b.id, 3, 1000);
+
+            a.connect(b);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+
+            Assertions.assertEquals(3, b.received.size());
+        }
+    }
+
+    @Test
+    void noCredit() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            /* b is full, so a keeps its packets for later. */
+            b.credit = 0;
+            a.queue(b.id, 5, 10);
+
+            a.connect(b);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+
+            Assertions.assertEquals(0, b.received.size());
+            Assertions.assertTrue(a.sessions.get(0).isThrottled());
+            Assertions.assertEquals(5, a.router.getQueuedCount(b.id));
+        }
+    }
+
+    @Test
+    void pastCredit() throws IOException, InterruptedException, WatchdogException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            SocketChannel channel = SocketChannel.open(a.bound)) {
+            a.credit = 100;
+            Id peer = Id.random();
+            handshake(channel, peer, 0);
+
+            /* The peer pays no mind to the credit it was given. */
+            Frame.Batch batch = new Frame.Batch();
+            batch.add(1, new Packet(peer, new Id[] {}, a.id, new byte[40]));
+            batch.add(2, new Packet(peer, new Id[] {}, a.id, new byte[100]));
+            channel.write(FrameTest.concat(batch.finish()));
+
+            WatchdogException error = a.awaitClose().orElseThrow(AssertionError::new);
+            Assertions.assertTrue(error.getMessage().contains("credit"), error::getMessage);
+            Assertions.assertEquals(1, a.received.size());
+        }
+    }
+
+    @Test
+    void attachments() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+
+            /* Files of all sizes, with regular packets around them. Those all
+             * differ in size, or the router takes them for copies. */
+            File[] files = {
+                TestNode.randomFile(5 * 1024 * 1024),
+                TestNode.randomFile(0),
+                TestNode.randomFile(100)
+            };
+            for(int i = 0; i < files.length; ++i) {
+                a.queue(b.id, 1, 10 + i);
+                a.queueAttachment(b.id, new byte[] { (byte) i }, files[i]);
+            }
+            a.queue(b.id, 1, 10 + files.length);
+
+            a.connect(b);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+
+            List<Packet> attached = b.received.stream()
+                .filter(p -> p.getAttachment().isPresent())
+                .collect(Collectors.toList());
+            Assertions.assertEquals(files.length * 2 + 1, b.received.size());
+            Assertions.assertEquals(files.length, attached.size());
+
+            for(Packet p : attached) {
+                File sent = files[p.getPayload()[0]];
+                File got = p.getAttachment().get().getFile();
+
+                Assertions.assertNotEquals(sent, got);
+                Assertions.assertEquals(sent.length(), p.getAttachment().get().getLength());
+                Assertions.assertArrayEquals(readAll(sent), readAll(got));
+            }
+        }
+    }
+
+    static byte[] readAll(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try(DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(data);
+        }
+        return data;
+    }
+
+    @Test
+    void concurrentSessions() throws IOException, InterruptedException {
+        /* A single loop serves several peers at once. */
+        try(TestNode owner = new TestNode("00:00:00:00:00:00");
+            TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb");
+            TestNode c = new TestNode("cc:cc:cc:cc:cc:cc")) {
+
+            a.connect(owner);
+            b.connect(owner);
+            c.connect(owner);
+            for(int i = 0; i < 3; ++i)
+                Assertions.assertEquals(Optional.empty(), owner.awaitClose());
+
+            Assertions.assertEquals(3, owner.discovered.size());
+        }
+    }
+
+    @Test
+    void resume() throws IOException, InterruptedException, WatchdogException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa")) {
+            Id peer = Id.random();
+            a.queue(peer, 10, 10);
+
+            /* The peer gets a few packets in, and then drops off without
+             * acknowledging any of them. */
+            try(SocketChannel channel = SocketChannel.open(a.bound)) {
+                handshake(channel, peer, 0);
+                ByteBuffer frame = readFrame(channel, Frame.Type.BATCH);
+                int count = Frame.readBatchCount(frame);
+                for(int i = 1; i <= count; ++i) {
+                    Assertions.assertEquals(i, Frame.readSequence(frame));
+                    Frame.readPacket(frame);
+                }
+            }
+            Assertions.assertTrue(a.awaitClose().isPresent());
+            Assertions.assertEquals(10, a.router.getQueuedCount(peer));
+
+            /* It comes back having kept only three of them, and only gets sent
+             * the ones after that. */
+            try(SocketChannel channel = SocketChannel.open(a.bound)) {
+                handshake(channel, peer, 3);
+                for(int i = 4; i <= 10; ) {
+                    ByteBuffer frame = readFrame(channel, Frame.Type.BATCH);
+                    int count = Frame.readBatchCount(frame);
+                    for(int j = 0; j < count; ++j, ++i) {
+                        Assertions.assertEquals(i, Frame.readSequence(frame));
+                        Assertions.assertEquals(peer, Frame.readPacket(frame).getTarget());
+                    }
+                }
+                readFrame(channel, Frame.Type.END);
+
+                channel.write(Frame.end());
+                channel.write(Frame.ack(10, Long.MAX_VALUE));
+                Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            }
+            Assertions.assertEquals(0, a.router.getQueuedCount(peer));
+        }
+    }
+
+    /** Plays the part of a peer with nothing to send, opening a session that
+     * resumes after the given sequence number. */
+    static void handshake(SocketChannel channel, Id id, long resume) throws IOException, WatchdogException {
+        channel.write(Frame.hello(id, "bb:bb:bb:bb:bb:bb"));
+        readFrame(channel, Frame.Type.HELLO);
+        readFrame(channel, Frame.Type.SUMMARY);
+        channel.write(Frame.summary(new Frame.Summary(0, 0, resume, Long.MAX_VALUE)));
+    }
+
+    /** Blocks until a whole frame has been read, and makes sure it has the
+     * given type.
+     * @return The body of the frame. */
+    static ByteBuffer readFrame(SocketChannel channel, Frame.Type type) throws IOException, WatchdogException {
+        ByteBuffer header = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+        while(header.hasRemaining())
+            if(channel.read(header) < 0) throw new IOException("Hung up");
+        header.flip();
+
+        ByteBuffer body = ByteBuffer.allocate(header.getInt() - 1);
+        Assertions.assertEquals(type, Frame.Type.fromOrdinal(header.get()));
+        while(body.hasRemaining())
+            if(channel.read(body) < 0) throw new IOException("Hung up");
+        body.flip();
+
+        return body;
+    }
+
+    @Test
+    void handshakeDeadline() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa")) {
+            a.loop.setTimeout(Deadline.HANDSHAKE, 200);
+
+            /* Someone connects, and then never says a word. */
+            try(SocketChannel channel = SocketChannel.open(a.bound)) {
+                WatchdogException error = a.awaitClose().orElseThrow(AssertionError::new);
+                Assertions.assertTrue(error instanceof DeadlineException);
+                Assertions.assertEquals(Deadline.HANDSHAKE, ((DeadlineException) error).getDeadline());
+
+                /* And gets hung up on. */
+                ByteBuffer sink = ByteBuffer.allocate(1024);
+                while(channel.read(sink) >= 0)
+                    sink.clear();
+            }
+        }
+    }
+
+    @Test
+    void progressDeadline() throws IOException, InterruptedException, WatchdogException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa")) {
+            a.loop.setTimeout(Deadline.PROGRESS, 200);
+            Id peer = Id.random();
+            a.queue(peer, 10, 10);
+
+            /* The peer says hello, and then sits on everything we send it. */
+            try(SocketChannel channel = SocketChannel.open(a.bound)) {
+                handshake(channel, peer, 0);
+
+                WatchdogException error = a.awaitClose().orElseThrow(AssertionError::new);
+                Assertions.assertTrue(error instanceof DeadlineException);
+                Assertions.assertEquals(Deadline.PROGRESS, ((DeadlineException) error).getDeadline());
+            }
+
+            /* Nothing was acknowledged, so it all goes out next time. */
+            Assertions.assertEquals(10, a.router.getQueuedCount(peer));
+        }
+    }
+
+    @Test
+    void versionMismatch() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            SocketChannel channel = SocketChannel.open(a.bound)) {
+
+            /* A peer from the future says hello. */
+            ByteBuffer hello = Frame.hello(Id.random(), "bb:bb:bb:bb:bb:bb");
+            hello.put(Frame.HEADER_LENGTH + Frame.MAGIC.length, (byte) (Frame.VERSION + 1));
+            channel.write(hello);
+
+            Assertions.assertTrue(a.awaitClose().isPresent());
+        }
+    }
+
+    @Test
+    void garbage() throws IOException, InterruptedException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            SocketChannel channel = SocketChannel.open(a.bound)) {
+
+            /* Something that isn't a Watchdog sends us a silly frame length. */
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7f, 0x7f, 0x7f, 0x7f, 0x00 }));
+            Assertions.assertTrue(a.awaitClose().isPresent());
+        }
+    }
+
+    @Test
+    void malformedRoute() throws IOException, InterruptedException, WatchdogException {
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa");
+            SocketChannel channel = SocketChannel.open(a.bound)) {
+            Id peer = Id.random();
+            handshake(channel, peer, 0);
+
+            /* A packet claiming a route far longer than the frame it's in. */
+            Frame.Batch batch = new Frame.Batch();
+            batch.add(1, new Packet(peer, new Id[] {}, a.id, new byte[] { 1 }));
+            ByteBuffer frame = FrameTest.concat(batch.finish());
+            frame.putInt(Frame.HEADER_LENGTH + 4 + 8 + 2 * Id.ID_LENGTH + 1, Integer.MAX_VALUE);
+            channel.write(frame);
+
+            Assertions.assertTrue(a.awaitClose().isPresent());
+            Assertions.assertTrue(a.received.isEmpty());
+        }
+    }
+
+    @Test
+    void delegateFailure() throws IOException, InterruptedException {
+        AtomicBoolean failed = new AtomicBoolean();
+        try(TestNode a = new TestNode("aa:aa:aa:aa:aa:aa") {
+                @Override
+                public void onPacketReceived(Id peer, long sequence, Packet p) {
+                    if(!failed.getAndSet(true))
+                        throw new IllegalStateException("Out of luck");
+                    super.onPacketReceived(peer, sequence, p);
+                }
+            };
+            TestNode b = new TestNode("bb:bb:bb:bb:bb:bb")) {
+            b.queue(a.id, 1, 10);
+
+            /* The session the delegate blew up in goes down on its own. */
+            b.connect(a);
+            Assertions.assertTrue(a.awaitClose().isPresent());
+            Assertions.assertTrue(b.awaitClose().isPresent());
+
+            /* And the loop carries on with the next. */
+            b.connect(a);
+            Assertions.assertEquals(Optional.empty(), a.awaitClose());
+            Assertions.assertEquals(Optional.empty(), b.awaitClose());
+            Assertions.assertEquals(1, a.received.size());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.control.Attachment;
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.control.Router;
+import net.xn__n6x.communication.identity.Id;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Stand-in for the {@link Watchdog} on a plain JVM, backed by a real
+ * {@link Router} and running its own {@link SessionLoop} over loopback. */
+class TestNode implements Session.Delegate, AutoCloseable {
+    final Id id;
+    final String address;
+    final Router router;
+    final SessionLoop loop;
+    /** Address our server is listening on. */
+    final InetSocketAddress bound;
+    /** Packets that were addressed to us. */
+    final List<Packet> received;
+    /** Peers that have told us who they are. */
+    final Map<Id, String> discovered;
+    /** Outcome of every session that has closed, in order. */
+    final LinkedBlockingQueue<Optional<WatchdogException>> closed;
+    /** Credit we grant our peers. Unlimited, unless a test says otherwise. */
+    volatile long credit;
+    /** Every session that has closed, in order. */
+    final List<Session> sessions;
+
+    TestNode(String address) throws IOException {
+        this.id = Id.random();
+        this.address = address;
+        this.router = new Router(this.id);
+        this.received = Collections.synchronizedList(new ArrayList<>());
+        this.discovered = Collections.synchronizedMap(new HashMap<>());
+        this.closed = new LinkedBlockingQueue<>();
+        this.credit = Long.MAX_VALUE;
+        this.sessions = Collections.synchronizedList(new ArrayList<>());
+
+        this.loop = new SessionLoop(this);
+        this.bound = this.loop.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.loop.start();
+    }
+
+    /** Opens a session with the given node. */
+    void connect(TestNode other) {
+        this.loop.connect(other.bound);
+    }
+
+    /** Waits for the next session to close.
+     * @return Why it failed, if it did. */
+    Optional<WatchdogException> awaitClose() throws InterruptedException {
+        Optional<WatchdogException> result = this.closed.poll(10, TimeUnit.SECONDS);
+        if(result == null)
+            throw new AssertionError("Timed out waiting for the session to close");
+        return result;
+    }
+
+    @Override
+    public Id getId() {
+        return this.id;
+    }
+
+    @Override
+    public String getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public void onDiscovered(Id id, String address) {
+        this.discovered.put(id, address);
+        synchronized(this.router) {
+            this.router.register(id);
+        }
+    }
+
+    @Override
+    public long credit(Id peer, long previous) {
+        return this.credit;
+    }
+
+    @Override
+    public Frame.Summary summarize(Id peer) {
+        synchronized(this.router) {
+            return new Frame.Summary(
+                this.router.getQueuedCount(peer),
+                this.router.getQueuedBytes(peer),
+                this.router.getLastAccepted(peer),
+                this.credit);
+        }
+    }
+
+    @Override
+    public boolean claim(Id peer) {
+        return true;
+    }
+
+    @Override
+    public Optional<Router.Lease> nextOutbound(Id peer) {
+        synchronized(this.router) {
+            return this.router.lease(peer);
+        }
+    }
+
+    @Override
+    public void onAcknowledged(Id peer, long sequence) {
+        synchronized(this.router) {
+            this.router.acknowledge(peer, sequence);
+        }
+    }
+
+    @Override
+    public File newAttachmentFile() throws IOException {
+        File file = File.createTempFile("attachment", null);
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Override
+    public void onPacketReceived(Id peer, long sequence, Packet p) {
+        synchronized(this.router) {
+            if(!this.router.accept(peer, sequence))
+                return;
+            if(!p.getTarget().equals(this.id))
+                this.router.forward(p, Router.DEFAULT_TIME_TO_LIVE);
+        }
+        if(p.getTarget().equals(this.id))
+            this.received.add(p);
+    }
+
+    @Override
+    public void onSessionClosed(Session session, WatchdogException error) {
+        if(session != null && session.getPeer() != null) synchronized(this.router) {
+            this.router.release(session.getPeer());
+        }
+        if(session != null)
+            this.sessions.add(session);
+        this.closed.add(Optional.ofNullable(error));
+    }
+
+    /** Queues up the given number of packets of the given size for a peer. */
+    void queue(Id peer, int count, int size) {
+        synchronized(this.router) {
+            this.router.register(peer);
+            for(int i = 0; i < count; ++i) {
+                byte[] payload = new byte[Math.max(size, 4)];
+                payload[0] = (byte) i;
+                payload[1] = (byte) (i >> 8);
+                payload[2] = (byte) (i >> 16);
+                payload[3] = (byte) (i >> 24);
+                this.router.forward(new Packet(this.id, new Id[] { this.id }, peer, payload), Router.DEFAULT_TIME_TO_LIVE);
+            }
+        }
+    }
+
+    /** Queues up the given number of short text messages for a peer. */
+    void queueText(Id peer, int count) {
+        synchronized(this.router) {
+            this.router.register(peer);
+            for(int i = 0; i < count; ++i) {
+                byte[] payload = ("Message number " + i + ", see you soon!").getBytes(StandardCharsets.UTF_8);
+                this.router.forward(new Packet(this.id, new Id[] { this.id }, peer, payload), Router.DEFAULT_TIME_TO_LIVE);
+            }
+        }
+    }
+
+    /** Queues up a packet carrying the given file for a peer. */
+    void queueAttachment(Id peer, byte[] payload, File file) {
+        synchronized(this.router) {
+            this.router.register(peer);
+            this.router.forward(
+                new Packet(this.id, new Id[] { this.id }, peer, Packet.Priority.NORMAL, payload, new Attachment(file)),
+                Router.DEFAULT_TIME_TO_LIVE);
+        }
+    }
+
+    /** Makes up a file of the given size, full of random bytes. */
+    static File randomFile(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+
+        File file = File.createTempFile("attachment", null);
+        file.deleteOnExit();
+        try(FileOutputStream output = new FileOutputStream(file)) {
+            output.write(data);
+        }
+        return file;
+    }
+
+    @Override
+    public void close() {
+        this.loop.close();
+    }
+}
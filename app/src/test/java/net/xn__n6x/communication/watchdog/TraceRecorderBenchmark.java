@@ -0,0 +1,25 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.Benchmark;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+/** Measures what recording a trace costs the engine. */
+@Tag(Benchmark.TAG)
+class TraceRecorderBenchmark {
+    @Test
+    void record(@TempDir File directory) throws Exception {
+        try(TraceRecorder trace = new TraceRecorder(new File(directory, "trace"))) {
+            /* Enough to go around the ring a few times. */
+            int records = 4 * TraceRecorder.DEFAULT_SLOTS;
+            Benchmark.measure("trace record", records, () -> {
+                for(int i = 0; i < records; ++i)
+                    trace.session(i, "aa:aa:aa:aa:aa:aa", i, i);
+                return trace.getCount();
+            });
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package net.xn__n6x.communication.watchdog;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+class TraceRecorderTest {
+    static final String A = "aa:aa:aa:aa:aa:aa";
+    static final String B = "bb:bb:bb:bb:bb:bb";
+
+    @Test
+    void roundTrip(@TempDir File directory) throws IOException {
+        File file = new File(directory, "trace");
+        try(TraceRecorder trace = new TraceRecorder(file, 32)) {
+            trace.start(10, 1000, "02:00:00:00:00:01");
+            trace.search(20, Arrays.asList(A, B));
+            trace.linking(30, A);
+            trace.linked(40, A);
+            trace.session(50, A, 4096, 3);
+            trace.failed(60, B);
+            trace.queue(70, 1L << 40, 2);
+            Assertions.assertEquals(9, trace.getCount());
+        }
+
+        List<TraceReader.Record> records = TraceReader.read(file);
+        Assertions.assertEquals(
+            "[10 START 20000000001 1000 0, "
+                + "20 SEARCH 0 2 0, "
+                + "20 FOUND aaaaaaaaaaaa 0 0, "
+                + "20 FOUND bbbbbbbbbbbb 0 0, "
+                + "30 LINKING aaaaaaaaaaaa 0 0, "
+                + "40 LINKED aaaaaaaaaaaa 0 0, "
+                + "50 SESSION aaaaaaaaaaaa 4096 3, "
+                + "60 FAILED bbbbbbbbbbbb 0 0, "
+                + "70 QUEUE 0 1099511627776 2]",
+            records.toString());
+        Assertions.assertEquals(0x020000000001L, TraceReader.owner(records));
+        Assertions.assertEquals(
+            Arrays.asList(1000L, 1010L, 1060L),
+            Arrays.asList(
+                TraceReader.align(records).get(0).time,
+                TraceReader.align(records).get(1).time,
+                TraceReader.align(records).get(8).time));
+    }
+
+    @Test
+    void runs(@TempDir File directory) throws IOException {
+        File file = new File(directory, "trace");
+        try(TraceRecorder trace = new TraceRecorder(file, 64)) {
+            trace.start(100, 10_000, A);
+            trace.linking(200, B);
+        }
+
+        /* The device rebooted, and its clock started over. */
+        try(TraceRecorder trace = new TraceRecorder(file, 64)) {
+            trace.start(5, 50_000, A);
+            trace.linking(25, B);
+        }
+
+        /* Every run goes by its own start. */
+        List<TraceReader.Record> aligned = TraceReader.align(TraceReader.read(file));
+        Assertions.assertEquals(4, aligned.size());
+        Assertions.assertEquals(10_000, aligned.get(0).time);
+        Assertions.assertEquals(10_100, aligned.get(1).time);
+        Assertions.assertEquals(50_000, aligned.get(2).time);
+        Assertions.assertEquals(50_020, aligned.get(3).time);
+    }
+
+    @Test
+    void clocks(@TempDir File directory) throws IOException {
+        File file = new File(directory, "trace");
+        try(TraceRecorder trace = new TraceRecorder(file, 8)) {
+            trace.start(0, 10_000, A);
+            for(int i = 1; i <= 20; ++i)
+                trace.linking(i * 10, B);
+        }
+
+        /* The start is long gone, but the clock, and who we are, aren't. */
+        List<TraceReader.Record> records = TraceReader.read(file);
+        Assertions.assertTrue(records.stream().noneMatch(record -> record.type == TraceRecorder.Type.START));
+        Assertions.assertEquals(TraceRecorder.address(A), TraceReader.owner(records));
+
+        List<TraceReader.Record> aligned = TraceReader.align(records);
+        Assertions.assertEquals(records.size(), aligned.size());
+        for(int i = 0; i < records.size(); ++i)
+            Assertions.assertEquals(records.get(i).time + 10_000, aligned.get(i).time);
+
+        /* Once another run starts, what's left of the earlier one still
+         * goes by the clock it had. */
+        try(TraceRecorder trace = new TraceRecorder(file, 8)) {
+            trace.start(3, 90_000, A);
+            for(int i = 0; i < 3; ++i)
+                trace.linking(4 + i, B);
+        }
+        Assertions.assertEquals(
+            "[10180 CLOCK aaaaaaaaaaaa 10180 0, "
+                + "10190 LINKING bbbbbbbbbbbb 0 0, "
+                + "10200 LINKING bbbbbbbbbbbb 0 0, "
+                + "90000 START aaaaaaaaaaaa 90000 0, "
+                + "90001 LINKING bbbbbbbbbbbb 0 0, "
+                + "90002 LINKING bbbbbbbbbbbb 0 0, "
+                + "90003 LINKING bbbbbbbbbbbb 0 0, "
+                + "90003 CLOCK aaaaaaaaaaaa 90003 0]",
+            TraceReader.align(TraceReader.read(file)).toString());
+    }
+
+    @Test
+    void owner(@TempDir File directory) throws IOException {
+        File file = new File(directory, "trace");
+        try(TraceRecorder trace = new TraceRecorder(file, 16)) {
+            /* Before the engine starts, there's nothing to go with it. */
+            trace.owner(0, A);
+            trace.start(10, 1000, null);
+            trace.search(20, Collections.singletonList(B));
+            trace.owner(30, A);
+            trace.search(40, Collections.emptyList());
+        }
+
+        List<TraceReader.Record> records = TraceReader.read(file);
+        Assertions.assertEquals(
+            "[10 START 0 1000 0, "
+                + "20 SEARCH 0 1 0, "
+                + "20 FOUND bbbbbbbbbbbb 0 0, "
+                + "30 CLOCK aaaaaaaaaaaa 1020 0, "
+                + "40 SEARCH 0 0 0]",
+            records.toString());
+        Assertions.assertEquals(0xaaaaaaaaaaaaL, TraceReader.owner(records));
+
+        /* Learning who we are is no restart. */
+        Assertions.assertEquals("[bbbbbbbbbbbb [20, 40)]", TraceReader.encounters(records).toString());
+    }
+
+    @Test
+    void addresses() {
+        Assertions.assertEquals(0, TraceRecorder.address(null));
+        Assertions.assertEquals(0x0123456789abL, TraceRecorder.address("01:23:45:67:89:AB"));
+
+        /* Anything else is hashed, and can't be mistaken for a MAC. */
+        long loopback = TraceRecorder.address("node-1");
+        Assertions.assertTrue(loopback < 0);
+        Assertions.assertEquals(loopback, TraceRecorder.address("node-1"));
+        Assertions.assertNotEquals(loopback, TraceRecorder.address("node-2"));
+        Assertions.assertTrue(TraceRecorder.address("01:23:45:67:89:AG") < 0);
+    }
+
+    @Test
+    void wrapAround(@TempDir File directory) throws IOException {
+        File file = new File(directory, "trace");
+        try(TraceRecorder trace = new TraceRecorder(file, 4)) {
+            for(int i = 0; i < 10; ++i)
+                trace.queue(i, i, 0);
+        }
+
+        /* Only the newest records are left, oldest first. */
+        List<TraceReader.Record> records = TraceReader.read(file);
+        Assertions.assertEquals(4, records.size());
+        for(int i = 0; i < 4; ++i)
+            Assertions.assertEquals(6 + i, records.get(i).time);
+
+        /* Opening it again carries on where it left off. */
+        try(TraceRecorder trace = new TraceRecorder(file, 4)) {
+            Assertions.assertEquals(10, trace.getCount());
+            trace.queue(10, 10, 0);
+        }
+        records = TraceReader.read(file);
+        Assertions.assertEquals(7, records.get(0).time);
+        Assertions.assertEquals(10, records.get(3).time);
+
+        /* Unless it's a different size, which starts it over. */
+        try(TraceRecorder trace = new TraceRecorder(file, 8)) {
+            Assertions.assertEquals(0, trace.getCount());
+        }
+        Assertions.assertEquals(0, TraceReader.read(file).size());
+    }
+
+    @Test
+    void broken(@TempDir File directory) throws IOException {
+        File file = new File(directory, "trace");
+        Assertions.assertThrows(IOException.class, () -> TraceReader.read(file));
+
+        try(FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[64]);
+        }
+        Assertions.assertThrows(IOException.class, () -> TraceReader.read(file));
+
+        /* Whatever was there, the recorder starts a fresh trace over it. */
+        try(TraceRecorder trace = new TraceRecorder(file, 2)) {
+            Assertions.assertEquals(0, trace.getCount());
+            trace.linking(0, A);
+        }
+        Assertions.assertEquals(1, TraceReader.read(file).size());
+    }
+
+    @Test
+    void encounters(@TempDir File directory) throws IOException {
+        File file = new File(directory, "trace");
+        try(TraceRecorder trace = new TraceRecorder(file, 64)) {
+            trace.start(0, 0, null);
+            trace.search(100, Collections.singletonList(A));
+            trace.search(200, Arrays.asList(A, B));
+            trace.linking(250, B);
+            trace.search(300, Collections.singletonList(B));
+            trace.search(400, Collections.emptyList());
+            trace.search(500, Collections.singletonList(A));
+            trace.queue(600, 0, 0);
+
+            /* A restart puts everyone out of reach. */
+            trace.start(10, 1000, null);
+            trace.search(20, Collections.singletonList(B));
+        }
+
+        List<TraceReader.Encounter> encounters = TraceReader.encounters(TraceReader.read(file));
+        Assertions.assertEquals(
+            "[aaaaaaaaaaaa [100, 300), "
+                + "bbbbbbbbbbbb [200, 400), "
+                + "aaaaaaaaaaaa [500, 600), "
+                + "bbbbbbbbbbbb [20, 20)]",
+            encounters.toString());
+    }
+}
@@ -0,0 +1,120 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.Benchmark;
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.identity.Id;
+import net.xn__n6x.communication.identity.Keys;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Drives whole {@link WatchdogEngine}s over a {@link LoopbackTransport}, from
+ * the message being sent to it being handed to the application. */
+@Tag(Benchmark.TAG)
+class WatchdogEngineBenchmark {
+    @Test
+    void deliveryLatency() throws Exception {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = WatchdogEngineTest.start(network, "aa:aa:aa:aa:aa:aa");
+            WatchdogEngine b = WatchdogEngineTest.start(network, "bb:bb:bb:bb:bb:bb");
+            b.listen(a.getId(), messages::add);
+            WatchdogEngineTest.awaitKnown(a, b.getId());
+
+            /* Every message undocks a, links up with b and runs a session.
+             * They must all differ, or the router takes them for copies. */
+            int count = 100;
+            long[] sent = { 0 };
+            Benchmark.measure("engine delivery, docked to received", count, () -> {
+                for(int i = 0; i < count; ++i) {
+                    byte[] payload = new byte[64];
+                    ByteBuffer.wrap(payload).putLong(sent[0]++);
+
+                    a.send(payload, b.getId(), Packet.Priority.NORMAL);
+                    WatchdogEngineTest.await(messages);
+                    b.tryReceive(a.getId());
+                }
+                return count;
+            });
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void discoveryLatency() throws Exception {
+        /* Linking up with every peer one at a time, against reading their
+         * records. Peers are up before a is, and a is what gets measured. */
+        int peers = 8;
+        for(boolean records : new boolean[] { false, true }) {
+            Benchmark.measure("discovery of " + peers + " peers, " + (records ? "records" : "sessions"), peers, () -> {
+                try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+                    ArrayList<WatchdogEngine> engines = new ArrayList<>();
+                    for(int i = 0; i < peers; ++i) {
+                        String address = String.format("%02x:00:00:00:00:00", i + 1);
+                        engines.add(records
+                            ? WatchdogEngineTest.startAdvertised(network, address)
+                            : WatchdogEngineTest.start(network, address));
+                    }
+
+                    LinkedBlockingQueue<HashSet<Id>> discovered = new LinkedBlockingQueue<>();
+                    LoopbackTransport transport = new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa");
+                    WatchdogEngine a;
+                    if(records)
+                        a = WatchdogEngineTest.startAdvertised(network, transport, discovered);
+                    else {
+                        a = new WatchdogEngine(Keys.generate(), transport, network::post);
+                        a.watchDiscovery(discovered::add);
+                        a.start();
+                    }
+                    engines.add(a);
+
+                    HashSet<Id> reachable = new HashSet<>();
+                    while(reachable.size() < peers)
+                        reachable.addAll(WatchdogEngineTest.await(discovered));
+
+                    for(WatchdogEngine engine : engines)
+                        engine.close();
+                    return reachable.size();
+                }
+            });
+        }
+    }
+
+    @Test
+    void batchThroughput() throws Exception {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = WatchdogEngineTest.start(network, "aa:aa:aa:aa:aa:aa");
+            WatchdogEngine b = WatchdogEngineTest.start(network, "bb:bb:bb:bb:bb:bb");
+            b.listen(a.getId(), messages::add);
+            WatchdogEngineTest.awaitKnown(a, b.getId());
+
+            int count = 2000;
+            long[] sent = { 0 };
+            Benchmark.measure("engine delivery, batches of " + count + "x1KiB", count, () -> {
+                for(int i = 0; i < count; ++i) {
+                    byte[] payload = new byte[1024];
+                    ByteBuffer.wrap(payload).putLong(sent[0]++);
+
+                    a.send(payload, b.getId(), Packet.Priority.NORMAL);
+                }
+                for(int i = 0; i < count; ++i) {
+                    WatchdogEngineTest.await(messages);
+                    b.tryReceive(a.getId());
+                }
+                return count;
+            });
+
+            a.close();
+            b.close();
+        }
+    }
+}
@@ -0,0 +1,983 @@
+package net.xn__n6x.communication.watchdog;
+
+import net.xn__n6x.communication.control.Packet;
+import net.xn__n6x.communication.identity.Id;
+import net.xn__n6x.communication.identity.Keys;
+import net.xn__n6x.communication.identity.Sealer;
+import net.xn__n6x.communication.metrics.Metrics;
+import net.xn__n6x.communication.watchdog.WatchdogEngine.State;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+class WatchdogEngineTest {
+    /** Starts up an engine on the given network, one that fails the test
+     * should it ever fail itself. */
+    static WatchdogEngine start(LoopbackTransport.Network network, String address) throws IOException {
+        return start(network, Keys.generate(), address);
+    }
+
+    /** Starts up an engine on the given network, with the given keys, one
+     * that fails the test should it ever fail itself. */
+    static WatchdogEngine start(LoopbackTransport.Network network, Keys keys, String address) throws IOException {
+        WatchdogEngine engine = new WatchdogEngine(
+            keys,
+            new LoopbackTransport(network, address),
+            network::post);
+        engine.watchFailure(error -> Assertions.fail("The engine failed", error));
+        engine.start();
+
+        return engine;
+    }
+
+    /** Starts up an engine on the given network, one that also puts out
+     * and browses service records. */
+    static WatchdogEngine startAdvertised(LoopbackTransport.Network network, String address) throws IOException {
+        return startAdvertised(network, new LoopbackTransport(network, address), null);
+    }
+
+    /** Starts up an engine on the given network, over the given transport,
+     * one that also puts out and browses service records.
+     * @param discovered Where the peers it discovers should go, if anywhere. */
+    static WatchdogEngine startAdvertised(
+            LoopbackTransport.Network network,
+            LoopbackTransport transport,
+            LinkedBlockingQueue<HashSet<Id>> discovered) throws IOException {
+        WatchdogEngine engine = new WatchdogEngine(
+            Keys.generate(),
+            transport,
+            new LoopbackAdvertiser(network, transport.getAddress()),
+            network::post,
+            new File(System.getProperty("java.io.tmpdir")));
+        engine.watchFailure(error -> Assertions.fail("The engine failed", error));
+        if(discovered != null)
+            engine.watchDiscovery(discovered::add);
+        engine.start();
+
+        return engine;
+    }
+
+    static <T> T await(LinkedBlockingQueue<T> queue) throws InterruptedException {
+        T value = queue.poll(10, TimeUnit.SECONDS);
+        if(value == null)
+            throw new AssertionError("Timed out waiting for the engine");
+        return value;
+    }
+
+    /** Waits for the given condition on the given engine to hold. */
+    static void await(WatchdogEngine engine, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(true) {
+            synchronized(engine) {
+                if(condition.getAsBoolean())
+                    return;
+            }
+            if(System.nanoTime() > deadline)
+                throw new AssertionError("Timed out waiting for the engine");
+            Thread.sleep(1);
+        }
+    }
+
+    /** Counts the sessions measured in the given registry. */
+    static long sessions(Metrics metrics) {
+        return metrics.snapshot().histograms.entrySet().stream()
+            .filter(entry -> entry.getKey().startsWith("watchdog.session."))
+            .mapToLong(entry -> entry.getValue().count)
+            .sum();
+    }
+
+    /** Counts how many times the given event is in the given log. */
+    static long count(EventLog log, EventLog.Event event) {
+        return log.dump().stream().filter(line -> line.contains(" " + event + ": ")).count();
+    }
+
+    /** Waits for the given engine to have met the given peer, be it because
+     * it discovered the peer or because the peer discovered it. */
+    static void awaitKnown(WatchdogEngine engine, Id peer) throws InterruptedException {
+        await(engine, () -> engine.peers.getAddress(peer) != null);
+    }
+
+    @Test
+    void discovery() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<HashSet<Id>> discovered = new LinkedBlockingQueue<>();
+
+            /* Register the listener before anyone else is around. */
+            WatchdogEngine a = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa"),
+                network::post);
+            a.watchDiscovery(discovered::add);
+            WatchdogEngine b = start(network, "bb:bb:bb:bb:bb:bb");
+            WatchdogEngine c = start(network, "cc:cc:cc:cc:cc:cc");
+            a.start();
+
+            HashSet<Id> reachable = new HashSet<>();
+            while(reachable.size() < 2)
+                reachable.addAll(await(discovered));
+
+            Assertions.assertTrue(reachable.contains(b.getId()));
+            Assertions.assertTrue(reachable.contains(c.getId()));
+
+            /* And it has them on record, along with how their sessions went. */
+            await(a, () -> a.getPeers().stream()
+                .filter(peer -> peer.state == PeerTable.State.REACHABLE && peer.sessions > 0)
+                .count() == 2);
+
+            a.close();
+            b.close();
+            c.close();
+        }
+    }
+
+    @Test
+    void recordDiscovery() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<HashSet<Id>> discovered = new LinkedBlockingQueue<>();
+
+            WatchdogEngine b = startAdvertised(network, "bb:bb:bb:bb:bb:bb");
+            WatchdogEngine c = startAdvertised(network, "cc:cc:cc:cc:cc:cc");
+            WatchdogEngine a = startAdvertised(
+                network,
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa"),
+                discovered);
+
+            HashSet<Id> reachable = new HashSet<>();
+            while(reachable.size() < 2)
+                reachable.addAll(await(discovered));
+            Assertions.assertTrue(reachable.contains(b.getId()));
+            Assertions.assertTrue(reachable.contains(c.getId()));
+
+            /* Their records came in before the search was over, so a never
+             * had to link up with either of them. */
+            synchronized(a) {
+                Assertions.assertEquals(0, a.attempt);
+                Assertions.assertEquals(b.getId(), a.peers.getId("bb:bb:bb:bb:bb:bb"));
+                Assertions.assertEquals(c.getId(), a.peers.getId("cc:cc:cc:cc:cc:cc"));
+            }
+
+            a.close();
+            b.close();
+            c.close();
+        }
+    }
+
+    @Test
+    void recordPull() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            /* b can't bring up links of its own, so it has to be visited. */
+            WatchdogEngine a = startAdvertised(network, "aa:aa:aa:aa:aa:aa");
+            WatchdogEngine b = startAdvertised(
+                network,
+                new LoopbackTransport(network, "bb:bb:bb:bb:bb:bb") {
+                    @Override
+                    public void connect(String address) {
+                    }
+                },
+                null);
+            a.listen(b.getId(), messages::add);
+            awaitKnown(b, a.getId());
+
+            b.send("come get it".getBytes(StandardCharsets.UTF_8), a.getId(), Packet.Priority.NORMAL).join();
+
+            /* Once a browses again, b's record tells it who b is, and that
+             * there's something waiting for it there. */
+            network.post(() -> {
+                synchronized(a) {
+                    a.search();
+                }
+            });
+            Assertions.assertEquals(b.getId(), await(messages));
+            Assertions.assertEquals("come get it", new String(a.tryReceive(b.getId()).get(), StandardCharsets.UTF_8));
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void transmission() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<HashSet<Id>> discovered = new LinkedBlockingQueue<>();
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = start(network, "aa:aa:aa:aa:aa:aa");
+            WatchdogEngine b = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "bb:bb:bb:bb:bb:bb"),
+                network::post);
+            b.watchDiscovery(discovered::add);
+            b.listen(a.getId(), messages::add);
+            b.start();
+
+            /* Wait for b to find out about a, then send something its way. */
+            LinkedBlockingQueue<Id> pings = new LinkedBlockingQueue<>();
+            a.listen(b.getId(), pings::add);
+            while(!await(discovered).contains(a.getId()));
+            b.send("ping".getBytes(StandardCharsets.UTF_8), a.getId(), Packet.Priority.NORMAL);
+
+            /* Which makes a send something back. */
+            Assertions.assertEquals(b.getId(), await(pings));
+            Optional<byte[]> ping = a.tryReceive(b.getId());
+            Assertions.assertTrue(ping.isPresent());
+            Assertions.assertEquals("ping", new String(ping.get(), StandardCharsets.UTF_8));
+            a.send("pong".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+
+            Assertions.assertEquals(a.getId(), await(messages));
+            Optional<byte[]> pong = b.tryReceive(a.getId());
+            Assertions.assertTrue(pong.isPresent());
+            Assertions.assertEquals("pong", new String(pong.get(), StandardCharsets.UTF_8));
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void traced(@TempDir File directory) throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<HashSet<Id>> discovered = new LinkedBlockingQueue<>();
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+            File file = new File(directory, "trace");
+
+            WatchdogEngine a = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa"),
+                network::post);
+            a.watchDiscovery(discovered::add);
+            TraceRecorder trace = new TraceRecorder(file, 1024);
+            a.trace(trace);
+            WatchdogEngine b = start(network, "bb:bb:bb:bb:bb:bb");
+            b.listen(a.getId(), messages::add);
+            a.start();
+
+            while(!await(discovered).contains(b.getId()));
+            a.send("ping".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+            Assertions.assertEquals(a.getId(), await(messages));
+
+            /* The session it went over may take a little longer to wind
+             * down on this end. */
+            long peer = TraceRecorder.address("bb:bb:bb:bb:bb:bb");
+            await(a, () -> {
+                try {
+                    return TraceReader.read(file).stream().anyMatch(record ->
+                        record.type == TraceRecorder.Type.SESSION && record.peer == peer && record.b > 0);
+                } catch(IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+
+            a.close();
+            b.close();
+            trace.close();
+
+            List<TraceReader.Record> records = TraceReader.read(file);
+            Assertions.assertEquals(TraceRecorder.Type.START, records.get(0).type);
+            Assertions.assertEquals(0xaaaaaaaaaaaaL, TraceReader.owner(records));
+
+            Assertions.assertTrue(records.stream().anyMatch(record ->
+                record.type == TraceRecorder.Type.FOUND && record.peer == peer));
+            Assertions.assertTrue(records.stream().anyMatch(record ->
+                record.type == TraceRecorder.Type.SESSION && record.peer == peer && record.a > 0 && record.b > 0));
+            Assertions.assertTrue(records.stream().anyMatch(record ->
+                record.type == TraceRecorder.Type.QUEUE && record.a > 0 && record.b == 1));
+
+            /* The engine is still in reach of b by the time it's closed. */
+            List<TraceReader.Encounter> encounters = TraceReader.encounters(records);
+            Assertions.assertEquals(1, encounters.size());
+            Assertions.assertEquals(peer, encounters.get(0).peer);
+        }
+    }
+
+    @Test
+    void tracedOwner(@TempDir File directory) throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            File file = new File(directory, "trace");
+
+            /* A transport that only learns its address after it starts, the
+             * way Wifi P2P does. */
+            LoopbackTransport transport = new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa") {
+                volatile boolean known = false;
+
+                @Override
+                public String getAddress() {
+                    return this.known ? super.getAddress() : null;
+                }
+
+                @Override
+                public void search() {
+                    this.known = true;
+                    this.listener.onAddressKnown(super.getAddress());
+                    super.search();
+                }
+            };
+            WatchdogEngine a = new WatchdogEngine(Keys.generate(), transport, network::post);
+            TraceRecorder trace = new TraceRecorder(file, 64);
+            a.trace(trace);
+            a.start();
+
+            await(a, () -> trace.getCount() >= 2);
+            a.close();
+            trace.close();
+
+            List<TraceReader.Record> records = TraceReader.read(file);
+            Assertions.assertEquals(0, records.get(0).peer);
+            Assertions.assertEquals(0xaaaaaaaaaaaaL, TraceReader.owner(records));
+        }
+    }
+
+    @Test
+    void measured() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<HashSet<Id>> discovered = new LinkedBlockingQueue<>();
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa"),
+                network::post);
+            Metrics metrics = new Metrics();
+            a.measure(metrics);
+            a.watchDiscovery(discovered::add);
+            WatchdogEngine b = start(network, "bb:bb:bb:bb:bb:bb");
+            Metrics linker = new Metrics();
+            b.measure(linker);
+            a.listen(b.getId(), messages::add);
+            a.start();
+
+            while(!await(discovered).contains(b.getId()));
+            b.send("ping".getBytes(StandardCharsets.UTF_8), a.getId(), Packet.Priority.NORMAL);
+            Assertions.assertEquals(b.getId(), await(messages));
+
+            /* The message waits for us to pick it up. */
+            Metrics.Snapshot snapshot = metrics.snapshot();
+            Assertions.assertEquals(1, snapshot.get("watchdog.inbound.packets"));
+            Assertions.assertTrue(snapshot.get("watchdog.inbound.bytes") > 0);
+            /* Every link either of them asked for, be it to discover the
+             * other or to send it something, is measured once it's up. */
+            await(a, () -> metrics.snapshot().getHistogram("watchdog.link").count
+                + linker.snapshot().getHistogram("watchdog.link").count
+                == count(a.getLog(), EventLog.Event.LINKING) + count(b.getLog(), EventLog.Event.LINKING));
+            Assertions.assertTrue(metrics.snapshot().getHistogram("watchdog.link").count >= 1);
+            Assertions.assertEquals(0, snapshot.get("watchdog.sessions.failed"));
+            Assertions.assertEquals(0, snapshot.get("watchdog.expired.link"));
+            Assertions.assertTrue(a.tryReceive(b.getId()).isPresent());
+            Assertions.assertEquals(0, metrics.snapshot().get("watchdog.inbound.packets"));
+
+            /* Both of the sessions, once they've wound down. There may be
+             * another, should a have gone back to b for more. Whichever
+             * there were, every one that went through was measured. */
+            await(a, () -> sessions(metrics) >= 2);
+            synchronized(a) {
+                Assertions.assertEquals(count(a.getLog(), EventLog.Event.SESSION_FINISHED), sessions(metrics));
+            }
+            snapshot = metrics.snapshot();
+            Assertions.assertTrue(snapshot.get("watchdog.bytes.in") > 0);
+            Assertions.assertTrue(snapshot.get("watchdog.bytes.out") > 0);
+
+            /* What the router measures goes in there as well. */
+            Assertions.assertEquals(0, snapshot.get("router.queued.bytes"));
+            Assertions.assertTrue(snapshot.values.containsKey("router.forwarded"));
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void sealed() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = start(network, "aa:aa:aa:aa:aa:aa");
+            WatchdogEngine b = start(network, "bb:bb:bb:bb:bb:bb");
+            b.listen(a.getId(), messages::add);
+            awaitKnown(a, b.getId());
+
+            /* Nobody can be sent anything without keys to seal it with. */
+            Assertions.assertThrows(IllegalArgumentException.class,
+                () -> a.send(new byte[] { 1 }, Id.random(), Packet.Priority.NORMAL));
+
+            /* Nor anything too long to fit in a frame once sealed. */
+            byte[] huge = new byte[Frame.MAX_PAYLOAD - Sealer.OVERHEAD + 1];
+            Assertions.assertThrows(IllegalArgumentException.class,
+                () -> a.send(huge, b.getId(), Packet.Priority.NORMAL));
+            Assertions.assertThrows(IllegalArgumentException.class,
+                () -> a.sendAttachment(huge, new File("missing"), b.getId(), Packet.Priority.NORMAL));
+
+            a.send("secret".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+            a.send("another".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+            Assertions.assertEquals(a.getId(), await(messages));
+            Assertions.assertEquals(a.getId(), await(messages));
+
+            /* Messages stay sealed until they are picked up, and the ones
+             * that don't open are dropped. */
+            synchronized(b) {
+                Packet p = b.inboundQueue.get(a.getId()).peekFirst();
+                Assertions.assertEquals("secret".length() + Sealer.OVERHEAD, p.getPayload().length);
+                p.getPayload()[p.getPayload().length - 1] ^= 1;
+            }
+            Optional<byte[]> message = b.tryReceive(a.getId());
+            Assertions.assertTrue(message.isPresent());
+            Assertions.assertEquals("another", new String(message.get(), StandardCharsets.UTF_8));
+            Assertions.assertFalse(b.tryReceive(a.getId()).isPresent());
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void queuedSend() throws Exception {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = start(network, "aa:aa:aa:aa:aa:aa");
+            WatchdogEngine b = start(network, "bb:bb:bb:bb:bb:bb");
+            b.listen(a.getId(), messages::add);
+            awaitKnown(a, b.getId());
+
+            /* Sending doesn't wait on the state machine, however busy it is. */
+            CountDownLatch busy = new CountDownLatch(1);
+            network.post(() -> {
+                try {
+                    busy.await();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            CompletableFuture<Void> first = a.send("first".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+            CompletableFuture<Void> second = a.send("second".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+            Assertions.assertFalse(first.isDone());
+            Assertions.assertFalse(second.isDone());
+
+            /* And once it gets around to them, they go out in order. */
+            busy.countDown();
+            second.get(10, TimeUnit.SECONDS);
+            Assertions.assertTrue(first.isDone());
+
+            Assertions.assertEquals(a.getId(), await(messages));
+            Assertions.assertEquals(a.getId(), await(messages));
+            Assertions.assertEquals("first", new String(b.tryReceive(a.getId()).get(), StandardCharsets.UTF_8));
+            Assertions.assertEquals("second", new String(b.tryReceive(a.getId()).get(), StandardCharsets.UTF_8));
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void attachment() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = start(network, "aa:aa:aa:aa:aa:aa");
+            WatchdogEngine b = start(network, "bb:bb:bb:bb:bb:bb");
+            b.listen(a.getId(), messages::add);
+            awaitKnown(a, b.getId());
+
+            File file = TestNode.randomFile(256 * 1024);
+            a.sendAttachment("photo".getBytes(StandardCharsets.UTF_8), file, b.getId(), Packet.Priority.NORMAL);
+            Assertions.assertEquals(a.getId(), await(messages));
+
+            /* The file is handed over as is, and a keeps its own. */
+            Packet p = b.tryReceivePacket(a.getId()).orElseThrow(AssertionError::new);
+            Assertions.assertEquals("photo", new String(p.getPayload(), StandardCharsets.UTF_8));
+            File got = p.getAttachment().orElseThrow(AssertionError::new).getFile();
+            Assertions.assertTrue(file.exists());
+            Assertions.assertArrayEquals(SessionLoopTest.readAll(file), SessionLoopTest.readAll(got));
+            Assertions.assertTrue(got.delete());
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void boundedInbound() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = start(network, "aa:aa:aa:aa:aa:aa");
+            WatchdogEngine b = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "bb:bb:bb:bb:bb:bb"),
+                network::post);
+            b.inboundCapacity = 3 * (1000 + Sealer.OVERHEAD);
+            b.listen(a.getId(), messages::add);
+            b.start();
+            awaitKnown(a, b.getId());
+
+            /* b only has room for three of these while nobody reads them. */
+            for(int i = 0; i < 10; ++i) {
+                byte[] payload = new byte[1000];
+                payload[0] = (byte) i;
+                a.send(payload, b.getId(), Packet.Priority.NORMAL);
+            }
+            for(int i = 0; i < 3; ++i)
+                Assertions.assertEquals(a.getId(), await(messages));
+            await(a, () -> a.throttled.contains(b.getId()));
+            await(a, () -> a.router.getQueuedCount(b.getId()) == 7);
+
+            synchronized(b) {
+                Assertions.assertEquals(3 * (1000 + Sealer.OVERHEAD), b.inboundBytes);
+                Assertions.assertTrue(b.starved.contains(a.getId()));
+            }
+
+            /* Until b makes room, and goes tell a about it. All of the room at
+             * once, or it may go tell a about the first of it only. */
+            synchronized(b) {
+                for(int i = 0; i < 3; ++i)
+                    Assertions.assertTrue(b.tryReceive(a.getId()).isPresent());
+            }
+            for(int i = 0; i < 3; ++i)
+                Assertions.assertEquals(a.getId(), await(messages));
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void boundedRelay() throws IOException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            WatchdogEngine a = start(network, "aa:aa:aa:aa:aa:aa");
+            Id source = Id.random();
+            Id next = Id.random();
+
+            synchronized(a) {
+                a.inboundCapacity = 4000;
+                a.router.register(next);
+
+                /* What we relay for others takes up room just the same. */
+                a.onPacketReceived(new Packet(source, new Id[] { source }, Id.random(), new byte[3000]));
+                Assertions.assertEquals(500, a.grant(source, 0));
+                Assertions.assertEquals(250, a.grant(next, 0));
+
+                /* Until it's been passed on. */
+                a.router.acknowledge(next, a.router.lease(next).get().sequence);
+                Assertions.assertEquals(1875, a.grant(source, 500));
+            }
+
+            a.close();
+        }
+    }
+
+    @Test
+    void sharedLink() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+
+            /* a owns every link it asks for, and lets up to four peers share
+             * them. It keeps track of how many it had going at once. */
+            LoopbackTransport transport = new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa", true);
+            transport.capacity = 4;
+            AtomicInteger concurrent = new AtomicInteger();
+            WatchdogEngine a = new WatchdogEngine(Keys.generate(), transport, network::post) {
+                @Override
+                protected void link(String address) {
+                    super.link(address);
+                    concurrent.accumulateAndGet(this.inFlight(), Math::max);
+                }
+            };
+            a.watchFailure(error -> Assertions.fail("The engine failed", error));
+
+            WatchdogEngine[] peers = new WatchdogEngine[4];
+            for(int i = 0; i < peers.length; ++i) {
+                peers[i] = start(network, "b" + i + ":bb:bb:bb:bb:bb");
+                peers[i].listen(a.getId(), messages::add);
+            }
+            a.start();
+            a.sessions.setTimeout(Deadline.LINGER, 200);
+
+            /* They're all discovered, and sent to, over links they share. */
+            for(WatchdogEngine peer : peers)
+                awaitKnown(a, peer.getId());
+            for(WatchdogEngine peer : peers)
+                a.send("hi".getBytes(StandardCharsets.UTF_8), peer.getId(), Packet.Priority.NORMAL);
+            for(int i = 0; i < peers.length; ++i)
+                Assertions.assertEquals(a.getId(), await(messages));
+
+            Assertions.assertTrue(concurrent.get() > 1);
+            Assertions.assertTrue(concurrent.get() <= 4);
+            await(a, () -> a.inFlight() == 0);
+
+            a.close();
+            for(WatchdogEngine peer : peers)
+                peer.close();
+        }
+    }
+
+    @Test
+    void relay() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+            LinkedBlockingQueue<WatchdogException> failures = new LinkedBlockingQueue<>();
+
+            /* a owns the link b and c share, and they can't see each other. */
+            LoopbackTransport transport = new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa", true);
+            transport.capacity = 4;
+            WatchdogEngine a = new WatchdogEngine(Keys.generate(), transport, network::post);
+            a.watchFailure(failures::add);
+            a.start();
+            WatchdogEngine b = startHidden(network, "bb:bb:bb:bb:bb:bb", "aa:aa:aa:aa:aa:aa", failures);
+            WatchdogEngine c = startHidden(network, "cc:cc:cc:cc:cc:cc", "aa:aa:aa:aa:aa:aa", failures);
+            c.listen(b.getId(), messages::add);
+            awaitKnown(a, b.getId());
+            awaitKnown(a, c.getId());
+            awaitKnown(c, a.getId());
+
+            long attempts;
+            synchronized(a) {
+                attempts = a.attempt;
+            }
+
+            /* What b sends c goes through a, over the sessions already open. */
+            b.send("through a".getBytes(StandardCharsets.UTF_8), c.getId(), Packet.Priority.NORMAL);
+            Assertions.assertEquals(b.getId(), await(messages));
+            Assertions.assertEquals("through a", new String(c.tryReceive(b.getId()).get(), StandardCharsets.UTF_8));
+            synchronized(a) {
+                Assertions.assertEquals(attempts, a.attempt);
+            }
+
+            /* Whoever goes first cuts the sessions of the others short, so we
+             * only look at what went wrong until now. */
+            Assertions.assertTrue(failures.isEmpty(), () -> "The engines failed: " + failures);
+            a.close();
+            b.close();
+            c.close();
+        }
+    }
+
+    @Test
+    void relayAttachment(@TempDir File directory) throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<WatchdogException> failures = new LinkedBlockingQueue<>();
+
+            /* a owns the link the others share, and keeps what it relays in a
+             * directory of its own. */
+            LoopbackTransport transport = new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa", true);
+            transport.capacity = 4;
+            WatchdogEngine a = new WatchdogEngine(Keys.generate(), transport, network::post, directory);
+            a.watchFailure(failures::add);
+            a.start();
+            WatchdogEngine b = startHidden(network, "bb:bb:bb:bb:bb:bb", "aa:aa:aa:aa:aa:aa", failures);
+            WatchdogEngine c = startHidden(network, "cc:cc:cc:cc:cc:cc", "aa:aa:aa:aa:aa:aa", failures);
+            WatchdogEngine d = startHidden(network, "dd:dd:dd:dd:dd:dd", "aa:aa:aa:aa:aa:aa", failures);
+            awaitKnown(a, b.getId());
+            awaitKnown(a, c.getId());
+            awaitKnown(a, d.getId());
+
+            /* Nobody around is the target, so a passes it on to both c and d,
+             * out of the one file it got from b. */
+            File file = TestNode.randomFile(64 * 1024);
+            b.sendAttachment("photo".getBytes(StandardCharsets.UTF_8), file, Keys.generate().getId(), Packet.Priority.NORMAL);
+            await(c, () -> count(c.getLog(), EventLog.Event.FORWARDED) > 0);
+            await(d, () -> count(d.getLog(), EventLog.Event.FORWARDED) > 0);
+
+            /* And gets rid of its copy once they both have it. */
+            await(a, () -> directory.list().length == 0);
+            Assertions.assertTrue(file.exists());
+            Assertions.assertTrue(failures.isEmpty(), () -> "The engines failed: " + failures);
+
+            a.close();
+            b.close();
+            c.close();
+            d.close();
+        }
+    }
+
+    /** Starts up an engine that only ever finds the given peer around. */
+    static WatchdogEngine startHidden(
+            LoopbackTransport.Network network,
+            String address,
+            String peer,
+            LinkedBlockingQueue<WatchdogException> failures) throws IOException {
+        WatchdogEngine engine = new WatchdogEngine(
+            Keys.generate(),
+            new LoopbackTransport(network, address) {
+                @Override
+                public void search() {
+                    this.network.post(() -> this.listener.onPeersChanged(Collections.singletonList(peer)));
+                }
+            },
+            network::post);
+        engine.watchFailure(failures::add);
+        engine.start();
+
+        return engine;
+    }
+
+    @Test
+    void dutyCycle() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            AtomicInteger searches = new AtomicInteger();
+            WatchdogEngine a = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa") {
+                    @Override
+                    public void search() {
+                        searches.incrementAndGet();
+                        super.search();
+                    }
+                },
+                network::post);
+            a.scans = new ScanScheduler(20, 40, new Random(1));
+            a.watchFailure(error -> Assertions.fail("The engine failed", error));
+            a.start();
+
+            /* Nobody's around, but a docked engine keeps looking. */
+            await(a, () -> searches.get() >= 4);
+            await(a, () -> a.state == State.DOCKED);
+
+            /* And finds whoever shows up, without anyone having to search
+             * for it. */
+            WatchdogEngine b = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "bb:bb:bb:bb:bb:bb") {
+                    @Override
+                    public void search() { }
+                },
+                network::post);
+            b.start();
+            awaitKnown(a, b.getId());
+
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void scansPerSearch() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            WatchdogEngine a = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa"),
+                network::post);
+            a.scans = new ScanScheduler(1000, 60_000, new Random(1));
+            a.watchFailure(error -> Assertions.fail("The engine failed", error));
+            a.start();
+            await(a, () -> a.state == State.DOCKED && !a.awaitingSearch);
+            long interval;
+            synchronized(a) {
+                interval = a.scans.getInterval();
+            }
+
+            /* Peers changing around us, however often, are one search's
+             * worth of results. */
+            for(int i = 0; i < 8; ++i)
+                a.onPeersChanged(Collections.emptyList());
+            synchronized(a) {
+                Assertions.assertEquals(interval, a.scans.getInterval());
+            }
+
+            a.close();
+        }
+    }
+
+    @Test
+    void circuitBreaker() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            /* A transport that can never get through to anyone. */
+            AtomicInteger searches = new AtomicInteger();
+            AtomicInteger connects = new AtomicInteger();
+            WatchdogEngine a = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa") {
+                    @Override
+                    public void search() {
+                        searches.incrementAndGet();
+                        super.search();
+                    }
+
+                    @Override
+                    public void connect(String address) {
+                        connects.incrementAndGet();
+                        this.network.post(() -> this.listener.onLinkFailed(
+                            address,
+                            new WatchdogException("Unreachable")));
+                    }
+                },
+                network::post);
+            a.scans = new ScanScheduler(10, 10, new Random(1));
+            Metrics metrics = new Metrics();
+            a.measure(metrics);
+            a.start();
+
+            new LoopbackTransport(network, "bb:bb:bb:bb:bb:bb").start(null, null);
+            a.transport.search();
+
+            /* It gives the device a few chances, then leaves it alone, even
+             * though searches keep turning it up. */
+            await(a, () -> {
+                PeerTable.Peer peer = a.peers.get("bb:bb:bb:bb:bb:bb");
+                return peer != null && peer.getCircuit(WatchdogEngine.now()) == PeerTable.Circuit.OPEN;
+            });
+            Assertions.assertEquals(PeerTable.FAILURE_THRESHOLD, connects.get());
+            Assertions.assertEquals(1, metrics.snapshot().get("watchdog.circuits.opened"));
+            Assertions.assertEquals(1, metrics.snapshot().get("watchdog.circuits.open"));
+
+            int searched = searches.get();
+            await(a, () -> searches.get() >= searched + 5);
+            Assertions.assertEquals(PeerTable.FAILURE_THRESHOLD, connects.get());
+
+            a.close();
+        }
+    }
+
+    @Test
+    void linkDeadline() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<WatchdogException> failures = new LinkedBlockingQueue<>();
+
+            /* A transport that asks for links, and never hears back. */
+            WatchdogEngine a = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa") {
+                    @Override
+                    public void connect(String address) { }
+                },
+                network::post);
+            a.linkTimeout = 200;
+            a.watchFailure(failures::add);
+            a.start();
+
+            /* Someone who will never get around to talking to us. */
+            new LoopbackTransport(network, "bb:bb:bb:bb:bb:bb").start(null, null);
+            a.transport.search();
+
+            WatchdogException error = await(failures);
+            Assertions.assertTrue(error instanceof DeadlineException);
+            Assertions.assertEquals(Deadline.LINK, ((DeadlineException) error).getDeadline());
+
+            /* The engine gives up on the peer, and carries on. */
+            await(a, () -> a.getExpiredCount(Deadline.LINK) >= 1);
+            Assertions.assertFalse(a.isLost());
+
+            a.close();
+        }
+    }
+
+    @Test
+    void restart(@TempDir File directory) throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<HashSet<Id>> discovered = new LinkedBlockingQueue<>();
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+            ContactCache contacts = new ContactCache(new File(directory, "contacts"));
+            Keys keys = Keys.generate();
+
+            WatchdogEngine b = start(network, "bb:bb:bb:bb:bb:bb");
+            b.listen(keys.getId(), messages::add);
+            WatchdogEngine a = new WatchdogEngine(
+                keys,
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa"),
+                null,
+                contacts,
+                network::post,
+                directory);
+            a.watchDiscovery(discovered::add);
+            a.start();
+            while(!await(discovered).contains(b.getId()));
+            a.close();
+
+            /* Once restarted, b is reachable as soon as it's found again, and
+             * the first link a asks for is to send it something. */
+            LinkedBlockingQueue<State> links = new LinkedBlockingQueue<>();
+            WatchdogEngine restarted = new WatchdogEngine(
+                keys,
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa"),
+                null,
+                contacts,
+                network::post,
+                directory) {
+                @Override
+                protected void link(String address) {
+                    links.add(this.state);
+                    super.link(address);
+                }
+            };
+            restarted.watchFailure(error -> Assertions.fail("The engine failed", error));
+            restarted.start();
+            await(restarted, () -> restarted.router.getReachablePeers().contains(b.getId()));
+            Assertions.assertTrue(links.isEmpty());
+
+            restarted.send("back".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+            Assertions.assertEquals(keys.getId(), await(messages));
+            Assertions.assertEquals(State.TRANSMISSION, links.peek());
+
+            restarted.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void restartedSender() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<Id> messages = new LinkedBlockingQueue<>();
+            Keys keys = Keys.generate();
+
+            WatchdogEngine b = start(network, "bb:bb:bb:bb:bb:bb");
+            b.listen(keys.getId(), messages::add);
+            WatchdogEngine a = start(network, keys, "aa:aa:aa:aa:aa:aa");
+            awaitKnown(a, b.getId());
+            a.send("before".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+            Assertions.assertEquals(keys.getId(), await(messages));
+            a.close();
+
+            /* The restarted sender numbers its packets from scratch, but b
+             * still remembers the ones it got before. */
+            WatchdogEngine restarted = start(network, keys, "aa:aa:aa:aa:aa:aa");
+            awaitKnown(restarted, b.getId());
+            restarted.send("after".getBytes(StandardCharsets.UTF_8), b.getId(), Packet.Priority.NORMAL);
+            Assertions.assertEquals(keys.getId(), await(messages));
+
+            List<String> received = new ArrayList<>();
+            Optional<byte[]> message;
+            while((message = b.tryReceive(keys.getId())).isPresent())
+                received.add(new String(message.get(), StandardCharsets.UTF_8));
+            Assertions.assertEquals(Arrays.asList("before", "after"), received);
+
+            restarted.close();
+            b.close();
+        }
+    }
+
+    @Test
+    void unreachable() throws IOException, InterruptedException {
+        try(LoopbackTransport.Network network = new LoopbackTransport.Network()) {
+            LinkedBlockingQueue<WatchdogException> failures = new LinkedBlockingQueue<>();
+
+            WatchdogEngine a = new WatchdogEngine(
+                Keys.generate(),
+                new LoopbackTransport(network, "aa:aa:aa:aa:aa:aa"),
+                network::post);
+            a.watchFailure(failures::add);
+            a.start();
+
+            /* Links to peers that aren't there fail. */
+            a.transport.connect("bb:bb:bb:bb:bb:bb");
+            Assertions.assertNotNull(await(failures));
+
+            a.close();
+        }
+    }
+}